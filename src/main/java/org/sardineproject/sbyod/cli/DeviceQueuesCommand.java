@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.cli;
+
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.DeviceId;
+import org.sardineproject.sbyod.connection.ConnectionRuleInstaller;
+import org.sardineproject.sbyod.connection.DeviceWorkQueues;
+
+import java.util.Map;
+
+/**
+ * Lists the depth of the work queues programming the devices.
+ */
+@Command(scope="onos", name="device-queues", description = "List the work queues programming the devices")
+public class DeviceQueuesCommand extends AbstractShellCommand{
+    /**
+     * Executes this command.
+     */
+    @Override
+    protected void execute() {
+        Map<DeviceId, DeviceWorkQueues.QueueStats> stats =
+                get(ConnectionRuleInstaller.class).getDeviceWorkQueues().stats();
+        print("Device queues:");
+        stats.forEach((deviceId, queueStats) -> print("device=%s, %s", deviceId, queueStats));
+    }
+}
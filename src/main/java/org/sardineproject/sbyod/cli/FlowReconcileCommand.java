@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.cli;
+
+import org.apache.karaf.shell.commands.Command;
+import org.apache.karaf.shell.commands.Option;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.DeviceId;
+import org.sardineproject.sbyod.connection.FlowReconcileService;
+
+import java.util.Map;
+
+/**
+ * Shows the drift between the connection rules and the flows of the devices.
+ */
+@Command(scope="onos", name="flow-reconcile", description = "Show the drift counters of the flow reconciliation")
+public class FlowReconcileCommand extends AbstractShellCommand{
+
+    @Option(name = "-n", aliases = "--now", description = "Reconcile the flows of the devices now",
+            required = false, multiValued = false)
+    private boolean now = false;
+
+    /**
+     * Executes this command.
+     */
+    @Override
+    protected void execute() {
+        FlowReconcileService flowReconcileService = get(FlowReconcileService.class);
+        Map<DeviceId, FlowReconcileService.DriftCounters> counters = flowReconcileService.getDriftCounters();
+        print("Flow drift:");
+        counters.forEach((deviceId, driftCounters) -> print("device=%s, %s", deviceId, driftCounters));
+        if(now) {
+            flowReconcileService.reconcile();
+            print("Reconciliation started.");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.cli;
+
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.DeviceId;
+import org.sardineproject.sbyod.connection.ConnectionRuleInstaller;
+import org.sardineproject.sbyod.connection.FlowRuleBatcher;
+
+import java.util.Map;
+
+/**
+ * Lists the flow rule batches submitted to each device.
+ */
+@Command(scope="onos", name="flow-rule-batches", description = "List the flow rule batches submitted per device")
+public class FlowRuleBatchesCommand extends AbstractShellCommand{
+    /**
+     * Executes this command.
+     */
+    @Override
+    protected void execute() {
+        Map<DeviceId, FlowRuleBatcher.BatchCounters> stats = get(ConnectionRuleInstaller.class).getFlowRuleBatcher().stats();
+        print("Flow rule batches:");
+        stats.forEach((deviceId, counters) -> print("device=%s, %s", deviceId, counters));
+    }
+}
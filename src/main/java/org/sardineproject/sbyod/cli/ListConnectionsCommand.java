@@ -40,7 +40,8 @@ public class ListConnectionsCommand extends AbstractShellCommand {
         while(connectionIterator.hasNext()){
             Connection connection = connectionIterator.next();
             print("Connection:\n\nuser = " + connection.getUser() + "\nservice = " + connection.getService()
-            + "\nFlowObjective count: " + connection.getForwardingObjectives().size());
+            + "\nFlowObjective count: " + connection.getForwardingObjectives().size()
+            + "\nDegraded: " + connectionStore.isDegraded(connection));
         }
     }
 }
\ No newline at end of file
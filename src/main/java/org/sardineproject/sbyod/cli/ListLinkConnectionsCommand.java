@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.cli;
+
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.LinkKey;
+import org.sardineproject.sbyod.connection.ConnectionRuleInstaller;
+
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Lists the number of installed connections using each link.
+ */
+@Command(scope="onos", name="list-link-connections",
+        description = "List the number of connections installed on each link")
+public class ListLinkConnectionsCommand extends AbstractShellCommand{
+    /**
+     * Executes this command.
+     */
+    @Override
+    protected void execute() {
+        Map<LinkKey, Integer> counts = get(ConnectionRuleInstaller.class).getLinkConnectionCounts();
+        print("Link connections:");
+        counts.entrySet().stream()
+                .sorted(Map.Entry.<LinkKey, Integer>comparingByValue(Comparator.reverseOrder()))
+                .forEach(entry -> print("src=%s, dst=%s, connections=%d",
+                        entry.getKey().src(), entry.getKey().dst(), entry.getValue()));
+    }
+}
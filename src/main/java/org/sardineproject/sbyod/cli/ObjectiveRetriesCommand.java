@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.cli;
+
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.DeviceId;
+import org.sardineproject.sbyod.connection.ObjectiveRetryService;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the objectives not yet acknowledged by the devices.
+ */
+@Command(scope="onos", name="objective-retries", description = "List the objectives not yet acknowledged by the devices")
+public class ObjectiveRetriesCommand extends AbstractShellCommand{
+    /**
+     * Executes this command.
+     */
+    @Override
+    protected void execute() {
+        ObjectiveRetryService retryService = get(ObjectiveRetryService.class);
+        Map<DeviceId, List<ObjectiveRetryService.RetryStatus>> pending = retryService.getPendingObjectives();
+        print("Pending objectives:");
+        pending.forEach((deviceId, objectives) -> {
+            print("device=%s, pending=%d", deviceId, objectives.size());
+            objectives.forEach(status -> print("    %s", status));
+        });
+        print("Failed objectives:");
+        retryService.getFailedObjectives().forEach((deviceId, failed) ->
+                print("device=%s, failed=%d", deviceId, failed));
+    }
+}
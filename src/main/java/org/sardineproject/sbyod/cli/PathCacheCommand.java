@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.cli;
+
+import com.google.common.cache.CacheStats;
+import org.apache.karaf.shell.commands.Command;
+import org.apache.karaf.shell.commands.Option;
+import org.onosproject.cli.AbstractShellCommand;
+import org.sardineproject.sbyod.connection.ConnectionRuleInstaller;
+import org.sardineproject.sbyod.connection.PathCache;
+import org.sardineproject.sbyod.connection.ServiceTreeCache;
+
+/**
+ * Shows the hit and miss counters of the path cache and the service tree cache of the connection rule installer.
+ */
+@Command(scope="onos", name="path-cache", description = "Show the statistics of the connection path cache")
+public class PathCacheCommand extends AbstractShellCommand{
+
+    @Option(name = "-c", aliases = "--clear", description = "Invalidate all cached paths and trees",
+            required = false, multiValued = false)
+    private boolean clear = false;
+
+    /**
+     * Executes this command.
+     */
+    @Override
+    protected void execute() {
+        ConnectionRuleInstaller installer = get(ConnectionRuleInstaller.class);
+        PathCache pathCache = installer.getPathCache();
+        CacheStats stats = pathCache.stats();
+        print("Path cache: entries=%d, hits=%d, misses=%d, hitRate=%.3f, evictions=%d",
+                pathCache.size(), stats.hitCount(), stats.missCount(), stats.hitRate(), stats.evictionCount());
+        ServiceTreeCache serviceTrees = installer.getServiceTrees();
+        print("Service trees: trees=%d, computations=%d, invalidations=%d",
+                serviceTrees.size(), serviceTrees.computations(), serviceTrees.invalidations());
+        if(clear) {
+            pathCache.invalidateAll();
+            serviceTrees.invalidateAll();
+            print("Path cache cleared.");
+        }
+    }
+}
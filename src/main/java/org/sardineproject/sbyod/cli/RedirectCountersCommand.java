@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.cli;
+
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.meter.Band;
+import org.sardineproject.sbyod.redirect.PacketRedirectService;
+
+/**
+ * Shows the packet ins received by the redirect to the portal.
+ */
+@Command(scope="onos", name="redirect-counters", description = "Show the packet in counters of the portal redirect")
+public class RedirectCountersCommand extends AbstractShellCommand{
+
+    /**
+     * Executes this command.
+     */
+    @Override
+    protected void execute() {
+        PacketRedirectService packetRedirectService = get(PacketRedirectService.class);
+        print("Redirect packet ins: %s", packetRedirectService.getCounters());
+        print("Dropped packet ins per host:");
+        packetRedirectService.getHostDrops().forEach((mac, drops) -> print("mac=%s, dropped=%d", mac, drops));
+        print("Punt meters:");
+        packetRedirectService.getPuntMeters().forEach((deviceId, meter) ->
+                print("device=%s, meter=%s, state=%s, packets=%d, dropped=%d", deviceId, meter.id(), meter.state(),
+                        meter.packetsSeen(), meter.bands().stream().mapToLong(Band::packets).sum()));
+    }
+}
@@ -38,17 +38,46 @@ public class ByodConfig extends Config<ApplicationId> {
     public static final String MATCH_ETH_DST = "matchEthDst";
     public static final String PREFIX_LENGTH = "prefixLength";
     public static final String PORTAL_URL = "redirectUrl";
+    public static final String EDGE_AUTHORIZATION = "edgeAuthorization";
+    public static final String MULTI_TABLE = "multiTable";
+    public static final String REACTIVE = "reactive";
+    public static final String IDLE_TIMEOUT = "idleTimeout";
+    public static final String FLOW_RULE_BATCHING = "flowRuleBatching";
+    public static final String BATCH_SIZE = "batchSize";
+    public static final String BATCH_FLUSH_INTERVAL = "batchFlushInterval";
+    public static final String RECONCILE_INTERVAL = "reconcileInterval";
+    public static final String AGGREGATE_USER_PREFIXES = "aggregateUserPrefixes";
+    public static final String TEMPLATE_BASELINE = "templateBaseline";
+    public static final String INTERNET_TREE = "internetTree";
+    public static final String HOST_PACKET_RATE = "hostPacketRate";
+    public static final String PUNT_RATE = "puntRate";
 
     @Override
     public boolean isValid(){
         return hasOnlyFields(PORTAL_IP, PORTAL_PORT, DEFAULT_GATEWAY, CONSUL_IP, CONSUL_PORT, MATCH_ETH_DST,
-                    PREFIX_LENGTH, PORTAL_URL) &&
+                    PREFIX_LENGTH, PORTAL_URL, EDGE_AUTHORIZATION,
+                    MULTI_TABLE, REACTIVE, IDLE_TIMEOUT, FLOW_RULE_BATCHING, BATCH_SIZE, BATCH_FLUSH_INTERVAL,
+                    RECONCILE_INTERVAL, AGGREGATE_USER_PREFIXES, TEMPLATE_BASELINE, INTERNET_TREE,
+                    HOST_PACKET_RATE, PUNT_RATE) &&
                 isIpAddress(PORTAL_IP, OPTIONAL) &&
                 isNumber(PORTAL_PORT, OPTIONAL, 1, 10000) &&
                 isIpAddress(DEFAULT_GATEWAY, MANDATORY) &&
                 isIpAddress(CONSUL_IP, OPTIONAL) &&
                 isNumber(CONSUL_PORT, OPTIONAL, 1, 10000) &&
                 isBoolean(MATCH_ETH_DST, OPTIONAL) &&
+                isBoolean(EDGE_AUTHORIZATION, OPTIONAL) &&
+                isBoolean(MULTI_TABLE, OPTIONAL) &&
+                isBoolean(REACTIVE, OPTIONAL) &&
+                isNumber(IDLE_TIMEOUT, OPTIONAL, 1, 65535) &&
+                isBoolean(FLOW_RULE_BATCHING, OPTIONAL) &&
+                isNumber(BATCH_SIZE, OPTIONAL, 1, 10000) &&
+                isNumber(BATCH_FLUSH_INTERVAL, OPTIONAL, 1, 10000) &&
+                isNumber(RECONCILE_INTERVAL, OPTIONAL, 0, 86400) &&
+                isBoolean(AGGREGATE_USER_PREFIXES, OPTIONAL) &&
+                isBoolean(TEMPLATE_BASELINE, OPTIONAL) &&
+                isBoolean(INTERNET_TREE, OPTIONAL) &&
+                isNumber(HOST_PACKET_RATE, OPTIONAL, 0, 10000) &&
+                isNumber(PUNT_RATE, OPTIONAL, 0, 1000000) &&
                 isNumber(PREFIX_LENGTH, FieldPresence.MANDATORY, 0, 32);
     }
 
@@ -169,6 +198,265 @@ public class ByodConfig extends Config<ApplicationId> {
         return (BasicElementConfig) setOrClear(MATCH_ETH_DST, match);
     }
 
+    /**
+     * Returns if users are only authorized on their edge switch
+     * and the other switches forward the traffic by its destination
+     *
+     * @return boolean
+     */
+    public boolean edgeAuthorization(){
+        return get(EDGE_AUTHORIZATION, false);
+    }
+
+    /**
+     * Sets the value if users are only authorized on their edge switch
+     *
+     * @param edgeAuthorization boolean
+     * @return self
+     */
+    public BasicElementConfig edgeAuthorization(boolean edgeAuthorization){
+        return (BasicElementConfig) setOrClear(EDGE_AUTHORIZATION, edgeAuthorization);
+    }
+
+    /**
+     * Returns if the connections are installed in an ACL table and a forwarding table
+     * of a multi table pipeline
+     *
+     * @return boolean
+     */
+    public boolean multiTable(){
+        return get(MULTI_TABLE, false);
+    }
+
+    /**
+     * Sets the value if the connections are installed on a multi table pipeline
+     *
+     * @param multiTable boolean
+     * @return self
+     */
+    public BasicElementConfig multiTable(boolean multiTable){
+        return (BasicElementConfig) setOrClear(MULTI_TABLE, multiTable);
+    }
+
+    /**
+     * Returns if the rules of a connection are only installed on the first packet of the user
+     *
+     * @return boolean
+     */
+    public boolean reactive(){
+        return get(REACTIVE, false);
+    }
+
+    /**
+     * Sets the value if the rules of a connection are installed on the first packet of the user
+     *
+     * @param reactive boolean
+     * @return self
+     */
+    public BasicElementConfig reactive(boolean reactive){
+        return (BasicElementConfig) setOrClear(REACTIVE, reactive);
+    }
+
+    /**
+     * Returns the idle timeout in seconds of the rules installed in reactive mode.
+     *
+     * @return idle timeout, 60 seconds if not set
+     */
+    public int idleTimeout(){
+        return get(IDLE_TIMEOUT, 60);
+    }
+
+    /**
+     * Sets the idle timeout of the rules installed in reactive mode.
+     *
+     * @param idleTimeout idle timeout in seconds; null to clear
+     * @return self
+     */
+    public BasicElementConfig idleTimeout(String idleTimeout){
+        return (BasicElementConfig) setOrClear(IDLE_TIMEOUT, idleTimeout);
+    }
+
+    /**
+     * Returns if the rules are submitted per device in flow rule batches
+     *
+     * @return boolean
+     */
+    public boolean flowRuleBatching(){
+        return get(FLOW_RULE_BATCHING, false);
+    }
+
+    /**
+     * Sets the value if the rules are submitted per device in flow rule batches
+     *
+     * @param flowRuleBatching boolean
+     * @return self
+     */
+    public BasicElementConfig flowRuleBatching(boolean flowRuleBatching){
+        return (BasicElementConfig) setOrClear(FLOW_RULE_BATCHING, flowRuleBatching);
+    }
+
+    /**
+     * Returns the maximal number of rules of a flow rule batch.
+     *
+     * @return batch size, 100 if not set
+     */
+    public int batchSize(){
+        return get(BATCH_SIZE, 100);
+    }
+
+    /**
+     * Sets the maximal number of rules of a flow rule batch.
+     *
+     * @param batchSize batch size; null to clear
+     * @return self
+     */
+    public BasicElementConfig batchSize(String batchSize){
+        return (BasicElementConfig) setOrClear(BATCH_SIZE, batchSize);
+    }
+
+    /**
+     * Returns the milliseconds a rule waits at most before its batch is submitted.
+     *
+     * @return flush interval, 50 milliseconds if not set
+     */
+    public int batchFlushInterval(){
+        return get(BATCH_FLUSH_INTERVAL, 50);
+    }
+
+    /**
+     * Sets the milliseconds a rule waits at most before its batch is submitted.
+     *
+     * @param batchFlushInterval flush interval; null to clear
+     * @return self
+     */
+    public BasicElementConfig batchFlushInterval(String batchFlushInterval){
+        return (BasicElementConfig) setOrClear(BATCH_FLUSH_INTERVAL, batchFlushInterval);
+    }
+
+    /**
+     * Returns the seconds between two reconciliations of the connection rules with the flows of the devices.
+     *
+     * @return reconcile interval, 0 (reconciliation disabled) if not set
+     */
+    public int reconcileInterval(){
+        return get(RECONCILE_INTERVAL, 0);
+    }
+
+    /**
+     * Sets the seconds between two reconciliations of the connection rules with the flows of the devices.
+     *
+     * @param reconcileInterval reconcile interval, 0 to disable; null to clear
+     * @return self
+     */
+    public BasicElementConfig reconcileInterval(String reconcileInterval){
+        return (BasicElementConfig) setOrClear(RECONCILE_INTERVAL, reconcileInterval);
+    }
+
+    /**
+     * Returns if the rules of users sharing a service, in port and out port are aggregated to prefixes.
+     * The aggregated rules match the source IP prefix only and not the MAC address of a user,
+     * so any host on the in port using the IP address of an authorized user reaches the service.
+     * Only enable it if the access network prevents IP address spoofing.
+     *
+     * @return boolean, false if not set
+     */
+    public boolean aggregateUserPrefixes(){
+        return get(AGGREGATE_USER_PREFIXES, false);
+    }
+
+    /**
+     * Sets the value if the rules of users sharing a service, in port and out port are aggregated to prefixes.
+     * The aggregated rules do not bind the users to their MAC addresses.
+     *
+     * @param aggregateUserPrefixes boolean
+     * @return self
+     */
+    public BasicElementConfig aggregateUserPrefixes(boolean aggregateUserPrefixes){
+        return (BasicElementConfig) setOrClear(AGGREGATE_USER_PREFIXES, aggregateUserPrefixes);
+    }
+
+    /**
+     * Returns if the portal and the dns are reachable through template rules per edge port
+     * instead of a connection per host.
+     * The template rules do not know the hosts, so the responses of the portal and the dns are sent
+     * out of all edge ports of the edge device and every host on the device receives the responses
+     * to the other hosts. Only enable it if the edge devices serve hosts trusting each other.
+     *
+     * @return boolean, false if not set
+     */
+    public boolean templateBaseline(){
+        return get(TEMPLATE_BASELINE, false);
+    }
+
+    /**
+     * Sets the value if the portal and the dns are reachable through template rules per edge port.
+     * The responses of the portal and the dns are flooded to all edge ports of the edge devices.
+     *
+     * @param templateBaseline boolean
+     * @return self
+     */
+    public BasicElementConfig templateBaseline(boolean templateBaseline){
+        return (BasicElementConfig) setOrClear(TEMPLATE_BASELINE, templateBaseline);
+    }
+
+    /**
+     * Returns if the internet connections share one tree to the default gateway
+     * and authorize the users only on the edge
+     *
+     * @return boolean
+     */
+    public boolean internetTree(){
+        return get(INTERNET_TREE, false);
+    }
+
+    /**
+     * Sets the value if the internet connections share one tree to the default gateway
+     *
+     * @param internetTree boolean
+     * @return self
+     */
+    public BasicElementConfig internetTree(boolean internetTree){
+        return (BasicElementConfig) setOrClear(INTERNET_TREE, internetTree);
+    }
+
+    /**
+     * Returns the packet ins per second the redirect answers for a single host.
+     *
+     * @return packet rate, 20 if not set, 0 disables the limit
+     */
+    public int hostPacketRate(){
+        return get(HOST_PACKET_RATE, 20);
+    }
+
+    /**
+     * Sets the packet ins per second the redirect answers for a single host.
+     *
+     * @param hostPacketRate packet rate; null to clear
+     * @return self
+     */
+    public BasicElementConfig hostPacketRate(String hostPacketRate){
+        return (BasicElementConfig) setOrClear(HOST_PACKET_RATE, hostPacketRate);
+    }
+
+    /**
+     * Returns the packets per second a device sends to the controller for the redirect.
+     *
+     * @return punt rate, 1000 if not set, 0 disables the meter
+     */
+    public int puntRate(){
+        return get(PUNT_RATE, 1000);
+    }
+
+    /**
+     * Sets the packets per second a device sends to the controller for the redirect.
+     *
+     * @param puntRate punt rate; null to clear
+     * @return self
+     */
+    public BasicElementConfig puntRate(String puntRate){
+        return (BasicElementConfig) setOrClear(PUNT_RATE, puntRate);
+    }
+
     /**
      * Returns the IP prefix length.
      *
@@ -17,6 +17,7 @@
 package org.sardineproject.sbyod.configuration;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
@@ -35,6 +36,9 @@ import org.sardineproject.sbyod.connection.*;
 import org.sardineproject.sbyod.consul.ConsulService;
 import org.sardineproject.sbyod.dns.DnsService;
 import org.sardineproject.sbyod.internet.InternetService;
+import org.sardineproject.sbyod.redirect.ControllerRedirect;
+import org.sardineproject.sbyod.redirect.PacketRedirectService;
+import org.sardineproject.sbyod.redirect.ReactiveConnectionService;
 import org.sardineproject.sbyod.service.Service;
 import org.slf4j.Logger;
 
@@ -71,6 +75,18 @@ public class DefaultConfigurationManager{
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected InternetService internetService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ReactiveConnectionService reactiveConnectionService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected FlowReconcileService flowReconcileService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ConnectionRuleInstaller connectionRuleInstaller;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected PacketRedirectService packetRedirectService;
+
 
 
     private static final String APPLICATION_ID = PortalService.APP_ID;
@@ -115,6 +131,27 @@ public class DefaultConfigurationManager{
                 return;
             }
 
+            // reach the portal and the dns through template rules per edge port instead of connections per host,
+            // the dns connections are renewed below in any case
+            if(cfg.templateBaseline() != DefaultBaselineTemplateService.TEMPLATE_BASELINE){
+                DefaultBaselineTemplateService.TEMPLATE_BASELINE = cfg.templateBaseline();
+                portalService.updatePortalConnections();
+                log.info("DefaultConfigurationManager: Updated portal connections to templateBaseline = {}",
+                        cfg.templateBaseline());
+                if(cfg.templateBaseline()){
+                    log.warn("DefaultConfigurationManager: templateBaseline sends the portal and dns responses " +
+                            "out of all edge ports of the edge devices");
+                }
+            }
+
+            // limit the packets sent to the controller by the redirect rules,
+            // applied on the next activation of the redirect by the portal below otherwise
+            if(cfg.puntRate() != ControllerRedirect.PUNT_RATE){
+                ControllerRedirect.PUNT_RATE = cfg.puntRate();
+                packetRedirectService.updateRedirectRules();
+                log.info("DefaultConfigurationManager: Updated redirect rules to puntRate = {}", cfg.puntRate());
+            }
+
             // check if portal config is set and try to connect to new portal location
             // assume that both fields are defined
             if(cfg.portalIp() != null && cfg.portalPort() != -1){
@@ -171,15 +208,62 @@ public class DefaultConfigurationManager{
                 }
             }
 
-            // if rule match eth dst has changed
-            if(cfg.matchEthDst() != DefaultConnectionRuleInstaller.MATCH_ETH_DST){
+            // idle timeout of the rules installed in reactive mode
+            DefaultConnectionRuleInstaller.IDLE_TIMEOUT = cfg.idleTimeout();
+            // submission of the rules in batches per device
+            DefaultConnectionRuleInstaller.BATCH_SIZE = cfg.batchSize();
+            DefaultConnectionRuleInstaller.BATCH_FLUSH_INTERVAL = cfg.batchFlushInterval();
+            // packet ins answered by the redirect per host
+            ControllerRedirect.HOST_PACKET_RATE = cfg.hostPacketRate();
+
+            // if rule match eth dst, edge authorization, the pipeline, the reactive mode,
+            // the aggregation of the user rules, the internet tree or the flow rule batching has changed
+            if(cfg.matchEthDst() != DefaultConnectionRuleInstaller.MATCH_ETH_DST ||
+                    cfg.edgeAuthorization() != DefaultConnectionRuleInstaller.EDGE_AUTHORIZATION ||
+                    cfg.multiTable() != DefaultConnectionRuleInstaller.MULTI_TABLE ||
+                    cfg.reactive() != DefaultConnectionRuleInstaller.REACTIVE ||
+                    cfg.aggregateUserPrefixes() != DefaultConnectionRuleInstaller.AGGREGATE_USER_PREFIXES ||
+                    cfg.internetTree() != DefaultConnectionRuleInstaller.INTERNET_TREE ||
+                    cfg.flowRuleBatching() != DefaultConnectionRuleInstaller.FLOW_RULE_BATCHING){
+                DefaultConnectionRuleInstaller.FLOW_RULE_BATCHING = cfg.flowRuleBatching();
                 DefaultConnectionRuleInstaller.MATCH_ETH_DST = cfg.matchEthDst();
-                // update all installed connections
-                Set<Connection> connections = connectionStore.getConnections();
-                connections.forEach(c -> connectionStore.removeConnection(c));
-                connections.forEach(c -> {Connection newConnection = new DefaultConnection(c.getUser(), c.getService());
-                                            connectionStore.addConnection(newConnection);});
-                log.info("DefaultConfigurationManager: Updated connections to matchEthDst = {}", cfg.matchEthDst());
+                DefaultConnectionRuleInstaller.EDGE_AUTHORIZATION = cfg.edgeAuthorization();
+                DefaultConnectionRuleInstaller.MULTI_TABLE = cfg.multiTable();
+                DefaultConnectionRuleInstaller.REACTIVE = cfg.reactive();
+                DefaultConnectionRuleInstaller.AGGREGATE_USER_PREFIXES = cfg.aggregateUserPrefixes();
+                DefaultConnectionRuleInstaller.INTERNET_TREE = cfg.internetTree();
+                // the internet connections are installed on the tree, so the tree is installed first
+                connectionRuleInstaller.updateInternetTree();
+                // every instance reinstalls the connections of the devices it masters,
+                // the rules are removed with the settings recorded on the connections
+                connectionStore.reinstallConnections();
+                log.info("DefaultConfigurationManager: Updated connections to matchEthDst = {}, " +
+                        "edgeAuthorization = {}, multiTable = {}, reactive = {}, aggregateUserPrefixes = {}, " +
+                        "internetTree = {}, flowRuleBatching = {}",
+                        Lists.newArrayList(cfg.matchEthDst(), cfg.edgeAuthorization(), cfg.multiTable(),
+                                cfg.reactive(), cfg.aggregateUserPrefixes(), cfg.internetTree(),
+                                cfg.flowRuleBatching()).toArray());
+                if(cfg.aggregateUserPrefixes()){
+                    log.warn("DefaultConfigurationManager: aggregateUserPrefixes binds the users to their IP " +
+                            "addresses only, the MAC addresses of the users are not matched");
+                }
+            } else{
+                // the default gateway may have changed
+                connectionRuleInstaller.updateInternetTree();
+            }
+
+            // intercept the packets of the users in reactive mode
+            if(cfg.reactive()){
+                reactiveConnectionService.start();
+            } else{
+                reactiveConnectionService.stop();
+            }
+
+            // repair the drift between the connection rules and the flows of the devices periodically
+            if(cfg.reconcileInterval() > 0){
+                flowReconcileService.start(cfg.reconcileInterval());
+            } else{
+                flowReconcileService.stop();
             }
         }
 
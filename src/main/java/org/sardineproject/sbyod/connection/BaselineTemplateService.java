@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.sardineproject.sbyod.service.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Makes always-on services like the portal and the dns reachable for every host through
+ * template rules per edge port and path, instead of a connection per host.
+ */
+public interface BaselineTemplateService {
+
+    /**
+     * Install the template rules of a service for all edge ports of the network
+     *
+     * @param service service reachable by every host
+     */
+    void addService(Service service);
+
+    /**
+     * Remove the template rules of a service
+     *
+     * @param service service reachable by every host
+     */
+    void removeService(Service service);
+
+    /**
+     * Returns the services reachable through template rules
+     *
+     * @return set of services
+     */
+    Set<Service> getServices();
+
+    /**
+     * Returns the installed template objectives
+     *
+     * @return forwarding objectives mapped by the device
+     */
+    Map<DeviceId, List<ForwardingObjective>> getObjectives();
+}
@@ -59,4 +59,32 @@ public interface Connection{
      */
     Map<ForwardingObjective, DeviceId> getForwardingObjectives();
 
+    /**
+     * Add a flow rule installed for the connection
+     *
+     * @param flowRule flow rule installed for the connection
+     */
+    void addFlowRule(FlowRule flowRule);
+
+    /**
+     * Returns all flow rules installed for the connection
+     *
+     * @return set of flow rules
+     */
+    Set<FlowRule> getFlowRules();
+
+    /**
+     * Record the settings of the rule installer the connection is installed with
+     *
+     * @param ruleSettings settings of the rule installer
+     */
+    void setRuleSettings(RuleSettings ruleSettings);
+
+    /**
+     * Returns the settings of the rule installer the connection is installed with
+     *
+     * @return rule settings or null if the connection is not installed
+     */
+    RuleSettings getRuleSettings();
+
 }
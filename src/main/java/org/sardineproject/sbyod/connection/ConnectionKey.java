@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.HostId;
+import org.sardineproject.sbyod.service.ServiceId;
+
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Key identifying a connection by the id of its user and the id of its service.
+ */
+public final class ConnectionKey {
+
+    private final HostId hostId;
+    private final ServiceId serviceId;
+
+    // for serialization
+    private ConnectionKey(){
+        this.hostId = null;
+        this.serviceId = null;
+    }
+
+    private ConnectionKey(HostId hostId, ServiceId serviceId){
+        this.hostId = checkNotNull(hostId, "HostId can not be null");
+        this.serviceId = checkNotNull(serviceId, "ServiceId can not be null");
+    }
+
+    /**
+     * Returns the key of the connection.
+     *
+     * @param connection connection between user and service
+     * @return connection key
+     */
+    public static ConnectionKey of(Connection connection){
+        return new ConnectionKey(connection.getUser().id(), connection.getService().id());
+    }
+
+    /**
+     * Returns the key of a user and service id pair.
+     *
+     * @param hostId id of the user
+     * @param serviceId id of the service
+     * @return connection key
+     */
+    public static ConnectionKey of(HostId hostId, ServiceId serviceId){
+        return new ConnectionKey(hostId, serviceId);
+    }
+
+    public HostId hostId(){ return hostId; }
+
+    public ServiceId serviceId(){ return serviceId; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ConnectionKey that = (ConnectionKey) o;
+
+        return Objects.equals(hostId, that.hostId) && Objects.equals(serviceId, that.serviceId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(hostId, serviceId);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionKey{" +
+                "hostId=" + hostId +
+                ", serviceId=" + serviceId +
+                '}';
+    }
+}
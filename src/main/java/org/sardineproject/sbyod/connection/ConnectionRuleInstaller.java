@@ -17,6 +17,17 @@
  */
 package org.sardineproject.sbyod.connection;
 
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Created by lorry on 01.03.16.
  */
@@ -26,7 +37,137 @@ public interface ConnectionRuleInstaller {
      * Establish a connection between the user and the service
      *
      * @param connection connection between user and service
+     * @return future completed when the devices acknowledged the rules of the connection,
+     *          completed exceptionally with a RuleInstallException if a device failed
+     */
+    CompletableFuture<Void> addConnection(Connection connection);
+
+    /**
+     * Establish the connections between users and services at once
+     *
+     * @param connections connections between user and service
+     * @return futures completed when the devices acknowledged the rules of a connection, mapped by the connection
+     */
+    Map<Connection, CompletableFuture<Void>> addConnections(Collection<Connection> connections);
+
+    /**
+     * Update the rules of an installed connection to the rules of a new connection
+     * between the same user and service. Only differing rules are installed and removed.
+     *
+     * @param oldConnection installed connection
+     * @param newConnection connection replacing the installed connection
+     * @return future completed when the devices acknowledged the rules of the new connection
+     */
+    CompletableFuture<Void> updateConnection(Connection oldConnection, Connection newConnection);
+
+    /**
+     * Remove the rules installed for a connection
+     *
+     * @param connection connection between user and service
+     */
+    void removeConnection(Connection connection);
+
+    /**
+     * Take over the rules of a connection installed by another instance,
+     * after this instance became master of the device of the user.
+     * The rules are held by the connection without installing them again, so they are removed with it.
+     *
+     * @param connection connection between user and service
+     */
+    void adoptConnection(Connection connection);
+
+    /**
+     * Forget the rules of a connection without removing them from the devices,
+     * after another instance became master of the device of the user
+     *
+     * @param connection connection between user and service
+     */
+    void forgetConnection(Connection connection);
+
+    /**
+     * Install the rules of an authorized connection with an idle timeout
+     * on the first packet of the user to the service
+     *
+     * @param connection connection between user and service
+     * @return future completed when the devices acknowledged the rules of the connection
+     */
+    CompletableFuture<Void> activateConnection(Connection connection);
+
+    /**
+     * Returns the cache of the shortest paths between devices
+     *
+     * @return path cache
+     */
+    PathCache getPathCache();
+
+    /**
+     * Returns the cache of the shortest path trees rooted at the destination devices
+     *
+     * @return service tree cache
+     */
+    ServiceTreeCache getServiceTrees();
+
+    /**
+     * Returns the batcher submitting the flow rules per device
+     *
+     * @return flow rule batcher
+     */
+    FlowRuleBatcher getFlowRuleBatcher();
+
+    /**
+     * Returns the work queues programming the devices
+     *
+     * @return device work queues
+     */
+    DeviceWorkQueues getDeviceWorkQueues();
+
+    /**
+     * Returns the number of installed connections using each link
+     *
+     * @return connection count mapped by the link
+     */
+    Map<LinkKey, Integer> getLinkConnectionCounts();
+
+    /**
+     * Returns the links used by an installed connection
+     *
+     * @param connection connection between user and service
+     * @return set of links, empty if the connection uses no link
+     */
+    Set<LinkKey> getConnectionLinks(Connection connection);
+
+    /**
+     * Returns the forwarding objectives shared by the connections and not stored in a single connection:
+     * the aggregated prefixes of users sharing a service, in port and out port on a device
+     * and the rules of the internet tree
+     *
+     * @return shared forwarding objectives mapped by the device
+     */
+    Map<DeviceId, List<ForwardingObjective>> getSharedObjectives();
+
+    /**
+     * Returns the keys of the rules the connections hold on a device,
+     * including the rules sent but not yet acknowledged
+     *
+     * @param deviceId device
+     * @return set of rule keys
+     */
+    Set<ObjectiveKey> getHeldRules(DeviceId deviceId);
+
+    /**
+     * Install or remove the tree between the edge ports and the default gateway
+     * shared by the internet connections, depending on the configuration
+     */
+    void updateInternetTree();
+
+    /**
+     * Returns the links from the source to the destination device along the shortest path tree
+     * rooted at the destination device
+     *
+     * @param src source device
+     * @param dst destination device
+     * @return list of links, empty if no route is found
      */
-    void addConnection(Connection connection);
+    List<Link> getDestinationRoute(DeviceId src, DeviceId dst);
 
 }
@@ -23,7 +23,9 @@ import org.onlab.packet.TpPort;
 import org.onosproject.net.Host;
 import org.sardineproject.sbyod.service.Service;
 
+import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by lorry on 06.03.16.
@@ -37,6 +39,22 @@ public interface ConnectionStore {
      */
     void addConnection(Connection connection);
 
+    /**
+     * Add a new connection to the service and wait asynchronously for its installation
+     *
+     * @param connection connection to add
+     * @return future completed when the devices acknowledged the rules of the connection,
+     *          completed exceptionally with a RuleInstallException if a device failed
+     */
+    CompletableFuture<Void> addConnectionAsync(Connection connection);
+
+    /**
+     * Add new connections to the service at once
+     *
+     * @param connections connections to add
+     */
+    void addConnections(Collection<Connection> connections);
+
     /**
      * Removes the connection between user and service
      *
@@ -44,6 +62,23 @@ public interface ConnectionStore {
      */
     void removeConnection(Connection connection);
 
+    /**
+     * Install the rules of the connections again with the current rule settings.
+     * Every instance reinstalls the connections of the users at the devices it masters
+     *
+     * @return number of reinstalled connections
+     */
+    int reinstallConnections();
+
+    /**
+     * Install the rules of an authorized connection with an idle timeout
+     * on the first packet of the user to the service
+     *
+     * @param connection connection to activate
+     * @return future completed when the devices acknowledged the rules of the connection
+     */
+    CompletableFuture<Void> activateConnection(Connection connection);
+
     /**
      * Get the connection between the user and the service
      *
@@ -84,4 +119,19 @@ public interface ConnectionStore {
      */
     Boolean contains(Connection connection);
 
+    /**
+     * Ask if rules of the connection are not yet acknowledged by the devices or failed
+     *
+     * @param connection the connection to check
+     * @return true if the connection is degraded
+     */
+    Boolean isDegraded(Connection connection);
+
+    /**
+     * Get the connections with rules not yet acknowledged by the devices or failed
+     *
+     * @return set of degraded connections
+     */
+    Set<Connection> getDegradedConnections();
+
 }
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.onlab.packet.EthType;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip4Prefix;
+import org.onlab.packet.IpAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.ApplicationIdStore;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.config.NetworkConfigRegistry;
+import org.onosproject.net.edge.EdgePortEvent;
+import org.onosproject.net.edge.EdgePortListener;
+import org.onosproject.net.edge.EdgePortService;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyService;
+import org.sardineproject.sbyod.configuration.ByodConfig;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.sardineproject.sbyod.portal.PortalService;
+import org.sardineproject.sbyod.service.Service;
+import org.sardineproject.sbyod.service.ServiceId;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.onlab.util.Tools.groupedThreads;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Installs the rules of always-on services as templates independent of the hosts.
+ * Traffic to the service is matched per edge port and forwarded along the path to the service host,
+ * so a host joining or leaving the network does not change any rule.
+ * The responses of the service are matched on the local network prefix and delivered
+ * along the paths to the edge devices, where they are sent out of all edge ports.
+ * Every host on an edge device therefore receives the portal and dns responses to the other hosts,
+ * which is why the templates are disabled by default.
+ * The rules are compiled again when the edge ports, the topology or the service hosts change.
+ */
+@Component(immediate = true)
+@org.apache.felix.scr.annotations.Service
+public class DefaultBaselineTemplateService implements BaselineTemplateService {
+
+    public static boolean TEMPLATE_BASELINE = false;
+
+    private static final Logger log = getLogger(PortalManager.class);
+    private static final String APPLICATION_ID = PortalService.APP_ID;
+
+    // delay coalescing the network events before the rules are compiled again
+    private static final long UPDATE_DELAY_MS = 500;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected EdgePortService edgePortService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected TopologyService topologyService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ApplicationIdStore applicationIdStore;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected NetworkConfigRegistry cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ConnectionRuleInstaller connectionRuleInstaller;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ObjectiveRetryService objectiveRetryService;
+
+
+    private final EdgePortListener edgePortListener = new TemplateEdgePortListener();
+    private final TopologyListener topologyListener = new TemplateTopologyListener();
+    private final HostListener hostListener = new TemplateHostListener();
+
+    private ScheduledExecutorService updateExecutor;
+    private ScheduledFuture<?> pendingUpdate;
+
+    // the services reachable through template rules
+    private final Map<ServiceId, Service> services = new ConcurrentHashMap<>();
+    // the installed template objectives
+    private final Map<ObjectiveKey, ForwardingObjective> installed = new HashMap<>();
+
+    @Activate
+    protected void activate() {
+        updateExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("sbyod/connection", "template"));
+        edgePortService.addListener(edgePortListener);
+        topologyService.addListener(topologyListener);
+        hostService.addListener(hostListener);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        edgePortService.removeListener(edgePortListener);
+        topologyService.removeListener(topologyListener);
+        hostService.removeListener(hostListener);
+        updateExecutor.shutdownNow();
+        services.clear();
+        update();
+    }
+
+    @Override
+    public void addService(Service service) {
+        if (services.put(service.id(), service) == null) {
+            log.info("BaselineTemplateService: Service {} reachable through template rules", service.name());
+        }
+        update();
+    }
+
+    @Override
+    public void removeService(Service service) {
+        if (services.remove(service.id()) != null) {
+            log.info("BaselineTemplateService: Removed template rules of service {}", service.name());
+            update();
+        }
+    }
+
+    @Override
+    public Set<Service> getServices() {
+        return new HashSet<>(services.values());
+    }
+
+    @Override
+    public synchronized Map<DeviceId, List<ForwardingObjective>> getObjectives() {
+        Map<DeviceId, List<ForwardingObjective>> objectives = new HashMap<>();
+        installed.forEach((key, objective) ->
+                objectives.computeIfAbsent(key.deviceId(), d -> new ArrayList<>()).add(objective));
+        return objectives;
+    }
+
+    /**
+     * Compile the template rules of an update after the network events settled.
+     */
+    private synchronized void scheduleUpdate() {
+        if (services.isEmpty() || (pendingUpdate != null && !pendingUpdate.isDone())) {
+            return;
+        }
+        pendingUpdate = updateExecutor.schedule(this::update, UPDATE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compile the template rules of all services and apply the difference to the installed rules.
+     * Changed and new rules are installed before the obsolete rules are removed.
+     */
+    private synchronized void update() {
+        ApplicationId appId = applicationIdStore.getAppId(APPLICATION_ID);
+        Map<ObjectiveKey, ForwardingObjective> objectives = new HashMap<>();
+        if (!services.isEmpty()) {
+            ByodConfig cfg = cfgService.getConfig(appId, ByodConfig.class);
+            Ip4Prefix ipPrefix = Ip4Prefix.valueOf(cfg.defaultGateway(), cfg.prefixLength());
+            services.values().forEach(service -> compile(service, ipPrefix, appId, objectives));
+        }
+
+        int added = 0;
+        for (Map.Entry<ObjectiveKey, ForwardingObjective> entry : objectives.entrySet()) {
+            ForwardingObjective old = installed.get(entry.getKey());
+            if (old == null || !old.treatment().equals(entry.getValue().treatment())) {
+                installed.put(entry.getKey(), entry.getValue());
+                objectiveRetryService.forward(entry.getKey().deviceId(), entry.getValue());
+                added++;
+            }
+        }
+        int removed = 0;
+        for (Map.Entry<ObjectiveKey, ForwardingObjective> entry : new ArrayList<>(installed.entrySet())) {
+            if (!objectives.containsKey(entry.getKey())) {
+                installed.remove(entry.getKey());
+                objectiveRetryService.forward(entry.getKey().deviceId(),
+                        ((ForwardingObjective.Builder) entry.getValue().copy()).remove());
+                removed++;
+            }
+        }
+        if (added > 0 || removed > 0) {
+            log.info("BaselineTemplateService: Compiled {} template rules for {} services (added {}, removed {})",
+                    new Object[]{objectives.size(), services.size(), added, removed});
+        }
+    }
+
+    /**
+     * Compile the template rules of a service for every host holding one of the service ip addresses.
+     *
+     * @param service service reachable by every host
+     * @param ipPrefix prefix of the local network
+     * @param appId application id
+     * @param objectives compiled objectives, rules with the same match are only added once
+     */
+    private void compile(Service service, Ip4Prefix ipPrefix, ApplicationId appId,
+                         Map<ObjectiveKey, ForwardingObjective> objectives) {
+
+        for (Ip4Address serviceIp : service.ipAddressSet()) {
+            Set<Host> serviceHosts = hostService.getHostsByIp(serviceIp);
+            if (serviceHosts.isEmpty()) {
+                log.warn("BaselineTemplateService: No host found with ip {} of service {}",
+                        serviceIp, service.name());
+                continue;
+            }
+
+            // the edge ports of the service hosts are not served
+            Set<ConnectPoint> serviceLocations = new HashSet<>();
+            serviceHosts.forEach(host -> serviceLocations.add(host.location()));
+            Map<DeviceId, Set<PortNumber>> edgePorts = new HashMap<>();
+            for (ConnectPoint edgePoint : edgePortService.getEdgePoints()) {
+                if (!serviceLocations.contains(edgePoint)) {
+                    edgePorts.computeIfAbsent(edgePoint.deviceId(), d -> new TreeSet<>(
+                            (a, b) -> Long.compare(a.toLong(), b.toLong()))).add(edgePoint.port());
+                }
+            }
+
+            for (Host serviceHost : serviceHosts) {
+                ConnectPoint serviceLocation = serviceHost.location();
+
+                // forward the traffic of every edge port along the path to the service host
+                Map<ConnectPoint, PortNumber> toService = new HashMap<>();
+                edgePorts.forEach((deviceId, ports) -> {
+                    List<Link> path = path(deviceId, serviceLocation.deviceId());
+                    if (path == null) {
+                        return;
+                    }
+                    for (PortNumber port : ports) {
+                        walk(new ConnectPoint(deviceId, port), path, (inPoint, outPort) ->
+                                toService.putIfAbsent(inPoint, outPort), serviceLocation.port());
+                    }
+                });
+
+                // deliver the responses along the paths to the edge devices and out of all their edge ports
+                Map<ConnectPoint, Set<PortNumber>> toUsers = new HashMap<>();
+                edgePorts.forEach((deviceId, ports) -> {
+                    List<Link> path = path(serviceLocation.deviceId(), deviceId);
+                    if (path == null) {
+                        return;
+                    }
+                    ConnectPoint last = walk(serviceLocation, path, (inPoint, outPort) ->
+                            toUsers.computeIfAbsent(inPoint, p -> new HashSet<>()).add(outPort), null);
+                    ports.stream()
+                            .filter(port -> !port.equals(last.port()))
+                            .forEach(port -> toUsers.computeIfAbsent(last, p -> new HashSet<>()).add(port));
+                });
+
+                int priority = DefaultConnectionRuleInstaller.getPriority(service);
+                toService.forEach((inPoint, outPort) -> {
+                    TrafficSelector.Builder selector = selector(service, inPoint.port());
+                    if (selector == null) {
+                        return;
+                    }
+                    selector.matchIPSrc(ipPrefix).matchIPDst(serviceIp.toIpPrefix());
+                    if (service.tpPort() != null) {
+                        if (service.protocol() == IPv4.PROTOCOL_TCP) {
+                            selector.matchTcpDst(service.tpPort());
+                        } else {
+                            selector.matchUdpDst(service.tpPort());
+                        }
+                    }
+                    put(objectives, inPoint.deviceId(), selector.build(),
+                            DefaultTrafficTreatment.builder().setOutput(outPort).build(), priority, appId);
+                });
+                toUsers.forEach((inPoint, outPorts) -> {
+                    TrafficSelector.Builder selector = selector(service, inPoint.port());
+                    if (selector == null || outPorts.isEmpty()) {
+                        return;
+                    }
+                    selector.matchIPSrc(serviceIp.toIpPrefix()).matchIPDst(ipPrefix);
+                    if (service.tpPort() != null) {
+                        if (service.protocol() == IPv4.PROTOCOL_TCP) {
+                            selector.matchTcpSrc(service.tpPort());
+                        } else {
+                            selector.matchUdpSrc(service.tpPort());
+                        }
+                    }
+                    TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder();
+                    outPorts.stream()
+                            .sorted((a, b) -> Long.compare(a.toLong(), b.toLong()))
+                            .forEach(treatment::setOutput);
+                    put(objectives, inPoint.deviceId(), selector.build(), treatment.build(), priority, appId);
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the links of a shortest path between two devices
+     *
+     * @param src source device
+     * @param dst destination device
+     * @return list of links, empty if both devices are the same or null if no path exists
+     */
+    private List<Link> path(DeviceId src, DeviceId dst) {
+        if (src.equals(dst)) {
+            return new ArrayList<>();
+        }
+        Set<Path> paths = connectionRuleInstaller.getPathCache().getPaths(src, dst);
+        if (paths.isEmpty()) {
+            log.debug("BaselineTemplateService: No path found between {} and {}", src, dst);
+            return null;
+        }
+        return paths.iterator().next().links();
+    }
+
+    /**
+     * Walk along a path, passing the in port and out port of every hop to the consumer.
+     * The last hop is passed with the given out port, if it is not null.
+     *
+     * @param start in port of the first hop
+     * @param path links of the path
+     * @param hop consumer of the in port and the out port of a hop
+     * @param lastOutPort out port of the last hop or null
+     * @return in port of the last hop
+     */
+    private ConnectPoint walk(ConnectPoint start, List<Link> path,
+                              BiConsumer<ConnectPoint, PortNumber> hop, PortNumber lastOutPort) {
+        ConnectPoint inPoint = start;
+        for (Link link : path) {
+            hop.accept(inPoint, link.src().port());
+            inPoint = link.dst();
+        }
+        if (lastOutPort != null) {
+            hop.accept(inPoint, lastOutPort);
+        }
+        return inPoint;
+    }
+
+    /**
+     * Returns the selector matching the protocol of the service on an in port
+     *
+     * @param service service
+     * @param inPort in port of the traffic
+     * @return selector builder or null if the protocol of the service is not supported
+     */
+    private TrafficSelector.Builder selector(Service service, PortNumber inPort) {
+        if (service.protocol() != IPv4.PROTOCOL_TCP && service.protocol() != IPv4.PROTOCOL_UDP) {
+            log.warn("BaselineTemplateService: Defined internet protocol of service {} not supported!",
+                    service.name());
+            return null;
+        }
+        return DefaultTrafficSelector.builder()
+                .matchEthType(EthType.EtherType.IPV4.ethType().toShort())
+                .matchInPort(inPort)
+                .matchIPProtocol(service.protocol());
+    }
+
+    /**
+     * Add a permanent template objective, if no rule with the same match was compiled before
+     *
+     * @param objectives compiled objectives
+     * @param deviceId device of the rule
+     * @param selector selector of the rule
+     * @param treatment treatment of the rule
+     * @param priority priority of the rule
+     * @param appId application id
+     */
+    private void put(Map<ObjectiveKey, ForwardingObjective> objectives, DeviceId deviceId,
+                     TrafficSelector selector, TrafficTreatment treatment, int priority, ApplicationId appId) {
+        objectives.putIfAbsent(ObjectiveKey.of(deviceId, selector, null, priority),
+                DefaultForwardingObjective.builder()
+                        .withSelector(selector)
+                        .withTreatment(treatment)
+                        .withPriority(priority)
+                        .withFlag(ForwardingObjective.Flag.VERSATILE)
+                        .fromApp(appId)
+                        .makePermanent()
+                        .add());
+    }
+
+    private class TemplateEdgePortListener implements EdgePortListener {
+
+        @Override
+        public void event(EdgePortEvent event) {
+            scheduleUpdate();
+        }
+    }
+
+    private class TemplateTopologyListener implements TopologyListener {
+
+        @Override
+        public void event(TopologyEvent event) {
+            scheduleUpdate();
+        }
+    }
+
+    /**
+     * Only the hosts of the template services change the rules, other hosts joining or leaving are ignored.
+     */
+    private class TemplateHostListener implements HostListener {
+
+        @Override
+        public void event(HostEvent event) {
+            Set<IpAddress> addresses = new HashSet<>(event.subject().ipAddresses());
+            if (event.prevSubject() != null) {
+                addresses.addAll(event.prevSubject().ipAddresses());
+            }
+            for (Service service : services.values()) {
+                for (Ip4Address serviceIp : service.ipAddressSet()) {
+                    if (addresses.contains(serviceIp)) {
+                        scheduleUpdate();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
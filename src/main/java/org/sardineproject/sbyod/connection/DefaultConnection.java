@@ -23,15 +23,17 @@ import org.onlab.packet.Ip4Address;
 import org.onlab.packet.IpAddress;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
+import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.sardineproject.sbyod.portal.PortalManager;
 import org.slf4j.Logger;
 import org.sardineproject.sbyod.service.Service;
 
 import java.security.InvalidParameterException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -45,7 +47,14 @@ public class DefaultConnection implements Connection{
     private final Host user;
     private final Service service;
     private Map<ForwardingObjective, DeviceId> forwardingObjectives;
+    private Set<FlowRule> flowRules;
+    private RuleSettings ruleSettings;
 
+    // for serialization
+    private DefaultConnection(){
+        this.user = null;
+        this.service = null;
+    }
 
     public DefaultConnection(Host user, Service service){
 
@@ -67,7 +76,8 @@ public class DefaultConnection implements Connection{
 
         this.user = user;
         this.service = service;
-        forwardingObjectives = new HashMap<>();
+        forwardingObjectives = new ConcurrentHashMap<>();
+        flowRules = new CopyOnWriteArraySet<>();
     }
 
     public Service getService() { return service; }
@@ -97,6 +107,48 @@ public class DefaultConnection implements Connection{
         return Maps.newHashMap(forwardingObjectives);
     }
 
+    /**
+     * Add a flow rule installed for the connection
+     *
+     * @param flowRule flow rule installed for the connection
+     */
+    @Override
+    public void addFlowRule(FlowRule flowRule) {
+        if(flowRule == null)
+            return;
+        flowRules.add(flowRule);
+    }
+
+    /**
+     * Returns all flow rules installed for the connection
+     *
+     * @return set of flow rules
+     */
+    @Override
+    public Set<FlowRule> getFlowRules() {
+        return Sets.newHashSet(flowRules);
+    }
+
+    /**
+     * Record the settings of the rule installer the connection is installed with
+     *
+     * @param ruleSettings settings of the rule installer
+     */
+    @Override
+    public void setRuleSettings(RuleSettings ruleSettings) {
+        this.ruleSettings = ruleSettings;
+    }
+
+    /**
+     * Returns the settings of the rule installer the connection is installed with
+     *
+     * @return rule settings or null if the connection is not installed
+     */
+    @Override
+    public RuleSettings getRuleSettings() {
+        return ruleSettings;
+    }
+
 
     @Override
     public boolean equals(Object o) {
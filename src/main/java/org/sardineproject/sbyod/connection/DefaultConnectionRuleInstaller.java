@@ -19,20 +19,26 @@ package org.sardineproject.sbyod.connection;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.onlab.packet.*;
+import org.onosproject.core.ApplicationId;
 import org.onosproject.core.ApplicationIdStore;
 import org.onosproject.net.*;
 import org.onosproject.net.config.NetworkConfigRegistry;
+import org.onosproject.net.edge.EdgePortListener;
+import org.onosproject.net.edge.EdgePortService;
 import org.onosproject.net.flow.*;
 import org.onosproject.net.flowobjective.DefaultForwardingObjective;
-import org.onosproject.net.flowobjective.FlowObjectiveService;
 import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
 import org.onosproject.net.host.HostService;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
 import org.onosproject.net.topology.TopologyService;
 import org.sardineproject.sbyod.portal.PortalManager;
 import org.sardineproject.sbyod.portal.PortalService;
@@ -40,7 +46,10 @@ import org.sardineproject.sbyod.configuration.ByodConfig;
 import org.sardineproject.sbyod.service.Service;
 import org.slf4j.Logger;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static org.slf4j.LoggerFactory.getLogger;
@@ -54,8 +63,32 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
 
     private static final String APPLICATION_ID = PortalService.APP_ID;
     private static final int FLOW_PRIORITY = 300;
+    // priority of the rules forwarding by destination shared by the connections
+    static final int TRANSIT_FLOW_PRIORITY = FLOW_PRIORITY - 20;
+    // range of the priorities of the connection rules, the flows of the application in this range are reconciled
+    static final int MIN_CONNECTION_PRIORITY = TRANSIT_FLOW_PRIORITY;
+    static final int MAX_CONNECTION_PRIORITY = FLOW_PRIORITY + 10;
+    // tables of the multi table pipeline
+    private static final int ACL_TABLE = 0;
+    private static final int FORWARDING_TABLE = 1;
+    // maximal number of (source, destination) device pairs in the path cache
+    private static final int PATH_CACHE_SIZE = 10000;
+    // threads programming the devices and pending tasks of a device above which further tasks are rejected
+    private static final int DEVICE_WORKER_THREADS = 8;
+    private static final int DEVICE_QUEUE_CAPACITY = 10000;
 
-    public static boolean MATCH_ETH_DST = false;
+    // set by the configuration manager and read by the event, packet and device threads,
+    // the connections record the rule settings they are installed with
+    public static volatile boolean MATCH_ETH_DST = false;
+    public static volatile boolean EDGE_AUTHORIZATION = false;
+    public static volatile boolean MULTI_TABLE = false;
+    public static volatile boolean REACTIVE = false;
+    public static volatile int IDLE_TIMEOUT = 60;
+    public static volatile boolean FLOW_RULE_BATCHING = false;
+    public static volatile int BATCH_SIZE = 100;
+    public static volatile int BATCH_FLUSH_INTERVAL = 50;
+    public static volatile boolean AGGREGATE_USER_PREFIXES = false;
+    public static volatile boolean INTERNET_TREE = false;
 
     private static final Logger log = getLogger(PortalManager.class);
 
@@ -69,33 +102,85 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
     protected ApplicationIdStore applicationIdStore;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
-    protected FlowObjectiveService flowObjectiveService;
+    protected FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ObjectiveRetryService objectiveRetryService;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected NetworkConfigRegistry cfgService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected EdgePortService edgePortService;
+
+
+    private PathCache pathCache;
+    // shortest path trees rooted at the destination devices, shared by the routes forwarding by destination
+    private ServiceTreeCache serviceTrees;
+    private TopologyListener pathCacheTopologyListener;
+    // submits the rules per device in batches if flow rule batching is enabled
+    private FlowRuleBatcher flowRuleBatcher;
+    // programs the devices in parallel, keeping the order of the rules of a device
+    private DeviceWorkQueues deviceWorkQueues;
+
+    // the installed objectives shared by the connections
+    private final RuleRegistry<ObjectiveKey> objectiveRegistry = new RuleRegistry<>();
+    // links used by the installed connections
+    private final Map<ConnectionKey, Set<LinkKey>> connectionLinks = new ConcurrentHashMap<>();
+    // the installed flow rules of the multi table pipeline shared by the connections
+    private final RuleRegistry<ObjectiveKey> flowRuleRegistry = new RuleRegistry<>();
+    // the rules of users sharing service, in port and out port aggregated to prefixes
+    private final UserPrefixAggregator userPrefixAggregator = new UserPrefixAggregator(this::sendObjective);
+    // the tree between the edge ports and the default gateway shared by the internet connections
+    private final InternetTree internetTree = new InternetTree(this::sendObjective, this::getDestinationRoute);
+    private final EdgePortListener internetTreeEdgePortListener = event -> {
+        if (INTERNET_TREE) {
+            updateInternetTree();
+        }
+    };
+
 
     @Activate
     protected void activate() {
+        pathCache = new PathCache(topologyService, PATH_CACHE_SIZE);
+        serviceTrees = new ServiceTreeCache(topologyService);
+        pathCacheTopologyListener = new PathCacheTopologyListener();
+        topologyService.addListener(pathCacheTopologyListener);
+        edgePortService.addListener(internetTreeEdgePortListener);
+        flowRuleBatcher = new FlowRuleBatcher(flowRuleService, () -> BATCH_SIZE, () -> BATCH_FLUSH_INTERVAL);
+        deviceWorkQueues = new DeviceWorkQueues(DEVICE_WORKER_THREADS, DEVICE_QUEUE_CAPACITY);
     }
 
     @Deactivate
     protected void deactivate() {
+        topologyService.removeListener(pathCacheTopologyListener);
+        edgePortService.removeListener(internetTreeEdgePortListener);
+        internetTree.clear();
+        flowRuleBatcher.shutdown();
+        deviceWorkQueues.shutdown();
+        pathCache.invalidateAll();
+        serviceTrees.invalidateAll();
+        objectiveRegistry.clear();
+        flowRuleRegistry.clear();
+        userPrefixAggregator.clear();
     }
 
 
     /**
      * Establish a connection between the user and the service.
      * Use ConnectionStore to add a new connection.
+     * The returned future completes when the devices acknowledged all rules of the connection,
+     * or completes exceptionally with a RuleInstallException naming the failing device.
      *
      * @param connection between user and service to install rules for
+     * @return future completed when the rules are installed
      */
     @Override
-    public void addConnection(Connection connection) {
+    public CompletableFuture<Void> addConnection(Connection connection) {
 
         if (connection == null) {
             log.warn("ConnectionRuleInstaller: DefaultConnection not added -> invalid parameter!");
-            return;
+            return CompletableFuture.completedFuture(null);
         } else
             log.debug("ConnectionRuleInstaller: Adding connection between user with IP={} MAC={} " +
                             "and service with IP={} Port={}",
@@ -104,6 +189,627 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
                             connection.getService().ipAddressSet().toString(),
                             (connection.getService().tpPort() == null ? "" : connection.getService().tpPort().toString())});
 
+        // the rules of the connection are computed and later removed with the recorded settings
+        RuleSettings settings = RuleSettings.current();
+        connection.setRuleSettings(settings);
+
+        if (settings.reactive()) {
+            log.debug("ConnectionRuleInstaller: Reactive mode -> rules of {} installed on first packet", connection);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (settings.multiTable()) {
+            return installFlowRules(Collections.singletonMap(connection,
+                    computeFlowRules(connection, new InstallContext(settings)))).get(connection);
+        }
+
+        List<CompletableFuture<Void>> installed = new ArrayList<>();
+        InstallContext context = new InstallContext(settings);
+        Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives = computeObjectives(connection, context);
+        for (Map.Entry<ObjectiveKey, DefaultForwardingObjective.Builder> entry : objectives.entrySet()) {
+            installed.add(installObjective(entry.getKey().deviceId(), entry.getValue(), connection));
+        }
+        installed.add(userPrefixAggregator.setMembers(ConnectionKey.of(connection), context.members(connection)));
+        return allOf(installed);
+    }
+
+    /**
+     * Establish the connections between users and services at once.
+     * The configuration and service hosts are looked up once for all connections
+     * and the objectives are sent grouped by the device they are installed on.
+     *
+     * @param connections connections between user and service to install rules for
+     * @return futures completed when the rules of a connection are installed, mapped by the connection
+     */
+    @Override
+    public Map<Connection, CompletableFuture<Void>> addConnections(Collection<Connection> connections) {
+
+        if (connections == null) {
+            log.warn("ConnectionRuleInstaller: Connections not added -> invalid parameter!");
+            return Collections.emptyMap();
+        }
+
+        RuleSettings settings = RuleSettings.current();
+        connections.forEach(connection -> connection.setRuleSettings(settings));
+
+        if (settings.reactive()) {
+            log.debug("ConnectionRuleInstaller: Reactive mode -> rules of {} connections installed on first packet",
+                    connections.size());
+            Map<Connection, CompletableFuture<Void>> installed = new HashMap<>();
+            connections.forEach(connection -> installed.put(connection, CompletableFuture.completedFuture(null)));
+            return installed;
+        }
+
+        InstallContext context = new InstallContext(settings);
+
+        if (settings.multiTable()) {
+            // the flow rules of all connections are applied in one batch
+            Map<Connection, Set<FlowRule>> connectionRules = new HashMap<>();
+            connections.forEach(connection -> connectionRules.put(connection, computeFlowRules(connection, context)));
+            return installFlowRules(connectionRules);
+        }
+
+        // the objectives of all connections grouped by the device they are installed on
+        Map<DeviceId, Map<DefaultForwardingObjective.Builder, Connection>> deviceObjectives = new HashMap<>();
+        for (Connection connection : connections) {
+            computeObjectives(connection, context).forEach((key, fo) ->
+                    deviceObjectives.computeIfAbsent(key.deviceId(), d -> new HashMap<>()).put(fo, connection));
+        }
+
+        Map<Connection, List<CompletableFuture<Void>>> installed = new HashMap<>();
+        connections.forEach(connection -> installed.put(connection, new ArrayList<>()));
+        for (Map.Entry<DeviceId, Map<DefaultForwardingObjective.Builder, Connection>> entry :
+                deviceObjectives.entrySet()) {
+            log.debug("ConnectionRuleInstaller: Adding {} objectives to device {}",
+                    entry.getValue().size(), entry.getKey());
+            entry.getValue().forEach((fo, connection) ->
+                    installed.get(connection).add(installObjective(entry.getKey(), fo, connection)));
+        }
+        connections.forEach(connection -> installed.get(connection).add(
+                userPrefixAggregator.setMembers(ConnectionKey.of(connection), context.members(connection))));
+        log.debug("ConnectionRuleInstaller: Added {} connections on {} devices",
+                connections.size(), deviceObjectives.size());
+        Map<Connection, CompletableFuture<Void>> result = new HashMap<>();
+        installed.forEach((connection, futures) -> result.put(connection, allOf(futures)));
+        return result;
+    }
+
+    /**
+     * Returns the cache of the shortest path trees rooted at the destination devices
+     *
+     * @return service tree cache
+     */
+    @Override
+    public ServiceTreeCache getServiceTrees() {
+        return serviceTrees;
+    }
+
+    /**
+     * Returns the cache of the shortest paths between devices
+     *
+     * @return path cache
+     */
+    @Override
+    public PathCache getPathCache() {
+        return pathCache;
+    }
+
+    /**
+     * Update the rules of a connection to a new connection between the same user and service.
+     * Only the rules that differ between both connections are installed and removed,
+     * the missing rules are installed before the obsolete rules are removed.
+     *
+     * @param oldConnection installed connection
+     * @param newConnection connection replacing the installed connection
+     * @return future completed when the rules of the new connection are installed
+     */
+    @Override
+    public CompletableFuture<Void> updateConnection(Connection oldConnection, Connection newConnection) {
+
+        if (oldConnection == null || newConnection == null) {
+            log.warn("ConnectionRuleInstaller: Connection not updated -> invalid parameter!");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        RuleSettings settings = RuleSettings.current();
+        if (settings.reactive() || !settings.equals(settings(oldConnection))) {
+            // the rules of the old connection are removed the way they were installed,
+            // in reactive mode the rules of the new connection are installed on its next packet
+            removeConnection(oldConnection);
+            return addConnection(newConnection);
+        }
+        newConnection.setRuleSettings(settings);
+
+        // the rules installed for the old connection
+        Map<ObjectiveKey, ForwardingObjective> installedObjectives = new HashMap<>();
+        oldConnection.getForwardingObjectives()
+                .forEach((fo, deviceId) -> installedObjectives.put(ObjectiveKey.of(deviceId, fo), fo));
+
+        // the rules needed by the new connection
+        InstallContext context = new InstallContext(settings);
+        Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives = settings.multiTable() ?
+                new HashMap<>() : computeObjectives(newConnection, context);
+
+        // install the flow rules of the new connection before removing the obsolete rules of the old one
+        List<CompletableFuture<Void>> installed = new ArrayList<>();
+        Set<FlowRule> flowRules = settings.multiTable() ?
+                computeFlowRules(newConnection, context) : Collections.emptySet();
+        if (settings.multiTable()) {
+            installed.add(installFlowRules(Collections.singletonMap(newConnection, flowRules)).get(newConnection));
+        }
+        Set<ObjectiveKey> flowRuleKeys = flowRules.stream().map(ObjectiveKey::of).collect(Collectors.toSet());
+        removeFlowRules(oldConnection.getFlowRules().stream()
+                .filter(flowRule -> !flowRuleKeys.contains(ObjectiveKey.of(flowRule)))
+                .collect(Collectors.toList()), oldConnection);
+
+        // add the missing rules and keep the rules installed already
+        int added = 0;
+        for (Map.Entry<ObjectiveKey, DefaultForwardingObjective.Builder> entry : objectives.entrySet()) {
+            ForwardingObjective installedObjective = installedObjectives.get(entry.getKey());
+            if (installedObjective == null) {
+                installed.add(installObjective(entry.getKey().deviceId(), entry.getValue(), newConnection));
+                added++;
+            } else {
+                CompletableFuture<Void> objectiveInstalled = objectiveRegistry.installed(entry.getKey());
+                if (objectiveInstalled == null) {
+                    // the old connection was installed by another instance, hold the rule here as well
+                    installed.add(installObjective(entry.getKey().deviceId(), entry.getValue(), newConnection));
+                    added++;
+                } else {
+                    newConnection.addForwardingObjective(installedObjective, entry.getKey().deviceId());
+                    installed.add(objectiveInstalled);
+                }
+            }
+        }
+
+        // join the new aggregated groups of the user and leave the obsolete ones
+        installed.add(userPrefixAggregator.setMembers(ConnectionKey.of(newConnection),
+                context.members(newConnection)));
+
+        // remove the obsolete rules
+        int removed = 0;
+        for (Map.Entry<ObjectiveKey, ForwardingObjective> entry : installedObjectives.entrySet()) {
+            if (!objectives.containsKey(entry.getKey())) {
+                removeObjective(entry.getKey().deviceId(), entry.getValue(), oldConnection);
+                removed++;
+            }
+        }
+
+        log.debug("ConnectionRuleInstaller: Updated connection {} -> added {} and removed {} objectives",
+                Lists.newArrayList(newConnection, added, removed).toArray());
+        return allOf(installed);
+    }
+
+    /**
+     * Remove the rules installed for the connection from the network devices.
+     *
+     * @param connection connection to remove the rules of
+     */
+    @Override
+    public void removeConnection(Connection connection) {
+
+        if (connection == null) {
+            log.warn("ConnectionRuleInstaller: Connection not removed -> invalid parameter!");
+            return;
+        }
+
+        Map<ForwardingObjective, DeviceId> forwardingObjectives = connection.getForwardingObjectives();
+        for (Map.Entry<ForwardingObjective, DeviceId> entry : forwardingObjectives.entrySet()) {
+            removeObjective(entry.getValue(), entry.getKey(), connection);
+        }
+        removeFlowRules(connection.getFlowRules(), connection);
+        userPrefixAggregator.setMembers(ConnectionKey.of(connection), Collections.emptySet());
+        connectionLinks.remove(ConnectionKey.of(connection));
+    }
+
+    /**
+     * Take over the rules of a connection installed by another instance.
+     * The recorded objectives and flow rules are registered as held by the connection
+     * without sending them again. The aggregated groups and the links of the connection
+     * are not shared through the cluster, so they are computed again.
+     *
+     * @param connection connection to take over the rules of
+     */
+    @Override
+    public void adoptConnection(Connection connection) {
+
+        if (connection == null) {
+            log.warn("ConnectionRuleInstaller: Connection not adopted -> invalid parameter!");
+            return;
+        }
+
+        ConnectionKey key = ConnectionKey.of(connection);
+        connection.getForwardingObjectives().forEach((fo, deviceId) ->
+                objectiveRegistry.adopt(ObjectiveKey.of(deviceId, fo), key));
+        connection.getFlowRules().forEach(flowRule -> flowRuleRegistry.adopt(ObjectiveKey.of(flowRule), key));
+
+        RuleSettings settings = settings(connection);
+        if (!settings.reactive()) {
+            InstallContext context = new InstallContext(settings);
+            if (settings.multiTable()) {
+                computeFlowRules(connection, context);
+            } else {
+                computeObjectives(connection, context);
+            }
+            userPrefixAggregator.setMembers(key, context.members(connection));
+        }
+        log.debug("ConnectionRuleInstaller: Adopted connection {} with {} objectives and {} flow rules",
+                Lists.newArrayList(connection, connection.getForwardingObjectives().size(),
+                        connection.getFlowRules().size()).toArray());
+    }
+
+    /**
+     * Forget the rules of a connection taken over by another instance without removing them.
+     *
+     * @param connection connection to forget the rules of
+     */
+    @Override
+    public void forgetConnection(Connection connection) {
+
+        if (connection == null) {
+            log.warn("ConnectionRuleInstaller: Connection not forgotten -> invalid parameter!");
+            return;
+        }
+
+        ConnectionKey key = ConnectionKey.of(connection);
+        connection.getForwardingObjectives().forEach((fo, deviceId) ->
+                objectiveRegistry.forget(ObjectiveKey.of(deviceId, fo), key));
+        connection.getFlowRules().forEach(flowRule -> flowRuleRegistry.forget(ObjectiveKey.of(flowRule), key));
+        userPrefixAggregator.forget(key);
+        connectionLinks.remove(key);
+    }
+
+    /**
+     * Install the rules of an authorized connection with an idle timeout.
+     * Used in reactive mode when the first packet of the user to the service is received,
+     * the rules are installed again on the next packet after they expired.
+     *
+     * @param connection connection to install the rules of
+     * @return future completed when the devices acknowledged the rules of the connection
+     */
+    @Override
+    public CompletableFuture<Void> activateConnection(Connection connection) {
+
+        if (connection == null) {
+            log.warn("ConnectionRuleInstaller: Connection not activated -> invalid parameter!");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // the temporary rules are installed per user and not aggregated
+        RuleSettings settings = settings(connection);
+        InstallContext context = new InstallContext(settings);
+        context.aggregate = false;
+        Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives = computeObjectives(connection, context);
+        List<CompletableFuture<Void>> installed = new ArrayList<>();
+        for (Map.Entry<ObjectiveKey, DefaultForwardingObjective.Builder> entry : objectives.entrySet()) {
+            // the temporary rules may have expired while other connections hold them, so they are always sent
+            DefaultForwardingObjective.Builder forwardingObjective = entry.getValue().makeTemporary(IDLE_TIMEOUT);
+            ForwardingObjective addObjective = forwardingObjective.add();
+            installed.add(objectiveRegistry.acquireAndInstall(entry.getKey(), ConnectionKey.of(connection),
+                    () -> sendObjective(entry.getKey().deviceId(), addObjective, settings.flowRuleBatching())));
+            connection.addForwardingObjective(forwardingObjective.remove(), entry.getKey().deviceId());
+        }
+        log.debug("ConnectionRuleInstaller: Activated connection {} with {} objectives and idle timeout {}",
+                Lists.newArrayList(connection, objectives.size(), IDLE_TIMEOUT).toArray());
+        return allOf(installed);
+    }
+
+    /**
+     * Returns the number of installed connections using each link
+     *
+     * @return connection count mapped by the link
+     */
+    @Override
+    public Map<LinkKey, Integer> getLinkConnectionCounts() {
+        Map<LinkKey, Integer> counts = new HashMap<>();
+        connectionLinks.values().forEach(links -> links.forEach(link -> counts.merge(link, 1, Integer::sum)));
+        return counts;
+    }
+
+    /**
+     * Returns the links used by an installed connection
+     *
+     * @param connection connection between user and service
+     * @return set of links, empty if the connection uses no link
+     */
+    @Override
+    public Set<LinkKey> getConnectionLinks(Connection connection) {
+        Set<LinkKey> links = connectionLinks.get(ConnectionKey.of(connection));
+        return links == null ? Collections.emptySet() : new HashSet<>(links);
+    }
+
+    @Override
+    public Map<DeviceId, List<ForwardingObjective>> getSharedObjectives() {
+        Map<DeviceId, List<ForwardingObjective>> objectives = userPrefixAggregator.objectives();
+        internetTree.objectives().forEach((deviceId, treeObjectives) ->
+                objectives.computeIfAbsent(deviceId, d -> new ArrayList<>()).addAll(treeObjectives));
+        return objectives;
+    }
+
+    /**
+     * Returns the keys of the rules the connections hold on a device,
+     * including the rules sent but not yet acknowledged
+     *
+     * @param deviceId device
+     * @return set of rule keys
+     */
+    @Override
+    public Set<ObjectiveKey> getHeldRules(DeviceId deviceId) {
+        Set<ObjectiveKey> held = new HashSet<>();
+        objectiveRegistry.keys().stream().filter(key -> key.deviceId().equals(deviceId)).forEach(held::add);
+        flowRuleRegistry.keys().stream().filter(key -> key.deviceId().equals(deviceId)).forEach(held::add);
+        return held;
+    }
+
+    /**
+     * Install the tree between the edge ports and the default gateway if the internet tree is enabled
+     * and the gateway host is known, otherwise remove the tree.
+     */
+    @Override
+    public void updateInternetTree() {
+        ApplicationId appId = applicationIdStore.getAppId(APPLICATION_ID);
+        ByodConfig cfg = cfgService.getConfig(appId, ByodConfig.class);
+        // the tree is built of forwarding objectives, the multi table pipeline does not use it
+        Set<Host> gateways = (INTERNET_TREE && !MULTI_TABLE && cfg != null && cfg.defaultGateway() != null) ?
+                hostService.getHostsByIp(cfg.defaultGateway()) : Collections.emptySet();
+        if (gateways.size() == 1) {
+            internetTree.update(gateways.iterator().next(), edgePortService.getEdgePoints(), appId);
+        } else if (internetTree.isActive()) {
+            internetTree.clear();
+            log.info("ConnectionRuleInstaller: Removed the internet tree");
+        }
+    }
+
+    /**
+     * Apply the flow rules of the connections in one batch and store them in the connections.
+     * A flow rule already installed for another connection is not applied again,
+     * the connection is only registered as holder of the rule.
+     *
+     * @param connectionRules flow rules mapped by the connection they are installed for
+     * @return futures completed when the devices acknowledged the flow rules of a connection,
+     *          mapped by the connection
+     */
+    private Map<Connection, CompletableFuture<Void>> installFlowRules(Map<Connection, Set<FlowRule>> connectionRules) {
+        Map<DeviceId, List<FlowRule>> newRules = new HashMap<>();
+        Map<DeviceId, CompletableFuture<Void>> deviceInstalled = new HashMap<>();
+        Map<Connection, List<CompletableFuture<Void>>> installed = new HashMap<>();
+        connectionRules.forEach((connection, flowRules) -> installed.put(connection, new ArrayList<>()));
+        connectionRules.forEach((connection, flowRules) -> flowRules.forEach(flowRule -> {
+            CompletableFuture<Void> ruleInstalled = flowRuleRegistry.acquire(ObjectiveKey.of(flowRule),
+                    ConnectionKey.of(connection), () -> {
+                        if (settings(connection).flowRuleBatching()) {
+                            return flowRuleBatcher.add(flowRule);
+                        }
+                        newRules.computeIfAbsent(flowRule.deviceId(), d -> new ArrayList<>()).add(flowRule);
+                        return deviceInstalled.computeIfAbsent(flowRule.deviceId(), d -> new CompletableFuture<>());
+                    });
+            installed.get(connection).add(ruleInstalled);
+            connection.addFlowRule(flowRule);
+        }));
+
+        newRules.forEach((deviceId, rules) -> {
+            log.debug("DefaultConnectionRuleInstaller: Applying {} flow rules to device {}", rules.size(), deviceId);
+            FlowRuleOperations.Builder operations = FlowRuleOperations.builder();
+            rules.forEach(operations::add);
+            CompletableFuture<Void> deviceFuture = deviceInstalled.get(deviceId);
+            FlowRuleOperations ops = operations.build(new FlowRuleOperationsContext() {
+                @Override
+                public void onSuccess(FlowRuleOperations ops) {
+                    deviceFuture.complete(null);
+                }
+
+                @Override
+                public void onError(FlowRuleOperations ops) {
+                    log.warn("DefaultConnectionRuleInstaller: Flow rules failed on device {}", deviceId);
+                    deviceFuture.completeExceptionally(new RuleInstallException(deviceId, "Flow rules failed"));
+                }
+            });
+            deviceWorkQueues.execute(deviceId, () -> flowRuleService.apply(ops))
+                    .whenComplete((result, error) -> {
+                        if (error != null) {
+                            deviceFuture.completeExceptionally(new RuleInstallException(deviceId,
+                                    "Flow rules not applied: " + error.getMessage()));
+                        }
+                    });
+        });
+        Map<Connection, CompletableFuture<Void>> result = new HashMap<>();
+        installed.forEach((connection, futures) -> result.put(connection, allOf(futures)));
+        return result;
+    }
+
+    /**
+     * Remove the flow rules of a connection in one batch.
+     * A flow rule is only removed if no other connection holds it.
+     * The flow rules are removed the way the settings recorded on the connection installed them.
+     *
+     * @param flowRules flow rules to remove
+     * @param connection connection releasing the flow rules
+     */
+    private void removeFlowRules(Collection<FlowRule> flowRules, Connection connection) {
+        List<FlowRule> obsoleteRules = new ArrayList<>();
+        flowRules.forEach(flowRule -> flowRuleRegistry.release(ObjectiveKey.of(flowRule),
+                ConnectionKey.of(connection), () -> obsoleteRules.add(flowRule)));
+
+        if (settings(connection).flowRuleBatching()) {
+            obsoleteRules.forEach(flowRuleBatcher::remove);
+        } else if (!obsoleteRules.isEmpty()) {
+            log.debug("DefaultConnectionRuleInstaller: Removing {} flow rules", obsoleteRules.size());
+            obsoleteRules.stream().collect(Collectors.groupingBy(FlowRule::deviceId)).forEach((deviceId, rules) ->
+                    deviceWorkQueues.execute(deviceId,
+                            () -> flowRuleService.removeFlowRules(rules.toArray(new FlowRule[rules.size()])))
+                            .whenComplete((result, error) -> {
+                                // the reconciler removes the rules left on the device
+                                if (error != null) {
+                                    log.warn("DefaultConnectionRuleInstaller: {} flow rules not removed " +
+                                            "from device {}: {}", new Object[]{rules.size(), deviceId,
+                                            error.getMessage()});
+                                }
+                            }));
+        }
+    }
+
+    /**
+     * Returns the flow rule a forwarding objective installs on a single table pipeline
+     *
+     * @param deviceId device the objective is installed on
+     * @param forwardingObjective forwarding objective
+     * @return flow rule
+     */
+    private FlowRule toFlowRule(DeviceId deviceId, ForwardingObjective forwardingObjective) {
+        FlowRule.Builder builder = DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .withSelector(forwardingObjective.selector())
+                .withTreatment(forwardingObjective.treatment())
+                .withPriority(forwardingObjective.priority())
+                .fromApp(forwardingObjective.appId());
+        if (forwardingObjective.permanent()) {
+            builder.makePermanent();
+        } else {
+            builder.makeTemporary(forwardingObjective.timeout());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the work queues programming the devices
+     *
+     * @return device work queues
+     */
+    @Override
+    public DeviceWorkQueues getDeviceWorkQueues() {
+        return deviceWorkQueues;
+    }
+
+    /**
+     * Returns the batcher submitting the flow rules per device
+     *
+     * @return flow rule batcher
+     */
+    @Override
+    public FlowRuleBatcher getFlowRuleBatcher() {
+        return flowRuleBatcher;
+    }
+
+    /**
+     * Install the objective on the device and store the objective removing it in the connection.
+     * A rule already installed for another connection is not installed again,
+     * the connection is only registered as holder of the rule.
+     *
+     * @param deviceId device to install the objective on
+     * @param forwardingObjective objective to install
+     * @param connection connection the objective is installed for
+     * @return future completed when the device acknowledged the rule
+     */
+    private CompletableFuture<Void> installObjective(DeviceId deviceId,
+                                                     DefaultForwardingObjective.Builder forwardingObjective,
+                                                     Connection connection) {
+        ForwardingObjective addObjective = forwardingObjective.add();
+        CompletableFuture<Void> installed = objectiveRegistry.acquire(ObjectiveKey.of(deviceId, addObjective),
+                ConnectionKey.of(connection),
+                () -> sendObjective(deviceId, addObjective, settings(connection).flowRuleBatching()));
+        // save forwarding objective in connection
+        connection.addForwardingObjective(forwardingObjective.remove(), deviceId);
+        return installed;
+    }
+
+    /**
+     * Remove an installed objective of a connection from the device.
+     * The rule is only removed if no other connection holds it,
+     * the way the settings recorded on the connection installed it.
+     *
+     * @param deviceId device the objective is installed on
+     * @param forwardingObjective the objective removing the rule
+     * @param connection connection releasing the rule
+     */
+    private void removeObjective(DeviceId deviceId, ForwardingObjective forwardingObjective, Connection connection) {
+        objectiveRegistry.release(ObjectiveKey.of(deviceId, forwardingObjective), ConnectionKey.of(connection),
+                () -> sendObjective(deviceId, forwardingObjective, settings(connection).flowRuleBatching()));
+    }
+
+    /**
+     * Send an objective of the rules shared by the connections with the current settings.
+     *
+     * @param deviceId device the objective is sent to
+     * @param forwardingObjective objective adding or removing a rule
+     * @return future completed when the device acknowledged the objective
+     */
+    private CompletableFuture<Void> sendObjective(DeviceId deviceId, ForwardingObjective forwardingObjective) {
+        return sendObjective(deviceId, forwardingObjective, FLOW_RULE_BATCHING);
+    }
+
+    /**
+     * Send the objective to the device, either as flow rule of a batch
+     * or through the work queue of the device.
+     *
+     * @param deviceId device the objective is sent to
+     * @param forwardingObjective objective adding or removing a rule
+     * @param batching true to send the objective as flow rule of a batch
+     * @return future completed when the device acknowledged the objective
+     */
+    private CompletableFuture<Void> sendObjective(DeviceId deviceId, ForwardingObjective forwardingObjective,
+                                                  boolean batching) {
+        boolean add = forwardingObjective.op() == Objective.Operation.ADD;
+        log.debug("DefaultConnectionRuleInstaller: {} flow objective \n{} \nfor device {}",
+                new Object[]{add ? "Adding" : "Removing", forwardingObjective, deviceId});
+        if (batching) {
+            FlowRule flowRule = toFlowRule(deviceId, forwardingObjective);
+            return add ? flowRuleBatcher.add(flowRule) : flowRuleBatcher.remove(flowRule);
+        }
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        deviceWorkQueues.execute(deviceId, () -> objectiveRetryService.forward(deviceId, forwardingObjective)
+                .whenComplete((result, error) -> {
+                    if (error == null) {
+                        sent.complete(null);
+                    } else {
+                        sent.completeExceptionally(error);
+                    }
+                }))
+                .whenComplete((result, error) -> {
+                    // the objective was never forwarded, because the queue of the device is full
+                    if (error != null) {
+                        sent.completeExceptionally(new RuleInstallException(deviceId,
+                                "Objective not sent: " + error.getMessage()));
+                    }
+                });
+        return sent;
+    }
+
+    /**
+     * Returns a future completed when all given futures are completed
+     *
+     * @param futures futures to wait for
+     * @return combined future
+     */
+    private static CompletableFuture<Void> allOf(Collection<CompletableFuture<Void>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    /**
+     * Returns the settings the connection was installed with.
+     * A connection without recorded settings is handled with the current settings.
+     *
+     * @param connection connection between user and service
+     * @return rule settings
+     */
+    private static RuleSettings settings(Connection connection) {
+        RuleSettings settings = connection.getRuleSettings();
+        return settings == null ? RuleSettings.current() : settings;
+    }
+
+    /**
+     * Compute the objectives realising the connection on the network devices
+     * without installing them.
+     *
+     * @param connection between user and service
+     * @param context values shared by the computation of the objectives
+     * @return objectives mapped by the key of the rule they install
+     */
+    private Map<ObjectiveKey, DefaultForwardingObjective.Builder> computeObjectives(Connection connection,
+                                                                                   InstallContext context) {
+
+        Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives = new HashMap<>();
+        connectionLinks.remove(ConnectionKey.of(connection));
+        context.members.remove(ConnectionKey.of(connection));
 
         HostLocation userLocation = connection.getUser().location();
 
@@ -111,7 +817,7 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
         for (Ip4Address serviceIp : connection.getService().ipAddressSet()) {
 
             // the device/host the service is connected to
-            Set<Host> serviceHosts = getConnectionServiceHost(serviceIp);
+            Set<Host> serviceHosts = context.serviceHosts(serviceIp);
             // install connection for each host with specified service IP address
             for (Host serviceHost : serviceHosts) {
 
@@ -127,13 +833,19 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
                                 connection.getUser().id(), connection.getService().ipAddressSet());
                     } else {
                         addFlows(userLocation.port(), serviceHost.location().port(), userLocation.deviceId(),
-                                serviceHost.mac(), serviceIp, connection);
+                                serviceHost.mac(), serviceIp, connection, objectives, context);
                     }
 
+                } else if (settings(connection).internetTree() && internetTree.isActive() &&
+                        connection.getService().name().equals("Internet")) {
+                    // authorize the user only on the edge switches, the shared tree forwards the traffic
+                    addInternetTreeFlows(userLocation, serviceHost, serviceIp, connection, objectives, context);
+                } else if (settings(connection).edgeAuthorization()) {
+                    // authorize the user only on the edge switch and forward by destination on all others
+                    addEdgeAuthorizedFlows(userLocation, serviceHost, serviceIp, connection, objectives, context);
                 } else {
                     // get a set of all shortest paths between the connected devices
-                    Set<Path> paths = topologyService.getPaths(topologyService.currentTopology(),
-                            userLocation.deviceId(), serviceHost.location().deviceId());
+                    Set<Path> paths = context.paths(userLocation.deviceId(), serviceHost.location().deviceId());
                     if (paths.isEmpty()) {
                         log.warn("ConnectionRuleInstaller: No path found between {} and {}",
                                 userLocation.toString(), serviceHost.location().toString());
@@ -141,14 +853,16 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
                         log.debug("ConnectionRuleInstaller: Installing connection between {} and {}",
                                 userLocation.deviceId().toString(), serviceHost.location().deviceId().toString());
 
-                        // pick one path. Under the assumption, that the path is shortest, no loops should be created.
-                        Path path = paths.iterator().next();
+                        // pick one of the equal cost paths. Under the assumption, that the path is shortest,
+                        // no loops should be created.
+                        Path path = selectPath(paths, connection);
+                        recordLinks(connection, path.links());
 
                         // rule for first device
                         Iterator<Link> currentLinkIter = path.links().iterator();
                         Link currentLink = currentLinkIter.next();
                         addFlows(userLocation.port(), currentLink.src().port(), userLocation.deviceId(),
-                                serviceHost.mac(), serviceIp, connection);
+                                serviceHost.mac(), serviceIp, connection, objectives, context);
 
                         // rule for every pair of links
                         Iterator<Link> previousLinkIter = path.links().iterator();
@@ -157,16 +871,169 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
                             currentLink = currentLinkIter.next();
 
                             addFlows(previousLink.dst().port(), currentLink.src().port(),
-                                    currentLink.src().deviceId(), serviceHost.mac(), serviceIp, connection);
+                                    currentLink.src().deviceId(), serviceHost.mac(), serviceIp, connection,
+                                    objectives, context);
                         }
 
                         // rule for last device
                         addFlows(currentLink.dst().port(), serviceHost.location().port(), serviceHost.location().deviceId(),
-                                serviceHost.mac(), serviceIp, connection);
+                                serviceHost.mac(), serviceIp, connection, objectives, context);
                     }
                 }
             }
         }
+
+        return objectives;
+    }
+
+    /**
+     * Compute the flow rules realising the connection on a multi table pipeline
+     * without installing them.
+     * The ACL table authorizes the traffic of user and service on the edge switch of the user
+     * and passes the traffic coming from other switches. The forwarding table forwards the traffic
+     * by its destination only, so its rules are shared by all connections to the same destination.
+     *
+     * @param connection between user and service
+     * @param context values shared by the computation of the rules
+     * @return set of flow rules
+     */
+    private Set<FlowRule> computeFlowRules(Connection connection, InstallContext context) {
+
+        Set<FlowRule> flowRules = new HashSet<>();
+        connectionLinks.remove(ConnectionKey.of(connection));
+
+        HostLocation userLocation = connection.getUser().location();
+        TrafficTreatment toForwarding = DefaultTrafficTreatment.builder()
+                .transition(FORWARDING_TABLE)
+                .build();
+        int priority = getPriority(connection.getService());
+
+        for (Ip4Address serviceIp : connection.getService().ipAddressSet()) {
+            for (Host serviceHost : context.serviceHosts(serviceIp)) {
+                HostLocation serviceLocation = serviceHost.location();
+
+                List<Link> toService = Collections.emptyList();
+                List<Link> toUser = Collections.emptyList();
+                if (userLocation.deviceId().equals(serviceLocation.deviceId())) {
+                    if (userLocation.port().equals(serviceLocation.port())) {
+                        log.warn("ConnectionRuleInstaller: User {} and service with IP={} are connected to same " +
+                                        "switch port! No connection installed.",
+                                connection.getUser().id(), connection.getService().ipAddressSet());
+                        continue;
+                    }
+                } else {
+                    toService = context.route(userLocation.deviceId(), serviceLocation.deviceId());
+                    toUser = context.route(serviceLocation.deviceId(), userLocation.deviceId());
+                    if (toService.isEmpty() || toUser.isEmpty()) {
+                        log.warn("ConnectionRuleInstaller: No path found between {} and {}",
+                                userLocation.toString(), serviceLocation.toString());
+                        continue;
+                    }
+                    recordLinks(connection, toService);
+                    recordLinks(connection, toUser);
+                }
+
+                // ports of the edge switch of the user towards the service
+                PortNumber serviceSidePort = toService.isEmpty() ?
+                        serviceLocation.port() : toService.get(0).src().port();
+                PortNumber returnPort = toUser.isEmpty() ?
+                        serviceLocation.port() : toUser.get(toUser.size() - 1).dst().port();
+
+                for (IpAddress userIp : connection.getUser().ipAddresses()) {
+                    // only install rules for ip addresses inside the local network
+                    if (!userIp.isIp4() || !context.ipPrefix.contains(userIp)) {
+                        continue;
+                    }
+
+                    TrafficSelector.Builder userToService = userToServiceSelector(userLocation.port(),
+                            serviceHost.mac(), serviceIp, userIp, connection);
+                    TrafficSelector.Builder serviceToUser = serviceToUserSelector(returnPort,
+                            serviceHost.mac(), serviceIp, userIp, connection);
+                    if (userToService == null || serviceToUser == null) {
+                        // protocol of the service not supported, the other hosts and addresses get their rules
+                        continue;
+                    }
+
+                    // authorize user and service on the edge switch of the user
+                    flowRules.add(buildFlowRule(userLocation.deviceId(), ACL_TABLE, userToService.build(),
+                            toForwarding, priority, context));
+                    flowRules.add(buildFlowRule(userLocation.deviceId(), ACL_TABLE, serviceToUser.build(),
+                            toForwarding, priority, context));
+                    flowRules.add(buildForwardingRule(userLocation.deviceId(), serviceIp, serviceHost.mac(),
+                            serviceSidePort, context));
+                    flowRules.add(buildForwardingRule(userLocation.deviceId(), userIp, connection.getUser().mac(),
+                            userLocation.port(), context));
+
+                    // pass the traffic to the service on the other switches to the forwarding table
+                    for (int i = 0; i < toService.size(); i++) {
+                        Link inLink = toService.get(i);
+                        PortNumber outPort = (i + 1 < toService.size()) ?
+                                toService.get(i + 1).src().port() : serviceLocation.port();
+                        flowRules.add(buildFlowRule(inLink.dst().deviceId(), ACL_TABLE,
+                                destinationSelector(inLink.dst().port(), serviceIp, serviceHost.mac()).build(),
+                                toForwarding, TRANSIT_FLOW_PRIORITY, context));
+                        flowRules.add(buildForwardingRule(inLink.dst().deviceId(), serviceIp, serviceHost.mac(),
+                                outPort, context));
+                    }
+
+                    // pass the traffic to the user on the other switches to the forwarding table
+                    PortNumber inPort = serviceLocation.port();
+                    for (Link outLink : toUser) {
+                        flowRules.add(buildFlowRule(outLink.src().deviceId(), ACL_TABLE,
+                                destinationSelector(inPort, userIp, connection.getUser().mac()).build(),
+                                toForwarding, TRANSIT_FLOW_PRIORITY, context));
+                        flowRules.add(buildForwardingRule(outLink.src().deviceId(), userIp,
+                                connection.getUser().mac(), outLink.src().port(), context));
+                        inPort = outLink.dst().port();
+                    }
+                }
+            }
+        }
+
+        return flowRules;
+    }
+
+    /**
+     * Returns the rule of the forwarding table forwarding the traffic by its destination
+     *
+     * @param deviceId device the rule is installed on
+     * @param ip       IP address of the destination
+     * @param mac      MAC address of the destination
+     * @param outPort  The out port, where the packets are send to
+     * @param context  values shared by the computation of the rules
+     * @return flow rule
+     */
+    private FlowRule buildForwardingRule(DeviceId deviceId, IpAddress ip, MacAddress mac, PortNumber outPort,
+                                         InstallContext context) {
+        TrafficTreatment trafficTreatment = DefaultTrafficTreatment.builder()
+                .setOutput(outPort)
+                .build();
+        return buildFlowRule(deviceId, FORWARDING_TABLE, destinationSelector(null, ip, mac).build(),
+                trafficTreatment, FLOW_PRIORITY, context);
+    }
+
+    /**
+     * Returns a permanent flow rule of the application
+     *
+     * @param deviceId  device the rule is installed on
+     * @param tableId   table the rule is installed in
+     * @param selector  selector of the rule
+     * @param treatment treatment of the rule
+     * @param priority  priority of the rule
+     * @param context   values shared by the computation of the rules
+     * @return flow rule
+     */
+    private FlowRule buildFlowRule(DeviceId deviceId, int tableId, TrafficSelector selector,
+                                   TrafficTreatment treatment, int priority, InstallContext context) {
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(tableId)
+                .withSelector(selector)
+                .withTreatment(treatment)
+                .withPriority(priority)
+                .fromApp(context.appId)
+                .makePermanent()
+                .build();
     }
 
     /**
@@ -176,14 +1043,15 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
      * Otherwise null is returned.
      *
      * @param ip4Address the ip address to search a host for
+     * @param context values shared by the computation of the objectives
      * @return Service host location, default gateway host location or null
      */
-    private Set<Host> getConnectionServiceHost(Ip4Address ip4Address) {
+    private Set<Host> getConnectionServiceHost(Ip4Address ip4Address, InstallContext context) {
 
         // get the byod config
-        ByodConfig cfg = cfgService.getConfig(applicationIdStore.getAppId(APPLICATION_ID), ByodConfig.class);
+        ByodConfig cfg = context.cfg;
         // get the ip prefix of the network
-        IpPrefix ipPrefix = Ip4Prefix.valueOf(cfg.defaultGateway(), cfg.prefixLength());
+        IpPrefix ipPrefix = context.ipPrefix;
 
         // check if ip address is in local network
         if (ipPrefix.contains(ip4Address)) {
@@ -250,11 +1118,16 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
      * @param serviceMac      MAC address of the service host
      * @param serviceIp       IP address of the service
      * @param connection      between user and service
+     * @param objectives      objectives of the connection the flows are added to
+     * @param context         values shared by the computation of the objectives
      */
     private void addFlows(PortNumber userSidePort, PortNumber serviceSidePort, DeviceId forDeviceId,
-                          MacAddress serviceMac, Ip4Address serviceIp, Connection connection) {
-        addFlowUserToService(userSidePort, serviceSidePort, forDeviceId, serviceMac, serviceIp, connection);
-        addFlowServiceToUser(serviceSidePort, userSidePort, forDeviceId, serviceMac, serviceIp, connection);
+                          MacAddress serviceMac, Ip4Address serviceIp, Connection connection,
+                          Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives, InstallContext context) {
+        addFlowUserToService(userSidePort, serviceSidePort, forDeviceId, serviceMac, serviceIp, connection,
+                objectives, context);
+        addFlowServiceToUser(serviceSidePort, userSidePort, forDeviceId, serviceMac, serviceIp, connection,
+                objectives, context);
     }
 
     /**
@@ -266,82 +1139,57 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
      * @param serviceMac  MAC address of the service host
      * @param serviceIp   IP address of the service
      * @param connection  The connection the flows are installed for
+     * @param objectives  objectives of the connection the flow is added to
+     * @param context     values shared by the computation of the objectives
      */
     private void addFlowUserToService(PortNumber inPort, PortNumber outPort, DeviceId forDeviceId,
-                                      MacAddress serviceMac, Ip4Address serviceIp, Connection connection) {
+                                      MacAddress serviceMac, Ip4Address serviceIp, Connection connection,
+                                      Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives,
+                                      InstallContext context) {
 
-        byte protocol = connection.getService().protocol();
-
-        // get the byod config
-        ByodConfig cfg = cfgService.getConfig(applicationIdStore.getAppId(APPLICATION_ID), ByodConfig.class);
         // get the ip prefix of the network
-        IpPrefix ipPrefix = Ip4Prefix.valueOf(cfg.defaultGateway(), cfg.prefixLength());
+        IpPrefix ipPrefix = context.ipPrefix;
 
         for (IpAddress userIp : connection.getUser().ipAddresses()) {
             // only install rules for ip addresses inside the local network
             if (userIp.isIp4() && ipPrefix.contains(userIp)) {
-                TrafficSelector.Builder trafficSelectorBuilder = DefaultTrafficSelector.builder()
-                        .matchEthType(EthType.EtherType.IPV4.ethType().toShort())
-                        .matchInPort(inPort)
-                        .matchEthSrc(connection.getUser().mac())
-                        .matchIPProtocol(protocol);
-
-                // do not match on IP address if it is defined as wildcard
-                if (!userIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
-                    log.debug("DefaultConnectionRuleInstaller: UserIP wildcard set -> do not match on userIp.");
-                    trafficSelectorBuilder.matchIPSrc(userIp.toIpPrefix());
-                }
-                if (!serviceIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
-                    log.debug("DefaultConnectionRuleInstaller: ServiceIP wildcard set -> do not match on serviceIp.");
-                    trafficSelectorBuilder.matchIPDst(serviceIp.toIpPrefix());
-                }
+                TrafficTreatment trafficTreatment = DefaultTrafficTreatment.builder()
+                        .setOutput(outPort)
+                        .build();
+                int priority = getPriority(connection.getService());
 
-                // only match on port if it is defined
-                if (connection.getService().tpPort() != null) {
-                    if (protocol == IPv4.PROTOCOL_TCP) {
-                        trafficSelectorBuilder.matchTcpDst(connection.getService().tpPort());
-                    } else if (protocol == IPv4.PROTOCOL_UDP) {
-                        trafficSelectorBuilder.matchUdpDst(connection.getService().tpPort());
-                    } else {
-                        log.warn("DefaultConnectionRuleInstaller: Defined internet protocol not supported!");
+                // the rule of the user is aggregated with the rules of the other users of the group,
+                // the aggregated rules can not match the MAC address of the user
+                if (context.aggregate && !userIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
+                    TrafficSelector.Builder groupSelector =
+                            usersToServiceSelector(inPort, serviceMac, serviceIp, connection);
+                    if (groupSelector == null) {
                         return;
                     }
+                    context.members(connection).add(new UserPrefixAggregator.Member(
+                            ObjectiveKey.of(forDeviceId, groupSelector.build(), trafficTreatment, priority),
+                            userIp.getIp4Address(), context.appId));
+                    continue;
                 }
 
-                // check if the match ethernet destination is set true in config
-                // also match the ethernet destination for the internet service
-                if (MATCH_ETH_DST || connection.getService().name().equals("Internet")) {
-                    trafficSelectorBuilder.matchEthDst(serviceMac);
+                TrafficSelector.Builder trafficSelectorBuilder =
+                        userToServiceSelector(inPort, serviceMac, serviceIp, userIp, connection);
+                if (trafficSelectorBuilder == null) {
+                    return;
                 }
 
-
-                TrafficTreatment.Builder trafficTreatmentBuilder = DefaultTrafficTreatment.builder()
-                        .setOutput(outPort);
-
+                TrafficSelector trafficSelector = trafficSelectorBuilder.build();
 
                 DefaultForwardingObjective.Builder forwardingObjective = DefaultForwardingObjective.builder()
-                        .withSelector(trafficSelectorBuilder.build())
-                        .withTreatment(trafficTreatmentBuilder.build())
+                        .withSelector(trafficSelector)
+                        .withTreatment(trafficTreatment)
                         .withFlag(ForwardingObjective.Flag.VERSATILE)
-                        .fromApp(applicationIdStore.getAppId(APPLICATION_ID))
+                        .fromApp(context.appId)
+                        .withPriority(priority)
                         .makePermanent();
 
-                if (connection.getService().name().equals("PortalService")) {
-                    // portal service has higher priority as all other services
-                    // enabling portal communication even if another service is defined with the same values
-                    forwardingObjective.withPriority(FLOW_PRIORITY + 10);
-                } else if (connection.getService().name().equals("Internet")) {
-                    // internet service has lower priority
-                    forwardingObjective.withPriority(FLOW_PRIORITY - 10);
-                } else {
-                    forwardingObjective.withPriority(FLOW_PRIORITY);
-                }
-
-                log.debug("DefaultConnectionRuleInstaller: Adding flow objective \n{} \n" +
-                        "for device {} in method addFlowUserToService()", forwardingObjective, forDeviceId);
-                flowObjectiveService.forward(forDeviceId, forwardingObjective.add());
-                // save forwarding objective in connection
-                connection.addForwardingObjective(forwardingObjective.remove(), forDeviceId);
+                objectives.put(ObjectiveKey.of(forDeviceId, trafficSelector, trafficTreatment, priority),
+                        forwardingObjective);
             }
         }
     }
@@ -355,83 +1203,551 @@ public class DefaultConnectionRuleInstaller implements ConnectionRuleInstaller {
      * @param serviceMac  MAC address of the service host
      * @param serviceIp   IP address of the service
      * @param connection  The connection the flows are installed for
+     * @param objectives  objectives of the connection the flow is added to
+     * @param context     values shared by the computation of the objectives
      */
     private void addFlowServiceToUser(PortNumber inPort, PortNumber outPort, DeviceId forDeviceId,
-                                      MacAddress serviceMac, Ip4Address serviceIp, Connection connection) {
+                                      MacAddress serviceMac, Ip4Address serviceIp, Connection connection,
+                                      Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives,
+                                      InstallContext context) {
+        addFlowServiceToUser(inPort, DefaultTrafficTreatment.builder().setOutput(outPort).build(), forDeviceId,
+                serviceMac, serviceIp, connection, objectives, context);
+    }
 
-        byte protocol = connection.getService().protocol();
+    /**
+     * Add a flow from the service to the user with the given treatment
+     *
+     * @param inPort      The in port, where the packets are coming in
+     * @param trafficTreatment treatment of the flow
+     * @param forDeviceId The device id where the flow is installed
+     * @param serviceMac  MAC address of the service host
+     * @param serviceIp   IP address of the service
+     * @param connection  The connection the flows are installed for
+     * @param objectives  objectives of the connection the flow is added to
+     * @param context     values shared by the computation of the objectives
+     */
+    private void addFlowServiceToUser(PortNumber inPort, TrafficTreatment trafficTreatment, DeviceId forDeviceId,
+                                      MacAddress serviceMac, Ip4Address serviceIp, Connection connection,
+                                      Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives,
+                                      InstallContext context) {
 
-        // get the byod config
-        ByodConfig cfg = cfgService.getConfig(applicationIdStore.getAppId(APPLICATION_ID), ByodConfig.class);
         // get the ip prefix of the network
-        IpPrefix ipPrefix = Ip4Prefix.valueOf(cfg.defaultGateway(), cfg.prefixLength());
+        IpPrefix ipPrefix = context.ipPrefix;
 
         for (IpAddress userIp : connection.getUser().ipAddresses()) {
             // only install rules for ip addresses inside the local network
             if (userIp.isIp4() && ipPrefix.contains(userIp)) {
+                TrafficSelector.Builder trafficSelectorBuilder =
+                        serviceToUserSelector(inPort, serviceMac, serviceIp, userIp, connection);
+                if (trafficSelectorBuilder == null) {
+                    return;
+                }
 
-                TrafficSelector.Builder trafficSelectorBuilder = DefaultTrafficSelector.builder()
-                        .matchEthType(EthType.EtherType.IPV4.ethType().toShort())
-                        .matchInPort(inPort)
-                        .matchEthSrc(serviceMac)
-                        .matchIPProtocol(protocol);
+                TrafficSelector trafficSelector = trafficSelectorBuilder.build();
+                int priority = getPriority(connection.getService());
 
-                // no ethernet source match for testing
-                if (!serviceIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
-                    log.debug("DefaultConnectionRuleInstaller: ServiceIP wildcard set -> do not match on serviceIp.");
-                    trafficSelectorBuilder.matchIPSrc(serviceIp.toIpPrefix());
-                }
-                if (!userIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
-                    log.debug("DefaultConnectionRuleInstaller: UserIP wildcard set -> do not match on userIp.");
-                    trafficSelectorBuilder.matchIPDst(userIp.toIpPrefix());
-                }
+                DefaultForwardingObjective.Builder forwardingObjective = DefaultForwardingObjective.builder()
+                        .withSelector(trafficSelector)
+                        .withTreatment(trafficTreatment)
+                        .withFlag(ForwardingObjective.Flag.VERSATILE)
+                        .fromApp(context.appId)
+                        .withPriority(priority)
+                        .makePermanent();
 
-                // only match on port if it is defined
-                if (connection.getService().tpPort() != null) {
-                    if (protocol == IPv4.PROTOCOL_TCP) {
-                        trafficSelectorBuilder.matchTcpSrc(connection.getService().tpPort());
-                    } else if (protocol == IPv4.PROTOCOL_UDP) {
-                        trafficSelectorBuilder.matchUdpSrc(connection.getService().tpPort());
-                    } else {
-                        log.warn("DefaultConnectionRuleInstaller: Defined internet protocol not supported!");
-                        return;
-                    }
-                }
+                objectives.put(ObjectiveKey.of(forDeviceId, trafficSelector, trafficTreatment, priority),
+                        forwardingObjective);
+            }
+        }
+    }
 
-                // check if the match ethernet destination is set true in config
-                // also match the ethernet destination for the internet service
-                if (MATCH_ETH_DST || connection.getService().name().equals("Internet")) {
-                    trafficSelectorBuilder.matchEthDst(connection.getUser().mac());
-                }
+    /**
+     * Returns the selector matching the traffic of the user to the service
+     *
+     * @param inPort     The in port, where the packets are coming in
+     * @param serviceMac MAC address of the service host
+     * @param serviceIp  IP address of the service
+     * @param userIp     IP address of the user
+     * @param connection The connection the selector is built for
+     * @return selector builder or null if the protocol of the service is not supported
+     */
+    private TrafficSelector.Builder userToServiceSelector(PortNumber inPort, MacAddress serviceMac,
+                                                          Ip4Address serviceIp, IpAddress userIp,
+                                                          Connection connection) {
 
+        TrafficSelector.Builder trafficSelectorBuilder =
+                usersToServiceSelector(inPort, serviceMac, serviceIp, connection);
+        if (trafficSelectorBuilder == null) {
+            return null;
+        }
+        trafficSelectorBuilder.matchEthSrc(connection.getUser().mac());
 
-                TrafficTreatment.Builder trafficTreatmentBuilder = DefaultTrafficTreatment.builder()
-                        .setOutput(outPort);
+        // do not match on IP address if it is defined as wildcard
+        if (!userIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
+            log.debug("DefaultConnectionRuleInstaller: UserIP wildcard set -> do not match on userIp.");
+            trafficSelectorBuilder.matchIPSrc(userIp.toIpPrefix());
+        }
 
+        return trafficSelectorBuilder;
+    }
 
-                DefaultForwardingObjective.Builder forwardingObjective = DefaultForwardingObjective.builder()
-                        .withSelector(trafficSelectorBuilder.build())
-                        .withTreatment(trafficTreatmentBuilder.build())
-                        .withFlag(ForwardingObjective.Flag.VERSATILE)
-                        .fromApp(applicationIdStore.getAppId(APPLICATION_ID))
-                        .makePermanent();
+    /**
+     * Returns the selector matching the traffic of any user to the service,
+     * without the matches specific to a user
+     *
+     * @param inPort     The in port, where the packets are coming in
+     * @param serviceMac MAC address of the service host
+     * @param serviceIp  IP address of the service
+     * @param connection The connection the selector is built for
+     * @return selector builder or null if the protocol of the service is not supported
+     */
+    private TrafficSelector.Builder usersToServiceSelector(PortNumber inPort, MacAddress serviceMac,
+                                                           Ip4Address serviceIp, Connection connection) {
 
-                if (connection.getService().name().equals("PortalService")) {
-                    // portal service has higher priority as all other services
-                    // enabling portal communication even if another service is defined with the same values
-                    forwardingObjective.withPriority(FLOW_PRIORITY + 10);
-                } else if (connection.getService().name().equals("Internet")) {
-                    // internet service has lower priority
-                    forwardingObjective.withPriority(FLOW_PRIORITY - 10);
-                } else {
-                    forwardingObjective.withPriority(FLOW_PRIORITY);
-                }
+        byte protocol = connection.getService().protocol();
+
+        TrafficSelector.Builder trafficSelectorBuilder = DefaultTrafficSelector.builder()
+                .matchEthType(EthType.EtherType.IPV4.ethType().toShort())
+                .matchInPort(inPort)
+                .matchIPProtocol(protocol);
+
+        if (!serviceIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
+            log.debug("DefaultConnectionRuleInstaller: ServiceIP wildcard set -> do not match on serviceIp.");
+            trafficSelectorBuilder.matchIPDst(serviceIp.toIpPrefix());
+        }
+
+        // only match on port if it is defined
+        if (connection.getService().tpPort() != null) {
+            if (protocol == IPv4.PROTOCOL_TCP) {
+                trafficSelectorBuilder.matchTcpDst(connection.getService().tpPort());
+            } else if (protocol == IPv4.PROTOCOL_UDP) {
+                trafficSelectorBuilder.matchUdpDst(connection.getService().tpPort());
+            } else {
+                log.warn("DefaultConnectionRuleInstaller: Defined internet protocol not supported!");
+                return null;
+            }
+        }
+
+        // check if the match ethernet destination is set true in config
+        // also match the ethernet destination for the internet service
+        if (settings(connection).matchEthDst() || connection.getService().name().equals("Internet")) {
+            trafficSelectorBuilder.matchEthDst(serviceMac);
+        }
+
+        return trafficSelectorBuilder;
+    }
+
+    /**
+     * Returns the selector matching the traffic of the service to the user
+     *
+     * @param inPort     The in port, where the packets are coming in
+     * @param serviceMac MAC address of the service host
+     * @param serviceIp  IP address of the service
+     * @param userIp     IP address of the user
+     * @param connection The connection the selector is built for
+     * @return selector builder or null if the protocol of the service is not supported
+     */
+    private TrafficSelector.Builder serviceToUserSelector(PortNumber inPort, MacAddress serviceMac,
+                                                          Ip4Address serviceIp, IpAddress userIp,
+                                                          Connection connection) {
+
+        byte protocol = connection.getService().protocol();
+
+        TrafficSelector.Builder trafficSelectorBuilder = DefaultTrafficSelector.builder()
+                .matchEthType(EthType.EtherType.IPV4.ethType().toShort())
+                .matchInPort(inPort)
+                .matchEthSrc(serviceMac)
+                .matchIPProtocol(protocol);
+
+        // no ethernet source match for testing
+        if (!serviceIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
+            log.debug("DefaultConnectionRuleInstaller: ServiceIP wildcard set -> do not match on serviceIp.");
+            trafficSelectorBuilder.matchIPSrc(serviceIp.toIpPrefix());
+        }
+        if (!userIp.equals(Ip4Address.valueOf("0.0.0.0"))) {
+            log.debug("DefaultConnectionRuleInstaller: UserIP wildcard set -> do not match on userIp.");
+            trafficSelectorBuilder.matchIPDst(userIp.toIpPrefix());
+        }
+
+        // only match on port if it is defined
+        if (connection.getService().tpPort() != null) {
+            if (protocol == IPv4.PROTOCOL_TCP) {
+                trafficSelectorBuilder.matchTcpSrc(connection.getService().tpPort());
+            } else if (protocol == IPv4.PROTOCOL_UDP) {
+                trafficSelectorBuilder.matchUdpSrc(connection.getService().tpPort());
+            } else {
+                log.warn("DefaultConnectionRuleInstaller: Defined internet protocol not supported!");
+                return null;
+            }
+        }
+
+        // check if the match ethernet destination is set true in config
+        // also match the ethernet destination for the internet service
+        if (settings(connection).matchEthDst() || connection.getService().name().equals("Internet")) {
+            trafficSelectorBuilder.matchEthDst(connection.getUser().mac());
+        }
+
+        return trafficSelectorBuilder;
+    }
+
+    /**
+     * Returns the selector matching the traffic to a destination.
+     * The destination is matched by its MAC address if the IP address is defined as wildcard.
+     *
+     * @param inPort The in port, where the packets are coming in, or null to match all ports
+     * @param ip     IP address of the destination
+     * @param mac    MAC address of the destination
+     * @return selector builder
+     */
+    private TrafficSelector.Builder destinationSelector(PortNumber inPort, IpAddress ip, MacAddress mac) {
+        TrafficSelector.Builder trafficSelectorBuilder = DefaultTrafficSelector.builder()
+                .matchEthType(EthType.EtherType.IPV4.ethType().toShort());
+        if (inPort != null) {
+            trafficSelectorBuilder.matchInPort(inPort);
+        }
+        if (ip.equals(Ip4Address.valueOf("0.0.0.0"))) {
+            trafficSelectorBuilder.matchEthDst(mac);
+        } else {
+            trafficSelectorBuilder.matchIPDst(ip.toIpPrefix());
+        }
+        return trafficSelectorBuilder;
+    }
+
+    /**
+     * Adds the flows of a connection between a user and a service connected to different devices,
+     * authorizing the user only on its edge switch.
+     * All other switches forward the traffic by its destination with rules shared by the connections:
+     * one rule per service destination and one rule per user for the return path.
+     *
+     * @param userLocation location of the user
+     * @param serviceHost  host the traffic to the service is sent to
+     * @param serviceIp    IP address of the service
+     * @param connection   between user and service
+     * @param objectives   objectives of the connection the flows are added to
+     * @param context      values shared by the computation of the objectives
+     */
+    private void addEdgeAuthorizedFlows(HostLocation userLocation, Host serviceHost, Ip4Address serviceIp,
+                                        Connection connection,
+                                        Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives,
+                                        InstallContext context) {
+
+        // only install rules for users with an ip address inside the local network
+        if (connection.getUser().ipAddresses().stream()
+                .noneMatch(userIp -> userIp.isIp4() && context.ipPrefix.contains(userIp))) {
+            return;
+        }
+
+        List<Link> toService = context.route(userLocation.deviceId(), serviceHost.location().deviceId());
+        List<Link> toUser = context.route(serviceHost.location().deviceId(), userLocation.deviceId());
+        if (toService.isEmpty() || toUser.isEmpty()) {
+            log.warn("ConnectionRuleInstaller: No path found between {} and {}",
+                    userLocation.toString(), serviceHost.location().toString());
+            return;
+        }
+        recordLinks(connection, toService);
+        recordLinks(connection, toUser);
+
+        // match user and service on the edge switch of the user
+        addFlowUserToService(userLocation.port(), toService.get(0).src().port(), userLocation.deviceId(),
+                serviceHost.mac(), serviceIp, connection, objectives, context);
+        addFlowServiceToUser(toUser.get(toUser.size() - 1).dst().port(), userLocation.port(),
+                userLocation.deviceId(), serviceHost.mac(), serviceIp, connection, objectives, context);
+
+        // forward the traffic to the service by its destination
+        for (int i = 0; i < toService.size(); i++) {
+            Link inLink = toService.get(i);
+            PortNumber outPort = (i + 1 < toService.size()) ?
+                    toService.get(i + 1).src().port() : serviceHost.location().port();
+            addTransitFlowToService(inLink.dst().port(), outPort, inLink.dst().deviceId(),
+                    serviceHost.mac(), serviceIp, objectives, context);
+        }
+
+        // forward the traffic to the user by its destination
+        PortNumber inPort = serviceHost.location().port();
+        for (Link outLink : toUser) {
+            addTransitFlowToUser(inPort, outLink.src().port(), outLink.src().deviceId(),
+                    connection, objectives, context);
+            inPort = outLink.dst().port();
+        }
+    }
+
+    /**
+     * Adds the flows of an internet connection using the shared internet tree.
+     * The user is authorized on its edge switch, which forwards the traffic into the tree to the gateway.
+     * The switch of the gateway authorizes the responses and tunnels them with the label of the edge port
+     * of the user, so all other switches only hold the rules of the tree.
+     *
+     * @param userLocation location of the user
+     * @param gatewayHost  host of the default gateway
+     * @param serviceIp    IP address of the service
+     * @param connection   between user and service
+     * @param objectives   objectives of the connection the flows are added to
+     * @param context      values shared by the computation of the objectives
+     */
+    private void addInternetTreeFlows(HostLocation userLocation, Host gatewayHost, Ip4Address serviceIp,
+                                      Connection connection,
+                                      Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives,
+                                      InstallContext context) {
+
+        List<Link> toGateway = context.route(userLocation.deviceId(), gatewayHost.location().deviceId());
+        List<Link> toUser = context.route(gatewayHost.location().deviceId(), userLocation.deviceId());
+        if (toGateway.isEmpty() || toUser.isEmpty()) {
+            log.warn("ConnectionRuleInstaller: No path found between {} and {}",
+                    userLocation.toString(), gatewayHost.location().toString());
+            return;
+        }
+        recordLinks(connection, toGateway);
+        recordLinks(connection, toUser);
+
+        // authorize the user on its edge switch
+        addFlowUserToService(userLocation.port(), toGateway.get(0).src().port(), userLocation.deviceId(),
+                gatewayHost.mac(), serviceIp, connection, objectives, context);
+
+        // authorize the responses on the switch of the gateway and tunnel them to the edge port of the user
+        TrafficTreatment toEdgePort = DefaultTrafficTreatment.builder()
+                .pushMpls()
+                .setMpls(internetTree.label(userLocation))
+                .setOutput(toUser.get(0).src().port())
+                .build();
+        addFlowServiceToUser(gatewayHost.location().port(), toEdgePort, gatewayHost.location().deviceId(),
+                gatewayHost.mac(), serviceIp, connection, objectives, context);
+    }
+
+    /**
+     * Selects one of the equal cost paths for the connection.
+     * The path is chosen by rendezvous hashing of the user MAC address and the service,
+     * spreading the connections deterministically over all paths. If a path appears or
+     * disappears, only the connections choosing or having chosen this path move.
+     *
+     * @param paths      equal cost paths between the devices of user and service
+     * @param connection connection the path is selected for
+     * @return path
+     */
+    private Path selectPath(Set<Path> paths, Connection connection) {
+        if (paths.size() == 1) {
+            return paths.iterator().next();
+        }
+        String flowKey = connection.getUser().mac().toString() + "/" + connection.getService().id().toString();
+        return paths.stream()
+                .max(Comparator.comparingInt((Path path) -> Hashing.murmur3_32()
+                        .hashString(flowKey + "/" + pathId(path), StandardCharsets.UTF_8).asInt())
+                        .thenComparing(this::pathId))
+                .get();
+    }
+
+    /**
+     * Returns a string identifying the path by its links
+     *
+     * @param path path
+     * @return path identifier
+     */
+    private String pathId(Path path) {
+        return path.links().stream()
+                .map(link -> link.src().toString() + "-" + link.dst().toString())
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * Remember the links used by the connection
+     *
+     * @param connection connection using the links
+     * @param links      links of the connection
+     */
+    private void recordLinks(Connection connection, Collection<Link> links) {
+        connectionLinks.computeIfAbsent(ConnectionKey.of(connection), key -> ConcurrentHashMap.newKeySet())
+                .addAll(links.stream().map(LinkKey::linkKey).collect(Collectors.toSet()));
+    }
+
+    /**
+     * Returns the links from the source to the destination device.
+     * The route is the walk up the shortest path tree rooted at the destination device,
+     * so the routes of all sources to a destination share the trunk of the tree
+     * and the rules forwarding by destination can be shared by the connections.
+     *
+     * @param src source device
+     * @param dst destination device
+     * @return list of links, empty if no route is found
+     */
+    @Override
+    public List<Link> getDestinationRoute(DeviceId src, DeviceId dst) {
+        return serviceTrees.getRoute(src, dst);
+    }
+
+    /**
+     * Add the flow forwarding the traffic to the service by its destination.
+     * The flow is shared by all connections to the service destination entering the device on the in port.
+     *
+     * @param inPort      The in port, where the packets are coming in
+     * @param outPort     The out port, where the packets are send to
+     * @param forDeviceId The device id where the flow is installed
+     * @param serviceMac  MAC address of the service host
+     * @param serviceIp   IP address of the service
+     * @param objectives  objectives of the connection the flow is added to
+     * @param context     values shared by the computation of the objectives
+     */
+    private void addTransitFlowToService(PortNumber inPort, PortNumber outPort, DeviceId forDeviceId,
+                                         MacAddress serviceMac, Ip4Address serviceIp,
+                                         Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives,
+                                         InstallContext context) {
+        addTransitObjective(forDeviceId, destinationSelector(inPort, serviceIp, serviceMac).build(), outPort,
+                objectives, context);
+    }
+
+    /**
+     * Add the flows forwarding the traffic to the user by its destination.
+     * The flows are shared by all connections of the user entering the device on the in port.
+     *
+     * @param inPort      The in port, where the packets are coming in
+     * @param outPort     The out port, where the packets are send to
+     * @param forDeviceId The device id where the flow is installed
+     * @param connection  The connection the flows are installed for
+     * @param objectives  objectives of the connection the flows are added to
+     * @param context     values shared by the computation of the objectives
+     */
+    private void addTransitFlowToUser(PortNumber inPort, PortNumber outPort, DeviceId forDeviceId,
+                                      Connection connection,
+                                      Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives,
+                                      InstallContext context) {
+        for (IpAddress userIp : connection.getUser().ipAddresses()) {
+            // only install rules for ip addresses inside the local network
+            if (userIp.isIp4() && context.ipPrefix.contains(userIp)) {
+                addTransitObjective(forDeviceId,
+                        destinationSelector(inPort, userIp, connection.getUser().mac()).build(), outPort,
+                        objectives, context);
+            }
+        }
+    }
+
+    /**
+     * Add the objective of a flow forwarding by destination to the objectives of the connection
+     *
+     * @param forDeviceId     The device id where the flow is installed
+     * @param trafficSelector selector of the flow
+     * @param outPort         The out port, where the packets are send to
+     * @param objectives      objectives of the connection the flow is added to
+     * @param context         values shared by the computation of the objectives
+     */
+    private void addTransitObjective(DeviceId forDeviceId, TrafficSelector trafficSelector, PortNumber outPort,
+                                     Map<ObjectiveKey, DefaultForwardingObjective.Builder> objectives,
+                                     InstallContext context) {
+        TrafficTreatment trafficTreatment = DefaultTrafficTreatment.builder()
+                .setOutput(outPort)
+                .build();
+
+        DefaultForwardingObjective.Builder forwardingObjective = DefaultForwardingObjective.builder()
+                .withSelector(trafficSelector)
+                .withTreatment(trafficTreatment)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(context.appId)
+                .withPriority(TRANSIT_FLOW_PRIORITY)
+                .makePermanent();
+
+        objectives.put(ObjectiveKey.of(forDeviceId, trafficSelector, trafficTreatment, TRANSIT_FLOW_PRIORITY),
+                forwardingObjective);
+    }
+
+    /**
+     * Returns the flow priority of the rules for a service
+     *
+     * @param service the service the rules are installed for
+     * @return flow priority
+     */
+    static int getPriority(Service service) {
+        if (service.name().equals("PortalService")) {
+            // portal service has higher priority as all other services
+            // enabling portal communication even if another service is defined with the same values
+            return FLOW_PRIORITY + 10;
+        } else if (service.name().equals("Internet")) {
+            // internet service has lower priority
+            return FLOW_PRIORITY - 10;
+        } else {
+            return FLOW_PRIORITY;
+        }
+    }
+
+    /**
+     * Values shared by the computation of the objectives of one or more connections.
+     * The configuration is read once and service hosts are looked up
+     * only once for every service IP address.
+     */
+    private final class InstallContext {
+
+        private final ApplicationId appId;
+        private final ByodConfig cfg;
+        private final IpPrefix ipPrefix;
+
+        // the service hosts of the service ip addresses
+        private final Map<Ip4Address, Set<Host>> serviceHosts = new HashMap<>();
+        // the routes forwarding by destination from a source device to a destination device
+        private final Map<DeviceId, Map<DeviceId, List<Link>>> routes = new HashMap<>();
+        // the memberships of the connections in the aggregated user groups
+        private final Map<ConnectionKey, Set<UserPrefixAggregator.Member>> members = new HashMap<>();
+        // aggregate the user rules to prefixes, only the forwarding objectives of the single table pipeline
+        private boolean aggregate;
+
+        private InstallContext(RuleSettings settings) {
+            this.aggregate = settings.aggregateUserPrefixes() && !settings.multiTable() && !settings.reactive();
+            this.appId = applicationIdStore.getAppId(APPLICATION_ID);
+            this.cfg = cfgService.getConfig(appId, ByodConfig.class);
+            this.ipPrefix = Ip4Prefix.valueOf(cfg.defaultGateway(), cfg.prefixLength());
+        }
+
+        /**
+         * Returns the hosts the traffic to the service ip address is sent to.
+         *
+         * @param serviceIp ip address of the service
+         * @return set of hosts
+         */
+        private Set<Host> serviceHosts(Ip4Address serviceIp) {
+            return serviceHosts.computeIfAbsent(serviceIp, ip -> getConnectionServiceHost(ip, this));
+        }
+
+        /**
+         * Returns the memberships of the connection in the aggregated user groups.
+         *
+         * @param connection connection between user and service
+         * @return modifiable set of memberships
+         */
+        private Set<UserPrefixAggregator.Member> members(Connection connection) {
+            return members.computeIfAbsent(ConnectionKey.of(connection), k -> new HashSet<>());
+        }
+
+        /**
+         * Returns the shortest paths between the source and destination device from the path cache.
+         *
+         * @param src source device
+         * @param dst destination device
+         * @return set of paths
+         */
+        private Set<Path> paths(DeviceId src, DeviceId dst) {
+            return pathCache.getPaths(src, dst);
+        }
+
+        /**
+         * Returns the route forwarding by destination between the source and destination device.
+         *
+         * @param src source device
+         * @param dst destination device
+         * @return list of links
+         */
+        private List<Link> route(DeviceId src, DeviceId dst) {
+            return routes.computeIfAbsent(src, d -> new HashMap<>())
+                    .computeIfAbsent(dst, d -> getDestinationRoute(src, dst));
+        }
+    }
+
+    /**
+     * Invalidate the cached paths affected by a topology change
+     */
+    private class PathCacheTopologyListener implements TopologyListener {
 
-                log.debug("DefaultConnectionRuleInstaller: Adding flow objective \n{} \n" +
-                        "for device {} in method addFlowServiceToUser()", forwardingObjective.add(), forDeviceId);
-                flowObjectiveService.forward(forDeviceId, forwardingObjective.add());
-                // save forwarding objective in connection
-                connection.addForwardingObjective(forwardingObjective.remove(), forDeviceId);
+        @Override
+        public void event(TopologyEvent event) {
+            pathCache.invalidate(event);
+            serviceTrees.invalidate(event);
+            log.debug("ConnectionRuleInstaller: Path cache updated on topology event. {}, {} service trees",
+                    pathCache.stats(), serviceTrees.size());
+            if (internetTree.isActive()) {
+                updateInternetTree();
             }
         }
     }
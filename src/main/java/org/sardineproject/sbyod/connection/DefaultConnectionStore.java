@@ -17,33 +17,65 @@
  */
 package org.sardineproject.sbyod.connection;
 
+import com.google.common.util.concurrent.Striped;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.onlab.util.KryoNamespace;
 import org.onosproject.codec.CodecService;
+import org.onosproject.event.Event;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipListener;
+import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.device.DeviceEvent;
 import org.onosproject.net.flow.criteria.Criterion;
 import org.onosproject.net.flow.criteria.IPCriterion;
-import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
 import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
 import org.onosproject.net.host.HostEvent;
 import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyService;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.EventuallyConsistentMap;
+import org.onosproject.store.service.EventuallyConsistentMapEvent;
+import org.onosproject.store.service.EventuallyConsistentMapListener;
+import org.onosproject.store.service.StorageService;
+import org.onosproject.store.service.WallClockTimestamp;
 import org.sardineproject.sbyod.portal.PortalManager;
 import org.sardineproject.sbyod.portal.PortalService;
+import org.sardineproject.sbyod.service.DefaultService;
 import org.sardineproject.sbyod.service.Service;
+import org.sardineproject.sbyod.service.ServiceId;
 import org.slf4j.Logger;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
+import static org.onlab.util.Tools.groupedThreads;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
@@ -66,37 +98,106 @@ public class DefaultConnectionStore implements ConnectionStore {
     protected CodecService codecService;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
-    protected FlowObjectiveService flowObjectiveService;
+    protected StorageService storageService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected TopologyService topologyService;
 
 
     private HostListener connectionHostListener;
+    private TopologyListener connectionTopologyListener;
+    private MastershipListener connectionMastershipListener;
+
+    // reroutes the connections after topology changes and takes over the connections
+    // of newly mastered devices outside of the event dispatcher
+    private ExecutorService rerouteExecutor;
+    // set while a reroute of the connections is scheduled but not yet started
+    private final AtomicBoolean reroutePending = new AtomicBoolean(false);
+    // the links and devices changed by the topology events since the last reroute
+    private TopologyChanges topologyChanges = new TopologyChanges();
     //private final FlowRuleListener removedFlowRuleListener = new RemovedFlowRuleListener();
 
-    // if a connection is removed, the RemovedFlowRule listener should wait
-    // until the connection is deleted
-    private final Lock flowRuleLock = new ReentrantLock();
+    // number of locks the hosts are striped over
+    private static final int HOST_LOCK_STRIPES = 64;
+
+    // serializes the modifications of the connections of a host,
+    // connections of hosts guarded by different stripes are modified in parallel
+    private final Striped<Lock> hostLocks = Striped.lock(HOST_LOCK_STRIPES);
 
-    // TODO: use distributed set (problem with kryo)
-    //private DistributedSet<Connection> connections;
-    private Set<Connection> connections;
+    // connections of the whole cluster, shared between all ONOS instances
+    private EventuallyConsistentMap<ConnectionKey, Connection> connections;
+    private final EventuallyConsistentMapListener<ConnectionKey, Connection> connectionMapListener =
+            new ConnectionMapListener();
+
+    // local indexes of the cluster connections,
+    // connections indexed by the id of the user and the id of the service,
+    // also used to look up the connection of a (user, service) pair
+    private Map<HostId, Map<ServiceId, Connection>> hostConnections;
+    // connections indexed by the id of the service
+    private Map<ServiceId, Set<Connection>> serviceConnections;
+    // installations of the connections started by this instance and not yet acknowledged or failed,
+    // the connections are degraded until every rule is acknowledged by its device
+    private final Map<ConnectionKey, CompletableFuture<Void>> installations = new ConcurrentHashMap<>();
 
     @Activate
     protected void activate(){
 
-        connections = new HashSet<>();
+        hostConnections = new ConcurrentHashMap<>();
+        serviceConnections = new ConcurrentHashMap<>();
+
+        KryoNamespace.Builder serializer = KryoNamespace.newBuilder()
+                .register(KryoNamespaces.API)
+                .nextId(KryoNamespaces.BEGIN_USER_CUSTOM_ID)
+                .register(ConnectionKey.class,
+                        DefaultConnection.class,
+                        RuleSettings.class,
+                        DefaultService.class,
+                        ServiceId.class,
+                        Service.Discovery.class,
+                        ForwardingObjective.Flag.class,
+                        Objective.Operation.class)
+                .register(new ForwardingObjectiveSerializer(), DefaultForwardingObjective.class);
+
+        connections = storageService.<ConnectionKey, Connection>eventuallyConsistentMapBuilder()
+                .withName("sbyod-connections")
+                .withSerializer(serializer)
+                .withTimestampProvider((k, v) -> new WallClockTimestamp())
+                .build();
+        connections.addListener(connectionMapListener);
+        // index the connections already known to the cluster
+        connections.values().forEach(this::index);
 
         codecService.registerCodec(Connection.class, new ConnectionCodec());
 
         // add listener to detect host moved, updated or removed
         connectionHostListener = new ConnectionHostListener();
         hostService.addListener(connectionHostListener);
+
+        // add listener to reroute the connections if paths appear or disappear
+        rerouteExecutor = Executors.newSingleThreadExecutor(groupedThreads("sbyod/connection", "reroute"));
+        connectionTopologyListener = new ConnectionTopologyListener();
+        topologyService.addListener(connectionTopologyListener);
+
+        // add listener to take over the rules of the connections if the master of a device changes
+        connectionMastershipListener = new ConnectionMastershipListener();
+        mastershipService.addListener(connectionMastershipListener);
     }
 
     @Deactivate
     protected void deactivate(){
         hostService.removeListener(connectionHostListener);
+        topologyService.removeListener(connectionTopologyListener);
+        mastershipService.removeListener(connectionMastershipListener);
+        rerouteExecutor.shutdownNow();
+        connections.removeListener(connectionMapListener);
+        connections.destroy();
         // remove all connections
-        connections.clear();
+        hostConnections.clear();
+        serviceConnections.clear();
+        installations.clear();
     }
 
     /**
@@ -106,45 +207,307 @@ public class DefaultConnectionStore implements ConnectionStore {
      */
     @Override
     public void addConnection(Connection connection) {
-        if(!connections.contains(connection)) {
+        addConnectionAsync(connection);
+    }
+
+    /**
+     * Add a new connection to the service.
+     * If the connection is already installed, the future of its pending installation is returned,
+     * or a completed future if it is acknowledged already. A connection whose installation failed
+     * is removed from the devices and installed again.
+     * The rules are only installed by the master of the device of the user, other instances
+     * share the connection through the cluster and return a completed future.
+     *
+     * @param connection connection to add
+     * @return future completed when the devices acknowledged the rules of the connection
+     */
+    @Override
+    public CompletableFuture<Void> addConnectionAsync(Connection connection) {
+        ConnectionKey key = ConnectionKey.of(connection);
+        Lock hostLock = hostLocks.get(connection.getUser().id());
+        hostLock.lock();
+        try {
+            if (!contains(connection)) {
+
+                // a connection of the same user and service with outdated values is replaced
+                Connection oldConnection = getIndexedConnection(connection.getUser().id(),
+                        connection.getService().id());
+                if (oldConnection != null) {
+                    log.debug("ConnectionStore: Replacing outdated connection {}", oldConnection);
+                    removeConnection(oldConnection);
+                }
+
+                if (!isLocal(connection)) {
+                    // the master of the device of the user installs the rules on the map event
+                    index(connection);
+                    connections.put(key, connection);
+                    log.debug("ConnectionStore: Added connection {} for the master of {}",
+                            connection, connection.getUser().location());
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                CompletableFuture<Void> installed = connectionRuleInstaller.addConnection(connection);
+                index(connection);
+                connections.put(key, connection);
+                trackInstallation(key, installed);
+                log.debug("ConnectionStore: Added connection {}", connection);
+                return installed;
+            } else if (hasFailed(key) && isLocal(connection)) {
+                return reinstallConnection(getIndexedConnection(connection.getUser().id(),
+                        connection.getService().id()));
+            } else {
+                log.debug("ConnectionStore: Connection already installed. Nothing done. Connection = {}", connection);
+                return installations.getOrDefault(key, CompletableFuture.completedFuture(null));
+            }
+        } finally {
+            hostLock.unlock();
+        }
+    }
+
+    /**
+     * Add new connections to the service at once.
+     * The rules of all new connections of users located at devices mastered by this instance
+     * are computed and installed in one pass, the other connections are installed by their master.
+     *
+     * @param connections connections to add
+     */
+    @Override
+    public void addConnections(Collection<Connection> connections) {
+        // the locks are acquired in the fixed order of the stripes to avoid deadlocks
+        Iterable<Lock> locks = hostLocks.bulkGet(connections.stream()
+                .map(c -> c.getUser().id())
+                .collect(Collectors.toSet()));
+        locks.forEach(Lock::lock);
+        try {
+            Set<Connection> newConnections = new LinkedHashSet<>();
+            for (Connection connection : connections) {
+                if (contains(connection) && hasFailed(ConnectionKey.of(connection)) && isLocal(connection)) {
+                    reinstallConnection(getIndexedConnection(connection.getUser().id(),
+                            connection.getService().id()));
+                    continue;
+                }
+                if (contains(connection) || newConnections.contains(connection)) {
+                    log.debug("ConnectionStore: Connection already installed. Nothing done. Connection = {}",
+                            connection);
+                    continue;
+                }
+
+                // a connection of the same user and service with outdated values is replaced
+                Connection oldConnection = getIndexedConnection(connection.getUser().id(),
+                        connection.getService().id());
+                if (oldConnection != null) {
+                    log.debug("ConnectionStore: Replacing outdated connection {}", oldConnection);
+                    removeConnection(oldConnection);
+                }
+                newConnections.add(connection);
+            }
 
-            connectionRuleInstaller.addConnection(connection);
-            connections.add(connection);
-            log.debug("ConnectionStore: Added connection {}", connection);
-        } else{
-            log.debug("ConnectionStore: Connection already installed. Nothing done. Connection = {}", connection);
+            Map<Connection, CompletableFuture<Void>> installed = connectionRuleInstaller.addConnections(
+                    newConnections.stream().filter(this::isLocal).collect(Collectors.toList()));
+            for (Connection connection : newConnections) {
+                index(connection);
+                this.connections.put(ConnectionKey.of(connection), connection);
+                CompletableFuture<Void> connectionInstalled = installed.get(connection);
+                if (connectionInstalled != null) {
+                    trackInstallation(ConnectionKey.of(connection), connectionInstalled);
+                }
+            }
+            log.debug("ConnectionStore: Added {} connections", newConnections.size());
+        } finally {
+            locks.forEach(Lock::unlock);
         }
     }
 
     /**
-     * Removes the connection between user and service
+     * Removes the connection between user and service.
+     * The rules are removed by the master of the device of the user, which installed them.
      *
      * @param connection connection to remove
      */
     @Override
     public void removeConnection(Connection connection) {
-        // first remove the connection from the store
-        // as the event triggered by the flow rule removal
-        // would remove it again
-        connections.remove(connection);
+        Lock hostLock = hostLocks.get(connection.getUser().id());
+        hostLock.lock();
+        try {
+            // first remove the connection from the store
+            // as the event triggered by the flow rule removal
+            // would remove it again
+            if (unindex(connection)) {
+                connections.remove(ConnectionKey.of(connection));
+                installations.remove(ConnectionKey.of(connection));
+            }
+        } finally {
+            hostLock.unlock();
+        }
 
-        // todo: also reset flow objectives of the connection if it is not completely deleted?
+        // remove the flow objectives on the network devices,
+        // the master removes the rules of other instances on the map event
+        if (isLocal(connection)) {
+            connectionRuleInstaller.removeConnection(connection);
+        }
+    }
 
-        // remove the flow objectives on the network devices
-        Map<ForwardingObjective, DeviceId> forwardingObjectives = connection.getForwardingObjectives();
+    /**
+     * Install the rules of the connections again with the current rule settings.
+     * Only the connections of users located at devices mastered by this instance are reinstalled,
+     * so every connection is reinstalled once in the cluster, by the instance holding its rules.
+     * The rules are removed with the settings recorded on the connection and installed
+     * with the current settings in one pass.
+     *
+     * @return number of reinstalled connections
+     */
+    @Override
+    public int reinstallConnections() {
+        Set<Connection> localConnections = getConnections().stream()
+                .filter(this::isLocal)
+                .collect(Collectors.toSet());
+        // the locks are acquired in the fixed order of the stripes to avoid deadlocks
+        Iterable<Lock> locks = hostLocks.bulkGet(localConnections.stream()
+                .map(c -> c.getUser().id())
+                .collect(Collectors.toSet()));
+        locks.forEach(Lock::lock);
+        try {
+            Map<Connection, Connection> retries = new LinkedHashMap<>();
+            for (Connection connection : localConnections) {
+                // the connection might have been removed or replaced in the meantime
+                Connection indexed = getIndexedConnection(connection.getUser().id(), connection.getService().id());
+                if (connection.equals(indexed)) {
+                    connectionRuleInstaller.removeConnection(indexed);
+                    retries.put(indexed, new DefaultConnection(indexed.getUser(), indexed.getService()));
+                }
+            }
 
-        for(ForwardingObjective fo : forwardingObjectives.keySet()){
+            Map<Connection, CompletableFuture<Void>> installed =
+                    connectionRuleInstaller.addConnections(retries.values());
+            retries.forEach((connection, retry) -> {
+                ConnectionKey key = ConnectionKey.of(retry);
+                unindex(connection);
+                index(retry);
+                connections.put(key, retry);
+                CompletableFuture<Void> retryInstalled = installed.get(retry);
+                if (retryInstalled != null) {
+                    trackInstallation(key, retryInstalled);
+                }
+            });
+            log.info("ConnectionStore: Reinstalled {} connections with the current rule settings", retries.size());
+            return retries.size();
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+    }
 
-            // get the device id where the objective is installed on
-            DeviceId deviceId = forwardingObjectives.get(fo);
+    /**
+     * Install the rules of an authorized connection with an idle timeout.
+     * The connection is put into the cluster map again, so the objectives added by the
+     * installation are shared with the other instances.
+     *
+     * @param connection connection to activate
+     * @return future completed when the devices acknowledged the rules of the connection
+     */
+    @Override
+    public CompletableFuture<Void> activateConnection(Connection connection) {
+        Lock hostLock = hostLocks.get(connection.getUser().id());
+        hostLock.lock();
+        try {
+            // the connection might have been removed or replaced in the meantime
+            if (!contains(connection)) {
+                CompletableFuture<Void> removed = new CompletableFuture<>();
+                removed.completeExceptionally(new IllegalStateException("Connection removed: " + connection));
+                return removed;
+            }
+            Connection indexed = getIndexedConnection(connection.getUser().id(), connection.getService().id());
+            CompletableFuture<Void> installed = connectionRuleInstaller.activateConnection(indexed);
+            connections.put(ConnectionKey.of(indexed), indexed);
+            return installed;
+        } finally {
+            hostLock.unlock();
+        }
+    }
 
-            log.debug("DefaultConnectionStore: Removing flow objective \n{} \n" +
-                    "for device {} in method removeConnection()", fo, deviceId);
-            // removing objective
-            flowObjectiveService.forward(forwardingObjectives.get(fo), fo);
+    /**
+     * Returns true if this instance installs and removes the rules of the connection.
+     * Only the master of the device of the user programs the rules of a connection,
+     * so the rules shared between connections are held by one instance only.
+     *
+     * @param connection connection between user and service
+     * @return true if this instance is master of the device of the user
+     */
+    private boolean isLocal(Connection connection) {
+        HostLocation location = connection.getUser().location();
+        return location != null && mastershipService.isLocalMaster(location.deviceId());
+    }
+
+    /**
+     * Replace an installed connection by a new connection between the same user and service,
+     * only updating the rules differing between both connections.
+     *
+     * @param oldConnection installed connection
+     * @param newConnection connection replacing the installed connection
+     */
+    private void updateConnection(Connection oldConnection, Connection newConnection) {
+        Lock hostLock = hostLocks.get(newConnection.getUser().id());
+        hostLock.lock();
+        try {
+            CompletableFuture<Void> installed = connectionRuleInstaller.updateConnection(oldConnection, newConnection);
+            unindex(oldConnection);
+            index(newConnection);
+            connections.put(ConnectionKey.of(newConnection), newConnection);
+            trackInstallation(ConnectionKey.of(newConnection), installed);
+            log.debug("ConnectionStore: Updated connection {}", newConnection);
+        } finally {
+            hostLock.unlock();
         }
     }
 
+    /**
+     * Returns true if the last installation of the connection failed
+     *
+     * @param key key of the connection
+     * @return true if the installation completed exceptionally
+     */
+    private boolean hasFailed(ConnectionKey key) {
+        CompletableFuture<Void> installation = installations.get(key);
+        return installation != null && installation.isCompletedExceptionally();
+    }
+
+    /**
+     * Remove the rules of a connection with a failed installation and install them again.
+     * The caller has to hold the lock of the connection user.
+     *
+     * @param connection installed connection
+     * @return future completed when the devices acknowledged the rules of the connection
+     */
+    private CompletableFuture<Void> reinstallConnection(Connection connection) {
+        log.info("ConnectionStore: Installing connection {} again after its installation failed", connection);
+        ConnectionKey key = ConnectionKey.of(connection);
+        connectionRuleInstaller.removeConnection(connection);
+        Connection retry = new DefaultConnection(connection.getUser(), connection.getService());
+        CompletableFuture<Void> installed = connectionRuleInstaller.addConnection(retry);
+        unindex(connection);
+        index(retry);
+        connections.put(key, retry);
+        trackInstallation(key, installed);
+        return installed;
+    }
+
+    /**
+     * Remember the installation of a connection until the devices acknowledged it.
+     * Failed installations are kept until the connection is installed again or removed.
+     *
+     * @param key key of the connection
+     * @param installed future of the installation
+     */
+    private void trackInstallation(ConnectionKey key, CompletableFuture<Void> installed) {
+        installations.put(key, installed);
+        installed.whenComplete((result, error) -> {
+            if (error == null) {
+                installations.remove(key, installed);
+            } else {
+                log.warn("ConnectionStore: Installation of connection {} failed: {}", key, error.getMessage());
+            }
+        });
+    }
+
     /**
      * Get the connection between the user and the service
      *
@@ -154,11 +517,9 @@ public class DefaultConnectionStore implements ConnectionStore {
      */
     @Override
     public Connection getConnection(Host user, Service service) {
-        Set<Connection> result = connections.stream()
-                .filter(c -> c.getUser().equals(user) && c.getService().equals(service))
-                .collect(Collectors.toSet());
-        if(result.size() == 1)
-            return result.iterator().next();
+        Connection connection = getIndexedConnection(user.id(), service.id());
+        if(connection != null && connection.getUser().equals(user) && connection.getService().equals(service))
+            return connection;
         else
             return null;
     }
@@ -171,7 +532,8 @@ public class DefaultConnectionStore implements ConnectionStore {
      */
     @Override
     public Set<Connection> getConnections(Service service) {
-        return connections.stream()
+        Set<Connection> result = serviceConnections.getOrDefault(service.id(), Collections.emptySet());
+        return result.stream()
                 .filter(c -> c.getService().equals(service))
                 .collect(Collectors.toSet());
     }
@@ -184,14 +546,39 @@ public class DefaultConnectionStore implements ConnectionStore {
      */
     @Override
     public Set<Connection> getConnections(Host host) {
-        return connections.stream()
-                .filter(c -> c.getUser().id().equals(host.id()))
-                .collect(Collectors.toSet());
+        Map<ServiceId, Connection> result = hostConnections.get(host.id());
+        if(result == null)
+            return new HashSet<>();
+        return new HashSet<>(result.values());
     }
 
     @Override
     public Set<Connection> getConnections(){
-        return connections.stream()
+        return hostConnections.values().stream()
+                .flatMap(m -> m.values().stream())
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Ask if rules of the connection are not yet acknowledged by the devices or failed
+     *
+     * @param connection the connection to check
+     * @return true if the connection is degraded
+     */
+    @Override
+    public Boolean isDegraded(Connection connection) {
+        return installations.containsKey(ConnectionKey.of(connection));
+    }
+
+    /**
+     * Get the connections with rules not yet acknowledged by the devices or failed
+     *
+     * @return set of degraded connections
+     */
+    @Override
+    public Set<Connection> getDegradedConnections() {
+        return getConnections().stream()
+                .filter(this::isDegraded)
                 .collect(Collectors.toSet());
     }
 
@@ -203,7 +590,108 @@ public class DefaultConnectionStore implements ConnectionStore {
      */
     @Override
     public Boolean contains(Connection connection) {
-        return connections.contains(connection);
+        return connection.equals(getIndexedConnection(connection.getUser().id(), connection.getService().id()));
+    }
+
+    /**
+     * Returns the indexed connection of the user and service id
+     *
+     * @param hostId id of the user
+     * @param serviceId id of the service
+     * @return connection or null if no connection is indexed
+     */
+    private Connection getIndexedConnection(HostId hostId, ServiceId serviceId){
+        Map<ServiceId, Connection> userConnections = hostConnections.get(hostId);
+        return userConnections == null ? null : userConnections.get(serviceId);
+    }
+
+    /**
+     * Add the connection to the host and service index.
+     * The caller has to hold the lock of the connection user.
+     *
+     * @param connection connection to index
+     */
+    private void index(Connection connection){
+        hostConnections.computeIfAbsent(connection.getUser().id(), k -> new ConcurrentHashMap<>())
+                .put(connection.getService().id(), connection);
+        // the service entry is shared between hosts and therefore modified atomically
+        serviceConnections.compute(connection.getService().id(), (k, set) -> {
+            Set<Connection> result = (set == null) ? ConcurrentHashMap.newKeySet() : set;
+            result.add(connection);
+            return result;
+        });
+    }
+
+    /**
+     * Remove the connection from the host and service index.
+     * The caller has to hold the lock of the connection user.
+     *
+     * @param connection connection to remove from the index
+     * @return true if the connection was indexed
+     */
+    private boolean unindex(Connection connection){
+        HostId hostId = connection.getUser().id();
+        ServiceId serviceId = connection.getService().id();
+
+        boolean removed = false;
+        Map<ServiceId, Connection> userConnections = hostConnections.get(hostId);
+        if(userConnections != null && userConnections.remove(serviceId, connection)){
+            removed = true;
+            if(userConnections.isEmpty())
+                hostConnections.remove(hostId);
+        }
+
+        serviceConnections.computeIfPresent(serviceId, (k, set) -> {
+            set.remove(connection);
+            return set.isEmpty() ? null : set;
+        });
+        return removed;
+    }
+
+    /**
+     * Updates the local indexes with connections added or removed by other ONOS instances.
+     * Connections installed by this instance are already indexed and do not change.
+     * The master of the device of the user installs the rules of connections added by other instances
+     * and removes the rules of connections removed by other instances.
+     */
+    private class ConnectionMapListener implements EventuallyConsistentMapListener<ConnectionKey, Connection>{
+
+        @Override
+        public void event(EventuallyConsistentMapEvent<ConnectionKey, Connection> event) {
+            ConnectionKey key = event.key();
+            Lock hostLock = hostLocks.get(key.hostId());
+            hostLock.lock();
+            try {
+                // the event could be outdated, always index the current value of the map
+                Connection current = connections.get(key);
+                Connection indexed = getIndexedConnection(key.hostId(), key.serviceId());
+
+                if (indexed != null && !indexed.equals(current)) {
+                    unindex(indexed);
+                    installations.remove(key);
+                    if (isLocal(indexed)) {
+                        connectionRuleInstaller.removeConnection(indexed);
+                    }
+                }
+                if (current != null && current != indexed) {
+                    if (current.equals(indexed)) {
+                        // the same connection with the objectives added by its master
+                        unindex(indexed);
+                        index(current);
+                    } else {
+                        index(current);
+                        if (isLocal(current)) {
+                            trackInstallation(key, connectionRuleInstaller.addConnection(current));
+                            connections.put(key, current);
+                            log.debug("ConnectionStore: Installed connection {} added by another instance",
+                                    current);
+                        }
+                    }
+                }
+            } finally {
+                hostLock.unlock();
+            }
+        }
     }
 
 
@@ -216,6 +704,11 @@ public class DefaultConnectionStore implements ConnectionStore {
          */
         @Override
         public void event(HostEvent event) {
+            // host events are received by every instance of the cluster,
+            // only the master of the device the host is located at updates the connections
+            if(!mastershipService.isLocalMaster(event.subject().location().deviceId())){
+                return;
+            }
             switch(event.type()){
                 case HOST_REMOVED:
                     removeHostConnections(event);
@@ -235,26 +728,204 @@ public class DefaultConnectionStore implements ConnectionStore {
         // remove and reset all connections of the host
         private void removeHostConnections(HostEvent event){
             Host eventSubject = event.subject();
-            Set<Connection> subjectConnections = getConnections(eventSubject);
-            log.info("DefaultConnectionStore: ConnectionHostListener event. Removed connections of host {} to services: {}",
-                    eventSubject, subjectConnections.stream().map(Connection::getService).collect(Collectors.toSet()));
-            for(Connection connection : subjectConnections){
-                removeConnection(connection);
+            Lock hostLock = hostLocks.get(eventSubject.id());
+            hostLock.lock();
+            try {
+                Set<Connection> subjectConnections = getConnections(eventSubject);
+                log.info("DefaultConnectionStore: ConnectionHostListener event. Removed connections of host {} to services: {}",
+                        eventSubject, subjectConnections.stream().map(Connection::getService).collect(Collectors.toSet()));
+                for (Connection connection : subjectConnections) {
+                    removeConnection(connection);
+                }
+            } finally {
+                hostLock.unlock();
             }
         }
 
         // update the connections of the host
         private void updateHostConnections(HostEvent event){
             Host eventSubject = event.subject();
-            Set<Connection> subjectConnections = getConnections(eventSubject);
-            log.info("DefaultConnectionStore: ConnectionHostListener event. Update connections of host {} to services: {}",
-                    eventSubject, subjectConnections.stream().map(Connection::getService).collect(Collectors.toSet()));
-            for(Connection connection : subjectConnections){
-                // removes the old flow rules from the devices
-                removeConnection(connection);
-                // installs new flow rules depending on the new host object
-                addConnection(new DefaultConnection(eventSubject, connection.getService()));
+            // no other thread should change the host connections while they are updated
+            Lock hostLock = hostLocks.get(eventSubject.id());
+            hostLock.lock();
+            try {
+                Set<Connection> subjectConnections = getConnections(eventSubject);
+                log.info("DefaultConnectionStore: ConnectionHostListener event. Update connections of host {} to services: {}",
+                        eventSubject, subjectConnections.stream().map(Connection::getService).collect(Collectors.toSet()));
+                for (Connection connection : subjectConnections) {
+                    // installs the missing and removes the obsolete flow rules
+                    // depending on the new host object
+                    updateConnection(connection, new DefaultConnection(eventSubject, connection.getService()));
+                }
+            } finally {
+                hostLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes over the rules of the connections if the master of the device of their users changes.
+     * The new master adopts the rules installed by the former master, so it removes them
+     * with the connections. The former master forgets the rules without removing them.
+     */
+    private class ConnectionMastershipListener implements MastershipListener {
+
+        @Override
+        public void event(MastershipEvent event) {
+            if (event.type() == MastershipEvent.Type.MASTER_CHANGED) {
+                rerouteExecutor.execute(() -> updateMastership(event.subject()));
+            }
+        }
+
+        // adopt or forget the connections of the users located at the device
+        private void updateMastership(DeviceId deviceId) {
+            boolean local = mastershipService.isLocalMaster(deviceId);
+            int changed = 0;
+            for (Connection connection : getConnections()) {
+                HostLocation location = connection.getUser().location();
+                if (location == null || !location.deviceId().equals(deviceId)) {
+                    continue;
+                }
+                Lock hostLock = hostLocks.get(connection.getUser().id());
+                hostLock.lock();
+                try {
+                    // the connection might have been removed or replaced in the meantime,
+                    // the map holds the objectives added by the former master
+                    Connection current = connections.get(ConnectionKey.of(connection));
+                    if (!connection.equals(current)) {
+                        continue;
+                    }
+                    if (local) {
+                        connectionRuleInstaller.adoptConnection(current);
+                    } else {
+                        connectionRuleInstaller.forgetConnection(current);
+                        installations.remove(ConnectionKey.of(current));
+                    }
+                    changed++;
+                } finally {
+                    hostLock.unlock();
+                }
+            }
+            log.info("ConnectionStore: Master of device {} changed -> {} {} connections",
+                    new Object[]{deviceId, local ? "adopted" : "forgot", changed});
+        }
+    }
+
+    /**
+     * Links and devices changed by topology events.
+     * Guarded by the store, the events are merged until the reroute takes them.
+     */
+    private static final class TopologyChanges {
+
+        // links removed from the topology
+        private final Set<LinkKey> removedLinks = new HashSet<>();
+        // devices gaining links or changing their availability
+        private final Set<DeviceId> changedDevices = new HashSet<>();
+        // set if the event does not name its reasons
+        private boolean all = false;
+
+        /**
+         * Returns true if the connection using the links and located at the user device
+         * might be routed differently after the changes.
+         * Removed links only affect the connections crossing them, added links and devices
+         * affect the connections touching their devices and the connections without a path.
+         *
+         * @param links links used by the connection
+         * @param userDevice device of the user of the connection
+         * @return true if the connection has to be rerouted
+         */
+        private boolean affects(Set<LinkKey> links, DeviceId userDevice) {
+            if (all) {
+                return true;
+            }
+            if (!changedDevices.isEmpty() && (links.isEmpty() || changedDevices.contains(userDevice))) {
+                return true;
+            }
+            return links.stream().anyMatch(link -> removedLinks.contains(link) ||
+                    changedDevices.contains(link.src().deviceId()) ||
+                    changedDevices.contains(link.dst().deviceId()));
+        }
+    }
+
+    /**
+     * Reroutes the connections if the topology changes.
+     * Only the connections using a removed link or touching a device of an added link are updated
+     * to the paths of the new topology, so only the rules of connections whose selected path
+     * appeared or disappeared are changed.
+     * The paths are invalidated by the listener of the rule installer, which is registered before this one.
+     */
+    private class ConnectionTopologyListener implements TopologyListener {
+
+        @Override
+        public void event(TopologyEvent event) {
+            synchronized (DefaultConnectionStore.this) {
+                record(event);
+            }
+            // coalesce the topology events arriving before the reroute started
+            if (reroutePending.compareAndSet(false, true)) {
+                rerouteExecutor.execute(this::rerouteConnections);
+            }
+        }
+
+        // merge the reasons of the event into the pending topology changes
+        private void record(TopologyEvent event) {
+            if (event.reasons() == null || event.reasons().isEmpty()) {
+                topologyChanges.all = true;
+                return;
+            }
+            for (Event reason : event.reasons()) {
+                if (reason instanceof LinkEvent) {
+                    LinkEvent linkEvent = (LinkEvent) reason;
+                    if (linkEvent.type() == LinkEvent.Type.LINK_REMOVED) {
+                        topologyChanges.removedLinks.add(LinkKey.linkKey(linkEvent.subject()));
+                    } else if (linkEvent.type() == LinkEvent.Type.LINK_ADDED) {
+                        topologyChanges.changedDevices.add(linkEvent.subject().src().deviceId());
+                        topologyChanges.changedDevices.add(linkEvent.subject().dst().deviceId());
+                    }
+                } else if (reason instanceof DeviceEvent) {
+                    DeviceEvent deviceEvent = (DeviceEvent) reason;
+                    if (deviceEvent.type() == DeviceEvent.Type.DEVICE_ADDED ||
+                            deviceEvent.type() == DeviceEvent.Type.DEVICE_REMOVED ||
+                            deviceEvent.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED) {
+                        topologyChanges.changedDevices.add(deviceEvent.subject().id());
+                    }
+                }
+            }
+        }
+
+        // update the affected connections of the hosts located at devices mastered by this instance
+        private void rerouteConnections() {
+            reroutePending.set(false);
+            TopologyChanges changes;
+            synchronized (DefaultConnectionStore.this) {
+                changes = topologyChanges;
+                topologyChanges = new TopologyChanges();
+            }
+            int rerouted = 0;
+            for (Connection connection : getConnections()) {
+                if (connection.getUser().location() == null ||
+                        !mastershipService.isLocalMaster(connection.getUser().location().deviceId())) {
+                    continue;
+                }
+                if (!changes.affects(connectionRuleInstaller.getConnectionLinks(connection),
+                        connection.getUser().location().deviceId())) {
+                    continue;
+                }
+                Lock hostLock = hostLocks.get(connection.getUser().id());
+                hostLock.lock();
+                try {
+                    // the connection might have been removed or replaced in the meantime
+                    if (connection.equals(getIndexedConnection(connection.getUser().id(),
+                            connection.getService().id()))) {
+                        updateConnection(connection, new DefaultConnection(connection.getUser(),
+                                connection.getService()));
+                        rerouted++;
+                    }
+                } finally {
+                    hostLock.unlock();
+                }
             }
+            log.info("ConnectionStore: Topology changed -> Rerouted {} connections", rerouted);
         }
     }
 }
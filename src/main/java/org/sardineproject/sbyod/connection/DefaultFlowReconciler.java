@@ -0,0 +1,461 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.ApplicationIdStore;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.sardineproject.sbyod.portal.PortalService;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onlab.util.Tools.groupedThreads;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Reconciles the flows of the application in the locally mastered devices with the rules
+ * of the stored connections. Only flows in the priority range of the connection rules are
+ * considered, so the redirect and table miss rules are never touched.
+ * Missing rules are installed again and unexpected flows are removed in rate limited batches.
+ * Each repair is checked against the current connections, the pending objectives and the rules
+ * held by the installer again when its batch runs.
+ */
+@Component(immediate = true)
+@org.apache.felix.scr.annotations.Service
+public class DefaultFlowReconciler implements FlowReconcileService {
+
+    private static final Logger log = getLogger(PortalManager.class);
+    private static final String APPLICATION_ID = PortalService.APP_ID;
+
+    // maximal number of repairs submitted at once and the pause between two repair batches
+    private static final int REPAIR_BATCH_SIZE = 100;
+    private static final long REPAIR_BATCH_INTERVAL_MS = 200;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ApplicationIdStore applicationIdStore;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ConnectionStore connectionStore;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ObjectiveRetryService objectiveRetryService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ConnectionRuleInstaller connectionRuleInstaller;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected BaselineTemplateService baselineTemplateService;
+
+
+    private ScheduledExecutorService reconcileExecutor;
+    private ScheduledFuture<?> periodicReconcile;
+    private int interval = 0;
+
+    private final Map<DeviceId, Counters> counters = new ConcurrentHashMap<>();
+
+    @Activate
+    protected void activate() {
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("sbyod/connection", "reconcile"));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        stop();
+        reconcileExecutor.shutdownNow();
+        counters.clear();
+    }
+
+    /**
+     * Start reconciling the flows periodically.
+     * A running reconciliation with another interval is restarted.
+     *
+     * @param intervalSeconds seconds between two reconciliations
+     */
+    @Override
+    public synchronized void start(int intervalSeconds) {
+        if (periodicReconcile != null && interval == intervalSeconds) {
+            return;
+        }
+        stop();
+        interval = intervalSeconds;
+        periodicReconcile = reconcileExecutor.scheduleWithFixedDelay(this::reconcileDevices,
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        log.info("FlowReconciler: Reconciling flows every {} seconds", intervalSeconds);
+    }
+
+    /**
+     * Stop the periodic reconciliation.
+     */
+    @Override
+    public synchronized void stop() {
+        if (periodicReconcile != null) {
+            periodicReconcile.cancel(false);
+            periodicReconcile = null;
+            log.info("FlowReconciler: Stopped reconciling flows");
+        }
+    }
+
+    /**
+     * Reconcile the flows now, outside of the calling thread.
+     */
+    @Override
+    public void reconcile() {
+        reconcileExecutor.execute(this::reconcileDevices);
+    }
+
+    /**
+     * Returns the drift found and repaired on the devices
+     *
+     * @return drift counters mapped by device
+     */
+    @Override
+    public Map<DeviceId, DriftCounters> getDriftCounters() {
+        Map<DeviceId, DriftCounters> result = new HashMap<>();
+        counters.forEach((deviceId, c) -> result.put(deviceId, new DriftCounters(c.runs.get(), c.missing.get(),
+                c.unexpected.get(), c.modified.get(), c.repaired.get(), c.lastDrift.get())));
+        return result;
+    }
+
+    /**
+     * Reconcile the flows of all available, locally mastered devices.
+     */
+    private void reconcileDevices() {
+        try {
+            ApplicationId appId = applicationIdStore.getAppId(APPLICATION_ID);
+            if (appId == null) {
+                return;
+            }
+            List<Repair> repairs = new ArrayList<>();
+            for (Device device : deviceService.getAvailableDevices()) {
+                if (mastershipService.isLocalMaster(device.id())) {
+                    repairs.addAll(reconcileDevice(device.id(), appId));
+                }
+            }
+            submitRepairs(repairs);
+        } catch (RuntimeException e) {
+            log.warn("FlowReconciler: Reconciliation failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Compute the repairs of the differences between the expected rules and the flows of the device.
+     * The flows are read before the expected rules, so a connection added in between
+     * can only lead to a rule installed twice. Connections added before a removal runs
+     * are caught by the check of the repair.
+     *
+     * @param deviceId device to reconcile
+     * @param appId id of the application
+     * @return repairs of the device
+     */
+    private List<Repair> reconcileDevice(DeviceId deviceId, ApplicationId appId) {
+
+        // the flows of the connection rules in the device, matched by selector and priority
+        Map<ObjectiveKey, FlowEntry> actual = new HashMap<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.appId() == appId.id() &&
+                    entry.priority() >= DefaultConnectionRuleInstaller.MIN_CONNECTION_PRIORITY &&
+                    entry.priority() <= DefaultConnectionRuleInstaller.MAX_CONNECTION_PRIORITY) {
+                actual.put(matchKey(deviceId, entry.selector(), entry.priority()), entry);
+            }
+        }
+
+        Map<ObjectiveKey, ExpectedRule> expected = expectedRules(deviceId);
+
+        // rules still being installed are not missing
+        Set<ObjectiveKey> pending = pendingRules(deviceId);
+
+        List<Repair> repairs = new ArrayList<>();
+        int missing = 0;
+        int unexpected = 0;
+        int modified = 0;
+
+        for (Map.Entry<ObjectiveKey, FlowEntry> entry : actual.entrySet()) {
+            FlowEntry flowEntry = entry.getValue();
+            if (flowEntry.state() != FlowEntry.FlowEntryState.ADDED) {
+                continue;
+            }
+            ExpectedRule rule = expected.get(entry.getKey());
+            if (rule == null) {
+                unexpected++;
+                repairs.add(new Repair(deviceId, entry.getKey(), true,
+                        () -> flowRuleService.apply(FlowRuleOperations.builder().remove(flowEntry).build())));
+            } else if (!sameInstructions(rule.treatment, flowEntry.treatment())) {
+                modified++;
+                repairs.add(new Repair(deviceId, entry.getKey(), false, rule.install));
+            }
+        }
+
+        for (Map.Entry<ObjectiveKey, ExpectedRule> entry : expected.entrySet()) {
+            // expired temporary rules of the reactive mode are installed again on the next packet
+            if (entry.getValue().permanent && !actual.containsKey(entry.getKey()) &&
+                    !pending.contains(entry.getKey())) {
+                missing++;
+                repairs.add(new Repair(deviceId, entry.getKey(), false, entry.getValue().install));
+            }
+        }
+
+        Counters deviceCounters = counters.computeIfAbsent(deviceId, d -> new Counters());
+        deviceCounters.runs.incrementAndGet();
+        deviceCounters.missing.addAndGet(missing);
+        deviceCounters.unexpected.addAndGet(unexpected);
+        deviceCounters.modified.addAndGet(modified);
+        deviceCounters.repaired.addAndGet(repairs.size());
+        deviceCounters.lastDrift.set(repairs.size());
+
+        if (!repairs.isEmpty()) {
+            log.info("FlowReconciler: Device {} drifted, missing={}, unexpected={}, modified={}",
+                    new Object[]{deviceId, missing, unexpected, modified});
+        }
+        return repairs;
+    }
+
+    /**
+     * Returns the rules of the stored connections on the device, matched by selector and priority.
+     *
+     * @param deviceId device
+     * @return expected rules
+     */
+    private Map<ObjectiveKey, ExpectedRule> expectedRules(DeviceId deviceId) {
+        Map<ObjectiveKey, ExpectedRule> expected = new HashMap<>();
+        for (Connection connection : connectionStore.getConnections()) {
+            connection.getForwardingObjectives().forEach((objective, objectiveDevice) -> {
+                if (objectiveDevice.equals(deviceId)) {
+                    expected.put(matchKey(deviceId, objective.selector(), objective.priority()),
+                            new ExpectedRule(objective.treatment(), objective.permanent(),
+                                    () -> objectiveRetryService.forward(deviceId, addObjective(objective))));
+                }
+            });
+            for (FlowRule flowRule : connection.getFlowRules()) {
+                if (flowRule.deviceId().equals(deviceId)) {
+                    expected.put(matchKey(deviceId, flowRule.selector(), flowRule.priority()),
+                            new ExpectedRule(flowRule.treatment(), flowRule.isPermanent(),
+                                    () -> flowRuleService.apply(FlowRuleOperations.builder().add(flowRule).build())));
+                }
+            }
+        }
+        // the shared rules of the installer and the template rules are not stored in a single connection
+        List<ForwardingObjective> shared = new ArrayList<>();
+        shared.addAll(connectionRuleInstaller.getSharedObjectives()
+                .getOrDefault(deviceId, Collections.emptyList()));
+        shared.addAll(baselineTemplateService.getObjectives().getOrDefault(deviceId, Collections.emptyList()));
+        for (ForwardingObjective objective : shared) {
+            expected.put(matchKey(deviceId, objective.selector(), objective.priority()),
+                    new ExpectedRule(objective.treatment(), objective.permanent(),
+                            () -> objectiveRetryService.forward(deviceId, objective)));
+        }
+        return expected;
+    }
+
+    /**
+     * Returns the rules of a device still being installed by the retry service, matched by selector and priority.
+     *
+     * @param deviceId device
+     * @return pending rules
+     */
+    private Set<ObjectiveKey> pendingRules(DeviceId deviceId) {
+        Set<ObjectiveKey> pending = new HashSet<>();
+        objectiveRetryService.getPendingObjectives().getOrDefault(deviceId, new ArrayList<>())
+                .forEach(status -> pending.add(matchKey(deviceId, status.key().selector(), status.key().priority())));
+        return pending;
+    }
+
+    /**
+     * Submit the repairs in batches, pausing between the batches to limit the load on the devices.
+     *
+     * @param repairs repairs of all devices
+     */
+    private void submitRepairs(List<Repair> repairs) {
+        for (int start = 0; start < repairs.size(); start += REPAIR_BATCH_SIZE) {
+            List<Repair> batch = repairs.subList(start, Math.min(start + REPAIR_BATCH_SIZE, repairs.size()));
+            long delay = (start / REPAIR_BATCH_SIZE) * REPAIR_BATCH_INTERVAL_MS;
+            reconcileExecutor.schedule(() -> runRepairs(batch), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Run a batch of repairs that are still needed.
+     * The connections may have changed since the repairs were computed: a flow is only removed
+     * if no connection expects it, it is not pending and the installer holds no rule with its match,
+     * and a rule is only installed if a connection still expects it.
+     *
+     * @param batch repairs to run
+     */
+    private void runRepairs(List<Repair> batch) {
+        Map<DeviceId, Set<ObjectiveKey>> expected = new HashMap<>();
+        Map<DeviceId, Set<ObjectiveKey>> retained = new HashMap<>();
+        int skipped = 0;
+        for (Repair repair : batch) {
+            Set<ObjectiveKey> expectedKeys = expected.computeIfAbsent(repair.deviceId,
+                    deviceId -> expectedRules(deviceId).keySet());
+            boolean needed;
+            if (repair.remove) {
+                Set<ObjectiveKey> retainedKeys = retained.computeIfAbsent(repair.deviceId, this::retainedRules);
+                needed = !expectedKeys.contains(repair.key) && !retainedKeys.contains(repair.key);
+            } else {
+                needed = expectedKeys.contains(repair.key);
+            }
+            if (needed) {
+                repair.action.run();
+            } else {
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            log.debug("FlowReconciler: Skipped {} repairs outdated by connection changes", skipped);
+        }
+    }
+
+    /**
+     * Returns the rules of a device that must not be removed although no stored connection expects them:
+     * the rules still being installed and the rules held by the installer, matched by selector and priority.
+     *
+     * @param deviceId device
+     * @return retained rules
+     */
+    private Set<ObjectiveKey> retainedRules(DeviceId deviceId) {
+        Set<ObjectiveKey> retained = pendingRules(deviceId);
+        connectionRuleInstaller.getHeldRules(deviceId)
+                .forEach(key -> retained.add(matchKey(deviceId, key.selector(), key.priority())));
+        return retained;
+    }
+
+    /**
+     * Returns the objective installing the rule an objective stored in a connection removes
+     *
+     * @param objective stored objective
+     * @return objective adding the rule
+     */
+    private static ForwardingObjective addObjective(ForwardingObjective objective) {
+        ForwardingObjective.Builder builder = (ForwardingObjective.Builder) objective.copy();
+        return objective.op() == Objective.Operation.ADD ? objective : builder.add();
+    }
+
+    /**
+     * Returns the key matching a flow to a rule by its selector and priority only,
+     * the treatment is compared separately
+     *
+     * @param deviceId device of the flow
+     * @param selector selector of the flow
+     * @param priority priority of the flow
+     * @return match key
+     */
+    private static ObjectiveKey matchKey(DeviceId deviceId, TrafficSelector selector, int priority) {
+        return ObjectiveKey.of(deviceId, selector, null, priority);
+    }
+
+    /**
+     * Returns if both treatments contain the same instructions
+     *
+     * @param expected expected treatment
+     * @param actual treatment of the flow in the device
+     * @return true if the instructions are equal
+     */
+    private static boolean sameInstructions(TrafficTreatment expected, TrafficTreatment actual) {
+        if (expected == null || actual == null) {
+            return expected == actual;
+        }
+        return Objects.equals(expected.allInstructions(), actual.allInstructions());
+    }
+
+    /**
+     * A rule expected in a device and the action installing it again.
+     */
+    private static final class ExpectedRule {
+
+        private final TrafficTreatment treatment;
+        private final boolean permanent;
+        private final Runnable install;
+
+        private ExpectedRule(TrafficTreatment treatment, boolean permanent, Runnable install) {
+            this.treatment = treatment;
+            this.permanent = permanent;
+            this.install = install;
+        }
+    }
+
+    /**
+     * A repair of a device and the rule it installs or removes.
+     */
+    private static final class Repair {
+
+        private final DeviceId deviceId;
+        private final ObjectiveKey key;
+        private final boolean remove;
+        private final Runnable action;
+
+        private Repair(DeviceId deviceId, ObjectiveKey key, boolean remove, Runnable action) {
+            this.deviceId = deviceId;
+            this.key = key;
+            this.remove = remove;
+            this.action = action;
+        }
+    }
+
+    /**
+     * Drift counters of a device.
+     */
+    private static final class Counters {
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong missing = new AtomicLong();
+        private final AtomicLong unexpected = new AtomicLong();
+        private final AtomicLong modified = new AtomicLong();
+        private final AtomicLong repaired = new AtomicLong();
+        private final AtomicInteger lastDrift = new AtomicInteger();
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveContext;
+import org.onosproject.net.flowobjective.ObjectiveError;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onlab.util.Tools.groupedThreads;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Forwards objectives to the devices and keeps them until the devices acknowledged them.
+ * Failed objectives are retried with exponential backoff and jitter while their device is available,
+ * the objectives of a device becoming available again are sent again in one pass.
+ * An objective still failing after the maximal number of attempts or the retry deadline is given up.
+ */
+@Component(immediate = true)
+@org.apache.felix.scr.annotations.Service
+public class DefaultObjectiveRetryService implements ObjectiveRetryService {
+
+    private static final Logger log = getLogger(PortalManager.class);
+
+    // delay of the first retry, doubled on every further failure up to the maximal delay
+    private static final long INITIAL_RETRY_DELAY_MS = 500;
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+    // attempts of an objective before it is given up, counted again after its device reconnected
+    private static final int MAX_ATTEMPTS = 10;
+    // time after the first attempt an objective is given up, independent of reconnects of its device
+    private static final long RETRY_DEADLINE_MS = TimeUnit.MINUTES.toMillis(10);
+    // time to wait for further events of a reconnecting device before its objectives are sent again
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected FlowObjectiveService flowObjectiveService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected DeviceService deviceService;
+
+    // backoff of the retries, only changed by the tests
+    long initialRetryDelay = INITIAL_RETRY_DELAY_MS;
+    long maxRetryDelay = MAX_RETRY_DELAY_MS;
+    int maxAttempts = MAX_ATTEMPTS;
+    long retryDeadline = RETRY_DEADLINE_MS;
+
+    private ScheduledExecutorService retryExecutor;
+    private DeviceListener reconnectListener;
+
+    // objectives not yet acknowledged, mapped by device and by the rule they install
+    private final Map<DeviceId, Map<ObjectiveKey, PendingObjective>> pendingObjectives = new ConcurrentHashMap<>();
+    // devices with a scheduled resend of their objectives after a reconnect
+    private final Set<DeviceId> reconnectingDevices = ConcurrentHashMap.newKeySet();
+    // objectives failed for good, counted by device
+    private final Map<DeviceId, AtomicLong> failedObjectives = new ConcurrentHashMap<>();
+
+    @Activate
+    protected void activate() {
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("sbyod/objective", "retry"));
+        reconnectListener = new ReconnectDeviceListener();
+        deviceService.addListener(reconnectListener);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        deviceService.removeListener(reconnectListener);
+        retryExecutor.shutdownNow();
+        pendingObjectives.clear();
+        reconnectingDevices.clear();
+        failedObjectives.clear();
+    }
+
+    /**
+     * Forward the objective to the device and retry it until the device acknowledges it.
+     *
+     * @param deviceId device to forward the objective to
+     * @param objective forwarding objective
+     * @return future completed when the device acknowledged the objective
+     */
+    @Override
+    public CompletableFuture<Void> forward(DeviceId deviceId, ForwardingObjective objective) {
+        PendingObjective pending = new PendingObjective(deviceId, objective);
+        PendingObjective replaced = pendingObjectives.computeIfAbsent(deviceId, d -> new ConcurrentHashMap<>())
+                .put(pending.key, pending);
+        if (replaced != null) {
+            replaced.supersede(pending);
+        }
+        send(pending);
+        return pending.future;
+    }
+
+    /**
+     * Returns the objectives not yet acknowledged by the devices
+     *
+     * @return status of the pending objectives mapped by device
+     */
+    @Override
+    public Map<DeviceId, List<RetryStatus>> getPendingObjectives() {
+        Map<DeviceId, List<RetryStatus>> result = new HashMap<>();
+        pendingObjectives.forEach((deviceId, objectives) -> {
+            List<RetryStatus> status = new ArrayList<>();
+            objectives.values().forEach(pending -> status.add(pending.status()));
+            if (!status.isEmpty()) {
+                result.put(deviceId, status);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the number of objectives the devices failed to install for good,
+     * because of an error not retried or because the retries were exhausted
+     *
+     * @return number of failed objectives mapped by device
+     */
+    @Override
+    public Map<DeviceId, Long> getFailedObjectives() {
+        Map<DeviceId, Long> result = new HashMap<>();
+        failedObjectives.forEach((deviceId, failed) -> result.put(deviceId, failed.get()));
+        return result;
+    }
+
+    /**
+     * Send the objective to its device with a context reporting the result.
+     *
+     * @param pending objective to send
+     */
+    private void send(PendingObjective pending) {
+        synchronized (pending) {
+            pending.attempts++;
+            pending.retry = null;
+        }
+        ForwardingObjective.Builder builder = (ForwardingObjective.Builder) pending.objective.copy();
+        ObjectiveContext context = new RetryContext(pending);
+        ForwardingObjective objective = pending.objective.op() == Objective.Operation.REMOVE ?
+                builder.remove(context) : builder.add(context);
+        flowObjectiveService.forward(pending.deviceId, objective);
+    }
+
+    /**
+     * Returns if the objective is the latest objective for its rule.
+     *
+     * @param pending objective
+     * @return true if no later objective replaced the objective
+     */
+    private boolean isCurrent(PendingObjective pending) {
+        Map<ObjectiveKey, PendingObjective> objectives = pendingObjectives.get(pending.deviceId);
+        return objectives != null && objectives.get(pending.key) == pending;
+    }
+
+    /**
+     * Forget the objective, if no later objective replaced it.
+     *
+     * @param pending objective
+     */
+    private void forget(PendingObjective pending) {
+        Map<ObjectiveKey, PendingObjective> objectives = pendingObjectives.get(pending.deviceId);
+        if (objectives != null) {
+            objectives.remove(pending.key, pending);
+        }
+    }
+
+    /**
+     * Schedule the next attempt of a failed objective.
+     * The delay grows exponentially with the attempts and is jittered,
+     * so the retries of many objectives failed at once are spread.
+     * The objective waits for its device if the device is not available.
+     *
+     * @param pending failed objective
+     */
+    private void scheduleRetry(PendingObjective pending) {
+        if (!deviceService.isAvailable(pending.deviceId)) {
+            log.debug("ObjectiveRetryService: Device {} not available, objective waits for reconnect",
+                    pending.deviceId);
+            return;
+        }
+        long delay = Math.min(maxRetryDelay, initialRetryDelay << Math.min(pending.attempts - 1, 16));
+        long jitteredDelay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        synchronized (pending) {
+            if (pending.retry != null) {
+                pending.retry.cancel(false);
+            }
+            pending.retry = retryExecutor.schedule(() -> {
+                if (isCurrent(pending) && deviceService.isAvailable(pending.deviceId)) {
+                    send(pending);
+                }
+            }, jitteredDelay, TimeUnit.MILLISECONDS);
+        }
+        log.debug("ObjectiveRetryService: Retrying objective on device {} in {} ms (attempt {})",
+                new Object[]{pending.deviceId, jitteredDelay, pending.attempts + 1});
+    }
+
+    /**
+     * Send all pending objectives of a device again at once.
+     *
+     * @param deviceId device that became available
+     */
+    private void resendDevice(DeviceId deviceId) {
+        reconnectingDevices.remove(deviceId);
+        Map<ObjectiveKey, PendingObjective> objectives = pendingObjectives.get(deviceId);
+        if (objectives == null || objectives.isEmpty() || !deviceService.isAvailable(deviceId)) {
+            return;
+        }
+        log.info("ObjectiveRetryService: Device {} available, sending {} pending objectives again",
+                deviceId, objectives.size());
+        for (PendingObjective pending : objectives.values()) {
+            synchronized (pending) {
+                if (pending.retry != null) {
+                    pending.retry.cancel(false);
+                }
+                // start the backoff again for the reconnected device
+                pending.attempts = 0;
+            }
+            send(pending);
+        }
+    }
+
+    /**
+     * Fail all pending objectives of a removed device.
+     *
+     * @param deviceId removed device
+     */
+    private void failDevice(DeviceId deviceId) {
+        Map<ObjectiveKey, PendingObjective> objectives = pendingObjectives.remove(deviceId);
+        if (objectives == null) {
+            return;
+        }
+        objectives.values().forEach(pending -> {
+            synchronized (pending) {
+                if (pending.retry != null) {
+                    pending.retry.cancel(false);
+                }
+            }
+            pending.future.completeExceptionally(new RuleInstallException(deviceId, "Device removed"));
+        });
+    }
+
+    /**
+     * Give up the objective: forget it, count it as failed and complete its future exceptionally.
+     *
+     * @param pending failed objective
+     * @param objective objective reported by the device
+     * @param error last error reported by the device
+     * @param reason description of the failure
+     */
+    private void fail(PendingObjective pending, Objective objective, ObjectiveError error, String reason) {
+        forget(pending);
+        failedObjectives.computeIfAbsent(pending.deviceId, d -> new AtomicLong()).incrementAndGet();
+        pending.future.completeExceptionally(new RuleInstallException(pending.deviceId, reason));
+        pending.objective.context().ifPresent(context -> context.onError(objective, error));
+    }
+
+    /**
+     * Returns if the objective may succeed when it is sent again.
+     *
+     * @param error error reported by the device
+     * @return true if the objective is retried
+     */
+    private static boolean isRetryable(ObjectiveError error) {
+        return error != ObjectiveError.UNSUPPORTED && error != ObjectiveError.BADPARAMS;
+    }
+
+    /**
+     * An objective sent to a device and not yet acknowledged.
+     */
+    private static final class PendingObjective {
+
+        private final DeviceId deviceId;
+        private final ForwardingObjective objective;
+        private final ObjectiveKey key;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        // time of the first attempt, the retry deadline starts with it
+        private final long created = System.currentTimeMillis();
+        private int attempts;
+        private ObjectiveError lastError;
+        private ScheduledFuture<?> retry;
+
+        private PendingObjective(DeviceId deviceId, ForwardingObjective objective) {
+            this.deviceId = deviceId;
+            this.objective = objective;
+            this.key = ObjectiveKey.of(deviceId, objective);
+        }
+
+        // a later objective for the same rule replaces this objective
+        private void supersede(PendingObjective later) {
+            synchronized (this) {
+                if (retry != null) {
+                    retry.cancel(false);
+                }
+            }
+            if (later.objective.op() == objective.op()) {
+                later.future.whenComplete((result, error) -> {
+                    if (error == null) {
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(error);
+                    }
+                });
+            } else {
+                future.completeExceptionally(new RuleInstallException(deviceId, "Objective superseded"));
+            }
+        }
+
+        private synchronized RetryStatus status() {
+            return new RetryStatus(key, objective.op(), attempts, lastError == null ? null : lastError.toString());
+        }
+    }
+
+    /**
+     * Reports the result of an attempt of a pending objective.
+     */
+    private final class RetryContext implements ObjectiveContext {
+
+        private final PendingObjective pending;
+
+        private RetryContext(PendingObjective pending) {
+            this.pending = pending;
+        }
+
+        @Override
+        public void onSuccess(Objective objective) {
+            forget(pending);
+            pending.future.complete(null);
+            pending.objective.context().ifPresent(context -> context.onSuccess(objective));
+        }
+
+        @Override
+        public void onError(Objective objective, ObjectiveError error) {
+            synchronized (pending) {
+                pending.lastError = error;
+            }
+            if (!isCurrent(pending)) {
+                return;
+            }
+            if (!isRetryable(error)) {
+                log.warn("ObjectiveRetryService: Objective {} failed on device {} with {}, not retried",
+                        new Object[]{objective.id(), pending.deviceId, error});
+                fail(pending, objective, error, "Objective failed with " + error);
+                return;
+            }
+            int attempts;
+            synchronized (pending) {
+                attempts = pending.attempts;
+            }
+            if (attempts >= maxAttempts || System.currentTimeMillis() - pending.created >= retryDeadline) {
+                log.warn("ObjectiveRetryService: Objective {} failed on device {} with {} after {} attempts, " +
+                                "giving up", new Object[]{objective.id(), pending.deviceId, error, attempts});
+                fail(pending, objective, error, "Objective failed with " + error + " after " + attempts + " attempts");
+                return;
+            }
+            // only the first failure is reported, the retries are listed by the objective-retries command
+            if (attempts == 1) {
+                log.warn("ObjectiveRetryService: Objective {} failed on device {} with {}, retrying",
+                        new Object[]{objective.id(), pending.deviceId, error});
+            } else {
+                log.debug("ObjectiveRetryService: Objective {} failed on device {} with {} (attempt {})",
+                        new Object[]{objective.id(), pending.deviceId, error, attempts});
+            }
+            scheduleRetry(pending);
+        }
+    }
+
+    /**
+     * Sends the pending objectives of a device again when it becomes available
+     * and fails them when the device is removed.
+     */
+    private class ReconnectDeviceListener implements DeviceListener {
+
+        @Override
+        public void event(DeviceEvent event) {
+            DeviceId deviceId = event.subject().id();
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                    // several events of a reconnecting device lead to one resend
+                    if (deviceService.isAvailable(deviceId) && pendingObjectives.containsKey(deviceId) &&
+                            reconnectingDevices.add(deviceId)) {
+                        retryExecutor.schedule(() -> resendDevice(deviceId), RECONNECT_DELAY_MS,
+                                TimeUnit.MILLISECONDS);
+                    }
+                    break;
+                case DEVICE_REMOVED:
+                    failDevice(deviceId);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
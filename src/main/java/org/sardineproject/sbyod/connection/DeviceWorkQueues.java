@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.DeviceId;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onlab.util.Tools.groupedThreads;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Work queues programming the network devices.
+ * The tasks of a device are executed in order, the tasks of different devices
+ * are executed in parallel by a fixed thread pool. Adding a task never blocks the caller:
+ * a task is either queued or, if the queue of its device holds the maximal number of pending tasks,
+ * rejected at once with a failed future, so a device not answering can not exhaust the memory.
+ */
+public final class DeviceWorkQueues {
+
+    private static final Logger log = getLogger(PortalManager.class);
+
+    // number of tasks of a device executed before the thread is handed to the next device
+    private static final int DRAIN_LIMIT = 100;
+
+    private final ExecutorService executor;
+    private final int capacity;
+    private final Map<DeviceId, DeviceQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the work queues.
+     *
+     * @param threads number of threads programming the devices
+     * @param capacity maximal number of pending tasks of a device, further tasks are rejected
+     */
+    public DeviceWorkQueues(int threads, int capacity){
+        this.executor = Executors.newFixedThreadPool(threads, groupedThreads("sbyod/connection", "device-%d"));
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a task to the queue of the device and returns immediately.
+     *
+     * @param deviceId device the task programs
+     * @param task task to execute
+     * @return future completed when the task was executed, completed exceptionally if the task failed
+     *          or with a RejectedExecutionException if the queue of the device is full
+     */
+    public CompletableFuture<Void> execute(DeviceId deviceId, Runnable task){
+        DeviceQueue queue = queues.computeIfAbsent(deviceId, DeviceQueue::new);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        int depth = queue.depth.incrementAndGet();
+        if (depth > capacity) {
+            queue.depth.decrementAndGet();
+            // the device is falling behind, report it once until its queue was drained
+            if (queue.rejected.getAndIncrement() == queue.reported) {
+                log.warn("DeviceWorkQueues: Queue of device {} holds {} pending tasks, rejecting further tasks",
+                        deviceId, capacity);
+            }
+            future.completeExceptionally(new RejectedExecutionException(
+                    "Queue of device " + deviceId + " is full"));
+            return future;
+        }
+        queue.tasks.add(new Task(task, future));
+        queue.maxDepth.accumulateAndGet(depth, Math::max);
+        if (queue.scheduled.compareAndSet(false, true)) {
+            executor.execute(queue::drain);
+        }
+        return future;
+    }
+
+    /**
+     * Stops the threads, pending tasks are discarded.
+     */
+    public void shutdown(){
+        executor.shutdownNow();
+        queues.clear();
+    }
+
+    /**
+     * Returns the statistics of the device queues.
+     *
+     * @return queue statistics mapped by device
+     */
+    public Map<DeviceId, QueueStats> stats(){
+        Map<DeviceId, QueueStats> stats = new ConcurrentHashMap<>();
+        queues.forEach((deviceId, queue) -> stats.put(deviceId, new QueueStats(
+                queue.depth.get(), queue.maxDepth.get(), queue.completed.get(), queue.rejected.get())));
+        return stats;
+    }
+
+    /**
+     * Statistics of a device queue.
+     */
+    public static final class QueueStats {
+
+        private final int depth;
+        private final int maxDepth;
+        private final long completed;
+        private final long rejected;
+
+        private QueueStats(int depth, int maxDepth, long completed, long rejected){
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.completed = completed;
+            this.rejected = rejected;
+        }
+
+        public int depth(){ return depth; }
+
+        public int maxDepth(){ return maxDepth; }
+
+        public long completed(){ return completed; }
+
+        public long rejected(){ return rejected; }
+
+        @Override
+        public String toString(){
+            return "depth=" + depth + ", maxDepth=" + maxDepth + ", completed=" + completed +
+                    ", rejected=" + rejected;
+        }
+    }
+
+    /**
+     * A queued task and the future completed after its execution.
+     */
+    private static final class Task {
+
+        private final Runnable runnable;
+        private final CompletableFuture<Void> future;
+
+        private Task(Runnable runnable, CompletableFuture<Void> future){
+            this.runnable = runnable;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Pending tasks of a device.
+     */
+    private final class DeviceQueue {
+
+        private final DeviceId deviceId;
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong completed = new AtomicLong();
+        // tasks rejected because the queue was full
+        private final AtomicLong rejected = new AtomicLong();
+        // rejected tasks when the queue was last drained, the next rejection is reported
+        private volatile long reported;
+
+        private DeviceQueue(DeviceId deviceId){
+            this.deviceId = deviceId;
+        }
+
+        // execute the pending tasks of the device, at most one thread drains a queue at a time
+        private void drain(){
+            int processed = 0;
+            Task task;
+            while (processed < DRAIN_LIMIT && (task = tasks.poll()) != null) {
+                try {
+                    task.runnable.run();
+                    task.future.complete(null);
+                } catch (RuntimeException e) {
+                    log.warn("DeviceWorkQueues: Task for device {} failed: {}", deviceId, e.getMessage());
+                    task.future.completeExceptionally(e);
+                } finally {
+                    depth.decrementAndGet();
+                    completed.incrementAndGet();
+                    processed++;
+                }
+            }
+            if (tasks.isEmpty()) {
+                // the device caught up, the next rejection is reported again
+                reported = rejected.get();
+            }
+            scheduled.set(false);
+            // reschedule if tasks are left or were added after the last poll
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.DeviceId;
+
+import java.util.Map;
+
+/**
+ * Periodically repairs the differences between the rules of the connections and the flows in the devices.
+ */
+public interface FlowReconcileService {
+
+    /**
+     * Start reconciling the flows of the locally mastered devices periodically
+     *
+     * @param intervalSeconds seconds between two reconciliations
+     */
+    void start(int intervalSeconds);
+
+    /**
+     * Stop the periodic reconciliation
+     */
+    void stop();
+
+    /**
+     * Reconcile the flows of the locally mastered devices now
+     */
+    void reconcile();
+
+    /**
+     * Returns the drift found and repaired on the devices
+     *
+     * @return drift counters mapped by device
+     */
+    Map<DeviceId, DriftCounters> getDriftCounters();
+
+    /**
+     * Drift counters of a device.
+     */
+    final class DriftCounters {
+
+        private final long runs;
+        private final long missing;
+        private final long unexpected;
+        private final long modified;
+        private final long repaired;
+        private final int lastDrift;
+
+        public DriftCounters(long runs, long missing, long unexpected, long modified, long repaired, int lastDrift){
+            this.runs = runs;
+            this.missing = missing;
+            this.unexpected = unexpected;
+            this.modified = modified;
+            this.repaired = repaired;
+            this.lastDrift = lastDrift;
+        }
+
+        public long runs(){ return runs; }
+
+        public long missing(){ return missing; }
+
+        public long unexpected(){ return unexpected; }
+
+        public long modified(){ return modified; }
+
+        public long repaired(){ return repaired; }
+
+        public int lastDrift(){ return lastDrift; }
+
+        @Override
+        public String toString(){
+            return "runs=" + runs + ", missing=" + missing + ", unexpected=" + unexpected + ", modified=" + modified +
+                    ", repaired=" + repaired + ", lastDrift=" + lastDrift;
+        }
+    }
+}
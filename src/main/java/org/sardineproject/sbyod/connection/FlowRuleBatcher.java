@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Accumulates flow rule operations per device and submits them as one batch.
+ * A batch is submitted as soon as it holds the configured number of operations
+ * or the flush interval after its first operation has passed.
+ * The batches of a device are submitted in order, a batch is only submitted
+ * after the flow rule service reported the result of the previous batch of the device.
+ */
+public final class FlowRuleBatcher {
+
+    private static final Logger log = getLogger(PortalManager.class);
+
+    private final FlowRuleService flowRuleService;
+    private final IntSupplier batchSize;
+    private final IntSupplier flushInterval;
+    private final ScheduledExecutorService flushExecutor =
+            Executors.newSingleThreadScheduledExecutor(groupedThreads("sbyod/connection", "batch-flush"));
+
+    private final Map<DeviceId, DeviceBatch> batches = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a batcher submitting the operations to the flow rule service.
+     *
+     * @param flowRuleService flow rule service the batches are submitted to
+     * @param batchSize maximal number of operations of a batch
+     * @param flushInterval milliseconds an operation waits at most before its batch is submitted
+     */
+    public FlowRuleBatcher(FlowRuleService flowRuleService, IntSupplier batchSize, IntSupplier flushInterval){
+        this.flowRuleService = checkNotNull(flowRuleService, "FlowRuleService can not be null");
+        this.batchSize = checkNotNull(batchSize, "Batch size can not be null");
+        this.flushInterval = checkNotNull(flushInterval, "Flush interval can not be null");
+    }
+
+    /**
+     * Adds the flow rule to the batch of its device.
+     *
+     * @param flowRule flow rule to install
+     * @return future completed when the batch of the rule was applied
+     */
+    public CompletableFuture<Void> add(FlowRule flowRule){
+        return submit(new FlowRuleOperation(flowRule, FlowRuleOperation.Type.ADD));
+    }
+
+    /**
+     * Adds the removal of the flow rule to the batch of its device.
+     *
+     * @param flowRule flow rule to remove
+     * @return future completed when the batch of the rule was applied
+     */
+    public CompletableFuture<Void> remove(FlowRule flowRule){
+        return submit(new FlowRuleOperation(flowRule, FlowRuleOperation.Type.REMOVE));
+    }
+
+    /**
+     * Submits the pending batches of all devices.
+     */
+    public void flushAll(){
+        batches.values().forEach(this::flush);
+    }
+
+    /**
+     * Submits the pending batches and stops the flush timer.
+     */
+    public void shutdown(){
+        flushAll();
+        flushExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of submitted, succeeded and failed batches per device.
+     *
+     * @return batch counters mapped by device
+     */
+    public Map<DeviceId, BatchCounters> stats(){
+        Map<DeviceId, BatchCounters> stats = new ConcurrentHashMap<>();
+        batches.forEach((deviceId, batch) -> stats.put(deviceId,
+                new BatchCounters(batch.submitted.get(), batch.succeeded.get(), batch.failed.get())));
+        return stats;
+    }
+
+    private CompletableFuture<Void> submit(FlowRuleOperation operation){
+        DeviceBatch batch = batches.computeIfAbsent(operation.rule().deviceId(), DeviceBatch::new);
+        CompletableFuture<Void> future;
+        boolean full;
+        synchronized (batch) {
+            batch.operations.add(operation);
+            future = batch.future;
+            full = batch.operations.size() >= batchSize.getAsInt();
+            if (!full && !batch.scheduled) {
+                batch.scheduled = true;
+                flushExecutor.schedule(() -> flush(batch), flushInterval.getAsInt(), TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            flush(batch);
+        }
+        return future;
+    }
+
+    private void flush(DeviceBatch batch){
+        List<FlowRuleOperation> operations;
+        CompletableFuture<Void> future;
+        CompletableFuture<Void> previous;
+        synchronized (batch) {
+            batch.scheduled = false;
+            if (batch.operations.isEmpty()) {
+                return;
+            }
+            operations = batch.operations;
+            future = batch.future;
+            batch.operations = new ArrayList<>();
+            batch.future = new CompletableFuture<>();
+            // the timer and a caller filling a batch may flush concurrently,
+            // chaining the batches keeps an add and a later remove of a rule in order
+            previous = batch.lastSubmitted;
+            batch.lastSubmitted = future;
+        }
+        previous.whenComplete((result, error) -> {
+            try {
+                apply(batch, operations, future);
+            } catch (RuntimeException e) {
+                // a batch never handed to the service must not hold back the next batches
+                batch.failed.incrementAndGet();
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void apply(DeviceBatch batch, List<FlowRuleOperation> operations, CompletableFuture<Void> future){
+        FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+        operations.forEach(builder::operation);
+        batch.submitted.incrementAndGet();
+        log.debug("FlowRuleBatcher: Submitting {} operations to device {}", operations.size(), batch.deviceId);
+
+        flowRuleService.apply(builder.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                batch.succeeded.incrementAndGet();
+                future.complete(null);
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                batch.failed.incrementAndGet();
+                log.warn("FlowRuleBatcher: Batch of {} operations failed on device {}",
+                        operations.size(), batch.deviceId);
+                future.completeExceptionally(new RuleInstallException(batch.deviceId, "Flow rule batch failed"));
+            }
+        }));
+    }
+
+    /**
+     * Batch counters of a device.
+     */
+    public static final class BatchCounters {
+
+        private final long submitted;
+        private final long succeeded;
+        private final long failed;
+
+        private BatchCounters(long submitted, long succeeded, long failed){
+            this.submitted = submitted;
+            this.succeeded = succeeded;
+            this.failed = failed;
+        }
+
+        public long submitted(){ return submitted; }
+
+        public long succeeded(){ return succeeded; }
+
+        public long failed(){ return failed; }
+
+        @Override
+        public String toString(){
+            return "submitted=" + submitted + ", succeeded=" + succeeded + ", failed=" + failed;
+        }
+    }
+
+    /**
+     * Pending operations and counters of a device.
+     */
+    private static final class DeviceBatch {
+
+        private final DeviceId deviceId;
+        private List<FlowRuleOperation> operations = new ArrayList<>();
+        private CompletableFuture<Void> future = new CompletableFuture<>();
+        private boolean scheduled = false;
+        // future of the last batch handed to the flow rule service
+        private CompletableFuture<Void> lastSubmitted = CompletableFuture.completedFuture(null);
+
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        private DeviceBatch(DeviceId deviceId){
+            this.deviceId = deviceId;
+        }
+    }
+}
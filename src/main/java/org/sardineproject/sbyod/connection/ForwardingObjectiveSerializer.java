@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
+
+/**
+ * Kryo serializer for the forwarding objectives stored in a connection.
+ * The objective context is local to the instance that installed the objective and is not serialized.
+ */
+public class ForwardingObjectiveSerializer extends Serializer<DefaultForwardingObjective> {
+
+    public ForwardingObjectiveSerializer(){
+        // does not accept null values and is immutable
+        super(false, true);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, DefaultForwardingObjective objective) {
+        kryo.writeClassAndObject(output, objective.selector());
+        kryo.writeClassAndObject(output, objective.treatment());
+        kryo.writeClassAndObject(output, objective.appId());
+        kryo.writeObject(output, objective.flag());
+        kryo.writeObject(output, objective.op());
+        kryo.writeObjectOrNull(output, objective.nextId(), Integer.class);
+        output.writeInt(objective.priority());
+        output.writeBoolean(objective.permanent());
+        output.writeInt(objective.timeout());
+    }
+
+    @Override
+    public DefaultForwardingObjective read(Kryo kryo, Input input, Class<DefaultForwardingObjective> type) {
+        TrafficSelector selector = (TrafficSelector) kryo.readClassAndObject(input);
+        TrafficTreatment treatment = (TrafficTreatment) kryo.readClassAndObject(input);
+        ApplicationId appId = (ApplicationId) kryo.readClassAndObject(input);
+        ForwardingObjective.Flag flag = kryo.readObject(input, ForwardingObjective.Flag.class);
+        Objective.Operation op = kryo.readObject(input, Objective.Operation.class);
+        Integer nextId = kryo.readObjectOrNull(input, Integer.class);
+        int priority = input.readInt();
+        boolean permanent = input.readBoolean();
+        int timeout = input.readInt();
+
+        DefaultForwardingObjective.Builder builder = DefaultForwardingObjective.builder()
+                .withSelector(selector)
+                .withFlag(flag)
+                .withPriority(priority)
+                .fromApp(appId);
+        if (treatment != null) {
+            builder.withTreatment(treatment);
+        }
+        if (nextId != null) {
+            builder.nextStep(nextId);
+        }
+        if (permanent) {
+            builder.makePermanent();
+        } else {
+            builder.makeTemporary(timeout);
+        }
+
+        ForwardingObjective objective = (op == Objective.Operation.ADD) ? builder.add() : builder.remove();
+        return (DefaultForwardingObjective) objective;
+    }
+}
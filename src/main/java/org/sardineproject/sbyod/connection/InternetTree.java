@@ -0,0 +1,331 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.google.common.hash.Hashing;
+import org.onlab.packet.EthType;
+import org.onlab.packet.MplsLabel;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.slf4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Shared forwarding tree between the edge ports of the network and the default gateway.
+ * The users are only authorized on the edge: their own switch forwards the traffic into the tree
+ * and the switch of the gateway pushes the MPLS label of the edge port of the user on the responses.
+ * All other rules are independent of the users:
+ * upstream every switch forwards the traffic to the gateway MAC address arriving from another switch
+ * towards the gateway, downstream every switch forwards by label and the edge switch pops the label.
+ * The compiled rules are sent after leaving the monitor of the tree.
+ */
+final class InternetTree {
+
+    private static final Logger log = getLogger(PortalManager.class);
+
+    // labels 0 to 15 are reserved
+    private static final int MIN_LABEL = 16;
+
+    // sends an objective to a device and returns the future of its acknowledgement
+    private final BiFunction<DeviceId, ForwardingObjective, CompletableFuture<Void>> sender;
+    // destination route between two devices
+    private final BiFunction<DeviceId, DeviceId, List<Link>> router;
+
+    // the label of an edge port is kept as long as the tree exists
+    private final Map<ConnectPoint, Integer> labels = new HashMap<>();
+    private final Set<Integer> usedLabels = new HashSet<>();
+    // the installed tree objectives
+    private final Map<ObjectiveKey, ForwardingObjective> installed = new HashMap<>();
+    // the compiled objectives waiting to be sent
+    private final RuleOutbox outbox = new RuleOutbox();
+
+    // the inputs of the last compilation
+    private Host gateway;
+    private ApplicationId appId;
+    private Set<ConnectPoint> edgePoints = new HashSet<>();
+
+    InternetTree(BiFunction<DeviceId, ForwardingObjective, CompletableFuture<Void>> sender,
+                 BiFunction<DeviceId, DeviceId, List<Link>> router) {
+        this.sender = sender;
+        this.router = router;
+    }
+
+    /**
+     * Compile the tree between the edge ports and the gateway and apply the difference to the installed rules.
+     *
+     * @param gateway host of the default gateway
+     * @param edgePoints edge ports of the network
+     * @param appId application installing the rules
+     */
+    void update(Host gateway, Iterable<ConnectPoint> edgePoints, ApplicationId appId) {
+        synchronized (this) {
+            this.gateway = gateway;
+            this.appId = appId;
+            this.edgePoints = new HashSet<>();
+            edgePoints.forEach(this.edgePoints::add);
+            compile();
+        }
+        outbox.flush();
+    }
+
+    /**
+     * Remove the rules of the tree and release the labels.
+     */
+    void clear() {
+        synchronized (this) {
+            gateway = null;
+            edgePoints.clear();
+            compile();
+            labels.clear();
+            usedLabels.clear();
+        }
+        outbox.flush();
+    }
+
+    /**
+     * Returns if the tree is installed
+     *
+     * @return true if a gateway is set
+     */
+    synchronized boolean isActive() {
+        return gateway != null;
+    }
+
+    /**
+     * Returns the label of an edge port, allocating a label for a new edge port.
+     * The label is derived from a hash of the edge port, so all instances allocate the same label
+     * unless two edge ports collide.
+     *
+     * @param edgePoint edge port
+     * @return MPLS label
+     */
+    MplsLabel label(ConnectPoint edgePoint) {
+        MplsLabel label;
+        synchronized (this) {
+            label = allocateLabel(edgePoint);
+        }
+        outbox.flush();
+        return label;
+    }
+
+    /**
+     * Returns the label of an edge port and compiles the tree again for a new edge port.
+     *
+     * @param edgePoint edge port
+     * @return MPLS label
+     */
+    private MplsLabel allocateLabel(ConnectPoint edgePoint) {
+        Integer label = labels.get(edgePoint);
+        if (label == null) {
+            int range = MplsLabel.MAX_MPLS - MIN_LABEL + 1;
+            int hash = Hashing.murmur3_32().hashString(edgePoint.toString(), StandardCharsets.UTF_8).asInt();
+            int candidate = Math.floorMod(hash, range);
+            while (usedLabels.contains(MIN_LABEL + candidate)) {
+                candidate = (candidate + 1) % range;
+            }
+            label = MIN_LABEL + candidate;
+            labels.put(edgePoint, label);
+            usedLabels.add(label);
+            // the edge port may not be reported as edge port yet
+            if (gateway != null && edgePoints.add(edgePoint)) {
+                compile();
+            }
+        }
+        return MplsLabel.mplsLabel(label);
+    }
+
+    /**
+     * Returns the installed tree objectives
+     *
+     * @return objectives mapped by device
+     */
+    synchronized Map<DeviceId, List<ForwardingObjective>> objectives() {
+        Map<DeviceId, List<ForwardingObjective>> result = new HashMap<>();
+        installed.forEach((key, objective) ->
+                result.computeIfAbsent(key.deviceId(), d -> new ArrayList<>()).add(objective));
+        return result;
+    }
+
+    /**
+     * Compile the tree objectives. New and changed objectives are installed
+     * before the obsolete objectives are removed.
+     */
+    private void compile() {
+        Map<ObjectiveKey, ForwardingObjective> objectives = new HashMap<>();
+        if (gateway != null) {
+            compileUpstream(objectives);
+            compileDownstream(objectives);
+        }
+
+        int added = 0;
+        for (Map.Entry<ObjectiveKey, ForwardingObjective> entry : objectives.entrySet()) {
+            ForwardingObjective old = installed.get(entry.getKey());
+            if (old == null || !old.treatment().equals(entry.getValue().treatment())) {
+                installed.put(entry.getKey(), entry.getValue());
+                outbox.install(() -> sender.apply(entry.getKey().deviceId(), entry.getValue()));
+                added++;
+            }
+        }
+        int removed = 0;
+        for (Map.Entry<ObjectiveKey, ForwardingObjective> entry : new ArrayList<>(installed.entrySet())) {
+            if (!objectives.containsKey(entry.getKey())) {
+                installed.remove(entry.getKey());
+                ForwardingObjective removal = ((ForwardingObjective.Builder) entry.getValue().copy()).remove();
+                outbox.remove(() -> sender.apply(entry.getKey().deviceId(), removal));
+                removed++;
+            }
+        }
+        if (added > 0 || removed > 0) {
+            log.info("InternetTree: Compiled {} rules for {} edge ports (added {}, removed {})",
+                    new Object[]{objectives.size(), edgePoints.size(), added, removed});
+        }
+    }
+
+    /**
+     * Every switch on the route of an edge device to the gateway forwards the traffic
+     * to the gateway MAC address arriving from the previous switch.
+     * Traffic arriving on an edge port is not matched, so only authorized users enter the tree.
+     *
+     * @param objectives compiled objectives
+     */
+    private void compileUpstream(Map<ObjectiveKey, ForwardingObjective> objectives) {
+        DeviceId gatewayDevice = gateway.location().deviceId();
+        for (DeviceId edgeDevice : edgeDevices()) {
+            List<Link> route = router.apply(edgeDevice, gatewayDevice);
+            for (int i = 0; i < route.size(); i++) {
+                Link inLink = route.get(i);
+                PortNumber outPort = (i + 1 < route.size()) ?
+                        route.get(i + 1).src().port() : gateway.location().port();
+                TrafficSelector selector = DefaultTrafficSelector.builder()
+                        .matchEthType(EthType.EtherType.IPV4.ethType().toShort())
+                        .matchInPort(inLink.dst().port())
+                        .matchEthDst(gateway.mac())
+                        .build();
+                put(objectives, inLink.dst().deviceId(), selector,
+                        DefaultTrafficTreatment.builder().setOutput(outPort).build());
+            }
+        }
+    }
+
+    /**
+     * Every switch on the route of the gateway to an edge device forwards by the label of the edge port
+     * arriving from the previous switch, the edge device pops the label and sends the traffic out of the edge port.
+     * Labeled traffic entering on any other port, like an edge port, is not matched.
+     * The gateway switch pushes the label with the rule of the user.
+     *
+     * @param objectives compiled objectives
+     */
+    private void compileDownstream(Map<ObjectiveKey, ForwardingObjective> objectives) {
+        DeviceId gatewayDevice = gateway.location().deviceId();
+        Map<DeviceId, List<Link>> routes = new HashMap<>();
+        for (ConnectPoint edgePoint : edgePoints) {
+            if (edgePoint.deviceId().equals(gatewayDevice)) {
+                continue;
+            }
+            List<Link> route = routes.computeIfAbsent(edgePoint.deviceId(),
+                    device -> router.apply(gatewayDevice, device));
+            if (route.isEmpty()) {
+                continue;
+            }
+            MplsLabel label = allocateLabel(edgePoint);
+            for (int i = 1; i < route.size(); i++) {
+                put(objectives, route.get(i).src().deviceId(),
+                        downstreamSelector(route.get(i - 1).dst().port(), label),
+                        DefaultTrafficTreatment.builder().setOutput(route.get(i).src().port()).build());
+            }
+            put(objectives, edgePoint.deviceId(),
+                    downstreamSelector(route.get(route.size() - 1).dst().port(), label),
+                    DefaultTrafficTreatment.builder()
+                            .popMpls(EthType.EtherType.IPV4.ethType())
+                            .setOutput(edgePoint.port())
+                            .build());
+        }
+    }
+
+    /**
+     * Returns the selector of the labeled traffic arriving from the previous switch of the route
+     *
+     * @param inPort port of the link from the previous switch
+     * @param label label of the edge port
+     * @return traffic selector
+     */
+    private TrafficSelector downstreamSelector(PortNumber inPort, MplsLabel label) {
+        return DefaultTrafficSelector.builder()
+                .matchEthType(EthType.EtherType.MPLS_UNICAST.ethType().toShort())
+                .matchInPort(inPort)
+                .matchMplsLabel(label)
+                .build();
+    }
+
+    /**
+     * Returns the devices with edge ports other than the gateway device
+     *
+     * @return set of devices
+     */
+    private Collection<DeviceId> edgeDevices() {
+        Set<DeviceId> devices = new HashSet<>();
+        edgePoints.forEach(edgePoint -> devices.add(edgePoint.deviceId()));
+        devices.remove(gateway.location().deviceId());
+        return devices;
+    }
+
+    /**
+     * Add a permanent tree objective, if no rule with the same match was compiled before
+     *
+     * @param objectives compiled objectives
+     * @param deviceId device of the rule
+     * @param selector selector of the rule
+     * @param treatment treatment of the rule
+     */
+    private void put(Map<ObjectiveKey, ForwardingObjective> objectives, DeviceId deviceId,
+                     TrafficSelector selector, TrafficTreatment treatment) {
+        int priority = DefaultConnectionRuleInstaller.TRANSIT_FLOW_PRIORITY;
+        objectives.putIfAbsent(ObjectiveKey.of(deviceId, selector, null, priority),
+                DefaultForwardingObjective.builder()
+                        .withSelector(selector)
+                        .withTreatment(treatment)
+                        .withPriority(priority)
+                        .withFlag(ForwardingObjective.Flag.VERSATILE)
+                        .fromApp(appId)
+                        .makePermanent()
+                        .add());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Key identifying a rule on a device by its selector, treatment and priority,
+ * independent of the operation of a forwarding objective installing it.
+ */
+public final class ObjectiveKey {
+
+    private final DeviceId deviceId;
+    private final TrafficSelector selector;
+    private final TrafficTreatment treatment;
+    private final int priority;
+
+    private ObjectiveKey(DeviceId deviceId, TrafficSelector selector, TrafficTreatment treatment, int priority){
+        this.deviceId = checkNotNull(deviceId, "DeviceId can not be null");
+        this.selector = checkNotNull(selector, "Selector can not be null");
+        this.treatment = treatment;
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the key of a rule defined by its values.
+     *
+     * @param deviceId device the rule is installed on
+     * @param selector selector of the rule
+     * @param treatment treatment of the rule
+     * @param priority priority of the rule
+     * @return objective key
+     */
+    public static ObjectiveKey of(DeviceId deviceId, TrafficSelector selector, TrafficTreatment treatment,
+                                  int priority){
+        return new ObjectiveKey(deviceId, selector, treatment, priority);
+    }
+
+    /**
+     * Returns the key of the rule the forwarding objective installs on the device.
+     *
+     * @param deviceId device the objective is installed on
+     * @param objective forwarding objective
+     * @return objective key
+     */
+    public static ObjectiveKey of(DeviceId deviceId, ForwardingObjective objective){
+        return new ObjectiveKey(deviceId, objective.selector(), objective.treatment(), objective.priority());
+    }
+
+    /**
+     * Returns the key of a flow rule.
+     *
+     * @param flowRule flow rule
+     * @return objective key
+     */
+    public static ObjectiveKey of(FlowRule flowRule){
+        return new ObjectiveKey(flowRule.deviceId(), flowRule.selector(), flowRule.treatment(), flowRule.priority());
+    }
+
+    public DeviceId deviceId(){ return deviceId; }
+
+    public TrafficSelector selector(){ return selector; }
+
+    public TrafficTreatment treatment(){ return treatment; }
+
+    public int priority(){ return priority; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ObjectiveKey that = (ObjectiveKey) o;
+
+        return priority == that.priority &&
+                deviceId.equals(that.deviceId) &&
+                selector.equals(that.selector) &&
+                Objects.equals(treatment, that.treatment);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(deviceId, selector, treatment, priority);
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectiveKey{" +
+                "deviceId=" + deviceId +
+                ", selector=" + selector +
+                ", treatment=" + treatment +
+                ", priority=" + priority +
+                '}';
+    }
+}
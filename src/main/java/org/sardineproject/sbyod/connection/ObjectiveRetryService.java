@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Forwards objectives to the devices and retries the objectives a device failed to install.
+ */
+public interface ObjectiveRetryService {
+
+    /**
+     * Forward the objective to the device.
+     * A failed objective is sent again with exponential backoff until the device acknowledges it
+     * or the retries are exhausted, objectives of a reconnecting device are sent again at once.
+     * A later objective for the same rule replaces a pending objective.
+     *
+     * @param deviceId device to forward the objective to
+     * @param objective forwarding objective
+     * @return future completed when the device acknowledged the objective,
+     *          completed exceptionally with a RuleInstallException if the objective can not be installed
+     */
+    CompletableFuture<Void> forward(DeviceId deviceId, ForwardingObjective objective);
+
+    /**
+     * Returns the objectives not yet acknowledged by the devices
+     *
+     * @return status of the pending objectives mapped by device
+     */
+    Map<DeviceId, List<RetryStatus>> getPendingObjectives();
+
+    /**
+     * Returns the number of objectives the devices failed to install for good
+     *
+     * @return number of failed objectives mapped by device
+     */
+    Map<DeviceId, Long> getFailedObjectives();
+
+    /**
+     * Status of an objective not yet acknowledged by its device.
+     */
+    final class RetryStatus {
+
+        private final ObjectiveKey key;
+        private final Objective.Operation operation;
+        private final int attempts;
+        private final String lastError;
+
+        public RetryStatus(ObjectiveKey key, Objective.Operation operation, int attempts, String lastError){
+            this.key = key;
+            this.operation = operation;
+            this.attempts = attempts;
+            this.lastError = lastError;
+        }
+
+        public ObjectiveKey key(){ return key; }
+
+        public Objective.Operation operation(){ return operation; }
+
+        public int attempts(){ return attempts; }
+
+        public String lastError(){ return lastError; }
+
+        @Override
+        public String toString(){
+            return "operation=" + operation + ", attempts=" + attempts + ", lastError=" + lastError +
+                    ", selector=" + key.selector() + ", priority=" + key.priority();
+        }
+    }
+}
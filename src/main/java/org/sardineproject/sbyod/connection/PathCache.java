@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.onosproject.event.Event;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyService;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.slf4j.Logger;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Bounded cache of the shortest paths between two devices.
+ * Entries are invalidated by the topology events affecting their paths.
+ */
+public final class PathCache {
+
+    private static final Logger log = getLogger(PortalManager.class);
+
+    private final TopologyService topologyService;
+    private final Cache<DevicePair, Set<Path>> paths;
+
+    /**
+     * Creates a path cache looking up missing paths in the current topology.
+     *
+     * @param topologyService topology service used to compute the paths
+     * @param maxSize maximal number of cached (source, destination) pairs
+     */
+    public PathCache(TopologyService topologyService, long maxSize){
+        this.topologyService = checkNotNull(topologyService, "TopologyService can not be null");
+        this.paths = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the shortest paths between the source and destination device.
+     *
+     * @param src source device
+     * @param dst destination device
+     * @return set of paths
+     */
+    public Set<Path> getPaths(DeviceId src, DeviceId dst){
+        try {
+            return paths.get(new DevicePair(src, dst),
+                    () -> topologyService.getPaths(topologyService.currentTopology(), src, dst));
+        } catch (ExecutionException e) {
+            log.warn("PathCache: Could not compute paths from {} to {}", src, dst);
+            return topologyService.getPaths(topologyService.currentTopology(), src, dst);
+        }
+    }
+
+    /**
+     * Invalidates the cached paths affected by the reasons of the topology event.
+     * Removed links and devices only invalidate the paths crossing them,
+     * added links and devices invalidate all paths as they might offer shorter paths.
+     *
+     * @param event topology event
+     */
+    public void invalidate(TopologyEvent event){
+        if(event.reasons() == null || event.reasons().isEmpty()){
+            invalidateAll();
+            return;
+        }
+
+        for(Event reason : event.reasons()){
+            if(reason instanceof LinkEvent){
+                Link link = ((LinkEvent) reason).subject();
+                if(reason.type().equals(LinkEvent.Type.LINK_REMOVED)){
+                    invalidateLink(link);
+                } else if(reason.type().equals(LinkEvent.Type.LINK_ADDED)){
+                    invalidateAll();
+                    return;
+                }
+            } else if(reason instanceof DeviceEvent){
+                DeviceEvent deviceEvent = (DeviceEvent) reason;
+                DeviceId deviceId = deviceEvent.subject().id();
+                if(deviceEvent.type().equals(DeviceEvent.Type.DEVICE_REMOVED)){
+                    invalidateDevice(deviceId);
+                } else if(deviceEvent.type().equals(DeviceEvent.Type.DEVICE_ADDED) ||
+                        deviceEvent.type().equals(DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED)){
+                    invalidateAll();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached paths.
+     */
+    public void invalidateAll(){
+        log.debug("PathCache: Invalidating all {} cached paths", paths.size());
+        paths.invalidateAll();
+    }
+
+    /**
+     * Returns the hit and miss counters of the cache.
+     *
+     * @return cache statistics
+     */
+    public CacheStats stats(){
+        return paths.stats();
+    }
+
+    /**
+     * Returns the number of cached (source, destination) pairs.
+     *
+     * @return number of entries
+     */
+    public long size(){
+        return paths.size();
+    }
+
+    // remove the entries with a path crossing the link
+    private void invalidateLink(Link link){
+        paths.asMap().entrySet().removeIf(entry -> entry.getValue().stream()
+                .anyMatch(path -> path.links().stream().anyMatch(l -> sameLink(l, link))));
+        log.debug("PathCache: Invalidated paths crossing link {}", link);
+    }
+
+    // remove the entries starting, ending or crossing the device
+    private void invalidateDevice(DeviceId deviceId){
+        paths.asMap().entrySet().removeIf(entry -> entry.getKey().src.equals(deviceId) ||
+                entry.getKey().dst.equals(deviceId) ||
+                entry.getValue().stream().anyMatch(path -> path.links().stream()
+                        .anyMatch(l -> l.src().deviceId().equals(deviceId) || l.dst().deviceId().equals(deviceId))));
+        log.debug("PathCache: Invalidated paths crossing device {}", deviceId);
+    }
+
+    private static boolean sameLink(Link a, Link b){
+        return sameConnectPoint(a.src(), b.src()) && sameConnectPoint(a.dst(), b.dst());
+    }
+
+    private static boolean sameConnectPoint(ConnectPoint a, ConnectPoint b){
+        return a.deviceId().equals(b.deviceId()) && a.port().equals(b.port());
+    }
+
+    /**
+     * Key of the cached paths.
+     */
+    private static final class DevicePair {
+
+        private final DeviceId src;
+        private final DeviceId dst;
+
+        private DevicePair(DeviceId src, DeviceId dst){
+            this.src = checkNotNull(src, "Source device can not be null");
+            this.dst = checkNotNull(dst, "Destination device can not be null");
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this == o){
+                return true;
+            }
+            if(!(o instanceof DevicePair)){
+                return false;
+            }
+            DevicePair that = (DevicePair) o;
+            return src.equals(that.src) && dst.equals(that.dst);
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(src, dst);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.DeviceId;
+
+/**
+ * Signals that rules of a connection could not be installed on a device.
+ */
+public class RuleInstallException extends RuntimeException {
+
+    private final DeviceId deviceId;
+
+    /**
+     * Creates an exception for the device the rules failed on.
+     *
+     * @param deviceId device the rules could not be installed on
+     * @param message description of the failure
+     */
+    public RuleInstallException(DeviceId deviceId, String message){
+        super(message + " on device " + deviceId);
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Returns the device the rules could not be installed on.
+     *
+     * @return device id
+     */
+    public DeviceId deviceId(){
+        return deviceId;
+    }
+}
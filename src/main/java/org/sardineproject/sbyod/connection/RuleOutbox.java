@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.slf4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Rule operations decided while holding a lock and sent after the lock is released.
+ * The operations are recorded in the order of the decisions and sent in this order
+ * by one thread at a time, so an install and a later removal of the same rule
+ * reach the device queues in the order they were decided.
+ * Sending only hands the rules to the device queues, which never block.
+ */
+final class RuleOutbox {
+
+    private static final Logger log = getLogger(PortalManager.class);
+
+    private final Queue<Runnable> operations = new ConcurrentLinkedQueue<>();
+    // held while the recorded operations are sent, keeps them in the recorded order
+    private final Lock sending = new ReentrantLock();
+
+    /**
+     * Record the installation of a rule. Called while holding the lock the installation was decided under.
+     *
+     * @param install sends the rule and returns the future of its acknowledgement
+     * @return future completed when the sent rule is acknowledged
+     */
+    CompletableFuture<Void> install(Supplier<CompletableFuture<Void>> install) {
+        CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+        operations.add(() -> {
+            CompletableFuture<Void> sent;
+            try {
+                sent = install.get();
+            } catch (RuntimeException e) {
+                acknowledged.completeExceptionally(e);
+                throw e;
+            }
+            sent.whenComplete((result, error) -> {
+                if (error == null) {
+                    acknowledged.complete(null);
+                } else {
+                    acknowledged.completeExceptionally(error);
+                }
+            });
+        });
+        return acknowledged;
+    }
+
+    /**
+     * Record the removal of a rule. Called while holding the lock the removal was decided under.
+     *
+     * @param remove removes the rule from the device
+     */
+    void remove(Runnable remove) {
+        operations.add(remove);
+    }
+
+    /**
+     * Send the recorded operations. Called after releasing the lock the operations were decided under.
+     * When this method returns, all operations recorded by the calling thread have been sent.
+     */
+    void flush() {
+        sending.lock();
+        try {
+            Runnable operation;
+            while ((operation = operations.poll()) != null) {
+                try {
+                    operation.run();
+                } catch (RuntimeException e) {
+                    log.warn("RuleOutbox: Sending rule failed: {}", e.getMessage());
+                }
+            }
+        } finally {
+            sending.unlock();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the rules shared by the connections.
+ * A rule is installed when the first connection acquires it and removed when the last connection
+ * releases it. The connections holding a rule are counted once each, so acquiring a rule again
+ * for the same connection does not keep the rule installed after the connection released it.
+ * The rules are sent to the devices after the atomic update of the registry, in the order of the updates.
+ *
+ * @param <K> key identifying a rule on a device
+ */
+final class RuleRegistry<K> {
+
+    private final Map<K, SharedRule> rules = new ConcurrentHashMap<>();
+    private final RuleOutbox outbox = new RuleOutbox();
+
+    /**
+     * Acquire the rule for the connection, installing it if no other connection holds it.
+     *
+     * @param key key of the rule
+     * @param owner connection acquiring the rule
+     * @param install installs the rule and returns the future of its acknowledgement,
+     *                run before this method returns
+     * @return future completed when the device acknowledged the rule
+     */
+    CompletableFuture<Void> acquire(K key, ConnectionKey owner, Supplier<CompletableFuture<Void>> install) {
+        CompletableFuture<Void> installed = rules.compute(key, (k, rule) -> {
+            SharedRule result = (rule == null) ? new SharedRule(outbox.install(install)) : rule;
+            result.owners.add(owner);
+            return result;
+        }).installed;
+        outbox.flush();
+        return installed;
+    }
+
+    /**
+     * Acquire the rule for the connection and install it even if other connections hold it.
+     * Used for temporary rules that may have expired in the device.
+     *
+     * @param key key of the rule
+     * @param owner connection acquiring the rule
+     * @param install installs the rule and returns the future of its acknowledgement,
+     *                run before this method returns
+     * @return future completed when the device acknowledged the rule
+     */
+    CompletableFuture<Void> acquireAndInstall(K key, ConnectionKey owner,
+                                              Supplier<CompletableFuture<Void>> install) {
+        CompletableFuture<Void> installed = rules.compute(key, (k, rule) -> {
+            SharedRule result = new SharedRule(outbox.install(install));
+            if (rule != null) {
+                result.owners.addAll(rule.owners);
+            }
+            result.owners.add(owner);
+            return result;
+        }).installed;
+        outbox.flush();
+        return installed;
+    }
+
+    /**
+     * Release the rule held by the connection, removing it if no other connection holds it.
+     * A rule unknown to the registry is not removed: it was installed by another instance
+     * or forgotten when the registry was cleared, and may still be held by other connections.
+     * The rules of connections taken over from another instance are adopted first, so they are known.
+     *
+     * @param key key of the rule
+     * @param owner connection releasing the rule
+     * @param remove removes the rule from the device, run before this method returns
+     */
+    void release(K key, ConnectionKey owner, Runnable remove) {
+        rules.compute(key, (k, rule) -> {
+            if (rule == null) {
+                return null;
+            }
+            rule.owners.remove(owner);
+            if (!rule.owners.isEmpty()) {
+                return rule;
+            }
+            outbox.remove(remove);
+            return null;
+        });
+        outbox.flush();
+    }
+
+    /**
+     * Register the connection as holder of a rule installed by another instance, without installing it.
+     * Used when this instance takes over the connections of a device from its former master,
+     * so the rule is removed when the last connection releases it here.
+     *
+     * @param key key of the rule
+     * @param owner connection holding the rule
+     */
+    void adopt(K key, ConnectionKey owner) {
+        rules.compute(key, (k, rule) -> {
+            SharedRule result = (rule == null) ? new SharedRule(CompletableFuture.completedFuture(null)) : rule;
+            result.owners.add(owner);
+            return result;
+        });
+    }
+
+    /**
+     * Forget that the connection holds the rule, without removing the rule from the device.
+     * Used when another instance took over the connection and holds the rule now.
+     *
+     * @param key key of the rule
+     * @param owner connection no longer held by this instance
+     */
+    void forget(K key, ConnectionKey owner) {
+        rules.computeIfPresent(key, (k, rule) -> {
+            rule.owners.remove(owner);
+            return rule.owners.isEmpty() ? null : rule;
+        });
+    }
+
+    /**
+     * Returns the future of the installation of a rule.
+     *
+     * @param key key of the rule
+     * @return future or null if no connection holds the rule
+     */
+    CompletableFuture<Void> installed(K key) {
+        SharedRule rule = rules.get(key);
+        return rule == null ? null : rule.installed;
+    }
+
+    /**
+     * Returns the keys of the rules held by the connections, including rules not yet acknowledged.
+     *
+     * @return snapshot of the rule keys
+     */
+    Set<K> keys() {
+        return new HashSet<>(rules.keySet());
+    }
+
+    /**
+     * Returns the number of installed rules.
+     *
+     * @return number of rules
+     */
+    int size() {
+        return rules.size();
+    }
+
+    /**
+     * Returns the number of connections holding the rules, summed over all rules.
+     *
+     * @return number of references
+     */
+    int references() {
+        return rules.values().stream().mapToInt(rule -> rule.owners.size()).sum();
+    }
+
+    /**
+     * Forget all rules without removing them from the devices.
+     */
+    void clear() {
+        rules.clear();
+    }
+
+    /**
+     * A rule and the connections holding it.
+     * Only modified inside the atomic compute of the registry.
+     */
+    private static final class SharedRule {
+
+        private final CompletableFuture<Void> installed;
+        private final Set<ConnectionKey> owners = new HashSet<>();
+
+        private SharedRule(CompletableFuture<Void> installed) {
+            this.installed = installed;
+        }
+    }
+}
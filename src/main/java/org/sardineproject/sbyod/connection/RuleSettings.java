@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import java.util.Objects;
+
+/**
+ * Settings of the rule installer a connection was installed with.
+ * The settings are recorded on the connection and shared with it through the cluster,
+ * so its rules are removed the way they were installed, even if the configuration changed since.
+ */
+public final class RuleSettings {
+
+    private final boolean matchEthDst;
+    private final boolean edgeAuthorization;
+    private final boolean multiTable;
+    private final boolean reactive;
+    private final boolean aggregateUserPrefixes;
+    private final boolean internetTree;
+    private final boolean flowRuleBatching;
+
+    // for serialization
+    private RuleSettings(){
+        this(false, false, false, false, false, false, false);
+    }
+
+    private RuleSettings(boolean matchEthDst, boolean edgeAuthorization, boolean multiTable, boolean reactive,
+                         boolean aggregateUserPrefixes, boolean internetTree, boolean flowRuleBatching){
+        this.matchEthDst = matchEthDst;
+        this.edgeAuthorization = edgeAuthorization;
+        this.multiTable = multiTable;
+        this.reactive = reactive;
+        this.aggregateUserPrefixes = aggregateUserPrefixes;
+        this.internetTree = internetTree;
+        this.flowRuleBatching = flowRuleBatching;
+    }
+
+    /**
+     * Returns the settings the rule installer currently installs new connections with.
+     *
+     * @return current rule settings
+     */
+    public static RuleSettings current(){
+        return new RuleSettings(DefaultConnectionRuleInstaller.MATCH_ETH_DST,
+                DefaultConnectionRuleInstaller.EDGE_AUTHORIZATION,
+                DefaultConnectionRuleInstaller.MULTI_TABLE,
+                DefaultConnectionRuleInstaller.REACTIVE,
+                DefaultConnectionRuleInstaller.AGGREGATE_USER_PREFIXES,
+                DefaultConnectionRuleInstaller.INTERNET_TREE,
+                DefaultConnectionRuleInstaller.FLOW_RULE_BATCHING);
+    }
+
+    public boolean matchEthDst(){ return matchEthDst; }
+
+    public boolean edgeAuthorization(){ return edgeAuthorization; }
+
+    public boolean multiTable(){ return multiTable; }
+
+    public boolean reactive(){ return reactive; }
+
+    public boolean aggregateUserPrefixes(){ return aggregateUserPrefixes; }
+
+    public boolean internetTree(){ return internetTree; }
+
+    public boolean flowRuleBatching(){ return flowRuleBatching; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RuleSettings that = (RuleSettings) o;
+
+        return matchEthDst == that.matchEthDst &&
+                edgeAuthorization == that.edgeAuthorization &&
+                multiTable == that.multiTable &&
+                reactive == that.reactive &&
+                aggregateUserPrefixes == that.aggregateUserPrefixes &&
+                internetTree == that.internetTree &&
+                flowRuleBatching == that.flowRuleBatching;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(matchEthDst, edgeAuthorization, multiTable, reactive, aggregateUserPrefixes,
+                internetTree, flowRuleBatching);
+    }
+
+    @Override
+    public String toString() {
+        return "RuleSettings{" +
+                "matchEthDst=" + matchEthDst +
+                ", edgeAuthorization=" + edgeAuthorization +
+                ", multiTable=" + multiTable +
+                ", reactive=" + reactive +
+                ", aggregateUserPrefixes=" + aggregateUserPrefixes +
+                ", internetTree=" + internetTree +
+                ", flowRuleBatching=" + flowRuleBatching +
+                '}';
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.event.Event;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyService;
+import org.onosproject.net.topology.TopologyVertex;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Cache of the shortest path trees rooted at the destination devices, like the devices of the service hosts.
+ * A tree is computed once with a breadth first search on the topology graph. The route of a source device
+ * is the walk up the tree, so the routes of all sources to a destination share the trunk of the tree
+ * and the rules forwarding by destination can be shared by the connections.
+ * Trees are only computed again if a topology event affects them.
+ */
+public final class ServiceTreeCache {
+
+    private static final Logger log = getLogger(PortalManager.class);
+
+    // the next hop of a device is the link with the lowest source port, then the lowest destination
+    private static final Comparator<Link> NEXT_HOP_ORDER =
+            Comparator.comparing((Link link) -> link.src().port().toLong())
+                    .thenComparing(link -> link.dst().toString());
+
+    private final TopologyService topologyService;
+    private final Map<DeviceId, Tree> trees = new ConcurrentHashMap<>();
+
+    private final AtomicLong computations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a tree cache computing missing trees on the current topology.
+     *
+     * @param topologyService topology service providing the topology graph
+     */
+    public ServiceTreeCache(TopologyService topologyService){
+        this.topologyService = checkNotNull(topologyService, "TopologyService can not be null");
+    }
+
+    /**
+     * Returns the links from the source device to the root device along the tree of the root.
+     *
+     * @param src source device
+     * @param root root device of the tree
+     * @return list of links, empty if the devices are the same or the source is not connected to the root
+     */
+    public List<Link> getRoute(DeviceId src, DeviceId root){
+        Tree tree = trees.computeIfAbsent(root, this::computeTree);
+        List<Link> route = new ArrayList<>();
+        DeviceId current = src;
+        while (!current.equals(root)) {
+            Link nextHop = tree.nextHops.get(current);
+            if (nextHop == null || route.size() > tree.nextHops.size()) {
+                return Collections.emptyList();
+            }
+            route.add(nextHop);
+            current = nextHop.dst().deviceId();
+        }
+        return route;
+    }
+
+    /**
+     * Invalidates the trees affected by the reasons of the topology event.
+     * A removed link or device invalidates the trees using it, an added link invalidates
+     * the trees it connects a new device to or offers an equal or shorter way to the root.
+     *
+     * @param event topology event
+     */
+    public void invalidate(TopologyEvent event){
+        if(event.reasons() == null || event.reasons().isEmpty()){
+            invalidateAll();
+            return;
+        }
+
+        for(Event reason : event.reasons()){
+            if(reason instanceof LinkEvent){
+                Link link = ((LinkEvent) reason).subject();
+                if(reason.type().equals(LinkEvent.Type.LINK_REMOVED)){
+                    invalidateIf(tree -> tree.uses(link));
+                } else if(reason.type().equals(LinkEvent.Type.LINK_ADDED)){
+                    invalidateIf(tree -> tree.improvedBy(link));
+                }
+            } else if(reason instanceof DeviceEvent){
+                DeviceEvent deviceEvent = (DeviceEvent) reason;
+                DeviceId deviceId = deviceEvent.subject().id();
+                if(deviceEvent.type().equals(DeviceEvent.Type.DEVICE_REMOVED)){
+                    invalidateIf(tree -> tree.distances.containsKey(deviceId));
+                } else if(deviceEvent.type().equals(DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED)){
+                    invalidateAll();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached trees.
+     */
+    public void invalidateAll(){
+        log.debug("ServiceTreeCache: Invalidating all {} cached trees", trees.size());
+        invalidations.addAndGet(trees.size());
+        trees.clear();
+    }
+
+    /**
+     * Returns the number of cached trees.
+     *
+     * @return number of trees
+     */
+    public long size(){
+        return trees.size();
+    }
+
+    /**
+     * Returns the number of trees computed since the cache was created.
+     *
+     * @return number of computations
+     */
+    public long computations(){
+        return computations.get();
+    }
+
+    /**
+     * Returns the number of trees invalidated by topology changes since the cache was created.
+     *
+     * @return number of invalidations
+     */
+    public long invalidations(){
+        return invalidations.get();
+    }
+
+    // remove the trees matching the condition
+    private void invalidateIf(Predicate<Tree> condition){
+        trees.entrySet().removeIf(entry -> {
+            if (condition.test(entry.getValue())) {
+                invalidations.incrementAndGet();
+                log.debug("ServiceTreeCache: Invalidated tree of {}", entry.getKey());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Computes the tree of a root device: the hop distance of every device to the root
+     * by a breadth first search over the reversed links and the next hop of every device.
+     *
+     * @param root root device
+     * @return tree
+     */
+    private Tree computeTree(DeviceId root){
+        TopologyGraph graph = topologyService.getGraph(topologyService.currentTopology());
+        Map<DeviceId, TopologyVertex> vertexes = new HashMap<>();
+        graph.getVertexes().forEach(vertex -> vertexes.put(vertex.deviceId(), vertex));
+
+        Map<DeviceId, Integer> distances = new HashMap<>();
+        distances.put(root, 0);
+        Deque<DeviceId> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            DeviceId current = queue.poll();
+            TopologyVertex vertex = vertexes.get(current);
+            if (vertex == null) {
+                continue;
+            }
+            for (TopologyEdge edge : graph.getEdgesTo(vertex)) {
+                DeviceId previous = edge.link().src().deviceId();
+                if (!distances.containsKey(previous)) {
+                    distances.put(previous, distances.get(current) + 1);
+                    queue.add(previous);
+                }
+            }
+        }
+
+        // every device forwards over its first link to a device one hop closer to the root
+        Map<DeviceId, Link> nextHops = new HashMap<>();
+        for (Map.Entry<DeviceId, Integer> entry : distances.entrySet()) {
+            TopologyVertex vertex = vertexes.get(entry.getKey());
+            if (vertex == null || entry.getValue() == 0) {
+                continue;
+            }
+            graph.getEdgesFrom(vertex).stream()
+                    .map(TopologyEdge::link)
+                    .filter(link -> distances.getOrDefault(link.dst().deviceId(), -1) == entry.getValue() - 1)
+                    .min(NEXT_HOP_ORDER)
+                    .ifPresent(link -> nextHops.put(entry.getKey(), link));
+        }
+
+        computations.incrementAndGet();
+        log.debug("ServiceTreeCache: Computed tree of {} spanning {} devices", root, distances.size());
+        return new Tree(distances, nextHops);
+    }
+
+    private static boolean sameLink(Link a, Link b){
+        return sameConnectPoint(a.src(), b.src()) && sameConnectPoint(a.dst(), b.dst());
+    }
+
+    private static boolean sameConnectPoint(ConnectPoint a, ConnectPoint b){
+        return a.deviceId().equals(b.deviceId()) && a.port().equals(b.port());
+    }
+
+    /**
+     * Shortest path tree of a root device.
+     */
+    private static final class Tree {
+
+        // hop distance of the devices to the root
+        private final Map<DeviceId, Integer> distances;
+        // link of a device towards the root
+        private final Map<DeviceId, Link> nextHops;
+
+        private Tree(Map<DeviceId, Integer> distances, Map<DeviceId, Link> nextHops){
+            this.distances = distances;
+            this.nextHops = nextHops;
+        }
+
+        // the tree forwards over the link
+        private boolean uses(Link link){
+            Link nextHop = nextHops.get(link.src().deviceId());
+            return nextHop != null && sameLink(nextHop, link);
+        }
+
+        // the link connects a new device or offers an equal or shorter way to the root,
+        // an equal way might be chosen as next hop
+        private boolean improvedBy(Link link){
+            Integer dstDistance = distances.get(link.dst().deviceId());
+            if (dstDistance == null) {
+                return false;
+            }
+            Integer srcDistance = distances.get(link.src().deviceId());
+            return srcDistance == null || dstDistance + 1 <= srcDistance;
+        }
+    }
+}
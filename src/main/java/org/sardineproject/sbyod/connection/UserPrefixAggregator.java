@@ -0,0 +1,323 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip4Prefix;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.sardineproject.sbyod.portal.PortalManager;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Aggregates the rules of users sharing the same service, in port and out port on a device.
+ * The rules of a group differ only in the source IP address of the user, so the /32 matches
+ * of the users are replaced by the smallest set of prefixes covering exactly the user addresses.
+ * The prefixes of a group are compiled again whenever a user joins or leaves the group,
+ * only the prefixes that changed are installed or removed. The changed prefixes are sent
+ * after leaving the monitor of the aggregator.
+ * Unlike the rule of a single user, a prefix rule does not match the MAC address of the users,
+ * so the users are only bound to their IP addresses.
+ */
+final class UserPrefixAggregator {
+
+    private static final Logger log = getLogger(PortalManager.class);
+
+    // sends an objective to a device and returns the future of its acknowledgement
+    private final BiFunction<DeviceId, ForwardingObjective, CompletableFuture<Void>> sender;
+    // the objectives of the compiled prefixes waiting to be sent
+    private final RuleOutbox outbox = new RuleOutbox();
+
+    // groups of users mapped by the key of the rule without the user specific matches
+    private final Map<ObjectiveKey, PrefixGroup> groups = new HashMap<>();
+    // group memberships of the connections
+    private final Map<ConnectionKey, Set<Member>> memberships = new HashMap<>();
+
+    UserPrefixAggregator(BiFunction<DeviceId, ForwardingObjective, CompletableFuture<Void>> sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Set the group memberships of a connection, joining the new groups and leaving the old ones.
+     * The prefixes of all affected groups are compiled again.
+     *
+     * @param owner connection
+     * @param members memberships of the connection, empty to leave all groups
+     * @return future completed when the prefixes covering the connection are acknowledged
+     */
+    CompletableFuture<Void> setMembers(ConnectionKey owner, Set<Member> members) {
+        CompletableFuture<Void> installed = updateMembers(owner, members);
+        outbox.flush();
+        return installed;
+    }
+
+    /**
+     * Set the group memberships of a connection and compile the affected groups.
+     *
+     * @param owner connection
+     * @param members memberships of the connection
+     * @return future completed when the prefixes covering the connection are acknowledged
+     */
+    private synchronized CompletableFuture<Void> updateMembers(ConnectionKey owner, Set<Member> members) {
+        Set<Member> oldMembers = memberships.getOrDefault(owner, Collections.emptySet());
+        if (members.isEmpty()) {
+            memberships.remove(owner);
+        } else {
+            memberships.put(owner, new HashSet<>(members));
+        }
+
+        Set<ObjectiveKey> changed = new HashSet<>();
+        for (Member member : oldMembers) {
+            if (!members.contains(member)) {
+                PrefixGroup group = groups.get(member.group);
+                if (group != null && group.leave(member.userIp, owner)) {
+                    changed.add(member.group);
+                }
+            }
+        }
+        for (Member member : members) {
+            if (!oldMembers.contains(member) &&
+                    groups.computeIfAbsent(member.group, key -> new PrefixGroup(key, member.appId))
+                            .join(member.userIp, owner)) {
+                changed.add(member.group);
+            }
+        }
+        changed.forEach(this::compile);
+
+        List<CompletableFuture<Void>> installed = new ArrayList<>();
+        for (Member member : members) {
+            PrefixGroup group = groups.get(member.group);
+            if (group != null) {
+                group.installed.forEach((prefix, future) -> {
+                    if (prefix.contains(member.userIp)) {
+                        installed.add(future);
+                    }
+                });
+            }
+        }
+        return CompletableFuture.allOf(installed.toArray(new CompletableFuture[installed.size()]));
+    }
+
+    /**
+     * Returns the objectives installing the prefixes of all groups
+     *
+     * @return objectives mapped by device
+     */
+    synchronized Map<DeviceId, List<ForwardingObjective>> objectives() {
+        Map<DeviceId, List<ForwardingObjective>> result = new HashMap<>();
+        groups.forEach((key, group) -> group.installed.keySet().forEach(prefix ->
+                result.computeIfAbsent(key.deviceId(), d -> new ArrayList<>()).add(group.objective(prefix).add())));
+        return result;
+    }
+
+    /**
+     * Forget the group memberships of a connection without removing the prefixes from the devices.
+     * Used when another instance took over the connection and holds its prefixes now.
+     *
+     * @param owner connection
+     */
+    synchronized void forget(ConnectionKey owner) {
+        Set<Member> members = memberships.remove(owner);
+        if (members == null) {
+            return;
+        }
+        for (Member member : members) {
+            PrefixGroup group = groups.get(member.group);
+            if (group != null) {
+                group.leave(member.userIp, owner);
+                if (group.members.isEmpty()) {
+                    groups.remove(member.group);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget all groups without removing their rules from the devices.
+     */
+    synchronized void clear() {
+        groups.clear();
+        memberships.clear();
+    }
+
+    /**
+     * Compile the prefixes of a group again. The new prefixes are installed
+     * before the obsolete prefixes are removed, so no user loses its connection.
+     *
+     * @param key key of the group
+     */
+    private void compile(ObjectiveKey key) {
+        PrefixGroup group = groups.get(key);
+        if (group == null) {
+            return;
+        }
+        Set<Ip4Prefix> cover = minimalCover(group.members.keySet());
+
+        int added = 0;
+        for (Ip4Prefix prefix : cover) {
+            if (!group.installed.containsKey(prefix)) {
+                ForwardingObjective objective = group.objective(prefix).add();
+                group.installed.put(prefix, outbox.install(() -> sender.apply(key.deviceId(), objective)));
+                added++;
+            }
+        }
+        int removed = 0;
+        for (Ip4Prefix prefix : new ArrayList<>(group.installed.keySet())) {
+            if (!cover.contains(prefix)) {
+                group.installed.remove(prefix);
+                ForwardingObjective objective = group.objective(prefix).remove();
+                outbox.remove(() -> sender.apply(key.deviceId(), objective));
+                removed++;
+            }
+        }
+        if (group.members.isEmpty()) {
+            groups.remove(key);
+        }
+        log.debug("UserPrefixAggregator: Group on device {} with {} users compiled to {} prefixes " +
+                        "(added {}, removed {})",
+                new Object[]{key.deviceId(), group.members.size(), cover.size(), added, removed});
+    }
+
+    /**
+     * Returns the smallest set of prefixes covering exactly the given addresses.
+     * Two sibling prefixes are merged to their parent prefix, starting with the /32 prefixes
+     * of the addresses up to the shortest prefix.
+     *
+     * @param addresses IPv4 addresses
+     * @return set of prefixes
+     */
+    static Set<Ip4Prefix> minimalCover(Collection<Ip4Address> addresses) {
+        Set<Ip4Prefix> cover = new HashSet<>();
+        Set<Long> networks = new HashSet<>();
+        for (Ip4Address address : addresses) {
+            networks.add(address.toInt() & 0xffffffffL);
+        }
+
+        for (int length = 32; length > 0 && !networks.isEmpty(); length--) {
+            long size = 1L << (32 - length);
+            Set<Long> parents = new HashSet<>();
+            for (long network : networks) {
+                if (networks.contains(network ^ size)) {
+                    parents.add(network & ~size);
+                } else {
+                    cover.add(Ip4Prefix.valueOf((int) network, length));
+                }
+            }
+            networks = parents;
+        }
+        networks.forEach(network -> cover.add(Ip4Prefix.valueOf(network.intValue(), 0)));
+        return cover;
+    }
+
+    /**
+     * Membership of a user address in a group.
+     */
+    static final class Member {
+
+        private final ObjectiveKey group;
+        private final Ip4Address userIp;
+        private final ApplicationId appId;
+
+        /**
+         * Creates a membership.
+         *
+         * @param group key of the rule without the user specific matches
+         * @param userIp IP address of the user
+         * @param appId application installing the rules
+         */
+        Member(ObjectiveKey group, Ip4Address userIp, ApplicationId appId) {
+            this.group = group;
+            this.userIp = userIp;
+            this.appId = appId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Member that = (Member) o;
+            return group.equals(that.group) && userIp.equals(that.userIp);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(group, userIp);
+        }
+    }
+
+    /**
+     * Users of a group and the installed prefixes covering them.
+     */
+    private static final class PrefixGroup {
+
+        private final ObjectiveKey key;
+        private final ApplicationId appId;
+        // connections holding the user addresses
+        private final Map<Ip4Address, Set<ConnectionKey>> members = new HashMap<>();
+        private final Map<Ip4Prefix, CompletableFuture<Void>> installed = new HashMap<>();
+
+        private PrefixGroup(ObjectiveKey key, ApplicationId appId) {
+            this.key = key;
+            this.appId = appId;
+        }
+
+        // returns true if the address is new to the group
+        private boolean join(Ip4Address userIp, ConnectionKey owner) {
+            Set<ConnectionKey> owners = members.computeIfAbsent(userIp, ip -> new HashSet<>());
+            owners.add(owner);
+            return owners.size() == 1;
+        }
+
+        // returns true if the address left the group
+        private boolean leave(Ip4Address userIp, ConnectionKey owner) {
+            Set<ConnectionKey> owners = members.get(userIp);
+            if (owners == null || !owners.remove(owner) || !owners.isEmpty()) {
+                return false;
+            }
+            members.remove(userIp);
+            return true;
+        }
+
+        private DefaultForwardingObjective.Builder objective(Ip4Prefix prefix) {
+            return DefaultForwardingObjective.builder()
+                    .withSelector(DefaultTrafficSelector.builder(key.selector()).matchIPSrc(prefix).build())
+                    .withTreatment(key.treatment())
+                    .withFlag(ForwardingObjective.Flag.VERSATILE)
+                    .fromApp(appId)
+                    .withPriority(key.priority())
+                    .makePermanent();
+        }
+    }
+}
@@ -22,12 +22,15 @@ import org.onlab.packet.IPv4;
 import org.onlab.packet.IpAddress;
 import org.onlab.packet.TpPort;
 import org.onosproject.core.ApplicationIdStore;
+import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.Host;
 import org.onosproject.net.config.NetworkConfigRegistry;
 import org.onosproject.net.host.HostEvent;
 import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
 import org.sardineproject.sbyod.configuration.ByodConfig;
+import org.sardineproject.sbyod.connection.BaselineTemplateService;
+import org.sardineproject.sbyod.connection.DefaultBaselineTemplateService;
 import org.sardineproject.sbyod.portal.PortalManager;
 import org.sardineproject.sbyod.portal.PortalService;
 import org.sardineproject.sbyod.connection.Connection;
@@ -38,6 +41,8 @@ import org.sardineproject.sbyod.service.Service;
 import org.sardineproject.sbyod.service.ServiceStore;
 import org.slf4j.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import static org.slf4j.LoggerFactory.getLogger;
@@ -70,6 +75,12 @@ public class DefaultDnsService implements DnsService {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected PortalService portalService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected BaselineTemplateService baselineTemplateService;
+
 
     private HostListener dnsHostListener;
 
@@ -125,19 +136,29 @@ public class DefaultDnsService implements DnsService {
 
             log.info("DefaultDnsService: Added DNS for TCP and UDP protocol.");
 
+            // the dns is reachable for all hosts through the template rules of the edge ports
+            if(DefaultBaselineTemplateService.TEMPLATE_BASELINE){
+                baselineTemplateService.addService(dnsServiceTcp);
+                baselineTemplateService.addService(dnsServiceUdp);
+                return;
+            }
+
             // connect all valid hosts to the dns service
+            List<Connection> connections = new ArrayList<>();
             for(Host host : hostService.getHosts()){
                 Set<IpAddress> intersection = Sets.newHashSet(host.ipAddresses());
                 intersection.retainAll(portalService.getPortalIp());
                 // do not install the service for the router itself and the portal
                 if(!host.equals(router) && intersection.isEmpty()){
                     // install the connection for both services
-                    connectionStore.addConnection(new DefaultConnection(host, dnsServiceTcp));
-                    connectionStore.addConnection(new DefaultConnection(host, dnsServiceUdp));
+                    connections.add(new DefaultConnection(host, dnsServiceTcp));
+                    connections.add(new DefaultConnection(host, dnsServiceUdp));
 
                     log.info("DefaultDnsService: Added dns connection for host={}", host.id());
                 }
             }
+            // install the connections of all hosts at once
+            connectionStore.addConnections(connections);
 
             // activate the dns host listener
             hostService.addListener(dnsHostListener);
@@ -155,6 +176,10 @@ public class DefaultDnsService implements DnsService {
         hostService.removeListener(dnsHostListener);
         dnsHostListener = new DnsHostListener();
 
+        if(dnsServiceTcp != null)
+            baselineTemplateService.removeService(dnsServiceTcp);
+        if(dnsServiceUdp != null)
+            baselineTemplateService.removeService(dnsServiceUdp);
         if(dnsServiceTcp != null)
             removeConnection(dnsServiceTcp);
         if(dnsServiceUdp != null)
@@ -195,8 +220,10 @@ public class DefaultDnsService implements DnsService {
          */
         @Override
         public void event(HostEvent event) {
+            // the connection is added by the master of the device the host is located at
             if(event.type().equals(HostEvent.Type.HOST_ADDED) &&
-                    !event.subject().equals(router)){
+                    !event.subject().equals(router) &&
+                    mastershipService.isLocalMaster(event.subject().location().deviceId())){
                 Host subject = event.subject();
                 log.info("DefaultDnsService: Adding dns connection for host={}", subject.id());
                 connectionStore.addConnection(new DefaultConnection(subject, dnsServiceTcp));
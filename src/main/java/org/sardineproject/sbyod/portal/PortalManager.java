@@ -25,11 +25,14 @@ import org.apache.felix.scr.annotations.*;
 import org.onlab.packet.*;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
+import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.config.NetworkConfigRegistry;
 import org.onosproject.net.flow.*;
 import org.onosproject.net.host.*;
 import org.onosproject.net.Host;
 import org.sardineproject.sbyod.configuration.ByodConfig;
+import org.sardineproject.sbyod.connection.BaselineTemplateService;
+import org.sardineproject.sbyod.connection.DefaultBaselineTemplateService;
 import org.sardineproject.sbyod.service.ServiceId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +72,9 @@ public class PortalManager implements PortalService {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected NetworkConfigRegistry cfgService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MastershipService mastershipService;
+
     // own services
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected ConnectionStore connectionStore;
@@ -79,6 +85,9 @@ public class PortalManager implements PortalService {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected PacketRedirectService packetRedirectService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected BaselineTemplateService baselineTemplateService;
+
 
     private HostListener portalConnectionHostListener;
 
@@ -148,6 +157,7 @@ public class PortalManager implements PortalService {
                 // remove obsolete connections of old portal
                 if (portalId != null) {
                     Service oldPortalService = serviceStore.getService(portalId);
+                    baselineTemplateService.removeService(oldPortalService);
                     serviceStore.removeService(oldPortalService);
                 }
 
@@ -220,6 +230,23 @@ public class PortalManager implements PortalService {
         return null;
     }
 
+    /**
+     * Connect all hosts to the portal again, either through a connection per host
+     * or through the template rules of the baseline services
+     */
+    @Override
+    public void updatePortalConnections() {
+        Service portalService = getPortalService();
+        if(portalService == null){
+            return;
+        }
+        baselineTemplateService.removeService(portalService);
+        connectionStore.getConnections(portalService).forEach(c -> connectionStore.removeConnection(c));
+        connectHostsToPortal();
+        log.info("PortalManager: Updated portal connections, template baseline = {}",
+                DefaultBaselineTemplateService.TEMPLATE_BASELINE);
+    }
+
     /**
      * Add a connection to the portal for all hosts in the network
      */
@@ -230,32 +257,41 @@ public class PortalManager implements PortalService {
         if(portalId != null)
             portalService = serviceStore.getService(portalId);
 
+        // the portal is reachable for all hosts through the template rules of the edge ports
+        if(portalService != null && DefaultBaselineTemplateService.TEMPLATE_BASELINE){
+            baselineTemplateService.addService(portalService);
+            return;
+        }
+
         // get the default gateway host
         ByodConfig cfg = cfgService.getConfig(appId, ByodConfig.class);
         Host defaultGw = getDefaultGatewayHost(cfg.defaultGateway());
 
         hostLock.lock();
+        try {
+            if (portalService != null) {
+                // install connection to the portal for every host in the network
+                List<Connection> connections = new ArrayList<>();
+                Iterable<Host> hosts = hostService.getHosts();
+                for (Host host : hosts) {
+
+                    // check if the host holds any of the service IP addresses
+                    Set<IpAddress> intersection = Sets.newHashSet(host.ipAddresses());
+                    intersection.retainAll(portalService.ipAddressSet());
+                    // no connection for the portal itself and the default gateway
+                    if (intersection.isEmpty() &&
+                            ((defaultGw == null) || !defaultGw.equals(host))) {
+                        connections.add(new DefaultConnection(host, portalService));
+                        log.info("PortalManager: connectHostsToPortal() add connection of host {} to portal", host.id());
+                    }
 
-        if(portalService != null) {
-            // install connection to the portal for every host in the network
-            Iterable<Host> hosts = hostService.getHosts();
-            for (Host host : hosts) {
-
-                // check if the host holds any of the service IP addresses
-                Set<IpAddress> intersection = Sets.newHashSet(host.ipAddresses());
-                intersection.retainAll(portalService.ipAddressSet());
-                // no connection for the portal itself and the default gateway
-                if(intersection.isEmpty() &&
-                        ((defaultGw == null) || !defaultGw.equals(host))) {
-                    Connection connection = new DefaultConnection(host, portalService);
-                    connectionStore.addConnection(connection);
-                    log.info("PortalManager: connectHostsToPortal() add connection of host {} to portal", host.id());
                 }
-
+                // install the connections of all hosts at once
+                connectionStore.addConnections(connections);
             }
+        } finally {
+            hostLock.unlock();
         }
-
-        hostLock.unlock();
     }
 
     /**
@@ -271,52 +307,59 @@ public class PortalManager implements PortalService {
         @Override
         public void event(HostEvent event) {
             hostLock.lock();
+            try {
+                // the connection is added by the master of the device the host is located at
+                if(event.type().equals(HostEvent.Type.HOST_ADDED) &&
+                        mastershipService.isLocalMaster(event.subject().location().deviceId())){
+
+                    if(portalId == null){
+                        log.warn("PortalManager: No portal defined. No rules installed.");
+                        return;
+                    }
+                    // the portal is reachable through the template rules, no connection per host
+                    if(DefaultBaselineTemplateService.TEMPLATE_BASELINE){
+                        return;
+                    }
+                    // get the portal service
+                    Service portalService = serviceStore.getService(portalId);
 
-            if(event.type().equals(HostEvent.Type.HOST_ADDED)){
-
-                if(portalId == null){
-                    log.warn("PortalManager: No portal defined. No rules installed.");
-                    return;
-                }
-                // get the portal service
-                Service portalService = serviceStore.getService(portalId);
-
-                if(portalService == null){
-                    log.warn("PortalManager: No portal defined with ID {}", portalId.toString());
-                    return;
-                }
+                    if(portalService == null){
+                        log.warn("PortalManager: No portal defined with ID {}", portalId.toString());
+                        return;
+                    }
 
-                // get the default gateway host
-                ByodConfig cfg = cfgService.getConfig(appId, ByodConfig.class);
-                Host defaultGw = getDefaultGatewayHost(cfg.defaultGateway());
-
-                Host eventSubject = event.subject();
-
-                // check if the host holds any of the service IP addresses
-                Set<IpAddress> intersection = Sets.newHashSet(eventSubject.ipAddresses());
-                intersection.retainAll(portalService.ipAddressSet());
-                // only install if host is not the portal or the default gateway
-                if(intersection.isEmpty() &&
-                        ((defaultGw == null) || !defaultGw.equals(eventSubject))) {
-
-                    // create a new connection between the portal and the subject
-                    Connection connection = new DefaultConnection(eventSubject, portalService);
-
-                    // check if the host has obtained an IP address yet
-                    if(eventSubject.ipAddresses().isEmpty()){
-                        log.info("PortalManager: PortalConnectionHostListener - Portal connection for host {} " +
-                                "installed. Host has no IP address.", eventSubject.id());
-                        // flows are installed as soon as the host gets an ip address (Host_Update event)
-                        // in class defaultConnectionStore
-                    } else{
-                        log.info("PortalManager: PortalConnectionHostListener - Portal connection for host {} " +
-                                "installed.", eventSubject.id());
+                    // get the default gateway host
+                    ByodConfig cfg = cfgService.getConfig(appId, ByodConfig.class);
+                    Host defaultGw = getDefaultGatewayHost(cfg.defaultGateway());
+
+                    Host eventSubject = event.subject();
+
+                    // check if the host holds any of the service IP addresses
+                    Set<IpAddress> intersection = Sets.newHashSet(eventSubject.ipAddresses());
+                    intersection.retainAll(portalService.ipAddressSet());
+                    // only install if host is not the portal or the default gateway
+                    if(intersection.isEmpty() &&
+                            ((defaultGw == null) || !defaultGw.equals(eventSubject))) {
+
+                        // create a new connection between the portal and the subject
+                        Connection connection = new DefaultConnection(eventSubject, portalService);
+
+                        // check if the host has obtained an IP address yet
+                        if(eventSubject.ipAddresses().isEmpty()){
+                            log.info("PortalManager: PortalConnectionHostListener - Portal connection for host {} " +
+                                    "installed. Host has no IP address.", eventSubject.id());
+                            // flows are installed as soon as the host gets an ip address (Host_Update event)
+                            // in class defaultConnectionStore
+                        } else{
+                            log.info("PortalManager: PortalConnectionHostListener - Portal connection for host {} " +
+                                    "installed.", eventSubject.id());
+                        }
+                        connectionStore.addConnection(connection);
                     }
-                    connectionStore.addConnection(connection);
                 }
+            } finally {
+                hostLock.unlock();
             }
-
-            hostLock.unlock();
         }
     }
 
@@ -59,4 +59,10 @@ public interface PortalService {
      */
     Service getPortalService();
 
+    /**
+     * Connect all hosts to the portal again, either through a connection per host
+     * or through the template rules of the baseline services
+     */
+    void updatePortalConnections();
+
 }
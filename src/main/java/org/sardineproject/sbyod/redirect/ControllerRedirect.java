@@ -30,13 +30,19 @@ import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flowobjective.DefaultForwardingObjective;
 import org.onosproject.net.flowobjective.FlowObjectiveService;
 import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.meter.*;
 import org.onosproject.net.packet.*;
+import org.sardineproject.sbyod.connection.ObjectiveRetryService;
 import org.sardineproject.sbyod.portal.PortalService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by lorry on 11.12.15.
@@ -46,6 +52,9 @@ import java.util.*;
 public class ControllerRedirect implements PacketRedirectService {
 
     private static final int REDIRECT_PRIORITY = 200;
+    private static final int HTTP_PORT = 80;
+    // seconds an over budget host is dropped at its edge port
+    private static final int HOST_BLOCK_TIMEOUT = 10;
     private static final String APPLICATION_ID = PortalService.APP_ID;
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -57,7 +66,10 @@ public class ControllerRedirect implements PacketRedirectService {
 
     public static String http_redirect;
 
-    private static int sequence_number = 0;
+    // packet ins per second answered for a single host, 0 to disable the limit
+    public static volatile int HOST_PACKET_RATE = 20;
+    // packets per second sent to the controller by a device, 0 to disable the meter
+    public static volatile int PUNT_RATE = 1000;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected PacketService packetService;
@@ -71,12 +83,40 @@ public class ControllerRedirect implements PacketRedirectService {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected FlowObjectiveService flowObjectiveService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ObjectiveRetryService objectiveRetryService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MeterService meterService;
+
 
     private ReactivePacketProcessor processor;
 
+    // answers the packets of the users with the precomputed response frames
+    private volatile RedirectResponder responder;
+
+    // treatments of the packet outs mapped by the output port
+    private final Map<PortNumber, TrafficTreatment> treatments = new ConcurrentHashMap<>();
+
     // mapping the installed flow rules to the device ID for removal at deactivation
     Map<DeviceId, List<ForwardingObjective>> installedRules;
 
+    // meters limiting the packets sent to the controller, mapped by the device
+    private final Map<DeviceId, MeterId> installedMeters = new ConcurrentHashMap<>();
+
+    // packet ins received by the processor
+    private final AtomicLong received = new AtomicLong();
+    // packet ins of other traffic than tcp port 80 left to the other processors
+    private final AtomicLong ignored = new AtomicLong();
+    // packet ins answered with a packet out to the user
+    private final AtomicLong redirected = new AtomicLong();
+    // tcp port 80 packet ins without answer, e.g. acknowledgements
+    private final AtomicLong dropped = new AtomicLong();
+    // tcp port 80 packet ins of hosts over their budget
+    private final AtomicLong limited = new AtomicLong();
+
+    private final HostRateLimiter hostRateLimiter = new HostRateLimiter(HOST_BLOCK_TIMEOUT);
+
     @Activate
     protected void activate(){
     }
@@ -97,11 +137,13 @@ public class ControllerRedirect implements PacketRedirectService {
                 "Location: " + redirectUrl + "\r\n" +
                 "Content-Length: 0\r\n" +
                 "Connection: close\r\n\r\n";
+        responder = new RedirectResponder(http_redirect.getBytes(StandardCharsets.US_ASCII));
 
-        // initiate empty rules map
-        installedRules = new HashMap<>();
-        // install rules sending relevant packets to controller
-        installRedirectRules();
+        // initiate empty rules map and install rules sending relevant packets to controller
+        synchronized (this) {
+            installedRules = new HashMap<>();
+            installRedirectRules();
+        }
 
         // add packet processor monitoring packets
         processor = new ReactivePacketProcessor();
@@ -124,49 +166,191 @@ public class ControllerRedirect implements PacketRedirectService {
         }
 
         // remove installed redirect rules
-        if(installedRules != null) {
-            for (DeviceId deviceId : installedRules.keySet()) {
-                installedRules.get(deviceId)
-                        .forEach(fo -> flowObjectiveService.forward(deviceId, fo));
-            }
-            installedRules = null;
+        synchronized (this) {
+            removeRedirectRules();
+            this.installedRules = null;
         }
 
-        this.installedRules = null;
-
         log.debug("ControllerRedirect: stopped!");
     }
 
+    /**
+     * Returns the counters of the packets received by the redirect
+     *
+     * @return redirect counters
+     */
+    @Override
+    public RedirectCounters getCounters() {
+        RedirectResponder currentResponder = responder;
+        return new RedirectCounters(received.get(), ignored.get(), redirected.get(), dropped.get(),
+                limited.get(), currentResponder == null ? 0 : currentResponder.flowCount());
+    }
+
+    /**
+     * Returns the packet ins dropped per host because the host exceeded its budget
+     *
+     * @return dropped packet ins mapped by the mac address of the host
+     */
+    @Override
+    public Map<MacAddress, Long> getHostDrops() {
+        return hostRateLimiter.drops();
+    }
+
+    /**
+     * Reinstall the rules sending the packets to the controller with the current punt rate
+     */
+    @Override
+    public synchronized void updateRedirectRules() {
+        if(installedRules != null) {
+            removeRedirectRules();
+            installedRules = new HashMap<>();
+            installRedirectRules();
+        }
+    }
+
+    /**
+     * Returns the meters limiting the packets sent to the controller
+     *
+     * @return meters mapped by the device
+     */
+    @Override
+    public Map<DeviceId, Meter> getPuntMeters() {
+        Map<DeviceId, Meter> meters = new HashMap<>();
+        installedMeters.forEach((deviceId, meterId) -> {
+            Meter meter = meterService.getMeter(deviceId, meterId);
+            if (meter != null) {
+                meters.put(deviceId, meter);
+            }
+        });
+        return meters;
+    }
+
     /**
      * Install flow rules on network switches sending traffic with TCP destination port 80 and
      * traffic with source TCP port 80 and source IP address of the host redirecting to,
      * to the controller.
+     * The packets sent to the controller are limited by a meter on every device supporting meters.
      */
     private void installRedirectRules(){
 
-        ForwardingObjective.Builder port80ToControllerRule = getPort80ToControllerRule();
-
             for (Device device : deviceService.getDevices()) {
-                // install rule sending every unhandled traffic on port 80 to controller
-                flowObjectiveService.forward(device.id(), port80ToControllerRule.add());
-
-                // save installed rules in map
-                if (installedRules.get(device.id()) != null) {
-                    installedRules.get(device.id()).add(port80ToControllerRule.remove());
+                if (PUNT_RATE > 0) {
+                    installMeteredRule(device.id());
                 } else {
-                    installedRules.put(device.id(), Lists.newArrayList(port80ToControllerRule.remove()));
+                    installPuntRule(device.id(), null);
                 }
             }
     }
 
-    private ForwardingObjective.Builder getPort80ToControllerRule(){
+    /**
+     * Request a meter dropping the packets above the punt rate on the device.
+     * The rule sending packets to the controller is installed with the meter once the device accepted it,
+     * without the meter if the device does not support meters.
+     *
+     * @param deviceId device
+     */
+    private void installMeteredRule(DeviceId deviceId){
+
+        CompletableFuture<MeterId> meterId = new CompletableFuture<>();
+        MeterContext meterContext = new MeterContext() {
+            @Override
+            public void onSuccess(MeterRequest op) {
+                meterId.thenAccept(id -> installPuntRule(deviceId, id));
+            }
+
+            @Override
+            public void onError(MeterRequest op, MeterFailReason reason) {
+                log.warn("ControllerRedirect: Meter not supported by {} ({}), installing redirect rule without meter",
+                        deviceId, reason);
+                meterId.thenAccept(id -> installedMeters.remove(deviceId, id));
+                installPuntRule(deviceId, null);
+            }
+        };
+
+        try {
+            Meter meter = meterService.submit(getPuntMeterRequest(deviceId).withContext(meterContext).add());
+            installedMeters.put(deviceId, meter.id());
+            meterId.complete(meter.id());
+        } catch (RuntimeException e) {
+            log.warn("ControllerRedirect: Could not request meter on {}, installing redirect rule without meter: {}",
+                    deviceId, e.getMessage());
+            installPuntRule(deviceId, null);
+        }
+    }
+
+    /**
+     * Install the rule sending every unhandled traffic on port 80 to the controller,
+     * retried until the device acknowledges it
+     *
+     * @param deviceId device
+     * @param meterId meter limiting the packets sent to the controller, null if not metered
+     */
+    private synchronized void installPuntRule(DeviceId deviceId, MeterId meterId){
+
+        // the redirect has been stopped or the meter replaced meanwhile
+        if (installedRules == null || (meterId != null && !meterId.equals(installedMeters.get(deviceId)))) {
+            return;
+        }
+
+        ForwardingObjective.Builder port80ToControllerRule = getPort80ToControllerRule(meterId);
+        objectiveRetryService.forward(deviceId, port80ToControllerRule.add());
+
+        // save installed rules in map
+        if (installedRules.get(deviceId) != null) {
+            installedRules.get(deviceId).add(port80ToControllerRule.remove());
+        } else {
+            installedRules.put(deviceId, Lists.newArrayList(port80ToControllerRule.remove()));
+        }
+    }
+
+    /**
+     * Remove the installed rules sending packets to the controller and their meters
+     */
+    private void removeRedirectRules(){
+        if(installedRules != null) {
+            for (DeviceId deviceId : installedRules.keySet()) {
+                installedRules.get(deviceId)
+                        .forEach(fo -> objectiveRetryService.forward(deviceId, fo));
+            }
+        }
+        installedMeters.forEach((deviceId, meterId) ->
+                meterService.withdraw(getPuntMeterRequest(deviceId).remove(), meterId));
+        installedMeters.clear();
+    }
+
+    /**
+     * Generate the request of a meter dropping the packets above the punt rate
+     *
+     * @param deviceId device of the meter
+     * @return meter request builder
+     */
+    private MeterRequest.Builder getPuntMeterRequest(DeviceId deviceId){
+
+        Band band = DefaultBand.builder()
+                .ofType(Band.Type.DROP)
+                .withRate(PUNT_RATE)
+                .burstSize(PUNT_RATE)
+                .build();
+
+        return DefaultMeterRequest.builder()
+                .forDevice(deviceId)
+                .fromApp(applicationIdStore.getAppId(APPLICATION_ID))
+                .withUnit(Meter.Unit.PKTS_PER_SEC)
+                .burst()
+                .withBands(Collections.singleton(band));
+    }
+
+    private ForwardingObjective.Builder getPort80ToControllerRule(MeterId meterId){
         TrafficSelector.Builder trafficSelectorBuilder = DefaultTrafficSelector.builder()
                 .matchEthType(Ethernet.TYPE_IPV4)
                 .matchIPProtocol(IPv4.PROTOCOL_TCP)
-                .matchTcpDst(TpPort.tpPort(80));
+                .matchTcpDst(TpPort.tpPort(HTTP_PORT));
 
         TrafficTreatment.Builder trafficTreatmentBuilder = DefaultTrafficTreatment.builder()
                 .setOutput(PortNumber.CONTROLLER);
+        if (meterId != null) {
+            trafficTreatmentBuilder.meter(meterId);
+        }
 
         return DefaultForwardingObjective.builder()
                 .withSelector(trafficSelectorBuilder.build())
@@ -178,25 +362,64 @@ public class ControllerRedirect implements PacketRedirectService {
     }
 
     /**
-     * Request packet in of IPv4 packets via packet service.
+     * Request packet in of TCP packets to port 80 via packet service.
+     * Authorized traffic matches the connection rules of higher priority,
+     * so only the http traffic of unauthorized users reaches the controller.
      */
     private void requestIntercepts() {
-        TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
-        selector.matchEthType(Ethernet.TYPE_IPV4);
-        packetService.requestPackets(selector.build(), PacketPriority.REACTIVE,
+        packetService.requestPackets(interceptSelector(), PacketPriority.REACTIVE,
                 applicationIdStore.getAppId(APPLICATION_ID), Optional.<DeviceId>empty());
     }
 
     /**
-     * Cancel request for IPv4 packet in via packet service.
+     * Cancel request for TCP port 80 packet in via packet service.
      */
     private void withdrawIntercepts() {
-        TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
-        selector.matchEthType(Ethernet.TYPE_IPV4);
-        packetService.cancelPackets(selector.build(), PacketPriority.REACTIVE,
+        packetService.cancelPackets(interceptSelector(), PacketPriority.REACTIVE,
                 applicationIdStore.getAppId(APPLICATION_ID), Optional.<DeviceId>empty());
     }
 
+    private TrafficSelector interceptSelector() {
+        return DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPProtocol(IPv4.PROTOCOL_TCP)
+                .matchTcpDst(TpPort.tpPort(HTTP_PORT))
+                .build();
+    }
+
+    /**
+     * Checks the raw frame for an IPv4 TCP packet to port 80 without parsing it.
+     * Packet ins of other processors are skipped before the costly parsing of the whole packet.
+     *
+     * @param frame raw ethernet frame
+     * @return true if the frame holds a TCP packet to port 80
+     */
+    static boolean isHttpPacket(ByteBuffer frame) {
+        if (frame == null) {
+            return false;
+        }
+        ByteBuffer buf = frame.duplicate();
+        int l3 = buf.position() + 14;
+        if (buf.limit() < l3) {
+            return false;
+        }
+        int etherType = buf.getShort(l3 - 2) & 0xffff;
+        if (etherType == (Ethernet.TYPE_VLAN & 0xffff) && buf.limit() >= l3 + 4) {
+            l3 += 4;
+            etherType = buf.getShort(l3 - 2) & 0xffff;
+        }
+        if (etherType != (Ethernet.TYPE_IPV4 & 0xffff) || buf.limit() < l3 + 20) {
+            return false;
+        }
+        int headerLength = (buf.get(l3) & 0x0f) * 4;
+        // only the first fragment holds the tcp header
+        if (buf.get(l3 + 9) != IPv4.PROTOCOL_TCP || (buf.getShort(l3 + 6) & 0x1fff) != 0 ||
+                buf.limit() < l3 + headerLength + 4) {
+            return false;
+        }
+        return (buf.getShort(l3 + headerLength + 2) & 0xffff) == HTTP_PORT;
+    }
+
     /**
      * Packet processor establishing connection to the portal.
      * Also doing the redirect if packets with no registered destination are received.
@@ -211,164 +434,107 @@ public class ControllerRedirect implements PacketRedirectService {
             if (context.isHandled()) {
                 return;
             }
+            received.incrementAndGet();
 
-            //parse the packet of the context
-            Ethernet packet = context.inPacket().parsed();
-
-            if (packet == null) {
+            // packet ins requested by other processors are skipped without parsing
+            if (!isHttpPacket(context.inPacket().unparsed())) {
+                ignored.incrementAndGet();
                 return;
             }
 
-            // Bail if this is deemed to be a control packet.
-            if (isControlPacket(packet)) {
+            // bound the work spent on a single host
+            if (HOST_PACKET_RATE > 0 && !withinBudget(context)) {
+                limited.incrementAndGet();
+                context.block();
                 return;
             }
 
-            if(packet.getEtherType() == Ethernet.TYPE_IPV4) {
-                IPv4 ipv4Packet = (IPv4) packet.getPayload();
-
-                if (ipv4Packet.getProtocol() == IPv4.PROTOCOL_TCP) {
-
-                    /*
-                    ### The packet is of ipv4 ethernet type, no rules have been added for it yet,
-                    ### otherwise it would have been handled by these rules.
-                    ### Therefore a redirect is done to the portal.
-                    */
-                    if(((TCP)ipv4Packet.getPayload()).getDestinationPort() == 80) {
-                        injectRedirect(context);
-                    }
-                }
+            /*
+            ### The packet is a tcp packet to port 80, no rules have been added for it yet,
+            ### otherwise it would have been handled by these rules.
+            ### Therefore a redirect is done to the portal.
+            */
+            byte[] response = responder.respond(context.inPacket().unparsed());
+            if (response == null) {
+                dropped.incrementAndGet();
+                return;
             }
+            sendPacket(context, response);
+            // block the old context
+            context.block();
+            redirected.incrementAndGet();
         }
     }
 
     /**
-     * Indicates whether this is a control packet, e.g. LLDP, BDDP
-     * @param eth Ethernet packet
-     * @return true if eth is a control packet
+     * Takes a token from the bucket of the source host of the packet.
+     * A host over budget gets a temporary flow dropping its http packets at the port it is connected to.
+     *
+     * @param context packet context of the received packet
+     * @return true if the host is within its budget
      */
-    private boolean isControlPacket(Ethernet eth) {
-        short type = eth.getEtherType();
-        return type == Ethernet.TYPE_LLDP || type == Ethernet.TYPE_BSN;
-    }
-
-    private void injectRedirect(PacketContext context) {
-
-        // parse packets
-        Ethernet packet = context.inPacket().parsed();
-        IPv4 ipv4Packet = (IPv4) packet.getPayload();
-        TCP tcpPacket = (TCP) ipv4Packet.getPayload();
-
-        log.debug("ControllerRedirect: Redirect called. SrcIp: {} -> DstIp: {}",
-                IpAddress.valueOf(ipv4Packet.getSourceAddress()), IpAddress.valueOf(ipv4Packet.getDestinationAddress()));
-
-        // save source info
-        Integer clientIP = ipv4Packet.getSourceAddress();
-        MacAddress clientMAC = packet.getSourceMAC();
-        Integer clientPort = tcpPacket.getSourcePort();
-
-        // redirect the packet back
-        ipv4Packet.setSourceAddress(ipv4Packet.getDestinationAddress());
-        packet.setSourceMACAddress(packet.getDestinationMAC());
-        tcpPacket.setSourcePort(tcpPacket.getDestinationPort());
-
-        // set new destination address
-        ipv4Packet.setDestinationAddress(clientIP);
-        packet.setDestinationMACAddress(clientMAC);
-        tcpPacket.setDestinationPort(clientPort);
-
-        // the tcp flags of the packet as short
-        short tcpFlags = tcpPacket.getFlags();
-
-
-        if (tcpFlags == (short)TCP_FLAG_MASK_SYN) {
-            // packet has only SYN flag set
-            log.debug("ControllerRedirect: Sending SYN-ACK packet.");
-
-            // ### respond with a SYN ACK ###
-            tcpPacket.setFlags((short) (TCP_FLAG_MASK_SYN | TCP_FLAG_MASK_ACK))
-                    .setAcknowledge(tcpPacket.getSequence() + 1)
-                    .setSequence(0);
-
-            sendPacket(context);
-
-        } else if(tcpFlags == ((short) (TCP_FLAG_MASK_FIN | TCP_FLAG_MASK_ACK))){
-            // packet has only FIN and ACK flags set
-            int acknowledge = tcpPacket.getAcknowledge();
-            tcpPacket.setFlags((short) (TCP_FLAG_MASK_ACK))
-                    .setAcknowledge(tcpPacket.getSequence() + 1)
-                    .setSequence(acknowledge);
-
-            sendPacket(context);
-
-        } else if((tcpFlags & TCP_FLAG_MASK_PSH) == (short)TCP_FLAG_MASK_PSH) {
-            // packet has PSH flag set (probably GET request)
-            log.debug("ControllerRedirect: Sending ACK packet for received push request. " +
-                    "Then sending HTTP 302 redirect and resetting connection.");
-
-            // calculate the sequence number to acknowledge
-            Data dataPayload = (Data) tcpPacket.getPayload();
-            Integer acknowledgmentNumber = tcpPacket.getSequence() + dataPayload.getData().length;
-
-
-            /*
-            // ### acknowledge the received packet ###
-            tcpPacket.setFlags((short) TCP_FLAG_MASK_ACK)
-                    .setAcknowledge(acknowledgmentNumber)
-                    .setSequence(sequence_number);
-            // no payload
-            tcpPacket.setPayload(new Data());
-            sendPacket(context);
-            */
+    private boolean withinBudget(PacketContext context){
 
+        ByteBuffer frame = context.inPacket().unparsed();
+        long mac = 0;
+        for (int i = 6; i < 12; i++) {
+            mac = (mac << 8) | (frame.get(frame.position() + i) & 0xff);
+        }
 
-            // ### send HTTP redirect ###
-            // sequence number of answer is the acknowledged number of received packet
-            int sequenceNumber = tcpPacket.getAcknowledge();
-            tcpPacket.setFlags((short) (TCP_FLAG_MASK_ACK | TCP_FLAG_MASK_FIN)) // ACK and FIN
-                    .setAcknowledge(tcpPacket.getSequence() + dataPayload.getData().length)
-                    .setSequence(sequenceNumber);
-            // http 302 redirect as payload
-            Data packetData = new Data();
-            packetData.setData(http_redirect.getBytes());
-            tcpPacket.setPayload(packetData);
-            // calculate new sequence number
-            sequence_number += packetData.getData().length;
-            sendPacket(context);
-
-        } else{
-            return;
+        HostRateLimiter.Verdict verdict = hostRateLimiter.acquire(mac, HOST_PACKET_RATE);
+        if (verdict == HostRateLimiter.Verdict.BLOCK) {
+            ConnectPoint receivedFrom = context.inPacket().receivedFrom();
+            log.info("ControllerRedirect: Host {} exceeded {} packets per second at {}, dropping its http packets",
+                    MacAddress.valueOf(mac), HOST_PACKET_RATE, receivedFrom);
+            flowObjectiveService.forward(receivedFrom.deviceId(),
+                    getHostDropRule(receivedFrom.port(), MacAddress.valueOf(mac)).add());
         }
-        // block the old context
-        context.block();
+        return verdict == HostRateLimiter.Verdict.PASS;
     }
 
-    private void sendPacket(PacketContext context){
+    /**
+     * Generate a temporary objective dropping the http packets of a host at its port.
+     * The rule has a higher priority than the rule sending the packets to the controller,
+     * but a lower priority than the connection rules of authorized users.
+     *
+     * @param inPort port the host is connected to
+     * @param mac mac address of the host
+     * @return Forwarding objective for the dropping rule
+     */
+    private DefaultForwardingObjective.Builder getHostDropRule(PortNumber inPort, MacAddress mac){
+
+        TrafficSelector.Builder trafficSelectorBuilder = DefaultTrafficSelector.builder()
+                .matchInPort(inPort)
+                .matchEthSrc(mac)
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPProtocol(IPv4.PROTOCOL_TCP)
+                .matchTcpDst(TpPort.tpPort(HTTP_PORT));
 
-        // parse packets
-        Ethernet packet = context.inPacket().parsed();
-        IPv4 ipv4Packet = (IPv4) packet.getPayload();
-        TCP tcpPacket = (TCP) ipv4Packet.getPayload();
+        TrafficTreatment.Builder trafficTreatmentBuilder = DefaultTrafficTreatment.builder().drop();
 
-        // reset packet checksum
-        ipv4Packet.resetChecksum();
-        packet.resetChecksum();
-        tcpPacket.resetChecksum();
+        return DefaultForwardingObjective.builder()
+                .withSelector(trafficSelectorBuilder.build())
+                .withTreatment(trafficTreatmentBuilder.build())
+                .withPriority(REDIRECT_PRIORITY + 1)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(applicationIdStore.getAppId(APPLICATION_ID))
+                .makeTemporary(HOST_BLOCK_TIMEOUT);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(packet.serialize());
+    /**
+     * Send the response back to the user at the port the packet was received from
+     *
+     * @param context packet context of the received packet
+     * @param response raw ethernet frame of the response
+     */
+    private void sendPacket(PacketContext context, byte[] response){
 
-        // send the packet back to the client
-        TrafficTreatment.Builder trafficTreatmentBuilder = DefaultTrafficTreatment.builder()
-                .setIpDst(Ip4Address.valueOf(ipv4Packet.getDestinationAddress()))
-                .setEthDst(packet.getDestinationMAC())
-                .setOutput(context.inPacket().receivedFrom().port());
+        ConnectPoint receivedFrom = context.inPacket().receivedFrom();
+        TrafficTreatment treatment = treatments.computeIfAbsent(receivedFrom.port(),
+                port -> DefaultTrafficTreatment.builder().setOutput(port).build());
 
         // emit the packet at the device the host is connected to
-        packetService.emit(new DefaultOutboundPacket(
-                        context.inPacket().receivedFrom().deviceId(),
-                        trafficTreatmentBuilder.build(),
-                        buf)
-        );
+        packetService.emit(new DefaultOutboundPacket(receivedFrom.deviceId(), treatment, ByteBuffer.wrap(response)));
     }
 
 }
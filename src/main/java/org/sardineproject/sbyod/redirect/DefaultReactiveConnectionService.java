@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+import org.apache.felix.scr.annotations.*;
+import org.onlab.packet.*;
+import org.onosproject.core.ApplicationIdStore;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketPriority;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketService;
+import org.sardineproject.sbyod.connection.Connection;
+import org.sardineproject.sbyod.connection.ConnectionKey;
+import org.sardineproject.sbyod.connection.ConnectionStore;
+import org.sardineproject.sbyod.portal.PortalService;
+import org.sardineproject.sbyod.service.Service;
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Packet processor installing the rules of an authorized connection
+ * when the first packet of the user to the service reaches the controller.
+ */
+@Component(immediate = true)
+@org.apache.felix.scr.annotations.Service
+public class DefaultReactiveConnectionService implements ReactiveConnectionService {
+
+    private static final String APPLICATION_ID = PortalService.APP_ID;
+    private final Logger log = getLogger(getClass());
+
+    // minimal time between two installations of the same connection,
+    // packets arriving before the rules are installed do not trigger another installation
+    private static final long ACTIVATION_HOLD_MILLIS = 1000;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected PacketService packetService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ApplicationIdStore applicationIdStore;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ConnectionStore connectionStore;
+
+
+    private ReactiveConnectionProcessor processor;
+
+    // last installation of a connection
+    private final Map<ConnectionKey, Activation> activations = new ConcurrentHashMap<>();
+
+    @Activate
+    protected void activate(){
+    }
+
+    @Deactivate
+    protected void deactivate(){
+        stop();
+    }
+
+    /**
+     * Start intercepting the packets of users to install their connections on demand
+     */
+    @Override
+    public synchronized void start() {
+        if(processor != null){
+            return;
+        }
+        // process the packets before the redirect to the portal
+        processor = new ReactiveConnectionProcessor();
+        packetService.addProcessor(processor, PacketProcessor.director(1));
+        requestIntercepts();
+        log.info("DefaultReactiveConnectionService: started");
+    }
+
+    /**
+     * Stop intercepting the packets of users
+     */
+    @Override
+    public synchronized void stop() {
+        if(processor == null){
+            return;
+        }
+        withdrawIntercepts();
+        packetService.removeProcessor(processor);
+        processor = null;
+        activations.clear();
+        log.info("DefaultReactiveConnectionService: stopped");
+    }
+
+    /**
+     * Request packet in of TCP and UDP packets via packet service.
+     */
+    private void requestIntercepts() {
+        for(byte protocol : new byte[]{IPv4.PROTOCOL_TCP, IPv4.PROTOCOL_UDP}) {
+            packetService.requestPackets(interceptSelector(protocol), PacketPriority.REACTIVE,
+                    applicationIdStore.getAppId(APPLICATION_ID), Optional.<DeviceId>empty());
+        }
+    }
+
+    /**
+     * Cancel request for TCP and UDP packet in via packet service.
+     */
+    private void withdrawIntercepts() {
+        for(byte protocol : new byte[]{IPv4.PROTOCOL_TCP, IPv4.PROTOCOL_UDP}) {
+            packetService.cancelPackets(interceptSelector(protocol), PacketPriority.REACTIVE,
+                    applicationIdStore.getAppId(APPLICATION_ID), Optional.<DeviceId>empty());
+        }
+    }
+
+    private TrafficSelector interceptSelector(byte protocol){
+        return DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPProtocol(protocol)
+                .build();
+    }
+
+    /**
+     * Returns true if the packet is sent to the service
+     *
+     * @param service service of a connection
+     * @param dstIp destination ip address of the packet
+     * @param protocol internet protocol of the packet
+     * @param dstPort transport protocol destination port of the packet
+     * @return true if the packet belongs to the service
+     */
+    private boolean matches(Service service, Ip4Address dstIp, byte protocol, int dstPort){
+        if(service.protocol() != protocol){
+            return false;
+        }
+        if(service.tpPort() != null && service.tpPort().toInt() != dstPort){
+            return false;
+        }
+        return service.ipAddressSet().contains(dstIp) ||
+                service.ipAddressSet().contains(Ip4Address.valueOf("0.0.0.0"));
+    }
+
+    /**
+     * Send the packet on through the tables of the switch it was received by.
+     *
+     * @param inPacket packet received by the switch
+     */
+    private void emitToTable(InboundPacket inPacket){
+        packetService.emit(new DefaultOutboundPacket(inPacket.receivedFrom().deviceId(),
+                DefaultTrafficTreatment.builder().setOutput(PortNumber.TABLE).build(),
+                inPacket.unparsed()));
+    }
+
+    /**
+     * Installation of the rules of a connection started by a packet.
+     */
+    private static final class Activation {
+
+        private final long time;
+        private final CompletableFuture<Void> installed;
+
+        private Activation(long time, CompletableFuture<Void> installed){
+            this.time = time;
+            this.installed = installed;
+        }
+    }
+
+    /**
+     * Packet processor installing the connection of the user the packet is sent by.
+     */
+    private class ReactiveConnectionProcessor implements PacketProcessor {
+
+        @Override
+        public void process(PacketContext context) {
+
+            // Stop processing if the packet has been handled, since we
+            // can't do any more to it.
+            if (context.isHandled()) {
+                return;
+            }
+
+            Ethernet packet = context.inPacket().parsed();
+            if (packet == null || packet.getEtherType() != Ethernet.TYPE_IPV4) {
+                return;
+            }
+
+            IPv4 ipv4Packet = (IPv4) packet.getPayload();
+            byte protocol = ipv4Packet.getProtocol();
+            int dstPort;
+            // non-first fragments carry no transport header, their payload is parsed as data
+            if (protocol == IPv4.PROTOCOL_TCP && ipv4Packet.getPayload() instanceof TCP) {
+                dstPort = ((TCP) ipv4Packet.getPayload()).getDestinationPort();
+            } else if (protocol == IPv4.PROTOCOL_UDP && ipv4Packet.getPayload() instanceof UDP) {
+                dstPort = ((UDP) ipv4Packet.getPayload()).getDestinationPort();
+            } else {
+                return;
+            }
+
+            // the user sending the packet
+            Host user = hostService.getHost(HostId.hostId(packet.getSourceMAC(),
+                    VlanId.vlanId(packet.getVlanID())));
+            if (user == null) {
+                return;
+            }
+
+            // the authorized connection of the user to the destination of the packet
+            Ip4Address dstIp = Ip4Address.valueOf(ipv4Packet.getDestinationAddress());
+            Optional<Connection> connection = connectionStore.getConnections(user).stream()
+                    .filter(c -> matches(c.getService(), dstIp, protocol, dstPort))
+                    .findFirst();
+            if (!connection.isPresent()) {
+                // not authorized, leave the packet to the redirect
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            Activation activation = activations.get(ConnectionKey.of(connection.get()));
+            if (activation == null || now - activation.time > ACTIVATION_HOLD_MILLIS) {
+                log.debug("DefaultReactiveConnectionService: Installing connection {} on packet from {} to {}",
+                        connection.get(), user.id(), dstIp);
+                activation = new Activation(now, connectionStore.activateConnection(connection.get()));
+                activations.put(ConnectionKey.of(connection.get()), activation);
+            }
+
+            // send the packet on through the tables of the switch once its rules are installed,
+            // earlier it would hit the table miss rule and come back to the controller
+            context.block();
+            InboundPacket inPacket = context.inPacket();
+            activation.installed.whenComplete((result, error) -> {
+                if (error == null) {
+                    emitToTable(inPacket);
+                } else {
+                    log.debug("DefaultReactiveConnectionService: Dropped packet of {}, installation failed: {}",
+                            user.id(), error.getMessage());
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.onlab.packet.MacAddress;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Token buckets bounding the packet ins answered by the redirect per source mac address.
+ * The buckets of hosts idle for a minute expire together with their drop counters.
+ */
+final class HostRateLimiter {
+
+    private static final long MAX_HOSTS = 65536;
+    private static final long IDLE_TIMEOUT = 60;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Decision of the limiter for a packet of a host.
+     */
+    enum Verdict {
+        /** the host is within its budget */
+        PASS,
+        /** the host is over budget */
+        DROP,
+        /** the host is over budget and no drop flow has been requested for it recently */
+        BLOCK
+    }
+
+    private final Cache<Long, TokenBucket> buckets = CacheBuilder.newBuilder()
+            .maximumSize(MAX_HOSTS)
+            .expireAfterAccess(IDLE_TIMEOUT, TimeUnit.SECONDS)
+            .build();
+
+    private final long blockNanos;
+
+    /**
+     * Creates a limiter requesting a drop flow for an over budget host at most once per block timeout
+     *
+     * @param blockTimeout seconds between two drop flows of a host
+     */
+    HostRateLimiter(int blockTimeout) {
+        this.blockNanos = TimeUnit.SECONDS.toNanos(blockTimeout);
+    }
+
+    /**
+     * Takes a token from the bucket of the host. The bucket is refilled with the rate
+     * and holds at most twice the rate, allowing short bursts of the host.
+     *
+     * @param mac source mac address of the packet
+     * @param rate packets per second allowed for the host
+     * @return verdict for the packet
+     */
+    Verdict acquire(long mac, int rate) {
+        TokenBucket bucket = buckets.asMap().computeIfAbsent(mac, m -> new TokenBucket(2 * rate));
+        return bucket.acquire(rate, System.nanoTime());
+    }
+
+    /**
+     * Returns the number of dropped packets of the hosts seen recently
+     *
+     * @return dropped packets mapped by the mac address of the host
+     */
+    Map<MacAddress, Long> drops() {
+        return buckets.asMap().entrySet().stream()
+                .filter(entry -> entry.getValue().drops() > 0)
+                .collect(Collectors.toMap(entry -> MacAddress.valueOf(entry.getKey()),
+                        entry -> entry.getValue().drops()));
+    }
+
+    private final class TokenBucket {
+
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private long blockedUntil = lastRefill;
+        private long drops;
+
+        private TokenBucket(double tokens) {
+            this.tokens = tokens;
+        }
+
+        private synchronized Verdict acquire(int rate, long now) {
+            tokens = Math.min(2.0 * rate, tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return Verdict.PASS;
+            }
+            drops++;
+            if (now - blockedUntil >= 0) {
+                blockedUntil = now + blockNanos;
+                return Verdict.BLOCK;
+            }
+            return Verdict.DROP;
+        }
+
+        private synchronized long drops() {
+            return drops;
+        }
+    }
+}
@@ -19,9 +19,14 @@ package org.sardineproject.sbyod.redirect;
 
 import org.onlab.packet.Ip4Address;
 import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
+import org.onosproject.net.meter.Meter;
 import org.onosproject.net.packet.PacketContext;
 
+import java.util.Map;
+
 /**
  * Created by lorry on 11.12.15.
  */
@@ -35,4 +40,70 @@ public interface PacketRedirectService {
      */
     void stopRedirect();
 
+    /**
+     * Returns the counters of the packets received by the redirect
+     *
+     * @return redirect counters
+     */
+    RedirectCounters getCounters();
+
+    /**
+     * Returns the packet ins dropped per host because the host exceeded its budget
+     *
+     * @return dropped packet ins mapped by the mac address of the host
+     */
+    Map<MacAddress, Long> getHostDrops();
+
+    /**
+     * Reinstall the rules sending the packets to the controller with the current punt rate
+     */
+    void updateRedirectRules();
+
+    /**
+     * Returns the meters limiting the packets sent to the controller
+     *
+     * @return meters mapped by the device
+     */
+    Map<DeviceId, Meter> getPuntMeters();
+
+    /**
+     * Counters of the packets received by the redirect.
+     */
+    final class RedirectCounters {
+
+        private final long received;
+        private final long ignored;
+        private final long redirected;
+        private final long dropped;
+        private final long limited;
+        private final long flows;
+
+        public RedirectCounters(long received, long ignored, long redirected, long dropped, long limited,
+                                long flows){
+            this.received = received;
+            this.ignored = ignored;
+            this.redirected = redirected;
+            this.dropped = dropped;
+            this.limited = limited;
+            this.flows = flows;
+        }
+
+        public long received(){ return received; }
+
+        public long ignored(){ return ignored; }
+
+        public long redirected(){ return redirected; }
+
+        public long dropped(){ return dropped; }
+
+        public long limited(){ return limited; }
+
+        public long flows(){ return flows; }
+
+        @Override
+        public String toString(){
+            return "received=" + received + ", ignored=" + ignored + ", redirected=" + redirected +
+                    ", dropped=" + dropped + ", limited=" + limited + ", flows=" + flows;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+/**
+ * Installs the rules of authorized connections reactively on the first packet of the user.
+ */
+public interface ReactiveConnectionService {
+
+    /**
+     * Start intercepting the packets of users to install their connections on demand
+     */
+    void start();
+
+    /**
+     * Stop intercepting the packets of users
+     */
+    void stop();
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Table of the tcp connections answered by the redirect, keyed by the 5-tuple of the connection.
+ * Idle connections expire, so connections never closed by the users do not accumulate.
+ */
+final class RedirectFlowTable {
+
+    private static final long MAX_FLOWS = 65536;
+    private static final long IDLE_TIMEOUT = 30;
+    // longest request line buffered before the redirect is sent anyway
+    private static final int MAX_REQUEST_LINE = 2048;
+
+    private final Cache<FlowKey, TcpFlow> flows = CacheBuilder.newBuilder()
+            .maximumSize(MAX_FLOWS)
+            .expireAfterAccess(IDLE_TIMEOUT, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * Returns the flow opened by the SYN of the user. A retransmitted SYN returns the same flow,
+     * a SYN with a new initial sequence number replaces the flow.
+     *
+     * @param key 5-tuple of the connection
+     * @param userIsn initial sequence number of the user
+     * @return tcp flow
+     */
+    TcpFlow open(FlowKey key, int userIsn) {
+        return flows.asMap().compute(key, (k, flow) ->
+                flow != null && flow.userIsn == userIsn ?
+                        flow : new TcpFlow(userIsn, ThreadLocalRandom.current().nextInt()));
+    }
+
+    /**
+     * Returns the flow of a connection whose SYN was not seen by the redirect,
+     * continuing the sequence numbers of the received segment.
+     *
+     * @param key 5-tuple of the connection
+     * @param userNext next sequence number of the user
+     * @param serverNext next sequence number of the redirect
+     * @return tcp flow
+     */
+    TcpFlow adopt(FlowKey key, int userNext, int serverNext) {
+        return flows.asMap().computeIfAbsent(key, k -> new TcpFlow(userNext - 1, serverNext - 1));
+    }
+
+    TcpFlow get(FlowKey key) {
+        return flows.getIfPresent(key);
+    }
+
+    void remove(FlowKey key) {
+        flows.invalidate(key);
+    }
+
+    long size() {
+        return flows.size();
+    }
+
+    /**
+     * The 5-tuple of a tcp connection from a user to a server.
+     */
+    static final class FlowKey {
+
+        private final int userIp;
+        private final int serverIp;
+        private final int userPort;
+        private final int serverPort;
+
+        FlowKey(int userIp, int serverIp, int userPort, int serverPort) {
+            this.userIp = userIp;
+            this.serverIp = serverIp;
+            this.userPort = userPort;
+            this.serverPort = serverPort;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FlowKey)) {
+                return false;
+            }
+            FlowKey other = (FlowKey) o;
+            return userIp == other.userIp && serverIp == other.serverIp &&
+                    userPort == other.userPort && serverPort == other.serverPort;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userIp, serverIp, userPort, serverPort);
+        }
+    }
+
+    /**
+     * Sequence numbers and progress of the request line of a connection.
+     * The request line is not stored, only its length is counted until its end is received.
+     * Access must be synchronized on the flow.
+     */
+    static final class TcpFlow {
+
+        final int userIsn;
+        final int serverIsn;
+        // next sequence number expected from the user
+        int userNext;
+        // next sequence number sent by the redirect
+        int serverNext;
+        boolean redirected;
+        boolean finReceived;
+
+        // bytes of the request line received so far
+        private int requestLength;
+        private boolean requestComplete;
+
+        private TcpFlow(int userIsn, int serverIsn) {
+            this.userIsn = userIsn;
+            this.serverIsn = serverIsn;
+            this.userNext = userIsn + 1;
+            this.serverNext = serverIsn + 1;
+        }
+
+        /**
+         * Counts the in order payload of the user towards the request line,
+         * the request line is complete with its first line break or at its maximal length
+         *
+         * @param frame raw frame holding the payload
+         * @param offset offset of the payload in the frame
+         * @param length length of the payload
+         */
+        void append(ByteBuffer frame, int offset, int length) {
+            for (int i = 0; i < length && !requestComplete; i++) {
+                requestLength++;
+                requestComplete = frame.get(offset + i) == '\n' || requestLength == MAX_REQUEST_LINE;
+            }
+        }
+
+        /**
+         * Returns true if the request line of the user has been received
+         *
+         * @return true if the request line is complete
+         */
+        boolean isRequestComplete() {
+            return requestComplete;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+
+import java.nio.ByteBuffer;
+
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.*;
+
+/**
+ * Answers the http packets of unauthorized users with pre-serialized SYN-ACK, ACK and HTTP 302 frames,
+ * following the sequence numbers of each connection in a flow table.
+ * Only the addresses, ports and sequence numbers of the received packet are patched into a copy
+ * of the template, the checksums are completed from the sums precomputed over the constant fields.
+ */
+final class RedirectResponder {
+
+    private static final int ETH_HEADER_LENGTH = 14;
+    private static final int VLAN_HEADER_LENGTH = 4;
+    private static final int IP_HEADER_LENGTH = 20;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int TCP_OFFSET = IP_HEADER_LENGTH;
+    private static final byte TTL = 64;
+    private static final short WINDOW = (short) 0xffff;
+
+    private final Template synAck;
+    private final Template ack;
+    private final Template redirect;
+    private final int redirectLength;
+    private final RedirectFlowTable flows = new RedirectFlowTable();
+
+    /**
+     * Creates the templates of the responses
+     *
+     * @param redirectPayload http redirect sent as payload of the answer to a request
+     */
+    RedirectResponder(byte[] redirectPayload) {
+        this.synAck = new Template((byte) (TCP_FLAG_MASK_SYN | TCP_FLAG_MASK_ACK), new byte[0]);
+        this.ack = new Template(TCP_FLAG_MASK_ACK, new byte[0]);
+        this.redirect = new Template((byte) (TCP_FLAG_MASK_ACK | TCP_FLAG_MASK_FIN), redirectPayload);
+        this.redirectLength = redirectPayload.length;
+    }
+
+    /**
+     * Creates the answer to a tcp packet in the name of the requested server.
+     * A SYN is answered with a SYN-ACK, data and FIN segments are acknowledged in order.
+     * As soon as the request line of the user is received, the http redirect is sent once,
+     * closing the connection. The frame must hold an IPv4 tcp packet.
+     *
+     * @param frame raw ethernet frame received from the user
+     * @return the answer as raw ethernet frame, null if the packet is not answered
+     */
+    byte[] respond(ByteBuffer frame) {
+        int l2 = frame.position();
+        int l2Length = ETH_HEADER_LENGTH;
+        if ((frame.getShort(l2 + 12) & 0xffff) == (Ethernet.TYPE_VLAN & 0xffff)) {
+            l2Length += VLAN_HEADER_LENGTH;
+        }
+        int l3 = l2 + l2Length;
+        int ipHeaderLength = (frame.get(l3) & 0x0f) * 4;
+        int l4 = l3 + ipHeaderLength;
+        if (frame.limit() < l4 + TCP_HEADER_LENGTH) {
+            return null;
+        }
+        int tcpHeaderLength = ((frame.get(l4 + 12) >> 4) & 0x0f) * 4;
+        int payloadLength = (frame.getShort(l3 + 2) & 0xffff) - ipHeaderLength - tcpHeaderLength;
+        if (payloadLength < 0 || frame.limit() < l4 + tcpHeaderLength + payloadLength) {
+            return null;
+        }
+        int flags = frame.getShort(l4 + 12) & 0x1ff;
+        int sequence = frame.getInt(l4 + 4);
+        int acknowledge = frame.getInt(l4 + 8);
+        boolean fin = (flags & TCP_FLAG_MASK_FIN) != 0;
+
+        RedirectFlowTable.FlowKey key = new RedirectFlowTable.FlowKey(frame.getInt(l3 + 12),
+                frame.getInt(l3 + 16), frame.getShort(l4) & 0xffff, frame.getShort(l4 + 2) & 0xffff);
+
+        if ((flags & TCP_FLAG_MASK_RST) != 0) {
+            flows.remove(key);
+            return null;
+        }
+        if (flags == TCP_FLAG_MASK_SYN) {
+            RedirectFlowTable.TcpFlow flow = flows.open(key, sequence);
+            return write(frame, l2Length, l3, l4, synAck, flow.serverIsn, flow.userIsn + 1);
+        }
+
+        RedirectFlowTable.TcpFlow flow = flows.get(key);
+        if (flow == null) {
+            if (payloadLength == 0 && !fin) {
+                return null;
+            }
+            // connection opened before the redirect was activated
+            flow = flows.adopt(key, sequence, acknowledge);
+        }
+
+        synchronized (flow) {
+            if (sequence - flow.userNext > 0) {
+                // segment out of order, acknowledge the expected sequence number again
+                return write(frame, l2Length, l3, l4, ack, flow.serverNext, flow.userNext);
+            }
+            if (payloadLength > 0 && sequence == flow.userNext) {
+                flow.userNext += payloadLength;
+                flow.append(frame, l4 + tcpHeaderLength, payloadLength);
+            }
+            if (fin && sequence + payloadLength == flow.userNext) {
+                flow.userNext += 1;
+                flow.finReceived = true;
+            }
+
+            byte[] response;
+            if (!flow.redirected && flow.isRequestComplete()) {
+                flow.redirected = true;
+                response = write(frame, l2Length, l3, l4, redirect, flow.serverNext, flow.userNext);
+                flow.serverNext += redirectLength + 1;
+            } else if (payloadLength > 0 || fin) {
+                response = write(frame, l2Length, l3, l4, ack, flow.serverNext, flow.userNext);
+            } else {
+                return null;
+            }
+            if (flow.finReceived && flow.redirected) {
+                flows.remove(key);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Returns the number of tcp connections tracked by the redirect
+     *
+     * @return number of connections
+     */
+    long flowCount() {
+        return flows.size();
+    }
+
+    private static byte[] write(ByteBuffer frame, int l2Length, int l3, int l4, Template template,
+                                int sequence, int acknowledge) {
+        int l2 = frame.position();
+        byte[] response = new byte[l2Length + template.bytes.length];
+        // swap the mac addresses and keep the vlan tag of the received frame
+        for (int i = 0; i < 6; i++) {
+            response[i] = frame.get(l2 + 6 + i);
+            response[6 + i] = frame.get(l2 + i);
+        }
+        for (int i = 12; i < l2Length - 2; i++) {
+            response[i] = frame.get(l2 + i);
+        }
+        response[l2Length - 2] = (byte) (Ethernet.TYPE_IPV4 >> 8);
+        response[l2Length - 1] = (byte) Ethernet.TYPE_IPV4;
+        System.arraycopy(template.bytes, 0, response, l2Length, template.bytes.length);
+
+        int userIp = frame.getInt(l3 + 12);
+        int serverIp = frame.getInt(l3 + 16);
+        int userPort = frame.getShort(l4) & 0xffff;
+        int serverPort = frame.getShort(l4 + 2) & 0xffff;
+
+        ByteBuffer out = ByteBuffer.wrap(response);
+        int ip = l2Length;
+        int tcp = l2Length + TCP_OFFSET;
+        out.putInt(ip + 12, serverIp);
+        out.putInt(ip + 16, userIp);
+        out.putShort(ip + 10, checksum(template.ipSum + words(serverIp) + words(userIp)));
+        out.putShort(tcp, (short) serverPort);
+        out.putShort(tcp + 2, (short) userPort);
+        out.putInt(tcp + 4, sequence);
+        out.putInt(tcp + 8, acknowledge);
+        out.putShort(tcp + 16, checksum(template.tcpSum + words(serverIp) + words(userIp) +
+                serverPort + userPort + words(sequence) + words(acknowledge)));
+        return response;
+    }
+
+    private static int words(int value) {
+        return (value >>> 16) + (value & 0xffff);
+    }
+
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    private static short checksum(int sum) {
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * IPv4 and tcp headers with payload of a response, the addresses, ports, sequence numbers
+     * and checksums are left empty.
+     */
+    private static final class Template {
+
+        private final byte[] bytes;
+        // one's complement sums over the constant fields of the headers
+        private final int ipSum;
+        private final int tcpSum;
+
+        Template(byte tcpFlags, byte[] payload) {
+            int tcpLength = TCP_HEADER_LENGTH + payload.length;
+            bytes = new byte[IP_HEADER_LENGTH + tcpLength];
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            // ip header: version 4 and header length 5 words, don't fragment
+            buf.put((byte) 0x45)
+                    .put((byte) 0)
+                    .putShort((short) bytes.length)
+                    .putShort((short) 0)
+                    .putShort((short) 0x4000)
+                    .put(TTL)
+                    .put(IPv4.PROTOCOL_TCP);
+            // tcp header: header length 5 words
+            buf.position(TCP_OFFSET + 12);
+            buf.put((byte) 0x50)
+                    .put(tcpFlags)
+                    .putShort(WINDOW);
+            buf.position(IP_HEADER_LENGTH + TCP_HEADER_LENGTH);
+            buf.put(payload);
+
+            ipSum = fold(sum(bytes, 0, IP_HEADER_LENGTH));
+            // pseudo header with protocol and tcp length, then the tcp segment
+            tcpSum = fold(IPv4.PROTOCOL_TCP + tcpLength + sum(bytes, TCP_OFFSET, tcpLength));
+        }
+
+        private static int sum(byte[] data, int offset, int length) {
+            int sum = 0;
+            for (int i = 0; i < length; i += 2) {
+                int high = (data[offset + i] & 0xff) << 8;
+                int low = i + 1 < length ? data[offset + i + 1] & 0xff : 0;
+                sum = fold(sum + (high | low));
+            }
+            return sum;
+        }
+    }
+}
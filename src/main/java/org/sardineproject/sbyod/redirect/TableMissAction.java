@@ -24,8 +24,8 @@ import org.onosproject.net.*;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.flow.*;
 import org.onosproject.net.flowobjective.DefaultForwardingObjective;
-import org.onosproject.net.flowobjective.FlowObjectiveService;
 import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.sardineproject.sbyod.connection.ObjectiveRetryService;
 import org.sardineproject.sbyod.portal.PortalManager;
 import org.sardineproject.sbyod.portal.PortalService;
 import org.slf4j.Logger;
@@ -51,7 +51,7 @@ public class TableMissAction {
     protected ApplicationIdStore applicationIdStore;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
-    protected FlowObjectiveService flowObjectiveService;
+    protected ObjectiveRetryService objectiveRetryService;
 
 
 
@@ -77,7 +77,7 @@ public class TableMissAction {
     protected void deactivate(){
         // remove all installed rules at termination
         for(DeviceId deviceId : installedFlowRules.keySet()){
-            flowObjectiveService.forward(deviceId, installedFlowRules.get(deviceId));
+            objectiveRetryService.forward(deviceId, installedFlowRules.get(deviceId));
         }
         // reset map
         installedFlowRules = null;
@@ -98,7 +98,7 @@ public class TableMissAction {
                 DefaultForwardingObjective.Builder forwardingObjective = getDropRuleObjective();
                 log.debug("TableMissAction: Adding flow objective \n{} \n" +
                         "for device {} in method installRules()", forwardingObjective, device.id());
-                flowObjectiveService.forward(device.id(), forwardingObjective.add());
+                objectiveRetryService.forward(device.id(), forwardingObjective.add());
                 // store installed rule
                 installedFlowRules.put(device.id(), forwardingObjective.remove());
             }
@@ -34,6 +34,7 @@ import org.slf4j.Logger;
 import org.sardineproject.sbyod.connection.Connection;
 import org.sardineproject.sbyod.connection.ConnectionStore;
 import org.sardineproject.sbyod.connection.DefaultConnection;
+import org.sardineproject.sbyod.connection.RuleInstallException;
 import org.sardineproject.sbyod.service.Service;
 import org.sardineproject.sbyod.service.ServiceStore;
 
@@ -46,7 +47,13 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.core.Response;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 /**
@@ -58,8 +65,13 @@ public class AppWebUser extends AbstractWebResource {
     private static final Logger log = getLogger(PortalManager.class);
 
     private static final String INVALID_PARAMETER = "INVALID_PARAMETER\n";
+    // maximal time to wait for the devices to acknowledge the rules of a new connection
+    private static final long INSTALL_TIMEOUT_MS = 3000;
     private final ObjectNode ENABLED_TRUE = mapper().createObjectNode().put("enabled", true);
     private final ObjectNode ENABLED_FALSE = mapper().createObjectNode().put("enabled", false);
+    private final ObjectNode ENABLED_PENDING = mapper().createObjectNode()
+            .put("enabled", false)
+            .put("pending", true);
 
     /**
      * Get the services the user with userIp is connected to.
@@ -165,7 +177,8 @@ public class AppWebUser extends AbstractWebResource {
      * @param serviceId_ the ID of the service
      * @return PRECONDITION_FAILED if some parameter was wrong
      *          "enabled : false" if service connection went wrong
-     *          "enabled : true" if service is enabled
+     *          "enabled : true" if the rules of the service are installed on the devices
+     *          ACCEPTED with "pending : true" if the rules were not acknowledged in time
      */
     @POST
     @Path("/{userIp}/service/{serviceId}")
@@ -196,22 +209,41 @@ public class AppWebUser extends AbstractWebResource {
         }
 
         // install connection for every host and service
+        List<CompletableFuture<Void>> installations = new ArrayList<>();
         for(Host srcHost : srcHosts) {
             try{
                 Connection connection = new DefaultConnection(srcHost, service);
-                // if the connection does not already exist
-                if (!get(ConnectionStore.class).contains(connection)) {
-                    log.debug("AppWebUser: Installing connection {}", connection.toString());
-                    get(ConnectionStore.class).addConnection(connection);
-                } else{
-                    log.debug("AppWebUser: Connection {} already exists", connection.toString());
-                }
+                // the store returns the pending installation if the connection already exists
+                log.debug("AppWebUser: Installing connection {}", connection.toString());
+                installations.add(get(ConnectionStore.class).addConnectionAsync(connection));
             } catch(InvalidParameterException ipe){
                 log.debug("AppWebUser: InvalidParameterException {}", ipe);
                 return Response.ok(ENABLED_FALSE).build();
             }
         }
 
+        // answer only after the devices acknowledged the rules
+        try {
+            CompletableFuture.allOf(installations.toArray(new CompletableFuture[installations.size()]))
+                    .get(INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuleInstallException) {
+                log.warn("AppWebUser: Connection of user ip = {} to service {} failed on device {}",
+                        new Object[]{userIp_, serviceId_, ((RuleInstallException) e.getCause()).deviceId()});
+            } else {
+                log.warn("AppWebUser: Connection of user ip = {} to service {} failed: {}",
+                        new Object[]{userIp_, serviceId_, e.getCause()});
+            }
+            return Response.ok(ENABLED_FALSE).build();
+        } catch (TimeoutException e) {
+            log.debug("AppWebUser: Rules of user ip = {} and service {} not acknowledged in {} ms",
+                    new Object[]{userIp_, serviceId_, INSTALL_TIMEOUT_MS});
+            return Response.status(Response.Status.ACCEPTED).entity(ENABLED_PENDING).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+
         return Response.ok(ENABLED_TRUE).build();
     }
 
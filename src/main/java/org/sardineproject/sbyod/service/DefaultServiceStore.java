@@ -27,8 +27,8 @@ import org.slf4j.Logger;
 import org.sardineproject.sbyod.connection.Connection;
 import org.sardineproject.sbyod.connection.ConnectionStore;
 
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static org.slf4j.LoggerFactory.getLogger;
@@ -60,7 +60,8 @@ public class DefaultServiceStore implements ServiceStore {
     @Activate
     protected void activate(){
 
-        services = new HashSet<>();
+        // services are read and modified by REST, host event and consul threads
+        services = ConcurrentHashMap.newKeySet();
 
         codecService.registerCodec(org.sardineproject.sbyod.service.Service.class, new ServiceCodec());
     }
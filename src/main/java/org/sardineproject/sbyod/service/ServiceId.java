@@ -30,6 +30,12 @@ public class ServiceId extends ElementId {
     private final URI uri;
     private final String str;
 
+    // for serialization
+    private ServiceId(){
+        this.uri = null;
+        this.str = null;
+    }
+
     private ServiceId(URI uri){
         this.uri = uri;
         this.str = uri.toString().toLowerCase();
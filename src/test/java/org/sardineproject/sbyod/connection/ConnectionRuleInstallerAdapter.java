@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Test adapter for the connection rule installer.
+ */
+public class ConnectionRuleInstallerAdapter implements ConnectionRuleInstaller {
+
+    @Override
+    public CompletableFuture<Void> addConnection(Connection connection) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public Map<Connection, CompletableFuture<Void>> addConnections(Collection<Connection> connections) {
+        Map<Connection, CompletableFuture<Void>> installed = new HashMap<>();
+        connections.forEach(connection -> installed.put(connection, addConnection(connection)));
+        return installed;
+    }
+
+    @Override
+    public CompletableFuture<Void> updateConnection(Connection oldConnection, Connection newConnection) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void removeConnection(Connection connection) {
+    }
+
+    @Override
+    public void adoptConnection(Connection connection) {
+    }
+
+    @Override
+    public void forgetConnection(Connection connection) {
+    }
+
+    @Override
+    public CompletableFuture<Void> activateConnection(Connection connection) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public PathCache getPathCache() {
+        return null;
+    }
+
+    @Override
+    public ServiceTreeCache getServiceTrees() {
+        return null;
+    }
+
+    @Override
+    public FlowRuleBatcher getFlowRuleBatcher() {
+        return null;
+    }
+
+    @Override
+    public DeviceWorkQueues getDeviceWorkQueues() {
+        return null;
+    }
+
+    @Override
+    public Map<LinkKey, Integer> getLinkConnectionCounts() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Set<LinkKey> getConnectionLinks(Connection connection) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Map<DeviceId, List<ForwardingObjective>> getSharedObjectives() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Set<ObjectiveKey> getHeldRules(DeviceId deviceId) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void updateInternetTree() {
+    }
+
+    @Override
+    public List<Link> getDestinationRoute(DeviceId src, DeviceId dst) {
+        return Collections.emptyList();
+    }
+}
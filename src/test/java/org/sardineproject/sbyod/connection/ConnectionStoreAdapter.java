@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.onosproject.net.Host;
+import org.sardineproject.sbyod.service.Service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Test adapter for the connection store.
+ */
+public class ConnectionStoreAdapter implements ConnectionStore {
+
+    @Override
+    public void addConnection(Connection connection) {
+    }
+
+    @Override
+    public CompletableFuture<Void> addConnectionAsync(Connection connection) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void addConnections(Collection<Connection> connections) {
+    }
+
+    @Override
+    public void removeConnection(Connection connection) {
+    }
+
+    @Override
+    public int reinstallConnections() {
+        return 0;
+    }
+
+    @Override
+    public CompletableFuture<Void> activateConnection(Connection connection) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public Connection getConnection(Host user, Service service) {
+        return null;
+    }
+
+    @Override
+    public Set<Connection> getConnections(Service service) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Set<Connection> getConnections(Host host) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Set<Connection> getConnections() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Boolean contains(Connection connection) {
+        return false;
+    }
+
+    @Override
+    public Boolean isDegraded(Connection connection) {
+        return false;
+    }
+
+    @Override
+    public Set<Connection> getDegradedConnections() {
+        return Collections.emptySet();
+    }
+}
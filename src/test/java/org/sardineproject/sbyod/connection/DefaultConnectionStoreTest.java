@@ -0,0 +1,460 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.google.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TpPort;
+import org.onlab.packet.VlanId;
+import org.onosproject.cluster.NodeId;
+import org.onosproject.cluster.RoleInfo;
+import org.onosproject.codec.CodecService;
+import org.onosproject.codec.JsonCodec;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipListener;
+import org.onosproject.mastership.MastershipServiceAdapter;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.MastershipRole;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.onosproject.store.service.TestStorageService;
+import org.sardineproject.sbyod.service.DefaultService;
+import org.sardineproject.sbyod.service.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of the connection store.
+ */
+public class DefaultConnectionStoreTest {
+
+    private static final DeviceId D1 = did("1");
+    private static final ProviderId PID = new ProviderId("of", "sbyod-test");
+    private static final int USERS = 100;
+    private static final int THREADS = 8;
+    private static final RoleInfo ROLE = new RoleInfo(new NodeId("node"), Collections.emptyList());
+
+    // devices mastered by this instance
+    private final Set<DeviceId> mastered = ConcurrentHashMap.newKeySet();
+    private final TestConnectionRuleInstaller installer = new TestConnectionRuleInstaller();
+    private MastershipListener mastershipListener;
+    private HostListener hostListener;
+    private DefaultConnectionStore store;
+
+    @Before
+    public void setUp() {
+        store = new DefaultConnectionStore();
+        store.hostService = new TestHostService();
+        store.connectionRuleInstaller = installer;
+        store.codecService = new TestCodecService();
+        store.storageService = new TestStorageService();
+        store.mastershipService = new TestMastershipService();
+        store.topologyService = new TopologyServiceAdapter();
+        store.activate();
+    }
+
+    @After
+    public void tearDown() {
+        store.deactivate();
+    }
+
+    private static Host user(int id, DeviceId deviceId) {
+        return user(id, deviceId, id);
+    }
+
+    private static Host user(int id, DeviceId deviceId, long port) {
+        MacAddress mac = MacAddress.valueOf(id);
+        return new DefaultHost(PID, HostId.hostId(mac), mac, VlanId.NONE,
+                new HostLocation(deviceId, PortNumber.portNumber(port), 0),
+                Collections.singleton(IpAddress.valueOf("10.1." + (id / 256) + "." + (id % 256))));
+    }
+
+    private static Service service(String name, String ip) {
+        return DefaultService.builder()
+                .withName(name)
+                .withIp(Sets.newHashSet(Ip4Address.valueOf(ip)))
+                .withPort(TpPort.tpPort(80))
+                .build();
+    }
+
+    private void changeMaster(DeviceId deviceId, boolean local) {
+        if (local) {
+            mastered.add(deviceId);
+        } else {
+            mastered.remove(deviceId);
+        }
+        mastershipListener.event(new MastershipEvent(MastershipEvent.Type.MASTER_CHANGED, deviceId, ROLE));
+    }
+
+    @Test
+    public void connectionRemovedByNewMaster() throws Exception {
+        // the connection is installed by the master of the device, another instance
+        Connection connection = new DefaultConnection(user(1, D1), service("web", "10.2.0.1"));
+        store.addConnection(connection);
+        assertTrue(installer.added.isEmpty());
+        assertTrue(store.contains(connection));
+
+        // this instance takes over the rules installed by the former master
+        changeMaster(D1, true);
+        assertEquals(connection, installer.adopted.poll(5, TimeUnit.SECONDS));
+
+        store.removeConnection(connection);
+        assertEquals(Collections.singletonList(connection), installer.removed);
+        assertFalse(store.contains(connection));
+    }
+
+    @Test
+    public void connectionForgottenByFormerMaster() throws Exception {
+        mastered.add(D1);
+        Connection connection = new DefaultConnection(user(1, D1), service("web", "10.2.0.1"));
+        store.addConnection(connection);
+        assertEquals(1, installer.added.size());
+
+        // the new master removes the rules of the connection
+        changeMaster(D1, false);
+        assertEquals(connection, installer.forgotten.poll(5, TimeUnit.SECONDS));
+        store.removeConnection(connection);
+        assertTrue(installer.removed.isEmpty());
+        assertFalse(store.contains(connection));
+    }
+
+    @Test
+    public void connectionsOfOtherDevicesNotAdopted() throws Exception {
+        Connection other = new DefaultConnection(user(2, did("2")), service("web", "10.2.0.1"));
+        Connection connection = new DefaultConnection(user(1, D1), service("web", "10.2.0.1"));
+        store.addConnection(other);
+        store.addConnection(connection);
+
+        changeMaster(D1, true);
+        assertEquals(connection, installer.adopted.poll(5, TimeUnit.SECONDS));
+        assertNull(installer.adopted.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void onlyMasteredConnectionsReinstalled() {
+        mastered.add(D1);
+        Service service = service("web", "10.2.0.1");
+        Connection local = new DefaultConnection(user(1, D1), service);
+        Connection remote = new DefaultConnection(user(2, did("2")), service);
+        store.addConnection(local);
+        store.addConnection(remote);
+        installer.added.clear();
+
+        // the connection of the other device is reinstalled by its master
+        assertEquals(1, store.reinstallConnections());
+        assertEquals(Collections.singletonList(local), installer.removed);
+        assertEquals(Collections.singletonList(local), installer.added);
+        assertNotSame(local, installer.added.get(0));
+        assertTrue(store.contains(local));
+        assertTrue(store.contains(remote));
+    }
+
+    @Test
+    public void connectionsIndexedByHostAndService() {
+        mastered.add(D1);
+        Host user1 = user(1, D1);
+        Host user2 = user(2, D1);
+        Service web = service("web", "10.2.0.1");
+        Service mail = service("mail", "10.2.0.2");
+        Connection user1Web = new DefaultConnection(user1, web);
+        Connection user1Mail = new DefaultConnection(user1, mail);
+        Connection user2Web = new DefaultConnection(user2, web);
+        store.addConnections(Arrays.asList(user1Web, user1Mail, user2Web));
+
+        assertEquals(Sets.newHashSet(user1Web, user1Mail), store.getConnections(user1));
+        assertEquals(Sets.newHashSet(user2Web), store.getConnections(user2));
+        assertEquals(Sets.newHashSet(user1Web, user2Web), store.getConnections(web));
+        assertEquals(Sets.newHashSet(user1Mail), store.getConnections(mail));
+        assertEquals(user1Mail, store.getConnection(user1, mail));
+        assertNull(store.getConnection(user2, mail));
+        assertEquals(3, store.getConnections().size());
+
+        store.removeConnection(user1Web);
+        assertEquals(Sets.newHashSet(user1Mail), store.getConnections(user1));
+        assertEquals(Sets.newHashSet(user2Web), store.getConnections(web));
+        store.removeConnection(user1Mail);
+        assertTrue(store.getConnections(user1).isEmpty());
+        assertTrue(store.getConnections(mail).isEmpty());
+    }
+
+    @Test
+    public void outdatedConnectionReplaced() {
+        mastered.add(D1);
+        Service service = service("web", "10.2.0.1");
+        Connection connection = new DefaultConnection(user(1, D1), service);
+        store.addConnection(connection);
+
+        // the same user and service with an outdated location
+        Connection moved = new DefaultConnection(user(1, D1, 7), service);
+        store.addConnection(moved);
+        assertEquals(Collections.singletonList(connection), installer.removed);
+        assertEquals(Arrays.asList(connection, moved), installer.added);
+        assertFalse(store.contains(connection));
+        assertTrue(store.contains(moved));
+        assertEquals(Collections.singleton(moved), store.getConnections(service));
+        assertEquals(1, store.getConnections().size());
+    }
+
+    @Test
+    public void installedConnectionNotInstalledAgain() {
+        mastered.add(D1);
+        Connection connection = new DefaultConnection(user(1, D1), service("web", "10.2.0.1"));
+        store.addConnection(connection);
+        store.addConnection(new DefaultConnection(user(1, D1), service("web", "10.2.0.1")));
+        store.addConnections(Collections.singletonList(connection));
+        assertEquals(1, installer.added.size());
+    }
+
+    @Test
+    public void unacknowledgedConnectionDegraded() {
+        mastered.add(D1);
+        CompletableFuture<Void> installation = new CompletableFuture<>();
+        installer.installation = installation;
+        Connection connection = new DefaultConnection(user(1, D1), service("web", "10.2.0.1"));
+        store.addConnection(connection);
+        assertTrue(store.isDegraded(connection));
+        assertEquals(Collections.singleton(connection), store.getDegradedConnections());
+
+        installation.complete(null);
+        assertFalse(store.isDegraded(connection));
+        assertTrue(store.getDegradedConnections().isEmpty());
+    }
+
+    @Test
+    public void failedConnectionInstalledAgain() {
+        mastered.add(D1);
+        CompletableFuture<Void> installation = new CompletableFuture<>();
+        installer.installation = installation;
+        Connection connection = new DefaultConnection(user(1, D1), service("web", "10.2.0.1"));
+        store.addConnection(connection);
+        installation.completeExceptionally(new RuleInstallException(D1, "test"));
+        assertTrue(store.isDegraded(connection));
+
+        installer.installation = CompletableFuture.completedFuture(null);
+        store.addConnection(connection);
+        assertEquals(Collections.singletonList(connection), installer.removed);
+        assertEquals(2, installer.added.size());
+        assertFalse(store.isDegraded(connection));
+        assertTrue(store.contains(connection));
+    }
+
+    @Test
+    public void movedHostConnectionsUpdated() {
+        mastered.add(D1);
+        Host user = user(1, D1);
+        Host moved = user(1, D1, 7);
+        Service web = service("web", "10.2.0.1");
+        Service mail = service("mail", "10.2.0.2");
+        store.addConnection(new DefaultConnection(user, web));
+        store.addConnection(new DefaultConnection(user, mail));
+        installer.added.clear();
+
+        hostListener.event(new HostEvent(HostEvent.Type.HOST_MOVED, moved, user));
+        assertEquals(Sets.newHashSet(new DefaultConnection(moved, web), new DefaultConnection(moved, mail)),
+                store.getConnections(moved));
+        assertEquals(2, installer.removed.size());
+        assertEquals(2, installer.added.size());
+        assertEquals(2, store.getConnections().size());
+    }
+
+    @Test
+    public void removedHostConnectionsRemoved() {
+        mastered.add(D1);
+        Host user = user(1, D1);
+        Service web = service("web", "10.2.0.1");
+        Connection other = new DefaultConnection(user(2, D1), web);
+        store.addConnection(new DefaultConnection(user, web));
+        store.addConnection(other);
+
+        hostListener.event(new HostEvent(HostEvent.Type.HOST_REMOVED, user));
+        assertTrue(store.getConnections(user).isEmpty());
+        assertEquals(Collections.singleton(other), store.getConnections(web));
+    }
+
+    @Test
+    public void concurrentConnectionsIndexedOnce() throws Exception {
+        mastered.add(D1);
+        List<Connection> all = new ArrayList<>();
+        Service web = service("web", "10.2.0.1");
+        Service mail = service("mail", "10.2.0.2");
+        for (int id = 1; id <= USERS; id++) {
+            all.add(new DefaultConnection(user(id, D1), web));
+            all.add(new DefaultConnection(user(id, D1), mail));
+        }
+
+        // every thread adds all connections, in a different order and partly in bulk
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            List<Connection> own = new ArrayList<>(all);
+            Collections.shuffle(own, new Random(t));
+            boolean bulk = t % 2 == 0;
+            results.add(executor.submit(() -> {
+                start.await();
+                if (bulk) {
+                    store.addConnections(own);
+                } else {
+                    own.forEach(store::addConnection);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(all.size(), installer.added.size());
+        assertTrue(installer.removed.isEmpty());
+        assertEquals(new HashSet<>(all), store.getConnections());
+        assertEquals(USERS, store.getConnections(web).size());
+        assertEquals(USERS, store.getConnections(mail).size());
+    }
+
+    private class TestHostService extends HostServiceAdapter {
+
+        @Override
+        public void addListener(HostListener listener) {
+            hostListener = listener;
+        }
+    }
+
+    private class TestMastershipService extends MastershipServiceAdapter {
+
+        @Override
+        public MastershipRole getLocalRole(DeviceId deviceId) {
+            return mastered.contains(deviceId) ? MastershipRole.MASTER : MastershipRole.STANDBY;
+        }
+
+        @Override
+        public boolean isLocalMaster(DeviceId deviceId) {
+            return mastered.contains(deviceId);
+        }
+
+        @Override
+        public void addListener(MastershipListener listener) {
+            mastershipListener = listener;
+        }
+    }
+
+    private static class TestCodecService implements CodecService {
+
+        private final Map<Class<?>, JsonCodec<?>> codecs = new HashMap<>();
+
+        @Override
+        public Set<Class<?>> getCodecs() {
+            return codecs.keySet();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> JsonCodec<T> getCodec(Class<T> entityClass) {
+            return (JsonCodec<T>) codecs.get(entityClass);
+        }
+
+        @Override
+        public <T> void registerCodec(Class<T> entityClass, JsonCodec<T> codec) {
+            codecs.put(entityClass, codec);
+        }
+
+        @Override
+        public void unregisterCodec(Class<?> entityClass) {
+            codecs.remove(entityClass);
+        }
+    }
+
+    /**
+     * Rule installer recording the connections it installs, removes, adopts and forgets.
+     */
+    private static class TestConnectionRuleInstaller extends ConnectionRuleInstallerAdapter {
+
+        private final List<Connection> added = new CopyOnWriteArrayList<>();
+        private final List<Connection> removed = new CopyOnWriteArrayList<>();
+        private final BlockingQueue<Connection> adopted = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Connection> forgotten = new LinkedBlockingQueue<>();
+        // future returned for the installations
+        private volatile CompletableFuture<Void> installation = CompletableFuture.completedFuture(null);
+
+        @Override
+        public CompletableFuture<Void> addConnection(Connection connection) {
+            added.add(connection);
+            return installation;
+        }
+
+        @Override
+        public CompletableFuture<Void> updateConnection(Connection oldConnection, Connection newConnection) {
+            removeConnection(oldConnection);
+            return addConnection(newConnection);
+        }
+
+        @Override
+        public void removeConnection(Connection connection) {
+            removed.add(connection);
+        }
+
+        @Override
+        public void adoptConnection(Connection connection) {
+            adopted.add(connection);
+        }
+
+        @Override
+        public void forgetConnection(Connection connection) {
+            forgotten.add(connection);
+        }
+    }
+}
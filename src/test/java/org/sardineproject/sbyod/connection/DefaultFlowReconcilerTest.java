@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.google.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TpPort;
+import org.onlab.packet.VlanId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.ApplicationIdStore;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.mastership.MastershipServiceAdapter;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.MastershipRole;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.provider.ProviderId;
+import org.sardineproject.sbyod.portal.PortalService;
+import org.sardineproject.sbyod.service.DefaultService;
+import org.sardineproject.sbyod.service.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.NetTestTools.device;
+
+/**
+ * Tests of the reconciliation of the connection rules with the flows of the devices.
+ */
+public class DefaultFlowReconcilerTest {
+
+    private static final ProviderId PID = new ProviderId("of", "sbyod-test");
+    private static final DeviceId D1 = did("1");
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, PortalService.APP_ID);
+    private static final int PRIORITY = DefaultConnectionRuleInstaller.MIN_CONNECTION_PRIORITY + 20;
+    // time the reconciler gets to run repairs that must not happen
+    private static final long QUIET_MS = 200;
+
+    private final List<FlowEntry> flowEntries = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<FlowRuleOperations> applied = new LinkedBlockingQueue<>();
+    private final BlockingQueue<ForwardingObjective> forwarded = new LinkedBlockingQueue<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Set<ObjectiveKey> heldRules = ConcurrentHashMap.newKeySet();
+    private final List<ObjectiveRetryService.RetryStatus> pending = new CopyOnWriteArrayList<>();
+
+    private DefaultFlowReconciler reconciler;
+
+    @Before
+    public void setUp() {
+        reconciler = new DefaultFlowReconciler();
+        reconciler.flowRuleService = new TestFlowRuleService();
+        reconciler.deviceService = new TestDeviceService();
+        reconciler.mastershipService = new TestMastershipService();
+        reconciler.applicationIdStore = new TestApplicationIdStore();
+        reconciler.connectionStore = new TestConnectionStore();
+        reconciler.objectiveRetryService = new TestObjectiveRetryService();
+        reconciler.connectionRuleInstaller = new TestConnectionRuleInstaller();
+        reconciler.baselineTemplateService = new TestBaselineTemplateService();
+        reconciler.activate();
+    }
+
+    @After
+    public void tearDown() {
+        reconciler.deactivate();
+    }
+
+    private static TrafficSelector selector(long inPort) {
+        return DefaultTrafficSelector.builder().matchInPort(PortNumber.portNumber(inPort)).build();
+    }
+
+    private static DefaultForwardingObjective.Builder objective(long inPort, long outPort) {
+        return DefaultForwardingObjective.builder()
+                .withSelector(selector(inPort))
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(outPort)).build())
+                .withPriority(PRIORITY)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(APP_ID)
+                .makePermanent();
+    }
+
+    private static FlowEntry flow(long inPort, long outPort, int priority) {
+        FlowRule rule = DefaultFlowRule.builder()
+                .forDevice(D1)
+                .withSelector(selector(inPort))
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(outPort)).build())
+                .withPriority(priority)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .build();
+        return new DefaultFlowEntry(rule, FlowEntry.FlowEntryState.ADDED, 0, 0, 0);
+    }
+
+    // a connection holding the rule the objective installs on the device
+    private void connect(DefaultForwardingObjective.Builder objective) {
+        Connection connection = new DefaultConnection(
+                new DefaultHost(PID, HostId.hostId(MacAddress.valueOf(1)), MacAddress.valueOf(1),
+                        VlanId.NONE, new HostLocation(D1, PortNumber.portNumber(1), 0),
+                        Collections.singleton(IpAddress.valueOf("10.1.0.1"))),
+                DefaultService.builder()
+                        .withName("web" + connections.size())
+                        .withIp(Sets.newHashSet(Ip4Address.valueOf("10.2.0.1")))
+                        .withPort(TpPort.tpPort(80))
+                        .build());
+        connection.addForwardingObjective(objective.remove(), D1);
+        connections.add(connection);
+    }
+
+    private FlowReconcileService.DriftCounters reconcile() throws Exception {
+        reconciler.reconcile();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reconciler.getDriftCounters().get(D1) == null) {
+            assertTrue("Reconciliation did not run", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return reconciler.getDriftCounters().get(D1);
+    }
+
+    @Test
+    public void reconciledDeviceUnchanged() throws Exception {
+        connect(objective(1, 2));
+        flowEntries.add(flow(1, 2, PRIORITY));
+
+        assertEquals(0, reconcile().lastDrift());
+        assertNull(forwarded.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+        assertTrue(applied.isEmpty());
+    }
+
+    @Test
+    public void missingRuleInstalledAgain() throws Exception {
+        connect(objective(1, 2));
+
+        assertEquals(1, reconcile().missing());
+        ForwardingObjective installed = forwarded.poll(5, TimeUnit.SECONDS);
+        assertNotNull(installed);
+        assertEquals(Objective.Operation.ADD, installed.op());
+        assertEquals(selector(1), installed.selector());
+    }
+
+    @Test
+    public void pendingRuleNotMissing() throws Exception {
+        connect(objective(1, 2));
+        pending.add(new ObjectiveRetryService.RetryStatus(ObjectiveKey.of(D1, objective(1, 2).add()),
+                Objective.Operation.ADD, 1, null));
+
+        assertEquals(0, reconcile().missing());
+        assertNull(forwarded.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unexpectedFlowRemoved() throws Exception {
+        flowEntries.add(flow(1, 2, PRIORITY));
+
+        assertEquals(1, reconcile().unexpected());
+        FlowRuleOperations operations = applied.poll(5, TimeUnit.SECONDS);
+        assertNotNull(operations);
+        FlowRuleOperation operation = operations.stages().get(0).iterator().next();
+        assertEquals(FlowRuleOperation.Type.REMOVE, operation.type());
+        assertEquals(selector(1), operation.rule().selector());
+    }
+
+    @Test
+    public void heldRuleNotRemoved() throws Exception {
+        // the installer holds the rule of a connection not yet stored
+        flowEntries.add(flow(1, 2, PRIORITY));
+        heldRules.add(ObjectiveKey.of(D1, objective(1, 2).add()));
+
+        assertEquals(1, reconcile().unexpected());
+        assertNull(applied.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void flowsOutsideOfConnectionPrioritiesIgnored() throws Exception {
+        // the redirect and table miss rules of the application are never touched
+        flowEntries.add(flow(1, 2, DefaultConnectionRuleInstaller.MAX_CONNECTION_PRIORITY + 1));
+        flowEntries.add(flow(3, 4, DefaultConnectionRuleInstaller.MIN_CONNECTION_PRIORITY - 1));
+
+        assertEquals(0, reconcile().lastDrift());
+        assertNull(applied.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void modifiedFlowInstalledAgain() throws Exception {
+        connect(objective(1, 2));
+        flowEntries.add(flow(1, 3, PRIORITY));
+
+        assertEquals(1, reconcile().modified());
+        ForwardingObjective installed = forwarded.poll(5, TimeUnit.SECONDS);
+        assertNotNull(installed);
+        assertEquals(objective(1, 2).add().treatment(), installed.treatment());
+    }
+
+    @Test
+    public void removedConnectionNotRepaired() throws Exception {
+        // the connection is removed before the repair runs
+        connect(objective(1, 2));
+        reconciler.connectionStore = new ConnectionStoreAdapter() {
+            private boolean first = true;
+
+            @Override
+            public Set<Connection> getConnections() {
+                if (first) {
+                    first = false;
+                    return new HashSet<>(connections);
+                }
+                return Collections.emptySet();
+            }
+        };
+
+        assertEquals(1, reconcile().missing());
+        assertNull(forwarded.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private class TestFlowRuleService extends FlowRuleServiceAdapter {
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+            return D1.equals(deviceId) ? new ArrayList<>(flowEntries) : Collections.emptyList();
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            applied.add(ops);
+        }
+    }
+
+    private static class TestDeviceService extends DeviceServiceAdapter {
+
+        @Override
+        public Iterable<Device> getAvailableDevices() {
+            return Collections.singletonList(device("1"));
+        }
+    }
+
+    private static class TestMastershipService extends MastershipServiceAdapter {
+
+        @Override
+        public MastershipRole getLocalRole(DeviceId deviceId) {
+            return MastershipRole.MASTER;
+        }
+
+        @Override
+        public boolean isLocalMaster(DeviceId deviceId) {
+            return true;
+        }
+    }
+
+    private static class TestApplicationIdStore implements ApplicationIdStore {
+
+        @Override
+        public Set<ApplicationId> getAppIds() {
+            return Collections.singleton(APP_ID);
+        }
+
+        @Override
+        public ApplicationId getAppId(Short id) {
+            return APP_ID;
+        }
+
+        @Override
+        public ApplicationId getAppId(String name) {
+            return APP_ID;
+        }
+
+        @Override
+        public ApplicationId registerApplication(String identifier) {
+            return APP_ID;
+        }
+    }
+
+    private class TestConnectionStore extends ConnectionStoreAdapter {
+
+        @Override
+        public Set<Connection> getConnections() {
+            return new HashSet<>(connections);
+        }
+    }
+
+    private class TestObjectiveRetryService implements ObjectiveRetryService {
+
+        @Override
+        public CompletableFuture<Void> forward(DeviceId deviceId, ForwardingObjective objective) {
+            forwarded.add(objective);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public Map<DeviceId, List<RetryStatus>> getPendingObjectives() {
+            return pending.isEmpty() ? Collections.emptyMap() :
+                    Collections.singletonMap(D1, new ArrayList<>(pending));
+        }
+
+        @Override
+        public Map<DeviceId, Long> getFailedObjectives() {
+            return Collections.emptyMap();
+        }
+    }
+
+    private class TestConnectionRuleInstaller extends ConnectionRuleInstallerAdapter {
+
+        @Override
+        public Set<ObjectiveKey> getHeldRules(DeviceId deviceId) {
+            return new HashSet<>(heldRules);
+        }
+    }
+
+    private static class TestBaselineTemplateService implements BaselineTemplateService {
+
+        @Override
+        public void addService(Service service) {
+        }
+
+        @Override
+        public void removeService(Service service) {
+        }
+
+        @Override
+        public Set<Service> getServices() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Map<DeviceId, List<ForwardingObjective>> getObjectives() {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.TestApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.FilteringObjective;
+import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.ObjectiveError;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of the retries, the coalescing and the give up of the forwarded objectives.
+ */
+public class DefaultObjectiveRetryServiceTest {
+
+    private static final DeviceId D1 = did("1");
+
+    // error of the n-th objective sent to the device, null to acknowledge it,
+    // the device does not answer at all without results
+    private volatile IntFunction<ObjectiveError> results = null;
+    private volatile boolean available = true;
+    private final List<ForwardingObjective> sent = new CopyOnWriteArrayList<>();
+
+    private DefaultObjectiveRetryService service;
+
+    @Before
+    public void setUp() {
+        service = new DefaultObjectiveRetryService();
+        service.flowObjectiveService = new TestFlowObjectiveService();
+        service.deviceService = new TestDeviceService();
+        service.initialRetryDelay = 1;
+        service.maxRetryDelay = 4;
+        service.activate();
+    }
+
+    @After
+    public void tearDown() {
+        service.deactivate();
+    }
+
+    private static ForwardingObjective.Builder objective(long inPort) {
+        return DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder().matchInPort(PortNumber.portNumber(inPort)).build())
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(2)).build())
+                .withPriority(100)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(new TestApplicationId("retry-test"))
+                .makePermanent();
+    }
+
+    private static RuleInstallException failure(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Objective did not fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RuleInstallException);
+            return (RuleInstallException) e.getCause();
+        }
+        return null;
+    }
+
+    @Test
+    public void acknowledgedObjectiveCompleted() throws Exception {
+        results = attempt -> null;
+        service.forward(D1, objective(1).add()).get(5, TimeUnit.SECONDS);
+        assertEquals(1, sent.size());
+        assertTrue(service.getPendingObjectives().isEmpty());
+    }
+
+    @Test
+    public void failedObjectiveRetried() throws Exception {
+        // the first two attempts fail, the third is acknowledged
+        results = attempt -> attempt < 3 ? ObjectiveError.FLOWINSTALLATIONFAILED : null;
+        service.forward(D1, objective(1).add()).get(5, TimeUnit.SECONDS);
+        assertEquals(3, sent.size());
+        assertTrue(service.getPendingObjectives().isEmpty());
+        assertTrue(service.getFailedObjectives().isEmpty());
+    }
+
+    @Test
+    public void unsupportedObjectiveNotRetried() throws Exception {
+        results = attempt -> ObjectiveError.UNSUPPORTED;
+        assertEquals(D1, failure(service.forward(D1, objective(1).add())).deviceId());
+        assertEquals(1, sent.size());
+        assertEquals(1L, (long) service.getFailedObjectives().get(D1));
+    }
+
+    @Test
+    public void retriesExhausted() throws Exception {
+        service.maxAttempts = 3;
+        results = attempt -> ObjectiveError.FLOWINSTALLATIONFAILED;
+        failure(service.forward(D1, objective(1).add()));
+        assertEquals(3, sent.size());
+        assertTrue(service.getPendingObjectives().isEmpty());
+        assertEquals(1L, (long) service.getFailedObjectives().get(D1));
+    }
+
+    @Test
+    public void retryDeadlineReached() throws Exception {
+        service.retryDeadline = 0;
+        results = attempt -> ObjectiveError.FLOWINSTALLATIONFAILED;
+        failure(service.forward(D1, objective(1).add()));
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void unavailableDeviceWaits() throws Exception {
+        available = false;
+        results = attempt -> ObjectiveError.FLOWINSTALLATIONFAILED;
+        CompletableFuture<Void> future = service.forward(D1, objective(1).add());
+        Thread.sleep(50);
+        assertFalse(future.isDone());
+        assertEquals(1, sent.size());
+        assertEquals(1, service.getPendingObjectives().get(D1).get(0).attempts());
+    }
+
+    @Test
+    public void sameObjectiveCoalesced() throws Exception {
+        // the device does not answer the first objective, the second replaces it
+        CompletableFuture<Void> first = service.forward(D1, objective(1).add());
+        results = attempt -> null;
+        CompletableFuture<Void> second = service.forward(D1, objective(1).add());
+
+        second.get(5, TimeUnit.SECONDS);
+        first.get(5, TimeUnit.SECONDS);
+        assertTrue(service.getPendingObjectives().isEmpty());
+    }
+
+    @Test
+    public void removalSupersedesInstallation() throws Exception {
+        CompletableFuture<Void> install = service.forward(D1, objective(1).add());
+        assertEquals(1, service.getPendingObjectives().get(D1).size());
+
+        results = attempt -> null;
+        service.forward(D1, objective(1).remove()).get(5, TimeUnit.SECONDS);
+        failure(install);
+        assertTrue(service.getPendingObjectives().isEmpty());
+    }
+
+    @Test
+    public void objectivesOfDifferentRulesKept() {
+        service.forward(D1, objective(1).add());
+        service.forward(D1, objective(2).add());
+        assertEquals(2, service.getPendingObjectives().get(D1).size());
+    }
+
+    /**
+     * Flow objective service answering the objectives with the configured results.
+     */
+    private class TestFlowObjectiveService implements FlowObjectiveService {
+
+        @Override
+        public void filter(DeviceId deviceId, FilteringObjective filteringObjective) {
+        }
+
+        @Override
+        public void forward(DeviceId deviceId, ForwardingObjective forwardingObjective) {
+            sent.add(forwardingObjective);
+            IntFunction<ObjectiveError> current = results;
+            if (current == null) {
+                return;
+            }
+            ObjectiveError error = current.apply(sent.size());
+            if (error == null) {
+                forwardingObjective.context().ifPresent(context -> context.onSuccess(forwardingObjective));
+            } else {
+                forwardingObjective.context().ifPresent(context -> context.onError(forwardingObjective, error));
+            }
+        }
+
+        @Override
+        public void next(DeviceId deviceId, NextObjective nextObjective) {
+        }
+
+        @Override
+        public int allocateNextId() {
+            return 0;
+        }
+
+        @Override
+        public void initPolicy(String policy) {
+        }
+    }
+
+    private class TestDeviceService extends DeviceServiceAdapter {
+
+        @Override
+        public boolean isAvailable(DeviceId deviceId) {
+            return available;
+        }
+    }
+}
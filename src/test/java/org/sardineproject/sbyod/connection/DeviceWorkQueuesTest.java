@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of the ordered, non blocking and bounded device work queues.
+ */
+public class DeviceWorkQueuesTest {
+
+    private static final DeviceId D1 = did("1");
+    private static final DeviceId D2 = did("2");
+    private static final int TASKS = 1000;
+
+    private DeviceWorkQueues queues;
+
+    @Before
+    public void setUp() {
+        queues = new DeviceWorkQueues(4, 10);
+    }
+
+    @After
+    public void tearDown() {
+        queues.shutdown();
+    }
+
+    @Test
+    public void tasksOfDeviceExecutedInOrder() throws Exception {
+        // the lists are only touched by the thread draining the queue of their device
+        List<Integer> first = new ArrayList<>();
+        List<Integer> second = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        for (int i = 0; i < TASKS; i++) {
+            int task = i;
+            queues.execute(D1, () -> first.add(task));
+            queues.execute(D2, () -> second.add(task));
+        }
+        queues.execute(D1, done::countDown);
+        queues.execute(D2, done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < TASKS; i++) {
+            assertEquals(i, (int) first.get(i));
+            assertEquals(i, (int) second.get(i));
+        }
+    }
+
+    @Test
+    public void failingTaskDoesNotStopQueue() throws Exception {
+        CompletableFuture<Void> failing = queues.execute(D1, () -> {
+            throw new IllegalStateException("test");
+        });
+        queues.execute(D1, () -> { }).get(5, TimeUnit.SECONDS);
+        assertTrue(failing.isCompletedExceptionally());
+    }
+
+    @Test
+    public void fullQueueRejectsTasks() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<Void>> accepted = new ArrayList<>();
+        accepted.add(queues.execute(D1, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        // the first task holds the queue until it is filled up to its capacity
+        for (int i = 1; i < 10; i++) {
+            accepted.add(queues.execute(D1, () -> { }));
+        }
+        CompletableFuture<Void> rejected = queues.execute(D1, () -> { });
+        try {
+            rejected.get(1, TimeUnit.SECONDS);
+            fail("Task of a full queue accepted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        DeviceWorkQueues.QueueStats stats = queues.stats().get(D1);
+        assertEquals(10, stats.depth());
+        assertEquals(1, stats.rejected());
+
+        // the queues of the other devices are not affected
+        queues.execute(D2, () -> { }).get(5, TimeUnit.SECONDS);
+
+        release.countDown();
+        CompletableFuture.allOf(accepted.toArray(new CompletableFuture[accepted.size()])).get(5, TimeUnit.SECONDS);
+        // tasks are accepted again after the device caught up
+        queues.execute(D1, () -> { }).get(5, TimeUnit.SECONDS);
+        assertEquals(10, queues.stats().get(D1).maxDepth());
+        assertEquals(1, queues.stats().get(D1).rejected());
+    }
+}
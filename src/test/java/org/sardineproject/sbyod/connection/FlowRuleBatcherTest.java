@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.TestApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.PortNumber;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of the per device batching of flow rule operations.
+ */
+public class FlowRuleBatcherTest {
+
+    private static final DeviceId D1 = did("1");
+    private static final DeviceId D2 = did("2");
+
+    private final List<FlowRuleOperations> applied = new CopyOnWriteArrayList<>();
+    private volatile boolean fail = false;
+    // the batches are only completed by the test, if the service does not answer
+    private volatile boolean answer = true;
+    private FlowRuleBatcher batcher;
+
+    @Before
+    public void setUp() {
+        batcher = new FlowRuleBatcher(new TestFlowRuleService(), () -> 3, () -> 10000);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.shutdown();
+    }
+
+    private static FlowRule rule(DeviceId deviceId, long port) {
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .withSelector(DefaultTrafficSelector.builder().matchInPort(PortNumber.portNumber(port)).build())
+                .withTreatment(DefaultTrafficTreatment.builder().drop().build())
+                .withPriority(100)
+                .fromApp(new TestApplicationId("batcher-test"))
+                .makePermanent()
+                .build();
+    }
+
+    private static int size(FlowRuleOperations ops) {
+        return ops.stages().stream().mapToInt(Set::size).sum();
+    }
+
+    @Test
+    public void fullBatchSubmitted() throws Exception {
+        CompletableFuture<Void> first = batcher.add(rule(D1, 1));
+        CompletableFuture<Void> second = batcher.remove(rule(D1, 2));
+        assertTrue(applied.isEmpty());
+        assertFalse(first.isDone());
+
+        CompletableFuture<Void> third = batcher.add(rule(D1, 3));
+        assertEquals(1, applied.size());
+        assertEquals(3, size(applied.get(0)));
+        assertSame(first, third);
+        assertSame(first, second);
+        first.get(1, TimeUnit.SECONDS);
+
+        // the next operation starts a new batch
+        assertFalse(batcher.add(rule(D1, 4)).isDone());
+        assertEquals(1, batcher.stats().get(D1).submitted());
+        assertEquals(1, batcher.stats().get(D1).succeeded());
+    }
+
+    @Test
+    public void devicesBatchedSeparately() {
+        batcher.add(rule(D1, 1));
+        batcher.add(rule(D1, 2));
+        batcher.add(rule(D2, 1));
+        batcher.add(rule(D2, 2));
+        assertTrue(applied.isEmpty());
+
+        batcher.flushAll();
+        assertEquals(2, applied.size());
+        assertEquals(2, size(applied.get(0)));
+        assertEquals(2, size(applied.get(1)));
+    }
+
+    @Test
+    public void batchFlushedAfterInterval() throws Exception {
+        FlowRuleBatcher timed = new FlowRuleBatcher(new TestFlowRuleService(), () -> 100, () -> 10);
+        try {
+            timed.add(rule(D1, 1)).get(5, TimeUnit.SECONDS);
+            assertEquals(1, applied.size());
+        } finally {
+            timed.shutdown();
+        }
+    }
+
+    @Test
+    public void failedBatchCompletesExceptionally() throws Exception {
+        fail = true;
+        CompletableFuture<Void> future = batcher.add(rule(D1, 1));
+        batcher.flushAll();
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Failed batch completed normally");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RuleInstallException);
+            assertEquals(D1, ((RuleInstallException) e.getCause()).deviceId());
+        }
+        assertEquals(1, batcher.stats().get(D1).failed());
+    }
+
+    @Test
+    public void batchesOfDeviceSubmittedInOrder() throws Exception {
+        answer = false;
+        CompletableFuture<Void> first = batcher.add(rule(D1, 1));
+        batcher.flushAll();
+        CompletableFuture<Void> second = batcher.remove(rule(D1, 1));
+        batcher.flushAll();
+        // the removal waits for the result of the installation
+        assertEquals(1, applied.size());
+
+        // the batches of other devices are not held back
+        batcher.add(rule(D2, 1));
+        batcher.flushAll();
+        assertEquals(2, applied.size());
+
+        applied.get(0).callback().onSuccess(applied.get(0));
+        first.get(1, TimeUnit.SECONDS);
+        assertEquals(3, applied.size());
+        assertEquals(FlowRuleOperation.Type.REMOVE,
+                applied.get(2).stages().get(0).iterator().next().type());
+
+        applied.get(2).callback().onError(applied.get(2));
+        assertTrue(second.isCompletedExceptionally());
+    }
+
+    @Test
+    public void failedBatchDoesNotHoldBackDevice() throws Exception {
+        fail = true;
+        batcher.add(rule(D1, 1));
+        batcher.flushAll();
+        fail = false;
+        batcher.add(rule(D1, 2));
+        batcher.flushAll();
+        assertEquals(2, applied.size());
+    }
+
+    /**
+     * Flow rule service recording the applied batches and completing them at once, if it answers.
+     */
+    private class TestFlowRuleService extends FlowRuleServiceAdapter {
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            applied.add(ops);
+            if (!answer) {
+                return;
+            }
+            if (fail) {
+                ops.callback().onError(ops);
+            } else {
+                ops.callback().onSuccess(ops);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.MplsLabel;
+import org.onlab.packet.VlanId;
+import org.onosproject.TestApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.criteria.Criteria;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.PortCriterion;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.PID;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.NetTestTools.link;
+
+/**
+ * Tests of the compilation of the shared internet tree and the labels of the edge ports.
+ */
+public class InternetTreeTest {
+
+    private static final DeviceId D1 = did("1");
+    private static final DeviceId D2 = did("2");
+    private static final DeviceId D3 = did("3");
+
+    // D1 and D3 are connected over D2 and directly
+    private static final Link L12 = link("1", 1, "2", 1);
+    private static final Link L21 = link("2", 1, "1", 1);
+    private static final Link L23 = link("2", 2, "3", 1);
+    private static final Link L32 = link("3", 1, "2", 2);
+    private static final Link L13 = link("1", 2, "3", 2);
+    private static final Link L31 = link("3", 2, "1", 2);
+
+    // the gateway is attached to D3
+    private static final Host GATEWAY = new DefaultHost(PID, HostId.hostId(MacAddress.valueOf(100)),
+            MacAddress.valueOf(100), VlanId.NONE, new HostLocation(D3, PortNumber.portNumber(5), 0),
+            Collections.singleton(IpAddress.valueOf("10.0.0.1")));
+
+    private static final ConnectPoint EDGE1 = new ConnectPoint(D1, PortNumber.portNumber(10));
+    private static final ConnectPoint EDGE2 = new ConnectPoint(D2, PortNumber.portNumber(12));
+    private static final ConnectPoint EDGE3 = new ConnectPoint(D3, PortNumber.portNumber(11));
+
+    private final Map<List<DeviceId>, List<Link>> routes = new HashMap<>();
+    private final List<DeviceId> sentTo = new CopyOnWriteArrayList<>();
+    private final List<ForwardingObjective> sent = new CopyOnWriteArrayList<>();
+
+    private InternetTree tree;
+
+    @Before
+    public void setUp() {
+        routes.put(ImmutableList.of(D1, D3), ImmutableList.of(L12, L23));
+        routes.put(ImmutableList.of(D3, D1), ImmutableList.of(L32, L21));
+        routes.put(ImmutableList.of(D3, D2), ImmutableList.of(L32));
+        tree = new InternetTree(
+                (deviceId, objective) -> {
+                    sentTo.add(deviceId);
+                    sent.add(objective);
+                    return CompletableFuture.completedFuture(null);
+                },
+                (src, dst) -> routes.getOrDefault(ImmutableList.of(src, dst), Collections.emptyList()));
+    }
+
+    private void update(ConnectPoint... edgePoints) {
+        tree.update(GATEWAY, ImmutableList.copyOf(edgePoints), new TestApplicationId("tree-test"));
+    }
+
+    private static PortNumber inPort(ForwardingObjective objective) {
+        Criterion criterion = objective.selector().getCriterion(Criterion.Type.IN_PORT);
+        return ((PortCriterion) criterion).port();
+    }
+
+    private static PortNumber outPort(ForwardingObjective objective) {
+        return objective.treatment().allInstructions().stream()
+                .filter(instruction -> instruction instanceof Instructions.OutputInstruction)
+                .map(instruction -> ((Instructions.OutputInstruction) instruction).port())
+                .findFirst()
+                .orElse(null);
+    }
+
+    private ForwardingObjective sentTo(DeviceId deviceId, long inPort) {
+        for (int i = 0; i < sent.size(); i++) {
+            if (sentTo.get(i).equals(deviceId) && inPort(sent.get(i)).toLong() == inPort) {
+                return sent.get(i);
+            }
+        }
+        throw new AssertionError("No objective sent to " + deviceId + " for port " + inPort);
+    }
+
+    @Test
+    public void treeCompiledAlongRoutes() {
+        update(EDGE1, EDGE3);
+
+        assertTrue(tree.isActive());
+        // upstream on D2 and D3, downstream on D2 and the edge device D1,
+        // the gateway device and the upstream edge device are served by the rules of the users
+        assertEquals(4, sent.size());
+        assertTrue(sent.stream().allMatch(objective -> objective.op() == Objective.Operation.ADD));
+        assertEquals(1, tree.objectives().get(D1).size());
+        assertEquals(2, tree.objectives().get(D2).size());
+        assertEquals(1, tree.objectives().get(D3).size());
+
+        assertEquals(PortNumber.portNumber(2), outPort(sentTo(D2, 1)));
+        assertEquals(PortNumber.portNumber(5), outPort(sentTo(D3, 1)));
+        assertEquals(Criteria.matchEthDst(GATEWAY.mac()),
+                sentTo(D3, 1).selector().getCriterion(Criterion.Type.ETH_DST));
+        assertEquals(Criteria.matchMplsLabel(tree.label(EDGE1)),
+                sentTo(D1, 1).selector().getCriterion(Criterion.Type.MPLS_LABEL));
+    }
+
+    @Test
+    public void unchangedTreeNotSentAgain() {
+        update(EDGE1, EDGE3);
+        sent.clear();
+        sentTo.clear();
+
+        update(EDGE1, EDGE3);
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void labelsOfEdgePortsStable() {
+        MplsLabel label = tree.label(EDGE1);
+        assertEquals(label, tree.label(EDGE1));
+        assertNotEquals(label, tree.label(EDGE2));
+        assertTrue(label.toInt() >= 16);
+        // labels are allocated without an installed tree
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void newEdgePortAddedToTree() {
+        update(EDGE1, EDGE3);
+        sent.clear();
+        sentTo.clear();
+
+        // the user is located on an edge port not reported yet
+        MplsLabel label = tree.label(EDGE2);
+        assertEquals(1, sent.size());
+        assertEquals(D2, sentTo.get(0));
+        assertEquals(Criteria.matchMplsLabel(label), sent.get(0).selector().getCriterion(Criterion.Type.MPLS_LABEL));
+    }
+
+    @Test
+    public void changedRouteReplacesRules() {
+        update(EDGE1, EDGE3);
+        sent.clear();
+        sentTo.clear();
+
+        routes.put(ImmutableList.of(D1, D3), ImmutableList.of(L13));
+        routes.put(ImmutableList.of(D3, D1), ImmutableList.of(L31));
+        update(EDGE1, EDGE3);
+
+        assertFalse(tree.objectives().containsKey(D2));
+        assertEquals(1, tree.objectives().get(D1).size());
+        assertEquals(1, tree.objectives().get(D3).size());
+        // the new rules are sent before the old rules are removed
+        assertEquals(6, sent.size());
+        assertEquals(Objective.Operation.ADD, sent.get(0).op());
+        assertEquals(Objective.Operation.ADD, sent.get(1).op());
+        for (int i = 2; i < sent.size(); i++) {
+            assertEquals(Objective.Operation.REMOVE, sent.get(i).op());
+        }
+        assertEquals(PortNumber.portNumber(2), inPort(tree.objectives().get(D1).get(0)));
+    }
+
+    @Test
+    public void clearedTreeRemovesRules() {
+        update(EDGE1, EDGE3);
+        MplsLabel label = tree.label(EDGE1);
+        sent.clear();
+        sentTo.clear();
+
+        tree.clear();
+        assertFalse(tree.isActive());
+        assertTrue(tree.objectives().isEmpty());
+        assertEquals(4, sent.size());
+        assertTrue(sent.stream().allMatch(objective -> objective.op() == Objective.Operation.REMOVE));
+        // the labels are derived from the edge port, a new tree allocates the same label
+        assertEquals(label, tree.label(EDGE1));
+    }
+}
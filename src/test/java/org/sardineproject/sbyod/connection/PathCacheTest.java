@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.event.Event;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.onosproject.net.NetTestTools.PID;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.NetTestTools.link;
+
+/**
+ * Tests of the path cache and its invalidation by topology events.
+ */
+public class PathCacheTest {
+
+    private static final DeviceId D1 = did("1");
+    private static final DeviceId D2 = did("2");
+    private static final DeviceId D3 = did("3");
+
+    private static final Link L12 = link("1", 1, "2", 1);
+    private static final Link L23 = link("2", 2, "3", 1);
+    private static final Link L13 = link("1", 2, "3", 2);
+
+    private final Map<List<DeviceId>, Integer> lookups = new HashMap<>();
+    private PathCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new PathCache(new TestTopologyService(), 100);
+    }
+
+    private static Path path(Link... links) {
+        return new DefaultPath(PID, ImmutableList.copyOf(links), links.length);
+    }
+
+    private static TopologyEvent event(Event... reasons) {
+        return new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, null, ImmutableList.copyOf(reasons));
+    }
+
+    private int lookups(DeviceId src, DeviceId dst) {
+        return lookups.getOrDefault(ImmutableList.of(src, dst), 0);
+    }
+
+    @Test
+    public void pathsCached() {
+        assertEquals(ImmutableSet.of(path(L12, L23)), cache.getPaths(D1, D3));
+        assertEquals(ImmutableSet.of(path(L12, L23)), cache.getPaths(D1, D3));
+        assertEquals(1, lookups(D1, D3));
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void removedLinkInvalidatesCrossingPaths() {
+        cache.getPaths(D1, D3);
+        cache.getPaths(D1, D2);
+        cache.getPaths(D2, D3);
+
+        cache.invalidate(event(new LinkEvent(LinkEvent.Type.LINK_REMOVED, L23)));
+        assertEquals(1, cache.size());
+
+        cache.getPaths(D1, D2);
+        cache.getPaths(D1, D3);
+        assertEquals(1, lookups(D1, D2));
+        assertEquals(2, lookups(D1, D3));
+    }
+
+    @Test
+    public void addedLinkInvalidatesAll() {
+        cache.getPaths(D1, D3);
+        cache.getPaths(D1, D2);
+
+        cache.invalidate(event(new LinkEvent(LinkEvent.Type.LINK_ADDED, L13)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void eventWithoutReasonsInvalidatesAll() {
+        cache.getPaths(D1, D3);
+
+        cache.invalidate(event());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void boundedSize() {
+        PathCache small = new PathCache(new TestTopologyService(), 1);
+        small.getPaths(D1, D2);
+        small.getPaths(D2, D3);
+        assertEquals(1, small.size());
+    }
+
+    /**
+     * Topology of the line 1 - 2 - 3 counting the path lookups.
+     */
+    private class TestTopologyService extends TopologyServiceAdapter {
+
+        @Override
+        public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst) {
+            lookups.merge(ImmutableList.of(src, dst), 1, Integer::sum);
+            if (src.equals(D1) && dst.equals(D2)) {
+                return ImmutableSet.of(path(L12));
+            } else if (src.equals(D2) && dst.equals(D3)) {
+                return ImmutableSet.of(path(L23));
+            } else if (src.equals(D1) && dst.equals(D3)) {
+                return ImmutableSet.of(path(L12, L23));
+            }
+            return Collections.emptySet();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.HostId;
+import org.sardineproject.sbyod.service.ServiceId;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the rules shared by the connections.
+ */
+public class RuleRegistryTest {
+
+    private static final String RULE = "rule";
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 1000;
+    private static final ConnectionKey C1 = ConnectionKey.of(HostId.hostId("00:00:00:00:00:01/-1"),
+            ServiceId.serviceId(URI.create("service")));
+    private static final ConnectionKey C2 = ConnectionKey.of(HostId.hostId("00:00:00:00:00:02/-1"),
+            ServiceId.serviceId(URI.create("service")));
+
+    private final List<String> installed = new ArrayList<>();
+    private final List<String> removed = new ArrayList<>();
+    private RuleRegistry<String> registry;
+
+    @Before
+    public void setUp() {
+        registry = new RuleRegistry<>();
+    }
+
+    private CompletableFuture<Void> acquire(String key, ConnectionKey owner) {
+        return registry.acquire(key, owner, () -> {
+            installed.add(key);
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private void release(String key, ConnectionKey owner) {
+        registry.release(key, owner, () -> removed.add(key));
+    }
+
+    @Test
+    public void ruleInstalledOnceForAllConnections() {
+        CompletableFuture<Void> first = acquire(RULE, C1);
+        CompletableFuture<Void> second = acquire(RULE, C2);
+        assertEquals(1, installed.size());
+        assertSame(first, second);
+        assertEquals(1, registry.size());
+        assertEquals(2, registry.references());
+    }
+
+    @Test
+    public void ruleRemovedWithLastConnection() {
+        acquire(RULE, C1);
+        acquire(RULE, C2);
+
+        release(RULE, C1);
+        assertTrue(removed.isEmpty());
+        assertEquals(1, registry.references());
+
+        release(RULE, C2);
+        assertEquals(1, removed.size());
+        assertEquals(0, registry.size());
+        assertNull(registry.installed(RULE));
+    }
+
+    @Test
+    public void connectionCountedOnce() {
+        // acquiring the rule again does not keep it installed after the connection released it
+        acquire(RULE, C1);
+        acquire(RULE, C1);
+        assertEquals(1, registry.references());
+
+        release(RULE, C1);
+        assertEquals(1, removed.size());
+    }
+
+    @Test
+    public void releaseOfOtherConnectionKeepsRule() {
+        acquire(RULE, C1);
+        release(RULE, C2);
+        assertTrue(removed.isEmpty());
+        assertEquals(1, registry.references());
+    }
+
+    @Test
+    public void ruleInstalledAgainAfterRemoval() {
+        acquire(RULE, C1);
+        release(RULE, C1);
+        acquire(RULE, C2);
+        assertEquals(2, installed.size());
+        assertEquals(1, removed.size());
+    }
+
+    @Test
+    public void acquireAndInstallKeepsOwners() {
+        acquire(RULE, C1);
+        // a temporary rule might have expired in the device and is sent again
+        registry.acquireAndInstall(RULE, C2, () -> {
+            installed.add(RULE);
+            return CompletableFuture.completedFuture(null);
+        });
+        assertEquals(2, installed.size());
+        assertEquals(2, registry.references());
+
+        release(RULE, C2);
+        assertTrue(removed.isEmpty());
+        release(RULE, C1);
+        assertEquals(1, removed.size());
+    }
+
+    @Test
+    public void rulesSentInOrderOfUpdates() {
+        // the removal of the last holder is sent before the installation of the next one
+        List<String> sent = new ArrayList<>();
+        registry.acquire(RULE, C1, () -> {
+            sent.add("install");
+            return CompletableFuture.completedFuture(null);
+        });
+        registry.release(RULE, C1, () -> sent.add("remove"));
+        registry.acquire(RULE, C2, () -> {
+            sent.add("install");
+            return CompletableFuture.completedFuture(null);
+        });
+        assertEquals(Arrays.asList("install", "remove", "install"), sent);
+    }
+
+    @Test
+    public void concurrentConnectionsCounted() throws Exception {
+        AtomicInteger installs = new AtomicInteger();
+        AtomicInteger removals = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                ConnectionKey owner = ConnectionKey.of(HostId.hostId(MacAddress.valueOf(i + 1), VlanId.NONE),
+                        ServiceId.serviceId(URI.create("service")));
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < ROUNDS; j++) {
+                        registry.acquire(RULE, owner, () -> {
+                            installs.incrementAndGet();
+                            return CompletableFuture.completedFuture(null);
+                        });
+                        registry.release(RULE, owner, removals::incrementAndGet);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // every installation of the rule is removed again
+        assertEquals(0, registry.size());
+        assertEquals(installs.get(), removals.get());
+    }
+
+    @Test
+    public void unknownRuleNotRemoved() {
+        release(RULE, C1);
+        assertTrue(removed.isEmpty());
+    }
+
+    @Test
+    public void adoptedRuleRemovedOnRelease() {
+        // the former master installed the rule, this instance took over the connections
+        registry.adopt(RULE, C1);
+        registry.adopt(RULE, C2);
+        assertTrue(installed.isEmpty());
+        assertTrue(registry.installed(RULE).isDone());
+
+        release(RULE, C1);
+        assertTrue(removed.isEmpty());
+        release(RULE, C2);
+        assertEquals(1, removed.size());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void adoptedRuleNotInstalledAgain() {
+        registry.adopt(RULE, C1);
+        acquire(RULE, C2);
+        assertTrue(installed.isEmpty());
+        assertEquals(2, registry.references());
+    }
+
+    @Test
+    public void forgottenRuleNotRemoved() {
+        acquire(RULE, C1);
+        acquire(RULE, C2);
+
+        // another instance took over the first connection
+        registry.forget(RULE, C1);
+        assertEquals(1, registry.references());
+        registry.forget(RULE, C2);
+        assertNull(registry.installed(RULE));
+        assertTrue(removed.isEmpty());
+
+        // the rule is unknown after all connections were taken over
+        release(RULE, C2);
+        assertTrue(removed.isEmpty());
+    }
+}
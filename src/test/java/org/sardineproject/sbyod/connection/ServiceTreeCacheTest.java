@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.NetTestTools.link;
+
+/**
+ * Tests of the shortest path trees and their invalidation by topology events.
+ * The topology is a diamond with the root 1, the devices 2 and 3 one hop
+ * and the device 4 two hops away from the root.
+ */
+public class ServiceTreeCacheTest {
+
+    private static final DeviceId D1 = did("1");
+    private static final DeviceId D2 = did("2");
+    private static final DeviceId D3 = did("3");
+    private static final DeviceId D4 = did("4");
+    private static final DeviceId D5 = did("5");
+
+    private static final Link L21 = link("2", 1, "1", 1);
+    private static final Link L31 = link("3", 1, "1", 2);
+    private static final Link L42 = link("4", 2, "2", 2);
+    private static final Link L43 = link("4", 1, "3", 2);
+    private static final Link L41 = link("4", 3, "1", 3);
+    private static final Link L54 = link("5", 1, "4", 4);
+
+    private final Set<Link> links = new HashSet<>();
+    private ServiceTreeCache cache;
+
+    @Before
+    public void setUp() {
+        links.addAll(ImmutableList.of(L21, L31, L42, L43));
+        cache = new ServiceTreeCache(new TestTopologyService());
+    }
+
+    private static TopologyEvent event(LinkEvent.Type type, Link link) {
+        return new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, null,
+                ImmutableList.of(new LinkEvent(type, link)));
+    }
+
+    @Test
+    public void routeAlongTree() {
+        assertEquals(ImmutableList.of(L21), cache.getRoute(D2, D1));
+        // of two equal next hops the link with the lowest source port is chosen
+        assertEquals(ImmutableList.of(L43, L31), cache.getRoute(D4, D1));
+        assertTrue(cache.getRoute(D1, D1).isEmpty());
+        assertEquals(1, cache.computations());
+    }
+
+    @Test
+    public void unconnectedSource() {
+        assertTrue(cache.getRoute(D5, D1).isEmpty());
+    }
+
+    @Test
+    public void removedUnusedLinkKeepsTree() {
+        cache.getRoute(D4, D1);
+        links.remove(L42);
+        cache.invalidate(event(LinkEvent.Type.LINK_REMOVED, L42));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void removedNextHopInvalidatesTree() {
+        cache.getRoute(D4, D1);
+        links.remove(L43);
+        cache.invalidate(event(LinkEvent.Type.LINK_REMOVED, L43));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.invalidations());
+
+        assertEquals(ImmutableList.of(L42, L21), cache.getRoute(D4, D1));
+        assertEquals(2, cache.computations());
+    }
+
+    @Test
+    public void addedShortcutInvalidatesTree() {
+        cache.getRoute(D4, D1);
+        links.add(L41);
+        cache.invalidate(event(LinkEvent.Type.LINK_ADDED, L41));
+        assertEquals(0, cache.size());
+        assertEquals(ImmutableList.of(L41), cache.getRoute(D4, D1));
+    }
+
+    @Test
+    public void addedLongerLinkKeepsTree() {
+        cache.getRoute(D4, D1);
+        Link l24 = link("2", 3, "4", 5);
+        links.add(l24);
+        cache.invalidate(event(LinkEvent.Type.LINK_ADDED, l24));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void addedLinkOfNewDeviceInvalidatesTree() {
+        cache.getRoute(D4, D1);
+        links.add(L54);
+        cache.invalidate(event(LinkEvent.Type.LINK_ADDED, L54));
+        assertEquals(0, cache.size());
+        assertEquals(ImmutableList.of(L54, L43, L31), cache.getRoute(D5, D1));
+    }
+
+    /**
+     * Topology service providing the graph of the current links.
+     */
+    private class TestTopologyService extends TopologyServiceAdapter {
+
+        @Override
+        public TopologyGraph getGraph(Topology topology) {
+            return new TestGraph();
+        }
+    }
+
+    private class TestGraph implements TopologyGraph {
+
+        @Override
+        public Set<TopologyVertex> getVertexes() {
+            Set<TopologyVertex> vertexes = new HashSet<>();
+            links.forEach(link -> {
+                vertexes.add(new DefaultTopologyVertex(link.src().deviceId()));
+                vertexes.add(new DefaultTopologyVertex(link.dst().deviceId()));
+            });
+            return vertexes;
+        }
+
+        @Override
+        public Set<TopologyEdge> getEdges() {
+            return links.stream().map(this::edge).collect(Collectors.toSet());
+        }
+
+        @Override
+        public Set<TopologyEdge> getEdgesFrom(TopologyVertex src) {
+            return links.stream()
+                    .filter(link -> link.src().deviceId().equals(src.deviceId()))
+                    .map(this::edge)
+                    .collect(Collectors.toSet());
+        }
+
+        @Override
+        public Set<TopologyEdge> getEdgesTo(TopologyVertex dst) {
+            return links.stream()
+                    .filter(link -> link.dst().deviceId().equals(dst.deviceId()))
+                    .map(this::edge)
+                    .collect(Collectors.toSet());
+        }
+
+        private TopologyEdge edge(Link link) {
+            return new DefaultTopologyEdge(new DefaultTopologyVertex(link.src().deviceId()),
+                    new DefaultTopologyVertex(link.dst().deviceId()), link);
+        }
+    }
+}
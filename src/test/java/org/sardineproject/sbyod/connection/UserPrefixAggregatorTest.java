@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.connection;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip4Prefix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the prefixes covering the user addresses of a group.
+ */
+public class UserPrefixAggregatorTest {
+
+    private static Set<Ip4Prefix> cover(String... addresses) {
+        List<Ip4Address> ips = new ArrayList<>();
+        for (String address : addresses) {
+            ips.add(Ip4Address.valueOf(address));
+        }
+        return UserPrefixAggregator.minimalCover(ips);
+    }
+
+    private static Set<Ip4Prefix> prefixes(String... prefixes) {
+        ImmutableSet.Builder<Ip4Prefix> builder = ImmutableSet.builder();
+        for (String prefix : prefixes) {
+            builder.add(Ip4Prefix.valueOf(prefix));
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void noAddresses() {
+        assertTrue(UserPrefixAggregator.minimalCover(Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void singleAddress() {
+        assertEquals(prefixes("10.0.0.5/32"), cover("10.0.0.5"));
+    }
+
+    @Test
+    public void siblingsMerged() {
+        assertEquals(prefixes("10.0.0.4/31"), cover("10.0.0.4", "10.0.0.5"));
+        assertEquals(prefixes("10.0.0.4/30"), cover("10.0.0.4", "10.0.0.5", "10.0.0.6", "10.0.0.7"));
+    }
+
+    @Test
+    public void neighboursOfDifferentParentsNotMerged() {
+        // 10.0.0.5 and 10.0.0.6 are adjacent but belong to different /31 prefixes
+        assertEquals(prefixes("10.0.0.5/32", "10.0.0.6/32"), cover("10.0.0.5", "10.0.0.6"));
+    }
+
+    @Test
+    public void partialBlock() {
+        assertEquals(prefixes("10.0.0.0/31", "10.0.0.2/32"), cover("10.0.0.0", "10.0.0.1", "10.0.0.2"));
+        assertEquals(prefixes("10.0.0.1/32", "10.0.0.2/31", "10.0.0.4/30"),
+                cover("10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4", "10.0.0.5", "10.0.0.6", "10.0.0.7"));
+    }
+
+    @Test
+    public void duplicatesIgnored() {
+        assertEquals(prefixes("10.0.0.4/31"), cover("10.0.0.4", "10.0.0.5", "10.0.0.4"));
+    }
+
+    @Test
+    public void fullSubnet() {
+        List<Ip4Address> ips = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            ips.add(Ip4Address.valueOf("192.168.1." + i));
+        }
+        assertEquals(prefixes("192.168.1.0/24"), UserPrefixAggregator.minimalCover(ips));
+
+        // without the broadcast address the subnet is covered by one prefix of every length below /24
+        ips.remove(255);
+        assertEquals(prefixes("192.168.1.0/25", "192.168.1.128/26", "192.168.1.192/27", "192.168.1.224/28",
+                "192.168.1.240/29", "192.168.1.248/30", "192.168.1.252/31", "192.168.1.254/32"),
+                UserPrefixAggregator.minimalCover(ips));
+    }
+
+    @Test
+    public void highAddresses() {
+        // addresses with the sign bit set are handled as unsigned
+        assertEquals(prefixes("255.255.255.254/31"), cover("255.255.255.254", "255.255.255.255"));
+        assertEquals(prefixes("128.0.0.0/32", "127.255.255.255/32"), cover("128.0.0.0", "127.255.255.255"));
+    }
+}
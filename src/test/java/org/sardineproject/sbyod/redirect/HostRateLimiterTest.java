@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the per host token buckets of the redirect.
+ */
+public class HostRateLimiterTest {
+
+    private static final MacAddress MAC1 = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final MacAddress MAC2 = MacAddress.valueOf("00:00:00:00:00:02");
+
+    // one packet per second refills too slowly to change the verdicts during a test
+    private static final int RATE = 1;
+
+    @Test
+    public void burstOfTwiceTheRate() {
+        HostRateLimiter limiter = new HostRateLimiter(60);
+        assertEquals(HostRateLimiter.Verdict.PASS, limiter.acquire(MAC1.toLong(), RATE));
+        assertEquals(HostRateLimiter.Verdict.PASS, limiter.acquire(MAC1.toLong(), RATE));
+        // the first packet over budget requests a drop flow, the following are only dropped
+        assertEquals(HostRateLimiter.Verdict.BLOCK, limiter.acquire(MAC1.toLong(), RATE));
+        assertEquals(HostRateLimiter.Verdict.DROP, limiter.acquire(MAC1.toLong(), RATE));
+        assertEquals(HostRateLimiter.Verdict.DROP, limiter.acquire(MAC1.toLong(), RATE));
+    }
+
+    @Test
+    public void hostsLimitedSeparately() {
+        HostRateLimiter limiter = new HostRateLimiter(60);
+        limiter.acquire(MAC1.toLong(), RATE);
+        limiter.acquire(MAC1.toLong(), RATE);
+        limiter.acquire(MAC1.toLong(), RATE);
+        assertEquals(HostRateLimiter.Verdict.PASS, limiter.acquire(MAC2.toLong(), RATE));
+    }
+
+    @Test
+    public void blockRequestedAgainAfterTimeout() {
+        HostRateLimiter limiter = new HostRateLimiter(0);
+        limiter.acquire(MAC1.toLong(), RATE);
+        limiter.acquire(MAC1.toLong(), RATE);
+        assertEquals(HostRateLimiter.Verdict.BLOCK, limiter.acquire(MAC1.toLong(), RATE));
+        assertEquals(HostRateLimiter.Verdict.BLOCK, limiter.acquire(MAC1.toLong(), RATE));
+    }
+
+    @Test
+    public void dropsCounted() {
+        HostRateLimiter limiter = new HostRateLimiter(60);
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(MAC1.toLong(), RATE);
+        }
+        limiter.acquire(MAC2.toLong(), RATE);
+
+        assertEquals(3L, (long) limiter.drops().get(MAC1));
+        // hosts within their budget are not reported
+        assertFalse(limiter.drops().containsKey(MAC2));
+        assertTrue(new HostRateLimiter(60).drops().isEmpty());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the tcp connections kept by the redirect.
+ */
+public class RedirectFlowTableTest {
+
+    private static final RedirectFlowTable.FlowKey KEY = new RedirectFlowTable.FlowKey(1, 2, 1024, 80);
+    private static final RedirectFlowTable.FlowKey OTHER_KEY = new RedirectFlowTable.FlowKey(1, 2, 1025, 80);
+
+    private final RedirectFlowTable table = new RedirectFlowTable();
+
+    private static ByteBuffer payload(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void synOpensFlow() {
+        RedirectFlowTable.TcpFlow flow = table.open(KEY, 1000);
+        assertEquals(1000, flow.userIsn);
+        assertEquals(1001, flow.userNext);
+        assertEquals(flow.serverIsn + 1, flow.serverNext);
+        assertSame(flow, table.get(KEY));
+        assertNull(table.get(OTHER_KEY));
+    }
+
+    @Test
+    public void retransmittedSynKeepsFlow() {
+        RedirectFlowTable.TcpFlow flow = table.open(KEY, 1000);
+        assertSame(flow, table.open(KEY, 1000));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void newSynReplacesFlow() {
+        RedirectFlowTable.TcpFlow flow = table.open(KEY, 1000);
+        RedirectFlowTable.TcpFlow reopened = table.open(KEY, 5000);
+        assertNotSame(flow, reopened);
+        assertEquals(5000, reopened.userIsn);
+        assertSame(reopened, table.get(KEY));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void adoptedFlowContinuesSequenceNumbers() {
+        RedirectFlowTable.TcpFlow flow = table.adopt(KEY, 1001, 2001);
+        assertEquals(1001, flow.userNext);
+        assertEquals(2001, flow.serverNext);
+        // an existing flow is not replaced by a segment of the same connection
+        assertSame(flow, table.adopt(KEY, 1500, 2500));
+    }
+
+    @Test
+    public void removedFlowForgotten() {
+        table.open(KEY, 1000);
+        table.open(OTHER_KEY, 1000);
+        table.remove(KEY);
+        assertNull(table.get(KEY));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void flowKeysCompareTheFiveTuple() {
+        assertEquals(KEY, new RedirectFlowTable.FlowKey(1, 2, 1024, 80));
+        assertEquals(KEY.hashCode(), new RedirectFlowTable.FlowKey(1, 2, 1024, 80).hashCode());
+        assertFalse(KEY.equals(OTHER_KEY));
+        assertFalse(KEY.equals(new RedirectFlowTable.FlowKey(2, 1, 1024, 80)));
+    }
+
+    @Test
+    public void requestLineCompleteWithLineBreak() {
+        RedirectFlowTable.TcpFlow flow = table.open(KEY, 1000);
+        ByteBuffer first = payload("GET / HT");
+        flow.append(first, 0, first.capacity());
+        assertFalse(flow.isRequestComplete());
+
+        ByteBuffer second = payload("TP/1.1\r\nHost: example.org\r\n");
+        flow.append(second, 0, second.capacity());
+        assertTrue(flow.isRequestComplete());
+    }
+
+    @Test
+    public void requestLineReadAtOffset() {
+        RedirectFlowTable.TcpFlow flow = table.open(KEY, 1000);
+        // the line break before the offset belongs to the headers of the frame
+        ByteBuffer frame = payload("\n\nGET / HTTP/1.1");
+        flow.append(frame, 2, frame.capacity() - 2);
+        assertFalse(flow.isRequestComplete());
+    }
+
+    @Test
+    public void longRequestLineCompleteAtMaximalLength() {
+        RedirectFlowTable.TcpFlow flow = table.open(KEY, 1000);
+        byte[] line = new byte[1024];
+        Arrays.fill(line, (byte) 'a');
+        flow.append(ByteBuffer.wrap(line), 0, line.length);
+        assertFalse(flow.isRequestComplete());
+        flow.append(ByteBuffer.wrap(line), 0, line.length);
+        assertTrue(flow.isRequestComplete());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+import org.onlab.packet.Data;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.TCP;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.TCP_FLAG_MASK_ACK;
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.TCP_FLAG_MASK_FIN;
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.TCP_FLAG_MASK_PSH;
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.TCP_FLAG_MASK_SYN;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.REDIRECT;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.REQUEST;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.SERVER_IP;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.SERVER_MAC;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.SERVER_PORT;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.USER_IP;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.USER_MAC;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.USER_PORT;
+import static org.sardineproject.sbyod.redirect.RedirectResponderTest.frame;
+
+/**
+ * Measures the responses of the redirect built from the frame templates
+ * against serializing the same response with the packet classes of onos.
+ * It is not run by the unit tests, start it after the test compilation with the main method
+ * on the test class path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedirectResponderBenchmark {
+
+    private RedirectResponder responder;
+    private byte[] syn;
+    private byte[] request;
+    private int userPort;
+
+    @Setup
+    public void setUp() {
+        responder = new RedirectResponder(REDIRECT);
+        syn = frame(Ethernet.VLAN_UNTAGGED, TCP_FLAG_MASK_SYN, 1000, 0, new byte[0]);
+        request = frame(Ethernet.VLAN_UNTAGGED, TCP_FLAG_MASK_ACK | TCP_FLAG_MASK_PSH | TCP_FLAG_MASK_FIN,
+                1001, 2001, REQUEST);
+    }
+
+    /**
+     * Answers a retransmitted SYN of the same connection.
+     *
+     * @return SYN-ACK frame
+     */
+    @Benchmark
+    public byte[] synAck() {
+        return responder.respond(ByteBuffer.wrap(syn));
+    }
+
+    /**
+     * Answers a request closed by the user of a new connection with the http redirect.
+     * The connection is adopted by the flow table and removed again by the response.
+     *
+     * @return redirect frame
+     */
+    @Benchmark
+    public byte[] redirect() {
+        ByteBuffer frame = ByteBuffer.wrap(request);
+        // a new source port for every request, the checksum of the received frame is not verified
+        frame.putShort(14 + 20, (short) (1024 + (userPort++ & 0x7fff)));
+        return responder.respond(frame);
+    }
+
+    /**
+     * Builds the http redirect by serializing the packet classes.
+     *
+     * @return redirect frame
+     */
+    @Benchmark
+    public byte[] serializedRedirect() {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(SERVER_PORT)
+                .setDestinationPort(USER_PORT)
+                .setSequence(2001)
+                .setAcknowledge(1001 + REQUEST.length + 1)
+                .setFlags((short) (TCP_FLAG_MASK_ACK | TCP_FLAG_MASK_FIN))
+                .setWindowSize((short) 0xffff)
+                .setPayload(new Data(REDIRECT));
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(SERVER_IP.toInt())
+                .setDestinationAddress(USER_IP.toInt())
+                .setProtocol(IPv4.PROTOCOL_TCP)
+                .setTtl((byte) 64)
+                .setPayload(tcp);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(SERVER_MAC)
+                .setDestinationMACAddress(USER_MAC)
+                .setEtherType(Ethernet.TYPE_IPV4)
+                .setPayload(ip);
+        return eth.serialize();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RedirectResponderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Lorenz Reinhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ */
+package org.sardineproject.sbyod.redirect;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Data;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TCP;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.TCP_FLAG_MASK_ACK;
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.TCP_FLAG_MASK_FIN;
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.TCP_FLAG_MASK_PSH;
+import static org.sardineproject.sbyod.redirect.ControllerRedirect.TCP_FLAG_MASK_SYN;
+
+/**
+ * Tests of the responses of the redirect, parsed with the packet classes of onos.
+ */
+public class RedirectResponderTest {
+
+    static final MacAddress USER_MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    static final MacAddress SERVER_MAC = MacAddress.valueOf("00:00:00:00:00:02");
+    static final Ip4Address USER_IP = Ip4Address.valueOf("10.1.0.5");
+    static final Ip4Address SERVER_IP = Ip4Address.valueOf("93.184.216.34");
+    static final int USER_PORT = 51000;
+    static final int SERVER_PORT = 80;
+    static final byte[] REDIRECT = ("HTTP/1.1 302 Found\r\nLocation: http://10.1.0.2:3000/\r\n" +
+            "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    static final byte[] REQUEST = ("GET / HTTP/1.1\r\nHost: example.org\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static final int USER_ISN = 0x7ffffff0;
+
+    private RedirectResponder responder;
+
+    @Before
+    public void setUp() {
+        responder = new RedirectResponder(REDIRECT);
+    }
+
+    /**
+     * Returns the raw frame of a tcp segment sent by the user to the server
+     *
+     * @param vlan vlan id of the frame, Ethernet.VLAN_UNTAGGED for an untagged frame
+     * @param flags tcp flags
+     * @param sequence sequence number
+     * @param acknowledge acknowledge number
+     * @param payload tcp payload
+     * @return serialized frame
+     */
+    static byte[] frame(short vlan, int flags, int sequence, int acknowledge, byte[] payload) {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(USER_PORT)
+                .setDestinationPort(SERVER_PORT)
+                .setSequence(sequence)
+                .setAcknowledge(acknowledge)
+                .setFlags((short) flags)
+                .setWindowSize((short) 29200)
+                .setPayload(new Data(payload));
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(USER_IP.toInt())
+                .setDestinationAddress(SERVER_IP.toInt())
+                .setProtocol(IPv4.PROTOCOL_TCP)
+                .setTtl((byte) 64)
+                .setPayload(tcp);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(USER_MAC)
+                .setDestinationMACAddress(SERVER_MAC)
+                .setEtherType(Ethernet.TYPE_IPV4)
+                .setVlanID(vlan)
+                .setPayload(ip);
+        return eth.serialize();
+    }
+
+    private byte[] respond(int flags, int sequence, int acknowledge, byte[] payload) {
+        return responder.respond(ByteBuffer.wrap(frame(Ethernet.VLAN_UNTAGGED, flags, sequence, acknowledge,
+                payload)));
+    }
+
+    /**
+     * Parses the response and checks the addresses, the ports and the checksums.
+     *
+     * @param response raw response frame
+     * @param vlan expected vlan id
+     * @return tcp segment of the response
+     */
+    private static TCP parse(byte[] response, short vlan) throws Exception {
+        assertNotNull(response);
+        Ethernet eth = Ethernet.deserializer().deserialize(response, 0, response.length);
+        assertEquals(SERVER_MAC, eth.getSourceMAC());
+        assertEquals(USER_MAC, eth.getDestinationMAC());
+        assertEquals(vlan, eth.getVlanID());
+        assertEquals(Ethernet.TYPE_IPV4, eth.getEtherType());
+
+        IPv4 ip = (IPv4) eth.getPayload();
+        assertEquals(SERVER_IP.toInt(), ip.getSourceAddress());
+        assertEquals(USER_IP.toInt(), ip.getDestinationAddress());
+        assertEquals(IPv4.PROTOCOL_TCP, ip.getProtocol());
+
+        TCP tcp = (TCP) ip.getPayload();
+        assertEquals(SERVER_PORT, tcp.getSourcePort());
+        assertEquals(USER_PORT, tcp.getDestinationPort());
+
+        // the one's complement sum over a header including its checksum is 0xffff
+        int l3 = response.length - ip.getTotalLength();
+        int ipHeaderLength = ip.getHeaderLength() * 4;
+        assertEquals("IPv4 checksum", 0xffff, fold(sum(response, l3, ipHeaderLength)));
+        int tcpLength = ip.getTotalLength() - ipHeaderLength;
+        int pseudoHeader = sum(response, l3 + 12, 8) + IPv4.PROTOCOL_TCP + tcpLength;
+        assertEquals("TCP checksum", 0xffff,
+                fold(pseudoHeader + sum(response, l3 + ipHeaderLength, tcpLength)));
+        return tcp;
+    }
+
+    private static int sum(byte[] data, int offset, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            int high = (data[offset + i] & 0xff) << 8;
+            int low = i + 1 < length ? data[offset + i + 1] & 0xff : 0;
+            sum = fold(sum + (high | low));
+        }
+        return sum;
+    }
+
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    private static byte[] payload(TCP tcp) {
+        return tcp.getPayload() == null ? new byte[0] : ((Data) tcp.getPayload()).getData();
+    }
+
+    @Test
+    public void synAnswered() throws Exception {
+        TCP synAck = parse(respond(TCP_FLAG_MASK_SYN, USER_ISN, 0, new byte[0]), Ethernet.VLAN_UNTAGGED);
+        assertEquals(TCP_FLAG_MASK_SYN | TCP_FLAG_MASK_ACK, synAck.getFlags());
+        assertEquals(USER_ISN + 1, synAck.getAcknowledge());
+        assertEquals(1, responder.flowCount());
+
+        // a retransmitted SYN is answered with the same sequence number
+        TCP again = parse(respond(TCP_FLAG_MASK_SYN, USER_ISN, 0, new byte[0]), Ethernet.VLAN_UNTAGGED);
+        assertEquals(synAck.getSequence(), again.getSequence());
+    }
+
+    @Test
+    public void requestRedirected() throws Exception {
+        TCP synAck = parse(respond(TCP_FLAG_MASK_SYN, USER_ISN, 0, new byte[0]), Ethernet.VLAN_UNTAGGED);
+        int serverNext = synAck.getSequence() + 1;
+        int userNext = USER_ISN + 1;
+        assertNull(respond(TCP_FLAG_MASK_ACK, userNext, serverNext, new byte[0]));
+
+        TCP redirect = parse(respond(TCP_FLAG_MASK_ACK | TCP_FLAG_MASK_PSH, userNext, serverNext, REQUEST),
+                Ethernet.VLAN_UNTAGGED);
+        userNext += REQUEST.length;
+        assertEquals(TCP_FLAG_MASK_ACK | TCP_FLAG_MASK_FIN, redirect.getFlags());
+        assertEquals(serverNext, redirect.getSequence());
+        assertEquals(userNext, redirect.getAcknowledge());
+        assertArrayEquals(REDIRECT, payload(redirect));
+        serverNext += REDIRECT.length + 1;
+
+        // the FIN of the user is acknowledged and closes the flow
+        TCP ack = parse(respond(TCP_FLAG_MASK_ACK | TCP_FLAG_MASK_FIN, userNext, serverNext, new byte[0]),
+                Ethernet.VLAN_UNTAGGED);
+        assertEquals(TCP_FLAG_MASK_ACK, ack.getFlags());
+        assertEquals(serverNext, ack.getSequence());
+        assertEquals(userNext + 1, ack.getAcknowledge());
+        assertEquals(0, responder.flowCount());
+    }
+
+    @Test
+    public void requestSplitOverSegments() throws Exception {
+        TCP synAck = parse(respond(TCP_FLAG_MASK_SYN, USER_ISN, 0, new byte[0]), Ethernet.VLAN_UNTAGGED);
+        int serverNext = synAck.getSequence() + 1;
+        int userNext = USER_ISN + 1;
+
+        byte[] first = "GET / HT".getBytes(StandardCharsets.US_ASCII);
+        TCP ack = parse(respond(TCP_FLAG_MASK_ACK, userNext, serverNext, first), Ethernet.VLAN_UNTAGGED);
+        userNext += first.length;
+        assertEquals(TCP_FLAG_MASK_ACK, ack.getFlags());
+        assertEquals(userNext, ack.getAcknowledge());
+
+        byte[] second = "TP/1.1\r\n".getBytes(StandardCharsets.US_ASCII);
+        TCP redirect = parse(respond(TCP_FLAG_MASK_ACK, userNext, serverNext, second), Ethernet.VLAN_UNTAGGED);
+        assertEquals(TCP_FLAG_MASK_ACK | TCP_FLAG_MASK_FIN, redirect.getFlags());
+        assertEquals(userNext + second.length, redirect.getAcknowledge());
+    }
+
+    @Test
+    public void outOfOrderSegmentAcknowledgedAgain() throws Exception {
+        TCP synAck = parse(respond(TCP_FLAG_MASK_SYN, USER_ISN, 0, new byte[0]), Ethernet.VLAN_UNTAGGED);
+        int serverNext = synAck.getSequence() + 1;
+
+        TCP ack = parse(respond(TCP_FLAG_MASK_ACK, USER_ISN + 100, serverNext, REQUEST), Ethernet.VLAN_UNTAGGED);
+        assertEquals(TCP_FLAG_MASK_ACK, ack.getFlags());
+        assertEquals(serverNext, ack.getSequence());
+        assertEquals(USER_ISN + 1, ack.getAcknowledge());
+    }
+
+    @Test
+    public void vlanTagKept() throws Exception {
+        short vlan = 42;
+        byte[] syn = frame(vlan, TCP_FLAG_MASK_SYN, USER_ISN, 0, new byte[0]);
+        TCP synAck = parse(responder.respond(ByteBuffer.wrap(syn)), vlan);
+        assertEquals(USER_ISN + 1, synAck.getAcknowledge());
+    }
+
+    @Test
+    public void resetClosesFlow() {
+        respond(TCP_FLAG_MASK_SYN, USER_ISN, 0, new byte[0]);
+        assertNull(respond(ControllerRedirect.TCP_FLAG_MASK_RST, USER_ISN + 1, 0, new byte[0]));
+        assertEquals(0, responder.flowCount());
+    }
+}